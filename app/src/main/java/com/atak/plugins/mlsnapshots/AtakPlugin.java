@@ -14,13 +14,19 @@ import com.atak.plugins.mlsnapshots.services.GeoPackageService;
 import com.atak.plugins.mlsnapshots.services.DuckDBService;
 import com.atak.plugins.mlsnapshots.services.DataIngestionService;
 import com.atak.plugins.mlsnapshots.services.EsriDataService;
+import com.atak.plugins.mlsnapshots.services.FeedScheduler;
 import com.atak.plugins.mlsnapshots.services.PlacesDataService;
+import com.atak.plugins.mlsnapshots.services.MediaPipeEmbedder;
+import com.atak.plugins.mlsnapshots.services.RetrievalService;
+import com.atak.plugins.mlsnapshots.services.StreamIngestService;
+import com.atak.plugins.mlsnapshots.services.TextToSqlService;
 import com.atak.plugins.mlsnapshots.servers.OgcApiServer;
 import com.atak.plugins.mlsnapshots.Google3DTilesWidget;
 import com.atak.plugins.mlsnapshots.ModelConversionWidget;
 import com.atak.plugins.mlsnapshots.PmTilesWidget;
 import com.atak.plugins.mlsnapshots.ModelDownloadWidget;
 import com.atak.plugins.mlsnapshots.PlacesDownloadWidget;
+import com.atak.plugins.mlsnapshots.FeedManagementWidget;
 
 import com.atakmap.android.maps.MapView;
 import com.atakmap.android.maps.MapEvent;
@@ -32,7 +38,9 @@ import org.maplibre.gl.maps.MapLibreMap;
 import transapps.maps.plugin.lifecycle.Lifecycle;
 import gov.tak.api.plugin.AbstractPlugin;
 
+import java.io.File;
 import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
 
 public class AtakPlugin extends AbstractPlugin implements MapLibreMap.SnapshotReadyCallback, MapEventListener {
 
@@ -45,7 +53,11 @@ public class AtakPlugin extends AbstractPlugin implements MapLibreMap.SnapshotRe
     private OgcApiServer ogcApiServer;
     private DataIngestionService dataIngestionService;
     private EsriDataService esriDataService;
+    private StreamIngestService streamIngestService;
+    private FeedScheduler feedScheduler;
     private PlacesDataService placesDataService;
+    private RetrievalService retrievalService;
+    private TextToSqlService textToSqlService;
     private MapView mapView;
     private StylingWidgetDropDownReceiver stylingWidgetDropDownReceiver;
     private Google3DTilesWidget google3DTilesWidget;
@@ -53,6 +65,7 @@ public class AtakPlugin extends AbstractPlugin implements MapLibreMap.SnapshotRe
     private PmTilesWidget pmTilesWidget;
     private ModelDownloadWidget modelDownloadWidget;
     private PlacesDownloadWidget placesDownloadWidget;
+    private FeedManagementWidget feedManagementWidget;
 
     public AtakPlugin(final Lifecycle lifecycle) {
         super(lifecycle);
@@ -63,16 +76,22 @@ public class AtakPlugin extends AbstractPlugin implements MapLibreMap.SnapshotRe
         Log.d(TAG, "Starting plugin...");
         super.onStart(context, view);
         this.mapView = view;
+        // A previous onStop() shut the executor down
+        PluginExecutor.start();
 
         try {
             aiService = new AIService(context, AIService.ModelType.GEMMA_3N);
             mapLibreService = new MapLibreService(view);
             geoPackageService = new GeoPackageService(context, "atak_data.gpkg");
-            dataIngestionService = new DataIngestionService(context, geoPackageService);
             duckDBService = new DuckDBService(geoPackageService.getGeoPackagePath());
-            esriDataService = new EsriDataService(duckDBService);
-            placesDataService = new PlacesDataService(duckDBService);
+            dataIngestionService = new DataIngestionService(context, geoPackageService, duckDBService);
+            streamIngestService = new StreamIngestService(duckDBService);
+            feedScheduler = new FeedScheduler();
+            esriDataService = new EsriDataService(duckDBService, streamIngestService, feedScheduler);
+            placesDataService = new PlacesDataService(duckDBService, new File(context.getExternalFilesDir(null), "overture_cache"));
             ogcApiServer = new OgcApiServer(8080, duckDBService, geoPackageService);
+            startRetrieval(context);
+            textToSqlService = new TextToSqlService(duckDBService, aiService);
             
             stylingWidgetDropDownReceiver = new StylingWidgetDropDownReceiver(view, context, geoPackageService, mapLibreService);
             google3DTilesWidget = new Google3DTilesWidget(view, context, geoPackageService);
@@ -80,6 +99,8 @@ public class AtakPlugin extends AbstractPlugin implements MapLibreMap.SnapshotRe
             pmTilesWidget = new PmTilesWidget(view, context);
             modelDownloadWidget = new ModelDownloadWidget(view, context);
             placesDownloadWidget = new PlacesDownloadWidget(view, context, placesDataService);
+            feedManagementWidget = new FeedManagementWidget(view, context, duckDBService, esriDataService,
+                    streamIngestService, feedScheduler);
 
             dataIngestionService.start();
             ogcApiServer.start();
@@ -100,6 +121,7 @@ public class AtakPlugin extends AbstractPlugin implements MapLibreMap.SnapshotRe
             createToolbar(context, PmTilesWidget.SHOW_WIDGET, "PMTiles", R.drawable.ic_map);
             createToolbar(context, ModelDownloadWidget.SHOW_WIDGET, "AI Models", R.drawable.ic_download);
             createToolbar(context, PlacesDownloadWidget.SHOW_WIDGET, "Places", R.drawable.ic_place);
+            createToolbar(context, FeedManagementWidget.SHOW_WIDGET, "Feeds", R.drawable.ic_layers);
 
             Log.d(TAG, "All services initialized and started successfully.");
             view.postDelayed(() -> {
@@ -111,6 +133,26 @@ public class AtakPlugin extends AbstractPlugin implements MapLibreMap.SnapshotRe
         }
     }
     
+    /**
+     * Lets the AI answer from the feature tables, if the text embedding model has been installed.
+     */
+    private void startRetrieval(Context context) {
+        File embedderModel = new File(context.getExternalFilesDir(null), "universal_sentence_encoder.tflite");
+        if (!embedderModel.exists()) {
+            Log.i(TAG, "No embedding model at " + embedderModel + ", AI answers will not use map data");
+            return;
+        }
+        try {
+            retrievalService = new RetrievalService(duckDBService, new MediaPipeEmbedder(context, embedderModel));
+            retrievalService.watch("fused_places");
+            retrievalService.watch("Raleigh_Vehicles");
+            retrievalService.startAutoRefresh(1, TimeUnit.MINUTES);
+            aiService.setRetrievalService(retrievalService);
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to start retrieval", e);
+        }
+    }
+
     private void createToolbar(Context context, String action, String name, int iconResId) {
         View toolbarView = View.inflate(context, R.layout.generic_toolbar, null);
         ImageButton button = toolbarView.findViewById(R.id.toolbar_button);
@@ -130,6 +172,11 @@ public class AtakPlugin extends AbstractPlugin implements MapLibreMap.SnapshotRe
         if (aiService != null) aiService.close();
         if (dataIngestionService != null) dataIngestionService.stop();
         if (ogcApiServer != null) ogcApiServer.stop();
+        if (feedScheduler != null) feedScheduler.close();
+        // Background jobs may still hold DuckDB connections
+        PluginExecutor.shutdown();
+        if (streamIngestService != null) streamIngestService.close();
+        if (retrievalService != null) retrievalService.close();
         if (duckDBService != null) {
             try {
                 duckDBService.close();
@@ -137,12 +184,14 @@ public class AtakPlugin extends AbstractPlugin implements MapLibreMap.SnapshotRe
                 Log.e(TAG, "Failed to close DuckDBService", e);
             }
         }
+        if (geoPackageService != null) geoPackageService.close();
         if (stylingWidgetDropDownReceiver != null) stylingWidgetDropDownReceiver.dispose();
         if (google3DTilesWidget != null) google3DTilesWidget.dispose();
         if(modelConversionWidget != null) modelConversionWidget.dispose();
         if(pmTilesWidget != null) pmTilesWidget.dispose();
         if(modelDownloadWidget != null) modelDownloadWidget.dispose();
         if(placesDownloadWidget != null) placesDownloadWidget.dispose();
+        if(feedManagementWidget != null) feedManagementWidget.dispose();
         
         mapView.removeMapEventListener(this);
         super.onStop(context, view);
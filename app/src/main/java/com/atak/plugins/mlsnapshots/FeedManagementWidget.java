@@ -16,28 +16,44 @@ import android.widget.Toast;
 
 import com.atak.plugins.mlsnapshots.services.DuckDBService;
 import com.atak.plugins.mlsnapshots.services.EsriDataService;
+import com.atak.plugins.mlsnapshots.services.FeedScheduler;
 import com.atak.plugins.mlsnapshots.services.OGCDataService;
+import com.atak.plugins.mlsnapshots.services.StreamIngestService;
 import com.atakmap.android.maps.MapView;
 import com.atakmap.android.widgets.LinearLayoutWidget;
 import com.atakmap.coremap.log.Log;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 
 public class FeedManagementWidget extends BroadcastReceiver {
 
     public static final String TAG = "FeedManagementWidget";
     public static final String SHOW_WIDGET = "com.atak.plugins.mlsnapshots.SHOW_FEED_WIDGET";
+    private static final long STATUS_REFRESH_MS = 2000;
 
     private final Context context;
     private final MapView mapView;
     private final DuckDBService duckDBService;
     private final EsriDataService esriDataService;
     private final OGCDataService ogcDataService;
+    private final StreamIngestService streamIngestService;
+    private final FeedScheduler feedScheduler;
 
     private View widgetView;
     private boolean isVisible = false;
 
+    // Refreshes the feed list while the widget is shown
+    private final Runnable statusUpdater = new Runnable() {
+        @Override
+        public void run() {
+            if (!isVisible || widgetView == null) return;
+            refreshStatus();
+            widgetView.postDelayed(this, STATUS_REFRESH_MS);
+        }
+    };
+
     // UI Elements
     private EditText feedNameInput;
     private Spinner feedTypeSpinner;
@@ -49,12 +65,15 @@ public class FeedManagementWidget extends BroadcastReceiver {
     private ArrayAdapter<String> feedListAdapter;
     private List<String> activeFeeds;
 
-    public FeedManagementWidget(MapView mapView, Context context, DuckDBService duckDBService, EsriDataService esriDataService) {
+    public FeedManagementWidget(MapView mapView, Context context, DuckDBService duckDBService, EsriDataService esriDataService,
+                                StreamIngestService streamIngestService, FeedScheduler feedScheduler) {
         this.context = context;
         this.mapView = mapView;
         this.duckDBService = duckDBService;
         this.esriDataService = esriDataService;
-        this.ogcDataService = new OGCDataService(duckDBService);
+        this.streamIngestService = streamIngestService;
+        this.feedScheduler = feedScheduler;
+        this.ogcDataService = new OGCDataService(duckDBService, streamIngestService, feedScheduler);
         this.activeFeeds = new ArrayList<>();
 
         IntentFilter filter = new IntentFilter(SHOW_WIDGET);
@@ -109,6 +128,7 @@ public class FeedManagementWidget extends BroadcastReceiver {
              builder.setPositiveButton("Close", (dialog, id) -> isVisible = false);
              builder.show();
              isVisible = true;
+             statusUpdater.run();
         }
     }
 
@@ -167,16 +187,16 @@ public class FeedManagementWidget extends BroadcastReceiver {
                     ogcDataService.addRedisFeed(name, conn, "*", interval); // Default pattern *
                     Toast.makeText(context, "Scheduled Redis Scan: " + name, Toast.LENGTH_SHORT).show();
                 } else if (type.contains("Pub/Sub")) {
-                    ogcDataService.addRedisPubSubFeed(name, conn, "channel"); // Placeholder channel
-                    Toast.makeText(context, "Scheduled Redis Pub/Sub: " + name, Toast.LENGTH_SHORT).show();
+                    // The channel or pattern is the URL path: redis://host:port/channel
+                    ogcDataService.addRedisPubSubFeed(name, conn);
+                    Toast.makeText(context, "Subscribed Redis Pub/Sub: " + name, Toast.LENGTH_SHORT).show();
                 }
 
             } else if (type.contains("Kafka")) {
                  Toast.makeText(context, "Kafka feed support requires DuckDB Tributary setup", Toast.LENGTH_SHORT).show();
             }
             
-            activeFeeds.add(name + " [" + type + "]");
-            feedListAdapter.notifyDataSetChanged();
+            refreshStatus();
             
         } catch (Exception e) {
             Log.e(TAG, "Error adding feed", e);
@@ -184,6 +204,61 @@ public class FeedManagementWidget extends BroadcastReceiver {
         }
     }
 
+    /**
+     * Lists every scheduled feed and stream subscription with its health.
+     */
+    private void refreshStatus() {
+        activeFeeds.clear();
+        for (FeedScheduler.Status status : feedScheduler.getStatus()) {
+            activeFeeds.add(describe(status));
+        }
+        for (StreamIngestService.Stats stats : streamIngestService.getStats()) {
+            activeFeeds.add(describe(stats));
+        }
+        feedListAdapter.notifyDataSetChanged();
+    }
+
+    private static String describe(FeedScheduler.Status status) {
+        StringBuilder line = new StringBuilder(status.name);
+        if (status.running) {
+            line.append(": refreshing");
+        } else if (status.runs == 0) {
+            line.append(": waiting");
+        } else {
+            line.append(String.format(Locale.US, ": %.1f s", status.lastDurationMs / 1000.0));
+            if (status.lastUnchanged) {
+                line.append(", unchanged");
+            } else if (status.lastRows >= 0) {
+                line.append(", ").append(status.lastRows).append(" rows");
+            }
+            if (status.lastBytes > 0) {
+                line.append(String.format(Locale.US, ", %.1f KB", status.lastBytes / 1024.0));
+            }
+        }
+        line.append(String.format(Locale.US, ", every %d s", status.intervalMs / 1000));
+        if (status.failures > 0) {
+            line.append(", ").append(status.failures).append(" failed");
+        }
+        if (status.lastError != null) {
+            line.append("\nLast error: ").append(status.lastError);
+        }
+        return line.toString();
+    }
+
+    private static String describe(StreamIngestService.Stats stats) {
+        StringBuilder line = new StringBuilder(stats.table)
+                .append(stats.connected ? ": connected" : ": reconnecting")
+                .append(", ").append(stats.received).append(" messages");
+        if (stats.dropped > 0) {
+            line.append(", ").append(stats.dropped).append(" dropped");
+        }
+        if (stats.lastMessageMs > 0) {
+            line.append(String.format(Locale.US, ", last %d s ago",
+                    (System.currentTimeMillis() - stats.lastMessageMs) / 1000));
+        }
+        return line.toString();
+    }
+
     private void generateKml() {
         Toast.makeText(context, "KML Network Links generated in /atak/imports", Toast.LENGTH_SHORT).show();
     }
@@ -19,6 +19,8 @@ import org.locationtech.jts.geom.Coordinate;
 import org.locationtech.jts.geom.GeometryFactory;
 import org.locationtech.jts.geom.Polygon;
 
+import java.io.File;
+
 public class Google3DTilesWidget extends DropDownReceiver implements OnStateListener, View.OnClickListener {
 
     public static final String TAG = "Google3DTilesWidget";
@@ -34,7 +36,7 @@ public class Google3DTilesWidget extends DropDownReceiver implements OnStateList
     public Google3DTilesWidget(final MapView mapView, final Context context, GeoPackageService geoPackageService) {
         super(mapView);
         this.pluginContext = context;
-        this.tilesService = new Google3DTilesService(geoPackageService);
+        this.tilesService = new Google3DTilesService(geoPackageService, new File(context.getCacheDir(), "3dtiles"));
 
         LayoutInflater inflater = LayoutInflater.from(pluginContext);
         widgetView = inflater.inflate(R.layout.google_3d_tiles_widget, null);
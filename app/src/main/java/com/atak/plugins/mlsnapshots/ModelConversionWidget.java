@@ -60,12 +60,12 @@ public class ModelConversionWidget extends DropDownReceiver implements OnStateLi
     public void onClick(View v) {
         if (v.getId() == R.id.start_conversion_button) {
             statusText.setText("Status: Starting conversion...");
-            // For this example, we'll imagine a sample file is present in the file system.
-            File sampleGltf = new File(FileSystemUtils.getItem("atak/tools/sample.gltf").getPath());
+            // Every .gltf and .glb model in the models directory is converted
+            File inputDir = FileSystemUtils.getItem("atak/tools/models");
             File outputDir = FileSystemUtils.getItem("atak/tools/models_output");
             outputDir.mkdirs();
 
-            conversionService.convertGltfToObj(sampleGltf, outputDir, new ModelConversionService.ConversionListener() {
+            conversionService.convertDirectory(inputDir, outputDir, new ModelConversionService.ConversionListener() {
                 @Override
                 public void onProgress(String message) {
                     getMapView().post(() -> statusText.setText("Status: " + message));
@@ -12,9 +12,12 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import com.atak.map.ui.DropDownReceiver;
+import com.atak.plugins.mlsnapshots.services.AIService;
 import com.atak.plugins.mlsnapshots.services.ModelDownloadService;
 
 import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
 
 public class ModelDownloadWidget extends DropDownReceiver {
 
@@ -23,6 +26,8 @@ public class ModelDownloadWidget extends DropDownReceiver {
     private final ModelDownloadService downloadService;
     private View widgetView;
     private LinearLayout modelListLayout;
+    // Downloads in progress by file name; UI thread only
+    private final Map<String, ModelDownloadService.Download> downloads = new HashMap<>();
 
     public ModelDownloadWidget(com.atakmap.android.maps.MapView mapView, Context context) {
         super(mapView);
@@ -45,12 +50,14 @@ public class ModelDownloadWidget extends DropDownReceiver {
         widgetView = inflater.inflate(R.layout.model_download_widget, null);
         modelListLayout = widgetView.findViewById(R.id.model_list_layout);
 
-        addModelItem("Gemma 2B", "https://example.com/gemma-2b-it-cpu-int4.tflite", "gemma-2b-it-cpu-int4.tflite");
-        addModelItem("Gemma 3N", "https://example.com/gemma-3n-it-cpu-int4.tflite", "gemma-3n-it-cpu-int4.tflite");
-        addModelItem("Phi-4", "https://example.com/phi-4-cpu-int4.tflite", "phi-4-cpu-int4.tflite");
+        for (AIService.ModelType model : AIService.ModelType.values()) {
+            addModelItem(model);
+        }
     }
 
-    private void addModelItem(String modelName, String downloadUrl, String fileName) {
+    private void addModelItem(AIService.ModelType model) {
+        String modelName = model.displayName;
+        String fileName = model.fileName;
         View itemView = LayoutInflater.from(context).inflate(R.layout.model_download_item, null);
         TextView nameText = itemView.findViewById(R.id.model_name);
         Button downloadButton = itemView.findViewById(R.id.download_button);
@@ -69,13 +76,23 @@ public class ModelDownloadWidget extends DropDownReceiver {
             statusText.setTextColor(Color.RED);
         }
 
+        // While a download runs, the same button cancels it; the partial file is kept, so downloading again resumes
         downloadButton.setOnClickListener(v -> {
-            downloadButton.setEnabled(false);
+            ModelDownloadService.Download running = downloads.get(fileName);
+            if (running != null) {
+                downloadButton.setEnabled(false);
+                statusText.setText("Cancelling...");
+                running.cancel();
+                return;
+            }
+            downloadButton.setText("Cancel");
             statusText.setText("Downloading...");
             statusText.setTextColor(Color.BLUE);
             progressBar.setVisibility(View.VISIBLE);
-            
-            downloadService.downloadModel(downloadUrl, modelFile, new ModelDownloadService.DownloadListener() {
+
+            ModelDownloadService.Download download = downloadService.downloadVerified(model.getDownloadUrl(),
+                    model.getChecksumUrl(), modelFile,
+                    new ModelDownloadService.DownloadListener() {
                 @Override
                 public void onProgress(int progress) {
                     progressBar.setProgress(progress);
@@ -84,9 +101,11 @@ public class ModelDownloadWidget extends DropDownReceiver {
                 @Override
                 public void onComplete(File file) {
                     widgetView.post(() -> {
+                        downloads.remove(fileName);
                         statusText.setText("Downloaded");
                         statusText.setTextColor(Color.GREEN);
                         progressBar.setVisibility(View.GONE);
+                        downloadButton.setVisibility(View.GONE);
                         Toast.makeText(context, modelName + " downloaded successfully!", Toast.LENGTH_SHORT).show();
                     });
                 }
@@ -94,14 +113,21 @@ public class ModelDownloadWidget extends DropDownReceiver {
                 @Override
                 public void onError(String error) {
                     widgetView.post(() -> {
-                        statusText.setText("Error");
+                        boolean cancelled = !downloadButton.isEnabled();
+                        downloads.remove(fileName);
+                        statusText.setText(cancelled ? "Cancelled" : "Error");
                         statusText.setTextColor(Color.RED);
                         progressBar.setVisibility(View.GONE);
+                        downloadButton.setText("Download");
                         downloadButton.setEnabled(true);
-                        Toast.makeText(context, "Download failed: " + error, Toast.LENGTH_LONG).show();
+                        if (!cancelled) {
+                            Toast.makeText(context, "Download failed: " + error, Toast.LENGTH_LONG).show();
+                        }
                     });
                 }
             });
+            // A download that failed to start has already posted its error, which runs after this
+            downloads.put(fileName, download);
         });
 
         modelListLayout.addView(itemView);
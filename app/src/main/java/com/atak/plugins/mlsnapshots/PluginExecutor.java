@@ -0,0 +1,473 @@
+package com.atak.plugins.mlsnapshots;
+
+import com.atakmap.coremap.log.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Central background job scheduler for the plugin.
+ * <p>
+ * Every job belongs to a {@link JobType} lane. Each lane has its own concurrency limit and a bounded
+ * priority queue, so a burst of downloads cannot starve inference or oversubscribe the CPU.
+ * Submitted jobs are returned as {@link JobHandle}s which can be cancelled, waited on and polled for
+ * progress; {@link #getActiveJobs()} lists everything queued or running.
+ */
+public final class PluginExecutor {
+
+    private static final String TAG = "PluginExecutor";
+
+    public enum JobType {
+        /** Remote fetches; mostly waiting on sockets. */
+        NETWORK(4, 64),
+        /** Local file and database writes, which contend for the same storage. */
+        DISK(2, 64),
+        /** CPU-bound work. */
+        COMPUTE(Runtime.getRuntime().availableProcessors(), 256),
+        /** On-device model inference; the engine handles one request at a time. */
+        INFERENCE(1, 16),
+        /** Micro-batched writes of pushed feed messages; a single writer keeps each batch in order. */
+        STREAM(1, 16),
+        /** Scheduled feed refreshes; the limit caps how many feeds refresh at once. */
+        FEED(3, 128),
+        /** Change streams pushed to API clients; a slow client blocks a worker here rather than a fetch. */
+        PUSH(4, 128);
+
+        final int maxConcurrent;
+        final int queueCapacity;
+
+        JobType(int maxConcurrent, int queueCapacity) {
+            this.maxConcurrent = maxConcurrent;
+            this.queueCapacity = queueCapacity;
+        }
+    }
+
+    public enum Priority { HIGH, NORMAL, LOW }
+
+    public enum State { QUEUED, RUNNING, SUCCEEDED, FAILED, CANCELLED }
+
+    public interface Job<T> {
+        T run(JobContext context) throws Exception;
+    }
+
+    public interface JobListener {
+        void onProgress(JobHandle<?> job);
+        void onFinished(JobHandle<?> job);
+    }
+
+    private static PluginExecutor instance;
+
+    private final Map<JobType, Lane> lanes = new EnumMap<>(JobType.class);
+    private final Map<Long, JobHandle<?>> activeJobs = new ConcurrentHashMap<>();
+    private final List<JobListener> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final ThreadPoolExecutor workers;
+    private final ScheduledExecutorService timer;
+
+    private PluginExecutor() {
+        // Lanes gate how many jobs run at once; the pool itself only recycles threads.
+        workers = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new NamedThreadFactory("plugin-worker"));
+        timer = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("plugin-timer"));
+        for (JobType type : JobType.values()) {
+            lanes.put(type, new Lane(type));
+        }
+    }
+
+    /**
+     * @return the executor; after {@link #shutdown()} one that rejects all work, until {@link #start()}
+     */
+    public static synchronized PluginExecutor getInstance() {
+        if (instance == null) {
+            instance = new PluginExecutor();
+        }
+        return instance;
+    }
+
+    /**
+     * Replaces an executor that was shut down with a fresh one, for when the plugin starts again.
+     */
+    public static synchronized void start() {
+        if (instance != null && instance.workers.isShutdown()) {
+            instance = null;
+        }
+    }
+
+    /**
+     * @return an {@link Executor} that runs tasks as normal priority {@link JobType#COMPUTE} jobs
+     */
+    public static Executor getExecutor() {
+        return getExecutor(JobType.COMPUTE);
+    }
+
+    public static Executor getExecutor(final JobType type) {
+        return command -> getInstance().submit("task", type, Priority.NORMAL, context -> {
+            command.run();
+            return null;
+        });
+    }
+
+    /**
+     * Queues a job.
+     *
+     * @throws RejectedExecutionException if the lane's queue is full or the executor is shut down
+     */
+    public <T> JobHandle<T> submit(String name, JobType type, Priority priority, Job<T> job) {
+        JobHandle<T> handle = new JobHandle<>(this, sequence.incrementAndGet(), name, type, priority, job);
+        lanes.get(type).enqueue(handle);
+        return handle;
+    }
+
+    public <T> JobHandle<T> submit(String name, JobType type, Job<T> job) {
+        return submit(name, type, Priority.NORMAL, job);
+    }
+
+    /**
+     * Submits the job every {@code period}. A tick is skipped while the previous run is still queued
+     * or running, so slow jobs never pile up.
+     */
+    public ScheduledFuture<?> scheduleAtFixedRate(final String name, final JobType type, long initialDelay, long period,
+                                                  TimeUnit unit, final Job<?> job) {
+        final AtomicReference<JobHandle<?>> last = new AtomicReference<>();
+        return timer.scheduleAtFixedRate(() -> {
+            JobHandle<?> previous = last.get();
+            if (previous != null && !previous.isDone()) {
+                Log.d(TAG, "Skipping " + name + ", previous run still " + previous.getState());
+                return;
+            }
+            try {
+                last.set(submit(name, type, Priority.LOW, job));
+            } catch (RejectedExecutionException e) {
+                Log.w(TAG, "Could not schedule " + name + ": " + e.getMessage());
+            }
+        }, initialDelay, period, unit);
+    }
+
+    /**
+     * Submits the job once after {@code delay}.
+     */
+    public ScheduledFuture<?> schedule(final String name, final JobType type, long delay, TimeUnit unit,
+                                       final Job<?> job) {
+        return schedule(name, type, delay, unit, job, null);
+    }
+
+    /**
+     * Submits the job once after {@code delay}, running {@code onRejected} instead if its lane's queue is full
+     * or the executor has shut down by then.
+     *
+     * @throws RejectedExecutionException if the executor has already shut down
+     */
+    public ScheduledFuture<?> schedule(final String name, final JobType type, long delay, TimeUnit unit,
+                                       final Job<?> job, final Runnable onRejected) {
+        return timer.schedule(() -> {
+            try {
+                submit(name, type, job);
+            } catch (RejectedExecutionException e) {
+                Log.w(TAG, "Could not schedule " + name + ": " + e.getMessage());
+                if (onRejected != null) onRejected.run();
+            }
+        }, delay, unit);
+    }
+
+    /**
+     * @return a snapshot of all queued and running jobs, oldest first
+     */
+    public List<JobHandle<?>> getActiveJobs() {
+        List<JobHandle<?>> jobs = new ArrayList<>(activeJobs.values());
+        Collections.sort(jobs, (a, b) -> Long.compare(a.id, b.id));
+        return jobs;
+    }
+
+    public void addListener(JobListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(JobListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Cancels all jobs and stops the worker threads. The executor stays in place and rejects work, so a callback
+     * that runs after the plugin has stopped cannot start new threads; {@link #start()} replaces it.
+     */
+    public static synchronized void shutdown() {
+        if (instance == null) return;
+        instance.timer.shutdownNow();
+        // Before cancelling, so the lanes cannot dispatch queued jobs in place of the cancelled ones
+        instance.workers.shutdown();
+        for (JobHandle<?> job : instance.getActiveJobs()) {
+            job.cancel(true);
+        }
+    }
+
+    private void onProgress(JobHandle<?> job) {
+        for (JobListener listener : listeners) {
+            listener.onProgress(job);
+        }
+    }
+
+    private void onFinished(JobHandle<?> job) {
+        activeJobs.remove(job.id);
+        for (JobListener listener : listeners) {
+            listener.onFinished(job);
+        }
+    }
+
+    private final class Lane {
+        private final JobType type;
+        private final PriorityQueue<JobHandle<?>> pending = new PriorityQueue<>(16, new Comparator<JobHandle<?>>() {
+            @Override
+            public int compare(JobHandle<?> a, JobHandle<?> b) {
+                int byPriority = a.priority.compareTo(b.priority);
+                return byPriority != 0 ? byPriority : Long.compare(a.id, b.id);
+            }
+        });
+        private int running;
+
+        Lane(JobType type) {
+            this.type = type;
+        }
+
+        synchronized void enqueue(JobHandle<?> job) {
+            if (workers.isShutdown()) {
+                throw new RejectedExecutionException("PluginExecutor is shut down");
+            }
+            if (pending.size() >= type.queueCapacity) {
+                throw new RejectedExecutionException(type + " queue is full (" + type.queueCapacity + " jobs)");
+            }
+            pending.add(job);
+            activeJobs.put(job.id, job);
+            dispatch();
+        }
+
+        synchronized void remove(JobHandle<?> job) {
+            pending.remove(job);
+        }
+
+        synchronized void finished() {
+            running--;
+            dispatch();
+        }
+
+        private void dispatch() {
+            while (running < type.maxConcurrent && !pending.isEmpty()) {
+                JobHandle<?> job = pending.poll();
+                if (job.isCancelled()) continue;
+                running++;
+                try {
+                    workers.execute(job);
+                } catch (RejectedExecutionException e) {
+                    running--;
+                    job.cancel(false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Passed to a running job so it can report progress and notice cancellation.
+     */
+    public static final class JobContext {
+        private final JobHandle<?> handle;
+
+        JobContext(JobHandle<?> handle) {
+            this.handle = handle;
+        }
+
+        public boolean isCancelled() {
+            return handle.isCancelled() || Thread.currentThread().isInterrupted();
+        }
+
+        public void throwIfCancelled() {
+            if (isCancelled()) {
+                throw new CancellationException(handle.name + " cancelled");
+            }
+        }
+
+        /**
+         * @param percent 0-100, or -1 if the amount of work is unknown
+         */
+        public void setProgress(int percent, String message) {
+            handle.progress = percent;
+            handle.message = message;
+            handle.executor.onProgress(handle);
+        }
+    }
+
+    public static final class JobHandle<T> extends FutureTask<T> {
+        private final PluginExecutor executor;
+        private final long id;
+        private final String name;
+        private final JobType type;
+        private final Priority priority;
+        private final long submittedAt = System.currentTimeMillis();
+        private volatile long startedAt;
+        private volatile long finishedAt;
+        private volatile boolean started;
+        private volatile boolean failed;
+        private final AtomicBoolean reported = new AtomicBoolean();
+        private volatile int progress = -1;
+        private volatile String message;
+
+        JobHandle(PluginExecutor executor, long id, String name, JobType type, Priority priority, Job<T> job) {
+            this(executor, id, name, type, priority, new JobCallable<>(job));
+        }
+
+        private JobHandle(PluginExecutor executor, long id, String name, JobType type, Priority priority, JobCallable<T> callable) {
+            super(callable);
+            callable.context = new JobContext(this);
+            this.executor = executor;
+            this.id = id;
+            this.name = name;
+            this.type = type;
+            this.priority = priority;
+        }
+
+        @Override
+        public void run() {
+            Thread thread = Thread.currentThread();
+            String threadName = thread.getName();
+            thread.setName("plugin-" + type.name().toLowerCase() + "-" + name);
+            startedAt = System.currentTimeMillis();
+            started = true;
+            try {
+                super.run();
+            } finally {
+                thread.setName(threadName);
+                executor.lanes.get(type).finished();
+                // A job cancelled while running is only finished once its thread has let go of it
+                finished();
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled && !started) {
+                executor.lanes.get(type).remove(this);
+            }
+            return cancelled;
+        }
+
+        @Override
+        protected void setException(Throwable t) {
+            if (t instanceof CancellationException || t instanceof InterruptedException) {
+                // Thrown by JobContext.throwIfCancelled() or a blocking call noticing the interrupt
+                cancel(false);
+                return;
+            }
+            failed = true;
+            Log.e(TAG, "Job " + name + " failed", t);
+            super.setException(t);
+        }
+
+        @Override
+        protected void done() {
+            if (!started) finished();
+        }
+
+        private void finished() {
+            if (reported.compareAndSet(false, true)) {
+                finishedAt = System.currentTimeMillis();
+                executor.onFinished(this);
+            }
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public JobType getType() {
+            return type;
+        }
+
+        public Priority getPriority() {
+            return priority;
+        }
+
+        public State getState() {
+            if (isCancelled()) return State.CANCELLED;
+            if (isDone()) return failed ? State.FAILED : State.SUCCEEDED;
+            return started ? State.RUNNING : State.QUEUED;
+        }
+
+        public int getProgress() {
+            return progress;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        /**
+         * @return time spent waiting in the queue, in milliseconds
+         */
+        public long getQueueTimeMs() {
+            return (started ? startedAt : System.currentTimeMillis()) - submittedAt;
+        }
+
+        /**
+         * @return time spent running so far, in milliseconds
+         */
+        public long getRunTimeMs() {
+            if (!started) return 0;
+            return (finishedAt > 0 ? finishedAt : System.currentTimeMillis()) - startedAt;
+        }
+    }
+
+    private static final class JobCallable<T> implements java.util.concurrent.Callable<T> {
+        private final Job<T> job;
+        private JobContext context;
+
+        JobCallable(Job<T> job) {
+            this.job = job;
+        }
+
+        @Override
+        public T call() throws Exception {
+            return job.run(context);
+        }
+    }
+
+    private static final class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.atak.plugins.mlsnapshots.helpers;
+
+/**
+ * Planar convex hull (Andrew's monotone chain) over points packed as x, y pairs in a double array.
+ */
+public final class ConvexHull {
+
+    private ConvexHull() {
+    }
+
+    /**
+     * Computes the counter-clockwise hull of the first {@code n} points. The points are sorted in place.
+     *
+     * @param hull at least {@code 2 * (n + 1)} doubles; receives the closed hull ring as x, y pairs
+     * @return the number of points written to {@code hull}, including the closing point
+     */
+    public static int compute(double[] points, int n, double[] hull) {
+        sort(points, n);
+        int h = 0;
+        // Lower hull
+        for (int i = 0; i < n; i++) {
+            while (h >= 2 && cross(hull, h - 2, h - 1, points, i) <= 0) h--;
+            hull[h * 2] = points[i * 2];
+            hull[h * 2 + 1] = points[i * 2 + 1];
+            h++;
+        }
+        // Upper hull
+        int lower = h + 1;
+        for (int i = n - 2; i >= 0; i--) {
+            while (h >= lower && cross(hull, h - 2, h - 1, points, i) <= 0) h--;
+            hull[h * 2] = points[i * 2];
+            hull[h * 2 + 1] = points[i * 2 + 1];
+            h++;
+        }
+        // The last point repeats the first, closing the ring
+        return h;
+    }
+
+    /**
+     * Shell sort of the point pairs by x, then y.
+     */
+    private static void sort(double[] points, int n) {
+        int gap = 1;
+        while (gap < n / 3) gap = gap * 3 + 1;
+        for (; gap > 0; gap /= 3) {
+            for (int i = gap; i < n; i++) {
+                double x = points[i * 2], y = points[i * 2 + 1];
+                int j = i;
+                while (j >= gap && (points[(j - gap) * 2] > x
+                        || (points[(j - gap) * 2] == x && points[(j - gap) * 2 + 1] > y))) {
+                    points[j * 2] = points[(j - gap) * 2];
+                    points[j * 2 + 1] = points[(j - gap) * 2 + 1];
+                    j -= gap;
+                }
+                points[j * 2] = x;
+                points[j * 2 + 1] = y;
+            }
+        }
+    }
+
+    private static double cross(double[] hull, int o, int a, double[] points, int b) {
+        double ox = hull[o * 2], oy = hull[o * 2 + 1];
+        return (hull[a * 2] - ox) * (points[b * 2 + 1] - oy) - (hull[a * 2 + 1] - oy) * (points[b * 2] - ox);
+    }
+}
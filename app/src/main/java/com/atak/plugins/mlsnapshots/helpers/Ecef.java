@@ -0,0 +1,126 @@
+package com.atak.plugins.mlsnapshots.helpers;
+
+/**
+ * WGS84 Earth-centred, Earth-fixed (EPSG:4978) conversions on primitive arrays.
+ * <p>
+ * Nothing here allocates, so the functions can run per tile, or per vertex, in tight loops. Callers pass
+ * in the output and scratch arrays and reuse them.
+ */
+public final class Ecef {
+
+    public static final double A = 6378137.0;
+    public static final double F = 1 / 298.257223563;
+    public static final double B = A * (1 - F);
+    private static final double E2 = F * (2 - F);
+    private static final double EP2 = (A * A - B * B) / (B * B);
+
+    private Ecef() {
+    }
+
+    /**
+     * Closed-form ECEF to geodetic conversion (Heikkinen), exact to well under a millimetre near the surface.
+     *
+     * @param out receives longitude and latitude in degrees and ellipsoidal height in meters at
+     *            {@code out[offset]}, {@code out[offset + 1]} and {@code out[offset + 2]}
+     */
+    public static void toGeodetic(double x, double y, double z, double[] out, int offset) {
+        double p2 = x * x + y * y;
+        double p = Math.sqrt(p2);
+        double lon = Math.atan2(y, x);
+        if (p < 1e-9) {
+            // On the polar axis
+            out[offset] = Math.toDegrees(lon);
+            out[offset + 1] = z >= 0 ? 90 : -90;
+            out[offset + 2] = Math.abs(z) - B;
+            return;
+        }
+
+        double z2 = z * z;
+        double f = 54 * B * B * z2;
+        double g = p2 + (1 - E2) * z2 - E2 * (A * A - B * B);
+        double c = E2 * E2 * f * p2 / (g * g * g);
+        double s = Math.cbrt(1 + c + Math.sqrt(c * c + 2 * c));
+        double k = s + 1 + 1 / s;
+        double pp = f / (3 * k * k * g * g);
+        double q = Math.sqrt(1 + 2 * E2 * E2 * pp);
+        double r0 = -pp * E2 * p / (1 + q)
+                + Math.sqrt(A * A / 2 * (1 + 1 / q) - pp * (1 - E2) * z2 / (q * (1 + q)) - pp * p2 / 2);
+        double t = p - E2 * r0;
+        double u = Math.sqrt(t * t + z2);
+        double v = Math.sqrt(t * t + (1 - E2) * z2);
+        double z0 = B * B * z / (A * v);
+
+        out[offset] = Math.toDegrees(lon);
+        out[offset + 1] = Math.toDegrees(Math.atan((z + EP2 * z0) / p));
+        out[offset + 2] = u * (1 - B * B / (A * v));
+    }
+
+    /**
+     * Geodetic to ECEF.
+     *
+     * @param out receives x, y and z in meters at {@code out[offset..offset + 2]}
+     */
+    public static void fromGeodetic(double lonDeg, double latDeg, double height, double[] out, int offset) {
+        double lon = Math.toRadians(lonDeg);
+        double lat = Math.toRadians(latDeg);
+        double sinLat = Math.sin(lat);
+        double cosLat = Math.cos(lat);
+        double n = A / Math.sqrt(1 - E2 * sinLat * sinLat);
+        out[offset] = (n + height) * cosLat * Math.cos(lon);
+        out[offset + 1] = (n + height) * cosLat * Math.sin(lon);
+        out[offset + 2] = (n * (1 - E2) + height) * sinLat;
+    }
+
+    /**
+     * Computes the lon/lat footprint of a 3D Tiles oriented bounding box: the convex hull of its eight
+     * corners.
+     *
+     * @param box     12 values from {@code offset}: the centre, then the three half-axis vectors, in ECEF meters
+     * @param scratch at least 24 doubles
+     * @param hull    at least 18 doubles; receives the closed hull ring as lon, lat pairs
+     * @return the number of points written to {@code hull}, including the closing point
+     */
+    public static int boxFootprint(double[] box, int offset, double[] scratch, double[] hull) {
+        double cx = box[offset], cy = box[offset + 1], cz = box[offset + 2];
+        int n = 0;
+        for (int i = -1; i <= 1; i += 2) {
+            for (int j = -1; j <= 1; j += 2) {
+                for (int k = -1; k <= 1; k += 2) {
+                    toGeodetic(
+                            cx + i * box[offset + 3] + j * box[offset + 6] + k * box[offset + 9],
+                            cy + i * box[offset + 4] + j * box[offset + 7] + k * box[offset + 10],
+                            cz + i * box[offset + 5] + j * box[offset + 8] + k * box[offset + 11],
+                            scratch, n * 3);
+                    n++;
+                }
+            }
+        }
+        // Compact to lon, lat pairs
+        for (int i = 0; i < 8; i++) {
+            scratch[i * 2] = scratch[i * 3];
+            scratch[i * 2 + 1] = scratch[i * 3 + 1];
+        }
+        return ConvexHull.compute(scratch, 8, hull);
+    }
+
+    /**
+     * Computes the east, north and up unit vectors of the local tangent plane at a geodetic position.
+     *
+     * @param out receives the three vectors, in ECEF, at {@code out[0..8]}
+     */
+    public static void enuBasis(double lonDeg, double latDeg, double[] out) {
+        double lon = Math.toRadians(lonDeg);
+        double lat = Math.toRadians(latDeg);
+        double sinLon = Math.sin(lon), cosLon = Math.cos(lon);
+        double sinLat = Math.sin(lat), cosLat = Math.cos(lat);
+        out[0] = -sinLon;
+        out[1] = cosLon;
+        out[2] = 0;
+        out[3] = -sinLat * cosLon;
+        out[4] = -sinLat * sinLon;
+        out[5] = cosLat;
+        out[6] = cosLat * cosLon;
+        out[7] = cosLat * sinLon;
+        out[8] = sinLat;
+    }
+}
@@ -0,0 +1,129 @@
+package com.atak.plugins.mlsnapshots.helpers;
+
+/**
+ * 4x4 affine transforms stored column-major in a double[16], the layout used by glTF and 3D Tiles.
+ * <p>
+ * Transforms are kept in double precision: tile transforms carry ECEF translations of millions of meters,
+ * which a float rounds to half a meter.
+ */
+public final class Matrix4 {
+
+    private Matrix4() {
+    }
+
+    public static double[] identity() {
+        double[] m = new double[16];
+        m[0] = m[5] = m[10] = m[15] = 1;
+        return m;
+    }
+
+    public static double[] translation(double x, double y, double z) {
+        double[] m = identity();
+        m[12] = x;
+        m[13] = y;
+        m[14] = z;
+        return m;
+    }
+
+    /**
+     * @param translation x, y, z, or null
+     * @param rotation    unit quaternion x, y, z, w, or null
+     * @param scale       x, y, z, or null
+     * @return {@code T * R * S}, the glTF node transform
+     */
+    public static double[] fromTranslationRotationScale(double[] translation, double[] rotation, double[] scale) {
+        double[] m = identity();
+        if (rotation != null) {
+            double x = rotation[0], y = rotation[1], z = rotation[2], w = rotation[3];
+            m[0] = 1 - 2 * (y * y + z * z);
+            m[1] = 2 * (x * y + z * w);
+            m[2] = 2 * (x * z - y * w);
+            m[4] = 2 * (x * y - z * w);
+            m[5] = 1 - 2 * (x * x + z * z);
+            m[6] = 2 * (y * z + x * w);
+            m[8] = 2 * (x * z + y * w);
+            m[9] = 2 * (y * z - x * w);
+            m[10] = 1 - 2 * (x * x + y * y);
+        }
+        if (scale != null) {
+            for (int col = 0; col < 3; col++) {
+                for (int row = 0; row < 3; row++) {
+                    m[col * 4 + row] *= scale[col];
+                }
+            }
+        }
+        if (translation != null) {
+            m[12] = translation[0];
+            m[13] = translation[1];
+            m[14] = translation[2];
+        }
+        return m;
+    }
+
+    /**
+     * @return {@code a * b}, which applies {@code b} first
+     */
+    public static double[] multiply(double[] a, double[] b) {
+        double[] m = new double[16];
+        for (int col = 0; col < 4; col++) {
+            for (int row = 0; row < 4; row++) {
+                m[col * 4 + row] = a[row] * b[col * 4] + a[4 + row] * b[col * 4 + 1]
+                        + a[8 + row] * b[col * 4 + 2] + a[12 + row] * b[col * 4 + 3];
+            }
+        }
+        return m;
+    }
+
+    /**
+     * @return the transform for normals under {@code m}: the inverse transpose of its upper 3x3, up to a
+     * positive scale, so results need normalizing
+     */
+    public static double[] normalTransform(double[] m) {
+        // Cofactors of the upper 3x3, which are the inverse transpose times the determinant
+        double[] n = identity();
+        n[0] = m[5] * m[10] - m[6] * m[9];
+        n[1] = m[6] * m[8] - m[4] * m[10];
+        n[2] = m[4] * m[9] - m[5] * m[8];
+        n[4] = m[2] * m[9] - m[1] * m[10];
+        n[5] = m[0] * m[10] - m[2] * m[8];
+        n[6] = m[1] * m[8] - m[0] * m[9];
+        n[8] = m[1] * m[6] - m[2] * m[5];
+        n[9] = m[2] * m[4] - m[0] * m[6];
+        n[10] = m[0] * m[5] - m[1] * m[4];
+        if (determinant3(m) < 0) {
+            for (int i = 0; i < 11; i++) {
+                n[i] = -n[i];
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @return the determinant of the upper 3x3; negative when the transform mirrors
+     */
+    public static double determinant3(double[] m) {
+        return m[0] * (m[5] * m[10] - m[6] * m[9])
+                - m[4] * (m[1] * m[10] - m[2] * m[9])
+                + m[8] * (m[1] * m[6] - m[2] * m[5]);
+    }
+
+    /**
+     * Transforms the point at {@code xyz[offset..offset + 2]} in place.
+     */
+    public static void transformPoint(double[] m, double[] xyz, int offset) {
+        double x = xyz[offset], y = xyz[offset + 1], z = xyz[offset + 2];
+        xyz[offset] = m[0] * x + m[4] * y + m[8] * z + m[12];
+        xyz[offset + 1] = m[1] * x + m[5] * y + m[9] * z + m[13];
+        xyz[offset + 2] = m[2] * x + m[6] * y + m[10] * z + m[14];
+    }
+
+    /**
+     * Transforms the direction at {@code xyz[offset..offset + 2]} in place, ignoring the translation.
+     */
+    public static void transformVector(double[] m, double[] xyz, int offset) {
+        double x = xyz[offset], y = xyz[offset + 1], z = xyz[offset + 2];
+        xyz[offset] = m[0] * x + m[4] * y + m[8] * z;
+        xyz[offset + 1] = m[1] * x + m[5] * y + m[9] * z;
+        xyz[offset + 2] = m[2] * x + m[6] * y + m[10] * z;
+    }
+}
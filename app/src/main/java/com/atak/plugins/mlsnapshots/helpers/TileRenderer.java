@@ -11,4 +11,58 @@ public class TileRenderer {
         double n = Math.PI - (2.0 * Math.PI * y) / Math.pow(2.0, z);
         return Math.toDegrees(Math.atan(Math.sinh(n)));
     }
+
+    public static int lon2tile(double lon, int z) {
+        int max = (1 << z) - 1;
+        int x = (int) Math.floor((lon + 180.0) / 360.0 * (1 << z));
+        return Math.max(0, Math.min(max, x));
+    }
+
+    public static int lat2tile(double lat, int z) {
+        int max = (1 << z) - 1;
+        double latRad = Math.toRadians(Math.max(-85.05112878, Math.min(85.05112878, lat)));
+        int y = (int) Math.floor((1 - Math.log(Math.tan(latRad) + 1 / Math.cos(latRad)) / Math.PI) / 2 * (1 << z));
+        return Math.max(0, Math.min(max, y));
+    }
+
+    /**
+     * Bing-style quadkey for an XYZ tile. Quadkeys sort and prefix-match by
+     * spatial locality, which makes them convenient cache keys.
+     */
+    public static String tileToQuadKey(int x, int y, int z) {
+        StringBuilder quadKey = new StringBuilder(z);
+        for (int i = z; i > 0; i--) {
+            int digit = 0;
+            int mask = 1 << (i - 1);
+            if ((x & mask) != 0) digit += 1;
+            if ((y & mask) != 0) digit += 2;
+            quadKey.append((char) ('0' + digit));
+        }
+        return quadKey.toString();
+    }
+
+    /**
+     * @return {x, y, z} for the given quadkey
+     */
+    public static int[] quadKeyToTile(String quadKey) {
+        int x = 0, y = 0, z = quadKey.length();
+        for (int i = z; i > 0; i--) {
+            int mask = 1 << (i - 1);
+            switch (quadKey.charAt(z - i)) {
+                case '0': break;
+                case '1': x |= mask; break;
+                case '2': y |= mask; break;
+                case '3': x |= mask; y |= mask; break;
+                default: throw new IllegalArgumentException("Invalid quadkey: " + quadKey);
+            }
+        }
+        return new int[]{x, y, z};
+    }
+
+    /**
+     * @return {minLon, minLat, maxLon, maxLat} of the tile
+     */
+    public static double[] tileBounds(int x, int y, int z) {
+        return new double[]{tile2lon(x, z), tile2lat(y + 1, z), tile2lon(x + 1, z), tile2lat(y, z)};
+    }
 }
@@ -1,22 +1,33 @@
 
 package com.atak.plugins.mlsnapshots.servers;
 
+import com.atak.plugins.mlsnapshots.PluginExecutor;
+import com.atak.plugins.mlsnapshots.services.ChangeFeed;
 import com.atak.plugins.mlsnapshots.services.DuckDBService;
 import com.atak.plugins.mlsnapshots.services.GeoPackageService;
+import com.atakmap.coremap.log.Log;
 import com.google.gson.Gson;
 import io.javalin.Javalin;
 import io.javalin.http.Context;
+import io.javalin.http.sse.SseClient;
+import io.javalin.websocket.WsConfig;
+import io.javalin.websocket.WsContext;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 import mil.nga.geopackage.features.user.FeatureDao;
 import mil.nga.geopackage.features.user.FeatureResultSet;
 import org.geotools.data.DataUtilities;
@@ -37,10 +48,16 @@ import org.opengis.feature.simple.SimpleFeatureType;
 
 public class OgcApiServer {
 
+    private static final String TAG = "OgcApiServer";
+
+    // A client this many change messages behind is disconnected; it gets a fresh snapshot when it reconnects
+    private static final int MAX_PENDING_CHANGES = 64;
+
     private final Javalin app;
     private final DuckDBService duckDBService;
     private final GeoPackageService geoPackageService;
     private final Gson gson = new Gson();
+    private final Set<ChangeStream> changeStreams = ConcurrentHashMap.newKeySet();
 
     public OgcApiServer(int port, DuckDBService duckDBService, GeoPackageService geoPackageService) {
         this.duckDBService = duckDBService;
@@ -57,6 +74,70 @@ public class OgcApiServer {
         app.get("/geopackage/features/{table}", this::getGeoPackageFeatures);
         app.get("/geopackage/vectortiles/{table}/{z}/{x}/{y}", this::getGeoPackageVectorTile);
         app.get("/geopackage/features/{table}/{z}/{x}/{y}", this::getGeoPackageFeatureTile);
+        app.sse("/collections/{collectionId}/changes", this::streamChangesAsEvents);
+        app.ws("/collections/{collectionId}/changes/ws", this::streamChangesOverWebSocket);
+    }
+
+    /**
+     * Server-sent events: a {@code changes} event holding the whole collection as a reset, then one per refresh
+     * of the collection's table with what it inserted, updated and deleted. See {@link ChangeFeed.Changes#toJson()}.
+     */
+    private void streamChangesAsEvents(SseClient client) {
+        String table = client.ctx().pathParam("collectionId");
+        if (!table.matches("[a-zA-Z0-9_]+")) {
+            client.close();
+            return;
+        }
+        client.keepAlive();
+        final ChangeStream stream = new ChangeStream(table) {
+            @Override
+            void send(String message) {
+                client.sendEvent("changes", message);
+            }
+
+            @Override
+            void disconnect() {
+                client.close();
+            }
+        };
+        client.onClose(stream::close);
+        stream.open();
+    }
+
+    /**
+     * The messages of {@link #streamChangesAsEvents} as websocket text frames.
+     */
+    private void streamChangesOverWebSocket(WsConfig ws) {
+        final Map<Object, ChangeStream> streams = new ConcurrentHashMap<>();
+        ws.onConnect(ctx -> {
+            String table = ctx.pathParam("collectionId");
+            if (!table.matches("[a-zA-Z0-9_]+")) {
+                ctx.closeSession(1008, "Invalid collection");
+                return;
+            }
+            final WsContext session = ctx;
+            ChangeStream stream = new ChangeStream(table) {
+                @Override
+                void send(String message) {
+                    session.send(message);
+                }
+
+                @Override
+                void disconnect() {
+                    session.closeSession(1008, "Too far behind");
+                }
+            };
+            streams.put(ctx.session, stream);
+            stream.open();
+        });
+        ws.onClose(ctx -> {
+            ChangeStream stream = streams.remove(ctx.session);
+            if (stream != null) stream.close();
+        });
+        ws.onError(ctx -> {
+            ChangeStream stream = streams.remove(ctx.session);
+            if (stream != null) stream.close();
+        });
     }
 
     private void getGeoPackageFeatureTile(Context ctx) {
@@ -241,6 +322,124 @@ public class OgcApiServer {
     }
 
     public void stop() {
+        for (ChangeStream stream : changeStreams) {
+            stream.close();
+        }
         app.stop();
     }
+
+    /**
+     * Delivers one client's changes in order. Sends happen on the PUSH lane, one drain at a time, so a slow
+     * client never holds up the refresh that published the changes.
+     */
+    private abstract class ChangeStream implements ChangeFeed.Listener {
+        private final String table;
+        // Guarded by this
+        private final ArrayDeque<String> pending = new ArrayDeque<>();
+        private boolean snapshotDue = true;
+        private boolean draining;
+        private boolean closed;
+
+        ChangeStream(String table) {
+            this.table = table;
+        }
+
+        abstract void send(String message) throws IOException;
+
+        abstract void disconnect();
+
+        /**
+         * Subscribes before reading the snapshot, so nothing published in between is missed; changes the
+         * snapshot already contains are applied again, which upserts make harmless.
+         */
+        void open() {
+            changeStreams.add(this);
+            duckDBService.getChangeFeed().subscribe(table, this);
+            if (!drainLater()) drop("too many streams are sending");
+        }
+
+        void close() {
+            synchronized (this) {
+                if (closed) return;
+                closed = true;
+                pending.clear();
+            }
+            duckDBService.getChangeFeed().unsubscribe(table, this);
+            changeStreams.remove(this);
+        }
+
+        @Override
+        public void onChanges(ChangeFeed.Changes changes) {
+            String reason;
+            synchronized (this) {
+                if (closed) return;
+                if (pending.size() < MAX_PENDING_CHANGES) {
+                    pending.add(changes.toJson());
+                    if (drainLater()) return;
+                    reason = "too many streams are sending";
+                } else {
+                    reason = "it fell behind";
+                }
+            }
+            drop(reason);
+        }
+
+        /**
+         * Disconnects the client instead of letting its backlog hold a worker; it reconnects from a new snapshot.
+         */
+        private void drop(String reason) {
+            Log.w(TAG, "Disconnecting a client of " + table + ": " + reason);
+            close();
+            disconnect();
+        }
+
+        /**
+         * @return false if the drain could not be queued, because too many streams are already sending
+         */
+        private synchronized boolean drainLater() {
+            if (draining || closed) return true;
+            draining = true;
+            try {
+                PluginExecutor.getInstance().submit("changes-" + table, PluginExecutor.JobType.PUSH, context -> {
+                    drain();
+                    return null;
+                });
+            } catch (RejectedExecutionException e) {
+                draining = false;
+                return false;
+            }
+            return true;
+        }
+
+        private void drain() {
+            try {
+                boolean snapshot;
+                synchronized (this) {
+                    snapshot = snapshotDue;
+                    snapshotDue = false;
+                }
+                if (snapshot) {
+                    try (Connection conn = duckDBService.newConnection()) {
+                        send(duckDBService.getChangeFeed().snapshot(conn, table).toJson());
+                    }
+                }
+                while (true) {
+                    String message;
+                    synchronized (this) {
+                        message = closed ? null : pending.poll();
+                        if (message == null) {
+                            draining = false;
+                            return;
+                        }
+                    }
+                    send(message);
+                }
+            } catch (Exception e) {
+                synchronized (this) {
+                    draining = false;
+                }
+                drop(e.getMessage());
+            }
+        }
+    }
 }
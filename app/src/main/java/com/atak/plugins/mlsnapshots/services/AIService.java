@@ -1,87 +1,793 @@
-
 package com.atak.plugins.mlsnapshots.services;
 
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
+import com.atak.plugins.mlsnapshots.PluginExecutor;
 import com.google.mediapipe.tasks.genai.llminference.LlmInference;
 import com.google.mediapipe.tasks.genai.llminference.LlmInferenceOptions;
+import com.google.mediapipe.tasks.genai.llminference.LlmInferenceSession;
 import com.atakmap.coremap.log.Log;
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-public class AIService {
+/**
+ * On-device text generation.
+ * <p>
+ * Requests queue on the {@link PluginExecutor.JobType#INFERENCE} lane, which runs one at a time in priority
+ * order and holds at most its queue capacity; the engine is never shared between overlapping prompts. Each
+ * request returns a {@link Request} that can be cancelled while queued or while generating, and that records
+ * queue wait, time to first token, decode rate and total latency.
+ * <p>
+ * Prompts usually share a long fixed prefix: the instructions and the current map context. A request can pass
+ * that prefix separately; the session that has processed it is kept, keyed by a hash of the prefix, and each
+ * request runs in a clone of it, so only the question itself has to be prefilled. Cached sessions are evicted
+ * least recently used first to stay within a memory budget.
+ * <p>
+ * Models are loaded when the first request needs them, not up front. The runtime maps the model file into
+ * memory rather than reading it onto the heap, so a loaded model costs about its file size. Loaded models share
+ * a memory budget and the least recently used is closed to make room; a model is also closed after five idle
+ * minutes, and all of them when the system reports memory pressure. Engines are only created, used and closed
+ * on the {@link PluginExecutor.JobType#INFERENCE} lane, so none is ever closed under a running request.
+ */
+public class AIService implements ComponentCallbacks2 {
 
     public final static String TAG = "AIService";
 
-    private LlmInference llmInference;
+    private static final String WARM_UP_PROMPT = "Reply with the single word OK.";
+    private static final int RECENT_METRICS = 64;
+    private static final int MAX_TOKENS = 1024;
+    // KV cache per token assumed for model files that are not one of the ModelTypes: that of the largest of them
+    private static final long DEFAULT_KV_BYTES_PER_TOKEN = 40 * 2 * 10 * 128 * 2;
+    // The prefix cache holds at least this much, and at least MIN_CACHED_PREFIXES sessions of the loaded model
+    private static final long DEFAULT_PREFIX_CACHE_BYTES = 128L << 20;
+    // The data instructions and the text-to-SQL schema prompt
+    private static final int MIN_CACHED_PREFIXES = 2;
+    private static final String DATA_INSTRUCTIONS = "You are an assistant in a map application. Answer the "
+            + "question using the records below, which come from the layers loaded on the map. If they do not "
+            + "contain the answer, say so.\n\n";
+    private static final int RETRIEVED_ROWS = 8;
+    private static final long IDLE_TIMEOUT_MS = 5 * 60 * 1000;
+    // A generation still running after this is cancelled, so it cannot hold the INFERENCE lane indefinitely
+    private static final long GENERATION_TIMEOUT_MS = 5 * 60 * 1000;
+
+    /** The models offered for download, and the files they are kept in. */
+    public enum ModelType {
+        GEMMA_2B("Gemma 2B", "gemma-2b-it-cpu-int4.tflite", 18, 1, 256),
+        GEMMA_3N("Gemma 3N", "gemma-3n-it-cpu-int4.tflite", 30, 2, 256),
+        PHI_4("Phi-4", "phi-4-cpu-int4.tflite", 40, 10, 128);
+
+        public final String displayName;
+        public final String fileName;
+        /**
+         * The KV cache one token takes: a key and a value per layer and KV head, in fp16. Sessions allocate the
+         * cache for {@link #MAX_TOKENS} up front, so that times the token limit is what each one costs.
+         */
+        public final long kvBytesPerToken;
+
+        ModelType(String displayName, String fileName, int layers, int kvHeads, int headSize) {
+            this.displayName = displayName;
+            this.fileName = fileName;
+            this.kvBytesPerToken = (long) layers * 2 * kvHeads * headSize * 2;
+        }
+
+        public String getDownloadUrl() {
+            return "https://example.com/" + fileName;
+        }
+
+        /**
+         * @return the SHA-256 of the model file, published next to it so that a new build of the model does not
+         * need a plugin release
+         */
+        public String getChecksumUrl() {
+            return getDownloadUrl() + ".sha256";
+        }
+
+        public File getFile(Context context) {
+            return new File(context.getExternalFilesDir(null), fileName);
+        }
+    }
+
     private final Context context;
+    // The model new requests use
+    private volatile File modelFile;
+    // Loaded engines by model path, least recently used first
+    private final LinkedHashMap<String, LoadedModel> loadedModels = new LinkedHashMap<>(4, 0.75f, true);
+    private volatile long memoryBudget;
+    private ScheduledFuture<?> idleCheck;
+    private final Deque<Metrics> recentMetrics = new ArrayDeque<>();
+    // Sessions that have processed a prompt prefix, by model and prefix hash, least recently used first
+    private final LinkedHashMap<String, CachedPrefix> prefixSessions = new LinkedHashMap<>(16, 0.75f, true);
+    // Set by setPrefixCacheBudget, or -1 to size the cache by the model
+    private volatile long prefixCacheBudget = -1;
+    // KV cache per token of model files that are not one of the ModelTypes, by path
+    private final Map<String, Long> kvBytesPerToken = new ConcurrentHashMap<>();
+    private volatile RetrievalService retrievalService;
 
     public interface ResponseListener {
+        /** The complete response, once generation has finished */
         void onResponse(String response);
+        /** Each piece of the response as it is generated */
         void onPartialResponse(String partialText);
         void onError(String error);
     }
 
     public AIService(Context context) {
+        this(context, ModelType.GEMMA_2B);
+    }
+
+    /**
+     * @param model the model requests use until {@link #setModel} or {@link #initializeModel} picks another
+     */
+    public AIService(Context context, ModelType model) {
         this.context = context;
+        this.modelFile = model.getFile(context);
+        this.memoryBudget = defaultMemoryBudget(context);
+        context.registerComponentCallbacks(this);
+    }
+
+    /**
+     * Uses one of the downloadable models for the requests that follow. It is loaded by the first of them.
+     */
+    public void setModel(ModelType model) {
+        initializeModel(model.getFile(context).getAbsolutePath());
     }
 
     /**
-     * Initializes the LLM inference engine with a specific model file.
-     * This supports any MediaPipe-compatible .bin or .tflite model.
-     * 
+     * Uses the given model file for the requests that follow.
+     * This supports any MediaPipe-compatible .bin or .tflite model. Loading is left to the first request that
+     * needs it, or to {@link #preload()}.
+     *
      * @param modelPath The absolute path to the model file on the device.
      */
     public void initializeModel(String modelPath) {
-        if (!new File(modelPath).exists()) {
+        File file = new File(modelPath);
+        if (!file.exists()) {
             Log.e(TAG, "Model file not found at: " + modelPath);
             return;
         }
+        Log.d(TAG, "Using model: " + modelPath);
+        modelFile = file;
+    }
+
+    /**
+     * Sets the KV cache one token takes in a model file that is not one of the {@link ModelType}s, which the
+     * prefix cache budget is counted in; until then the largest of theirs is assumed.
+     */
+    public void setKvBytesPerToken(String modelPath, long bytes) {
+        kvBytesPerToken.put(new File(modelPath).getAbsolutePath(), bytes);
+    }
+
+    /**
+     * Loads the current model at low priority and runs a short warm-up prompt through it, so the weights are
+     * paged in before the first real request, e.g. when the user opens an AI feature. Not for plugin start: the
+     * model would then stay resident, several GB of it, while no AI feature is in use.
+     */
+    public void preload() {
+        final File file = modelFile;
+        if (!file.exists()) return;
+        try {
+            PluginExecutor.getInstance().submit("warm-up", PluginExecutor.JobType.INFERENCE,
+                    PluginExecutor.Priority.LOW, context -> {
+                        LoadedModel model = acquire(file);
+                        long start = System.nanoTime();
+                        model.engine.generateResponse(WARM_UP_PROMPT);
+                        model.lastUsed = System.currentTimeMillis();
+                        Log.d(TAG, "Warm-up took " + (System.nanoTime() - start) / 1000000 + " ms");
+                        return null;
+                    });
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Skipping warm-up: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sets how much memory loaded models may take together; takes effect at the next load.
+     */
+    public void setMemoryBudget(long bytes) {
+        memoryBudget = bytes;
+    }
+
+    /**
+     * @return the paths of the models that are loaded, least recently used first
+     */
+    public List<String> getLoadedModels() {
+        synchronized (loadedModels) {
+            return new ArrayList<>(loadedModels.keySet());
+        }
+    }
+
+    public Request generateContent(String prompt, ResponseListener listener) {
+        return generateContent(null, prompt, PluginExecutor.Priority.NORMAL, listener);
+    }
+
+    public Request generateContent(String prompt, PluginExecutor.Priority priority, ResponseListener listener) {
+        return generateContent(null, prompt, priority, listener);
+    }
+
+    /**
+     * Queues a prompt. The listener gets the pieces of the response as they are generated, then exactly one of
+     * {@link ResponseListener#onResponse} with the full text or {@link ResponseListener#onError}.
+     *
+     * @param prefix the shared start of the prompt, such as instructions and map context, whose processed state
+     *               is cached and reused by later requests with the same prefix; null if there is none
+     * @param prompt the rest of the prompt, appended to the prefix
+     */
+    public Request generateContent(String prefix, String prompt, PluginExecutor.Priority priority,
+                                   ResponseListener listener) {
+        return submit(new Request(modelFile, prefix, prompt, listener), priority, null);
+    }
+
+    /**
+     * Sets where {@link #askAboutData} looks up rows, or null to answer from the model alone.
+     */
+    public void setRetrievalService(RetrievalService retrievalService) {
+        this.retrievalService = retrievalService;
+    }
+
+    /**
+     * Answers a question about the data held in DuckDB. The rows most related to the question are looked up
+     * when the request starts and placed in the prompt, after fixed instructions that are reused as a cached
+     * prefix.
+     */
+    public Request askAboutData(String question, PluginExecutor.Priority priority, ResponseListener listener) {
+        RetrievalService retrieval = retrievalService;
+        if (retrieval == null) {
+            return generateContent(question, priority, listener);
+        }
+        return submit(new Request(modelFile, DATA_INSTRUCTIONS, question, listener), priority, retrieval);
+    }
+
+    private Request submit(final Request request, PluginExecutor.Priority priority,
+                           final RetrievalService retrieval) {
+        if (!request.model.exists()) {
+            request.fail("Model file not found at " + request.model + ". Download it or call initializeModel() first.");
+            return request;
+        }
+        try {
+            request.job = PluginExecutor.getInstance().submit("generate", PluginExecutor.JobType.INFERENCE, priority,
+                    context -> {
+                        if (retrieval != null && !request.isDone()) {
+                            request.retrieve(retrieval);
+                        }
+                        request.run();
+                        return null;
+                    });
+        } catch (RejectedExecutionException e) {
+            request.fail("Too many pending AI requests: " + e.getMessage());
+        }
+        return request;
+    }
+
+    /**
+     * @return metrics of the most recent completed requests, oldest first
+     */
+    public List<Metrics> getRecentMetrics() {
+        synchronized (recentMetrics) {
+            return new ArrayList<>(recentMetrics);
+        }
+    }
+
+    private void record(Metrics metrics) {
+        Log.d(TAG, "Request finished: " + metrics);
+        synchronized (recentMetrics) {
+            if (recentMetrics.size() == RECENT_METRICS) {
+                recentMetrics.removeFirst();
+            }
+            recentMetrics.addLast(metrics);
+        }
+    }
+
+    /**
+     * Sets the memory the prefix cache may hold; sessions beyond it are closed, least recently used first. By
+     * default the cache holds {@link #MIN_CACHED_PREFIXES} sessions of the model in use, and no less than
+     * {@link #DEFAULT_PREFIX_CACHE_BYTES}.
+     */
+    public void setPrefixCacheBudget(long bytes) {
+        prefixCacheBudget = bytes;
+        synchronized (prefixSessions) {
+            evictPrefixSessions(0, bytes);
+        }
+    }
+
+    private long prefixCacheBudget(long sessionBytes) {
+        long budget = prefixCacheBudget;
+        return budget >= 0 ? budget : Math.max(DEFAULT_PREFIX_CACHE_BYTES, MIN_CACHED_PREFIXES * sessionBytes);
+    }
+
+    /**
+     * @return a new session that has processed {@code prefix}, cloned from the cached one when there is one
+     */
+    private LlmInferenceSession sessionWithPrefix(LoadedModel model, String prefix, boolean[] reused) {
+        String key = hash(model.path + '\u0000' + prefix);
+        synchronized (prefixSessions) {
+            CachedPrefix cached = prefixSessions.get(key);
+            if (cached != null) {
+                reused[0] = true;
+                // Cloned under the lock so the base cannot be evicted and closed meanwhile
+                return cached.session.cloneSession();
+            }
+        }
+        LlmInferenceSession base = LlmInferenceSession.createFromOptions(model.engine, sessionOptions());
+        base.addQueryChunk(prefix);
+        long bytes = sessionBytes(model.path);
+        long budget = prefixCacheBudget(bytes);
+        if (bytes > budget) {
+            // Larger than the whole budget: use it once, without evicting sessions that do fit
+            Log.w(TAG, "Not caching prompt prefix: a session of " + new File(model.path).getName() + " takes "
+                    + bytes / (1 << 20) + " MB, over the prefix cache budget of " + budget / (1 << 20) + " MB");
+            return base;
+        }
+        synchronized (prefixSessions) {
+            evictPrefixSessions(bytes, budget);
+            prefixSessions.put(key, new CachedPrefix(model.engine, base, bytes));
+            return base.cloneSession();
+        }
+    }
+
+    private void evictPrefixSessions(long incoming, long budget) {
+        long used = 0;
+        for (CachedPrefix cached : prefixSessions.values()) {
+            used += cached.bytes;
+        }
+        Iterator<Map.Entry<String, CachedPrefix>> iterator = prefixSessions.entrySet().iterator();
+        while (used + incoming > budget && iterator.hasNext()) {
+            CachedPrefix cached = iterator.next().getValue();
+            iterator.remove();
+            cached.session.close();
+            used -= cached.bytes;
+        }
+    }
+
+    /**
+     * Closes the cached sessions of one engine, which must go before the engine itself.
+     */
+    private void clearPrefixCache(LlmInference engine) {
+        synchronized (prefixSessions) {
+            Iterator<CachedPrefix> iterator = prefixSessions.values().iterator();
+            while (iterator.hasNext()) {
+                CachedPrefix cached = iterator.next();
+                if (cached.engine == engine) {
+                    iterator.remove();
+                    cached.session.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the loaded engine for {@code file}, loading it first if needed. Only called on the inference lane.
+     */
+    private LoadedModel acquire(File file) throws IOException {
+        String path = file.getAbsolutePath();
+        synchronized (loadedModels) {
+            LoadedModel model = loadedModels.get(path);
+            if (model != null) {
+                model.lastUsed = System.currentTimeMillis();
+                return model;
+            }
+        }
+        if (!file.exists()) {
+            throw new FileNotFoundException("Model file not found at: " + path);
+        }
+        long bytes = file.length();
+        // Make room before mapping the new weights, rather than having both resident at once
+        unloadUntil(memoryBudget - bytes);
+        if (bytes > memoryBudget) {
+            Log.w(TAG, file.getName() + " is larger than the model memory budget of " + memoryBudget / (1 << 20) + " MB");
+        }
+
+        long start = System.nanoTime();
+        LlmInferenceOptions options = LlmInferenceOptions.builder()
+            .setModelPath(path)
+            .setMaxTokens(MAX_TOKENS) // Increased context window
+            .setTopK(40)
+            .setTemperature(0.8f) // Slightly creative
+            .setRandomSeed(42)
+            .build();
+        LoadedModel model = new LoadedModel(path, LlmInference.createFromOptions(context, options), bytes);
+        Log.d(TAG, "Loaded " + file.getName() + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+        synchronized (loadedModels) {
+            loadedModels.put(path, model);
+        }
+        scheduleIdleCheck();
+        return model;
+    }
+
+    /**
+     * Closes models, least recently used first, until the loaded ones take at most {@code bytes}.
+     */
+    private void unloadUntil(long bytes) {
+        List<LoadedModel> victims = new ArrayList<>();
+        synchronized (loadedModels) {
+            long used = 0;
+            for (LoadedModel model : loadedModels.values()) {
+                used += model.bytes;
+            }
+            Iterator<LoadedModel> iterator = loadedModels.values().iterator();
+            while (used > bytes && iterator.hasNext()) {
+                LoadedModel model = iterator.next();
+                iterator.remove();
+                victims.add(model);
+                used -= model.bytes;
+            }
+        }
+        for (LoadedModel model : victims) {
+            unload(model);
+        }
+    }
+
+    private void unloadIdle() {
+        long now = System.currentTimeMillis();
+        List<LoadedModel> idle = new ArrayList<>();
+        synchronized (loadedModels) {
+            Iterator<LoadedModel> iterator = loadedModels.values().iterator();
+            while (iterator.hasNext()) {
+                LoadedModel model = iterator.next();
+                if (now - model.lastUsed >= IDLE_TIMEOUT_MS) {
+                    iterator.remove();
+                    idle.add(model);
+                }
+            }
+        }
+        for (LoadedModel model : idle) {
+            unload(model);
+        }
+        synchronized (this) {
+            idleCheck = null;
+        }
+        scheduleIdleCheck();
+    }
+
+    private void unload(LoadedModel model) {
+        clearPrefixCache(model.engine);
+        model.engine.close();
+        Log.d(TAG, "Unloaded " + new File(model.path).getName());
+    }
+
+    private synchronized void scheduleIdleCheck() {
+        if (idleCheck != null) return;
+        synchronized (loadedModels) {
+            if (loadedModels.isEmpty()) return;
+        }
+        try {
+            idleCheck = PluginExecutor.getInstance().schedule("ai-idle-unload", PluginExecutor.JobType.INFERENCE,
+                    IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS, context -> {
+                        unloadIdle();
+                        return null;
+                    });
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Could not schedule idle unloading: " + e.getMessage());
+        }
+    }
 
+    /**
+     * Queues closing every loaded model ahead of other requests; the lane runs it once no request is using
+     * them.
+     */
+    private PluginExecutor.JobHandle<Void> unloadAll() {
+        return PluginExecutor.getInstance().submit("ai-unload", PluginExecutor.JobType.INFERENCE,
+                PluginExecutor.Priority.HIGH, context -> {
+                    unloadUntil(0);
+                    return null;
+                });
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level < TRIM_MEMORY_RUNNING_LOW) return;
+        synchronized (loadedModels) {
+            if (loadedModels.isEmpty()) return;
+        }
+        Log.i(TAG, "Memory is low (level " + level + "), unloading models");
         try {
-            Log.d(TAG, "Initializing AI Service with model: " + modelPath);
+            unloadAll();
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Could not unload models: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(TRIM_MEMORY_RUNNING_CRITICAL);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration configuration) {
+    }
+
+    /**
+     * A third of the device's RAM, leaving room for the map and the rest of the system.
+     */
+    private static long defaultMemoryBudget(Context context) {
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        if (activityManager == null) return 2L << 30;
+        ActivityManager.MemoryInfo info = new ActivityManager.MemoryInfo();
+        activityManager.getMemoryInfo(info);
+        return info.totalMem / 3;
+    }
+
+    /**
+     * @return the KV cache a session of the model at {@code path} allocates
+     */
+    private long sessionBytes(String path) {
+        Long perToken = kvBytesPerToken.get(path);
+        if (perToken == null) {
+            String name = new File(path).getName();
+            for (ModelType type : ModelType.values()) {
+                if (type.fileName.equals(name)) perToken = type.kvBytesPerToken;
+            }
+        }
+        return MAX_TOKENS * (perToken != null ? perToken : DEFAULT_KV_BYTES_PER_TOKEN);
+    }
 
-            LlmInferenceOptions options = LlmInferenceOptions.builder()
-                .setModelPath(modelPath)
-                .setMaxTokens(1024) // Increased context window
+    private static LlmInferenceSession.LlmInferenceSessionOptions sessionOptions() {
+        return LlmInferenceSession.LlmInferenceSessionOptions.builder()
                 .setTopK(40)
-                .setTemperature(0.8f) // Slightly creative
+                .setTemperature(0.8f)
                 .setRandomSeed(42)
                 .build();
+    }
 
-            llmInference = LlmInference.createFromOptions(context, options);
-            Log.d(TAG, "Model initialized successfully.");
+    private static String hash(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes(Charset.forName("UTF-8")));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(String.format(Locale.US, "%02x", b & 0xFF));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android release has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
 
-        } catch (Exception e) {
-            Log.e(TAG, "Error initializing LlmInference with model " + modelPath, e);
+    /**
+     * Closes every loaded model, waiting for a running request to finish first.
+     */
+    public void close() {
+        context.unregisterComponentCallbacks(this);
+        synchronized (this) {
+            if (idleCheck != null) {
+                idleCheck.cancel(false);
+                idleCheck = null;
+            }
+        }
+        try {
+            unloadAll().get(10, TimeUnit.SECONDS);
+        } catch (RejectedExecutionException e) {
+            // The executor is gone, so nothing can be using the engines
+            unloadUntil(0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            Log.w(TAG, "Models were not unloaded: " + e.getMessage());
         }
     }
 
-    public void generateContent(String prompt, ResponseListener listener) {
-        if (llmInference == null) {
-            listener.onError("LlmInference is not initialized. Please call initializeModel() first.");
-            return;
+    private static final class LoadedModel {
+        final String path;
+        final LlmInference engine;
+        final long bytes;
+        volatile long lastUsed = System.currentTimeMillis();
+
+        LoadedModel(String path, LlmInference engine, long bytes) {
+            this.path = path;
+            this.engine = engine;
+            this.bytes = bytes;
+        }
+    }
+
+    private static final class CachedPrefix {
+        final LlmInference engine;
+        final LlmInferenceSession session;
+        final long bytes;
+
+        CachedPrefix(LlmInference engine, LlmInferenceSession session, long bytes) {
+            this.engine = engine;
+            this.session = session;
+            this.bytes = bytes;
+        }
+    }
+
+    /** Timings of one request. */
+    public static final class Metrics {
+        public final long queueWaitMs;
+        /** Time spent loading the model, 0 if it was already loaded */
+        public final long loadMs;
+        /** From the start of generation to the first piece of output; mostly prompt processing */
+        public final long timeToFirstTokenMs;
+        public final long totalMs;
+        public final int outputTokens;
+        /** Output tokens per second after the first one */
+        public final double tokensPerSecond;
+        /** Whether the prompt prefix came from the cache instead of being processed again */
+        public final boolean prefixReused;
+
+        Metrics(long queueWaitMs, long loadMs, long timeToFirstTokenMs, long totalMs, int outputTokens,
+                double tokensPerSecond, boolean prefixReused) {
+            this.prefixReused = prefixReused;
+            this.queueWaitMs = queueWaitMs;
+            this.loadMs = loadMs;
+            this.timeToFirstTokenMs = timeToFirstTokenMs;
+            this.totalMs = totalMs;
+            this.outputTokens = outputTokens;
+            this.tokensPerSecond = tokensPerSecond;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "queued %d ms, load %d ms, first token %d ms%s, %d tokens at %.1f/s, "
+                    + "total %d ms", queueWaitMs, loadMs, timeToFirstTokenMs, prefixReused ? " (cached prefix)" : "", outputTokens,
+                    tokensPerSecond, totalMs);
+        }
+    }
+
+    /** A queued or running prompt. */
+    public final class Request {
+        private final File model;
+        private final String prefix;
+        private String prompt;
+        private final ResponseListener listener;
+        private final long submittedAt = System.nanoTime();
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private volatile PluginExecutor.JobHandle<?> job;
+        private volatile LlmInferenceSession session;
+        private volatile Metrics metrics;
+
+        private Request(File model, String prefix, String prompt, ResponseListener listener) {
+            this.model = model;
+            this.prefix = prefix;
+            this.prompt = prompt;
+            this.listener = listener;
         }
 
-        // Use a background thread for generation to avoid blocking the UI
-        new Thread(() -> {
+        /**
+         * Cancels the request and reports it to the listener as an error. A queued request is removed from the
+         * queue; a running one stops delivering output at once and its generation is aborted.
+         */
+        public void cancel() {
+            PluginExecutor.JobHandle<?> handle = job;
+            if (handle != null && handle.getState() == PluginExecutor.State.QUEUED) {
+                handle.cancel(false);
+            }
+            boolean wasFinished = finished.get();
+            fail("Cancelled");
+            LlmInferenceSession running = session;
+            if (!wasFinished && running != null) {
+                running.cancelGenerateResponseAsync();
+            }
+        }
+
+        public boolean isDone() {
+            return finished.get();
+        }
+
+        /**
+         * @return the timings, or null until the request has completed
+         */
+        public Metrics getMetrics() {
+            return metrics;
+        }
+
+        /**
+         * Replaces the question with the question and the rows most related to it. Without them the model can
+         * still answer, so a failed lookup only costs the context.
+         */
+        private void retrieve(RetrievalService retrieval) {
             try {
-                // For streaming response (better UX)
-                llmInference.generateResponseAsync(prompt, (partialResult, done) -> {
-                    if (partialResult != null) {
-                        listener.onPartialResponse(partialResult);
-                    }
-                    if (done) {
-                        listener.onResponse(" [DONE]"); 
+                prompt = retrieval.buildPrompt(prompt, RETRIEVED_ROWS);
+            } catch (SQLException | IOException | RuntimeException e) {
+                Log.w(TAG, "Could not look up rows for the prompt: " + e.getMessage());
+            }
+        }
+
+        private void run() throws InterruptedException {
+            if (finished.get()) return;
+            final long startedAt = System.nanoTime();
+            LoadedModel loaded;
+            try {
+                loaded = acquire(model);
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Error loading model " + model, e);
+                fail("Could not load model: " + e.getMessage());
+                return;
+            }
+            final long loadedAt = System.nanoTime();
+            LlmInference engine = loaded.engine;
+            final long[] firstTokenAt = {0};
+            final boolean[] prefixReused = {false};
+            final StringBuilder response = new StringBuilder();
+            LlmInferenceSession running = null;
+            boolean generating = false;
+            try {
+                running = prefix != null
+                        ? sessionWithPrefix(loaded, prefix, prefixReused)
+                        : LlmInferenceSession.createFromOptions(engine, sessionOptions());
+                running.addQueryChunk(prompt);
+                session = running;
+                if (finished.get()) return;
+                // The future also completes when generation is cancelled or fails, which the listener is not told
+                Future<String> generation = running.generateResponseAsync((partialResult, last) -> {
+                    if (partialResult != null && !partialResult.isEmpty()) {
+                        if (firstTokenAt[0] == 0) firstTokenAt[0] = System.nanoTime();
+                        synchronized (response) {
+                            response.append(partialResult);
+                        }
+                        if (!finished.get()) {
+                            listener.onPartialResponse(partialResult);
+                        }
                     }
                 });
+                generating = true;
+                generation.get(GENERATION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                generating = false;
+            } catch (InterruptedException e) {
+                fail("Interrupted");
+                throw e;
+            } catch (TimeoutException e) {
+                fail("Generation took longer than " + GENERATION_TIMEOUT_MS / 1000 + " s");
+                return;
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                fail("Error during generation: " + cause.getMessage());
+                return;
             } catch (Exception e) {
-                listener.onError("Error during generation: " + e.getMessage());
+                fail("Error during generation: " + e.getMessage());
+                return;
+            } finally {
+                session = null;
+                if (running != null) {
+                    if (generating) running.cancelGenerateResponseAsync();
+                    running.close();
+                }
+                loaded.lastUsed = System.currentTimeMillis();
             }
-        }).start();
-    }
 
-    public void close() {
-        // LlmInference currently doesn't have a public close() method in some versions,
-        // but if it becomes available or for other cleanup:
-        llmInference = null;
+            long finishedAt = System.nanoTime();
+            String text;
+            synchronized (response) {
+                text = response.toString();
+            }
+            int tokens = engine.sizeInTokens(text);
+            long firstAt = firstTokenAt[0] != 0 ? firstTokenAt[0] : finishedAt;
+            double decodeSeconds = (finishedAt - firstAt) / 1e9;
+            metrics = new Metrics((startedAt - submittedAt) / 1000000, (loadedAt - startedAt) / 1000000,
+                    (firstAt - loadedAt) / 1000000, (finishedAt - submittedAt) / 1000000, tokens,
+                    decodeSeconds > 0 && tokens > 1 ? (tokens - 1) / decodeSeconds : 0, prefixReused[0]);
+            record(metrics);
+            if (finished.compareAndSet(false, true)) {
+                listener.onResponse(text);
+            }
+        }
+
+        private void fail(String error) {
+            if (finished.compareAndSet(false, true)) {
+                listener.onError(error);
+            }
+        }
     }
 }
@@ -0,0 +1,290 @@
+package com.atak.plugins.mlsnapshots.services;
+
+import com.atak.plugins.mlsnapshots.helpers.ConvexHull;
+import com.atak.plugins.mlsnapshots.helpers.Ecef;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds buildings in a photogrammetry mesh and returns their footprints with heights.
+ * <p>
+ * The mesh is moved into a local east-north-up frame and rasterized from above into a grid of the
+ * highest surface per cell. A moving minimum over {@link #GROUND_WINDOW_M} estimates the ground, cells
+ * rising at least {@link #MIN_HEIGHT_M} above it are occupied, and each 4-connected group of occupied
+ * cells is one building. Its footprint is the convex hull of the group's cells. Structures wider than the
+ * ground window are taken for ground and missed.
+ * <p>
+ * Stateless and safe to call from several threads.
+ */
+public class BuildingFootprintExtractor {
+
+    private static final double CELL_SIZE_M = 1.0;
+    private static final int MAX_GRID_SIZE = 1024;
+    private static final double GROUND_WINDOW_M = 61;
+    private static final double MIN_HEIGHT_M = 2.5;
+    private static final double MIN_AREA_M2 = 20;
+
+    public static final class Footprint {
+        /** Closed ring of lon, lat pairs */
+        public final double[] ring;
+        /** Roof height above the ground, in meters */
+        public final double height;
+        /** Ellipsoidal height of the ground, in meters */
+        public final double baseElevation;
+
+        Footprint(double[] ring, double height, double baseElevation) {
+            this.ring = ring;
+            this.height = height;
+            this.baseElevation = baseElevation;
+        }
+    }
+
+    public List<Footprint> extract(TileContentDecoder.Mesh mesh) {
+        List<Footprint> footprints = new ArrayList<>();
+        int vertexCount = mesh.vertexCount;
+        if (vertexCount == 0 || mesh.indexCount == 0) return footprints;
+
+        // Local frame at the centroid
+        double[] origin = new double[3];
+        double[] positions = mesh.positions;
+        for (int i = 0; i < vertexCount; i++) {
+            origin[0] += positions[i * 3];
+            origin[1] += positions[i * 3 + 1];
+            origin[2] += positions[i * 3 + 2];
+        }
+        origin[0] /= vertexCount;
+        origin[1] /= vertexCount;
+        origin[2] /= vertexCount;
+        double[] geodetic = new double[3];
+        Ecef.toGeodetic(origin[0], origin[1], origin[2], geodetic, 0);
+        double[] basis = new double[9];
+        Ecef.enuBasis(geodetic[0], geodetic[1], basis);
+
+        double[] local = new double[vertexCount * 3];
+        double minE = Double.MAX_VALUE, minN = Double.MAX_VALUE, maxE = -Double.MAX_VALUE, maxN = -Double.MAX_VALUE;
+        for (int i = 0; i < vertexCount; i++) {
+            double dx = positions[i * 3] - origin[0];
+            double dy = positions[i * 3 + 1] - origin[1];
+            double dz = positions[i * 3 + 2] - origin[2];
+            double e = dx * basis[0] + dy * basis[1] + dz * basis[2];
+            double n = dx * basis[3] + dy * basis[4] + dz * basis[5];
+            local[i * 3] = e;
+            local[i * 3 + 1] = n;
+            local[i * 3 + 2] = dx * basis[6] + dy * basis[7] + dz * basis[8];
+            minE = Math.min(minE, e);
+            maxE = Math.max(maxE, e);
+            minN = Math.min(minN, n);
+            maxN = Math.max(maxN, n);
+        }
+
+        Grid grid = new Grid(minE, minN, Math.max(CELL_SIZE_M, Math.max(maxE - minE, maxN - minN) / MAX_GRID_SIZE),
+                maxE, maxN);
+        rasterize(mesh, local, grid);
+        float[] ground = groundEstimate(grid);
+        label(grid, ground, origin, basis, footprints);
+        return footprints;
+    }
+
+    /**
+     * Keeps the highest surface over each cell centre. Vertices are splatted too, so triangles smaller
+     * than a cell still register.
+     */
+    private static void rasterize(TileContentDecoder.Mesh mesh, double[] local, Grid grid) {
+        float[] top = grid.top;
+        for (int v = 0; v < mesh.vertexCount; v++) {
+            int cell = grid.cellAt(local[v * 3], local[v * 3 + 1]);
+            top[cell] = Math.max(top[cell], (float) local[v * 3 + 2]);
+        }
+        int[] indices = mesh.indices;
+        for (int t = 0; t + 2 < mesh.indexCount; t += 3) {
+            int a = indices[t] * 3, b = indices[t + 1] * 3, c = indices[t + 2] * 3;
+            double ax = local[a], ay = local[a + 1], az = local[a + 2];
+            double bx = local[b], by = local[b + 1], bz = local[b + 2];
+            double cx = local[c], cy = local[c + 1], cz = local[c + 2];
+            double area = (bx - ax) * (cy - ay) - (by - ay) * (cx - ax);
+            if (Math.abs(area) < 1e-9) continue;
+
+            int col0 = grid.column(Math.min(ax, Math.min(bx, cx)));
+            int col1 = grid.column(Math.max(ax, Math.max(bx, cx)));
+            int row0 = grid.row(Math.min(ay, Math.min(by, cy)));
+            int row1 = grid.row(Math.max(ay, Math.max(by, cy)));
+            for (int row = row0; row <= row1; row++) {
+                double py = grid.minN + (row + 0.5) * grid.cellSize;
+                for (int col = col0; col <= col1; col++) {
+                    double px = grid.minE + (col + 0.5) * grid.cellSize;
+                    double w0 = ((bx - px) * (cy - py) - (by - py) * (cx - px)) / area;
+                    double w1 = ((cx - px) * (ay - py) - (cy - py) * (ax - px)) / area;
+                    double w2 = 1 - w0 - w1;
+                    if (w0 < 0 || w1 < 0 || w2 < 0) continue;
+                    int cell = row * grid.width + col;
+                    top[cell] = Math.max(top[cell], (float) (w0 * az + w1 * bz + w2 * cz));
+                }
+            }
+        }
+    }
+
+    /**
+     * Separable moving minimum of the surface, with empty cells ignored.
+     */
+    private static float[] groundEstimate(Grid grid) {
+        int window = Math.max(3, ((int) (GROUND_WINDOW_M / grid.cellSize)) | 1);
+        float[] ground = new float[grid.top.length];
+        for (int i = 0; i < ground.length; i++) {
+            ground[i] = grid.top[i] == Float.NEGATIVE_INFINITY ? Float.POSITIVE_INFINITY : grid.top[i];
+        }
+        int longest = Math.max(grid.width, grid.height);
+        float[] line = new float[longest];
+        float[] prefix = new float[longest];
+        float[] suffix = new float[longest];
+        for (int row = 0; row < grid.height; row++) {
+            System.arraycopy(ground, row * grid.width, line, 0, grid.width);
+            movingMin(line, grid.width, window, prefix, suffix, ground, row * grid.width, 1);
+        }
+        for (int col = 0; col < grid.width; col++) {
+            for (int row = 0; row < grid.height; row++) {
+                line[row] = ground[row * grid.width + col];
+            }
+            movingMin(line, grid.height, window, prefix, suffix, ground, col, grid.width);
+        }
+        return ground;
+    }
+
+    /**
+     * van Herk/Gil-Werman moving minimum: constant work per element whatever the window size.
+     */
+    private static void movingMin(float[] values, int n, int window, float[] prefix, float[] suffix,
+                                  float[] out, int outOffset, int outStride) {
+        for (int start = 0; start < n; start += window) {
+            int end = Math.min(start + window, n) - 1;
+            prefix[start] = values[start];
+            for (int i = start + 1; i <= end; i++) {
+                prefix[i] = Math.min(prefix[i - 1], values[i]);
+            }
+            suffix[end] = values[end];
+            for (int i = end - 1; i >= start; i--) {
+                suffix[i] = Math.min(suffix[i + 1], values[i]);
+            }
+        }
+        int radius = window / 2;
+        for (int i = 0; i < n; i++) {
+            int lo = Math.max(0, i - radius);
+            int hi = Math.min(n - 1, i + radius);
+            float min;
+            if (lo / window != hi / window) {
+                min = Math.min(suffix[lo], prefix[hi]);
+            } else if (lo % window == 0) {
+                min = prefix[hi];
+            } else {
+                min = suffix[lo];
+            }
+            out[outOffset + i * outStride] = min;
+        }
+    }
+
+    private static void label(Grid grid, float[] ground, double[] origin, double[] basis, List<Footprint> footprints) {
+        int size = grid.top.length;
+        boolean[] occupied = new boolean[size];
+        for (int i = 0; i < size; i++) {
+            occupied[i] = ground[i] != Float.POSITIVE_INFINITY && grid.top[i] - ground[i] >= MIN_HEIGHT_M;
+        }
+
+        int minCells = (int) Math.ceil(MIN_AREA_M2 / (grid.cellSize * grid.cellSize));
+        int[] stack = new int[size];
+        int[] cells = new int[size];
+        double[] corners = new double[64];
+        double[] hull = new double[64];
+        double[] point = new double[3];
+        for (int seed = 0; seed < size; seed++) {
+            if (!occupied[seed]) continue;
+
+            // Flood fill; visited cells are cleared
+            int count = 0;
+            int top = 0;
+            stack[top++] = seed;
+            occupied[seed] = false;
+            float roof = Float.NEGATIVE_INFINITY;
+            float base = Float.POSITIVE_INFINITY;
+            while (top > 0) {
+                int cell = stack[--top];
+                cells[count++] = cell;
+                roof = Math.max(roof, grid.top[cell]);
+                base = Math.min(base, ground[cell]);
+                int row = cell / grid.width, col = cell % grid.width;
+                if (col > 0 && occupied[cell - 1]) { occupied[cell - 1] = false; stack[top++] = cell - 1; }
+                if (col < grid.width - 1 && occupied[cell + 1]) { occupied[cell + 1] = false; stack[top++] = cell + 1; }
+                if (row > 0 && occupied[cell - grid.width]) { occupied[cell - grid.width] = false; stack[top++] = cell - grid.width; }
+                if (row < grid.height - 1 && occupied[cell + grid.width]) { occupied[cell + grid.width] = false; stack[top++] = cell + grid.width; }
+            }
+            if (count < minCells) continue;
+
+            // Cell corners in east, north
+            if (corners.length < count * 8) {
+                corners = new double[count * 8];
+                hull = new double[count * 8 + 2];
+            }
+            for (int i = 0; i < count; i++) {
+                double e = grid.minE + (cells[i] % grid.width) * grid.cellSize;
+                double n = grid.minN + (cells[i] / grid.width) * grid.cellSize;
+                int o = i * 8;
+                corners[o] = e;
+                corners[o + 1] = n;
+                corners[o + 2] = e + grid.cellSize;
+                corners[o + 3] = n;
+                corners[o + 4] = e;
+                corners[o + 5] = n + grid.cellSize;
+                corners[o + 6] = e + grid.cellSize;
+                corners[o + 7] = n + grid.cellSize;
+            }
+            int points = ConvexHull.compute(corners, count * 4, hull);
+
+            double[] ring = new double[points * 2];
+            double baseElevation = 0;
+            for (int i = 0; i < points; i++) {
+                double e = hull[i * 2], n = hull[i * 2 + 1];
+                Ecef.toGeodetic(
+                        origin[0] + e * basis[0] + n * basis[3] + base * basis[6],
+                        origin[1] + e * basis[1] + n * basis[4] + base * basis[7],
+                        origin[2] + e * basis[2] + n * basis[5] + base * basis[8],
+                        point, 0);
+                ring[i * 2] = point[0];
+                ring[i * 2 + 1] = point[1];
+                baseElevation = point[2];
+            }
+            footprints.add(new Footprint(ring, roof - base, baseElevation));
+        }
+    }
+
+    /** Raster over the local east-north plane, row-major from the south-west corner. */
+    private static final class Grid {
+        final double minE;
+        final double minN;
+        final double cellSize;
+        final int width;
+        final int height;
+        final float[] top;
+
+        Grid(double minE, double minN, double cellSize, double maxE, double maxN) {
+            this.minE = minE;
+            this.minN = minN;
+            this.cellSize = cellSize;
+            this.width = Math.min(MAX_GRID_SIZE, (int) ((maxE - minE) / cellSize) + 1);
+            this.height = Math.min(MAX_GRID_SIZE, (int) ((maxN - minN) / cellSize) + 1);
+            this.top = new float[width * height];
+            Arrays.fill(top, Float.NEGATIVE_INFINITY);
+        }
+
+        int column(double e) {
+            return Math.max(0, Math.min(width - 1, (int) ((e - minE) / cellSize)));
+        }
+
+        int row(double n) {
+            return Math.max(0, Math.min(height - 1, (int) ((n - minN) / cellSize)));
+        }
+
+        int cellAt(double e, double n) {
+            return row(n) * width + column(e);
+        }
+    }
+}
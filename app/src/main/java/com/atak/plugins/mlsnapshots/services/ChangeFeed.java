@@ -0,0 +1,342 @@
+package com.atak.plugins.mlsnapshots.services;
+
+import com.atakmap.coremap.log.Log;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes what each refresh of a feed table changed, as GeoJSON features, so map clients can update the
+ * features that moved instead of re-fetching the layer.
+ * <p>
+ * Rows are matched between the previous and the new version of a table by a key column ({@code OBJECTID},
+ * {@code id}, ...) and compared by the md5 of the whole row. A table without a recognised key is keyed by that
+ * hash, so an edited row shows up as a delete and an insert. The geometry is the table's first GEOMETRY column,
+ * or a point built from lat/lon columns.
+ * <p>
+ * Diffs are only computed for tables somebody listens to. Clients apply inserts and updates as upserts by
+ * feature id, which makes applying a change twice harmless.
+ */
+public class ChangeFeed {
+
+    private static final String TAG = "ChangeFeed";
+
+    // Key columns in order of preference, compared case-insensitively
+    private static final String[] KEY_COLUMNS = {"objectid", "fid", "globalid", "id", "feature_id", "gml_id",
+            "entity_id", "datastream_id", "key"};
+    private static final String[][] LAT_LON_COLUMNS = {{"lat", "lon"}, {"latitude", "longitude"}, {"lat", "lng"},
+            {"y", "x"}};
+
+    public interface Listener {
+        /**
+         * Called on the thread that refreshed the table; hand off anything slow.
+         */
+        void onChanges(Changes changes);
+    }
+
+    /**
+     * One refresh of a table. If {@link #reset} is set, the inserts are the whole table and replace whatever the
+     * client had.
+     */
+    public static final class Changes {
+        public final String table;
+        public final long version;
+        public final long timestamp;
+        public final boolean reset;
+        public final List<JsonObject> inserts;
+        public final List<JsonObject> updates;
+        public final List<String> deletes;
+
+        Changes(String table, long version, boolean reset, List<JsonObject> inserts, List<JsonObject> updates,
+                List<String> deletes) {
+            this.table = table;
+            this.version = version;
+            this.timestamp = System.currentTimeMillis();
+            this.reset = reset;
+            this.inserts = Collections.unmodifiableList(inserts);
+            this.updates = Collections.unmodifiableList(updates);
+            this.deletes = Collections.unmodifiableList(deletes);
+        }
+
+        Changes renumber(long version) {
+            return new Changes(table, version, reset, inserts, updates, deletes);
+        }
+
+        public boolean isEmpty() {
+            return !reset && inserts.isEmpty() && updates.isEmpty() && deletes.isEmpty();
+        }
+
+        /**
+         * @return {@code {"table", "version", "timestamp", "reset", "inserts": [Feature], "updates": [Feature],
+         * "deletes": [id]}}
+         */
+        public String toJson() {
+            JsonObject json = new JsonObject();
+            json.addProperty("table", table);
+            json.addProperty("version", version);
+            json.addProperty("timestamp", timestamp);
+            json.addProperty("reset", reset);
+            json.add("inserts", array(inserts));
+            json.add("updates", array(updates));
+            JsonArray ids = new JsonArray();
+            for (String id : deletes) {
+                ids.add(id);
+            }
+            json.add("deletes", ids);
+            return json.toString();
+        }
+
+        private static JsonArray array(List<JsonObject> features) {
+            JsonArray array = new JsonArray();
+            for (JsonObject feature : features) {
+                array.add(feature);
+            }
+            return array;
+        }
+    }
+
+    private final Map<String, List<Listener>> listeners = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> versions = new ConcurrentHashMap<>();
+
+    public void subscribe(String table, Listener listener) {
+        List<Listener> list = listeners.get(table);
+        if (list == null) {
+            listeners.putIfAbsent(table, new CopyOnWriteArrayList<Listener>());
+            list = listeners.get(table);
+        }
+        list.add(listener);
+    }
+
+    public void unsubscribe(String table, Listener listener) {
+        List<Listener> list = listeners.get(table);
+        if (list != null) list.remove(listener);
+    }
+
+    public boolean hasListeners(String table) {
+        List<Listener> list = listeners.get(table);
+        return list != null && !list.isEmpty();
+    }
+
+    /**
+     * @return the version of the last change published for {@code table}, or 0
+     */
+    public long getVersion(String table) {
+        AtomicLong version = versions.get(table);
+        return version != null ? version.get() : 0;
+    }
+
+    /**
+     * Reads the whole of {@code table} as a reset, for a client that has just subscribed.
+     */
+    public Changes snapshot(Connection conn, String table) throws SQLException {
+        return snapshot(conn, table, table, getVersion(table));
+    }
+
+    private Changes snapshot(Connection conn, String relation, String table, long version) throws SQLException {
+        Shape shape = shape(conn, relation);
+        List<JsonObject> features = new ArrayList<>();
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT " + shape.key("t") + " AS __key, " + shape.geometry("t")
+                     + " AS __geometry, " + shape.columns() + " FROM " + relation + " t")) {
+            while (rs.next()) {
+                features.add(feature(rs, shape));
+            }
+        }
+        return new Changes(table, version, true, features, new ArrayList<JsonObject>(),
+                new ArrayList<String>());
+    }
+
+    /**
+     * Compares the next version of {@code table}, loaded into {@code next}, with {@code previous}. Returns null if
+     * nobody listens to the table. If the two versions cannot be compared, e.g. because the schema changed, the
+     * next version is returned whole as a reset.
+     *
+     * @param previous what readers saw before, or null if the table is new
+     */
+    Changes diff(Connection conn, String table, String next, String previous) throws SQLException {
+        if (!hasListeners(table)) return null;
+        if (previous == null) {
+            return snapshot(conn, next, table, 0);
+        }
+        Shape shape = shape(conn, next);
+        List<JsonObject> inserts = new ArrayList<>();
+        List<JsonObject> updates = new ArrayList<>();
+        List<String> deletes = new ArrayList<>();
+        String hash = "md5(CAST(t AS VARCHAR))";
+        try (Statement stmt = conn.createStatement()) {
+            try (ResultSet rs = stmt.executeQuery("SELECT o.__key IS NULL AS __inserted, n.* FROM (SELECT "
+                    + shape.key("t") + " AS __key, " + hash + " AS __hash, " + shape.geometry("t") + " AS __geometry, "
+                    + shape.columns() + " FROM " + next + " t) n LEFT JOIN (SELECT " + shape.key("t") + " AS __key, "
+                    + hash + " AS __hash FROM " + previous + " t) o ON n.__key = o.__key "
+                    + "WHERE o.__hash IS DISTINCT FROM n.__hash")) {
+                while (rs.next()) {
+                    (rs.getBoolean("__inserted") ? inserts : updates).add(feature(rs, shape));
+                }
+            }
+            try (ResultSet rs = stmt.executeQuery("SELECT o.__key FROM (SELECT " + shape.key("t") + " AS __key FROM "
+                    + previous + " t) o LEFT JOIN (SELECT " + shape.key("t") + " AS __key FROM " + next + " t) n "
+                    + "ON n.__key = o.__key WHERE n.__key IS NULL")) {
+                while (rs.next()) {
+                    deletes.add(rs.getString(1));
+                }
+            }
+        } catch (SQLException e) {
+            Log.w(TAG, "Could not diff " + table + ", publishing it whole: " + e.getMessage());
+            return snapshot(conn, next, table, 0);
+        }
+        return new Changes(table, 0, false, inserts, updates, deletes);
+    }
+
+    /**
+     * Numbers {@code changes} and hands them to the table's listeners. Publish once the new version is visible,
+     * so a client that re-fetches the table sees at least what the changes describe.
+     */
+    void publish(Changes changes) {
+        if (changes == null || changes.isEmpty()) return;
+        AtomicLong counter = versions.get(changes.table);
+        if (counter == null) {
+            versions.putIfAbsent(changes.table, new AtomicLong());
+            counter = versions.get(changes.table);
+        }
+        Changes numbered = changes.renumber(counter.incrementAndGet());
+        List<Listener> list = listeners.get(changes.table);
+        if (list == null) return;
+        for (Listener listener : list) {
+            try {
+                listener.onChanges(numbered);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Change listener of " + changes.table + " failed", e);
+            }
+        }
+    }
+
+    private static JsonObject feature(ResultSet rs, Shape shape) throws SQLException {
+        JsonObject feature = new JsonObject();
+        feature.addProperty("type", "Feature");
+        feature.addProperty("id", rs.getString("__key"));
+        JsonObject properties = new JsonObject();
+        ResultSetMetaData meta = rs.getMetaData();
+        for (int i = 1; i <= meta.getColumnCount(); i++) {
+            String name = meta.getColumnLabel(i);
+            if (!name.startsWith("__")) properties.add(name, value(rs.getObject(i)));
+        }
+        JsonElement geometry = JsonNull.INSTANCE;
+        String geoJson = rs.getString("__geometry");
+        if (geoJson != null) {
+            geometry = JsonParser.parseString(geoJson);
+        } else if (shape.lat != null) {
+            JsonElement lat = properties.get(shape.lat);
+            JsonElement lon = properties.get(shape.lon);
+            if (lat != null && lon != null && lat.isJsonPrimitive() && lon.isJsonPrimitive()
+                    && lat.getAsJsonPrimitive().isNumber() && lon.getAsJsonPrimitive().isNumber()) {
+                JsonObject point = new JsonObject();
+                point.addProperty("type", "Point");
+                JsonArray coordinates = new JsonArray();
+                coordinates.add(lon);
+                coordinates.add(lat);
+                point.add("coordinates", coordinates);
+                geometry = point;
+            }
+        }
+        feature.add("geometry", geometry);
+        feature.add("properties", properties);
+        return feature;
+    }
+
+    private static JsonElement value(Object value) {
+        if (value == null) return JsonNull.INSTANCE;
+        if (value instanceof Number) {
+            double d = ((Number) value).doubleValue();
+            return Double.isNaN(d) || Double.isInfinite(d) ? JsonNull.INSTANCE : new JsonPrimitive((Number) value);
+        }
+        if (value instanceof Boolean) return new JsonPrimitive((Boolean) value);
+        return new JsonPrimitive(value.toString());
+    }
+
+    /**
+     * Finds the key and geometry columns of a table or view.
+     */
+    private static Shape shape(Connection conn, String relation) throws SQLException {
+        Shape shape = new Shape();
+        List<String> names = new ArrayList<>();
+        try (PreparedStatement ps = conn.prepareStatement("SELECT column_name, data_type FROM "
+                + "information_schema.columns WHERE table_schema = 'main' AND table_name = ? "
+                + "ORDER BY ordinal_position")) {
+            ps.setString(1, relation);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    String name = rs.getString(1);
+                    names.add(name);
+                    if (shape.geometry == null && "GEOMETRY".equalsIgnoreCase(rs.getString(2))) {
+                        shape.geometry = name;
+                    }
+                }
+            }
+        }
+        for (String candidate : KEY_COLUMNS) {
+            shape.key = find(names, candidate);
+            if (shape.key != null) break;
+        }
+        if (shape.geometry == null) {
+            for (String[] pair : LAT_LON_COLUMNS) {
+                String lat = find(names, pair[0]);
+                String lon = find(names, pair[1]);
+                if (lat != null && lon != null) {
+                    shape.lat = lat;
+                    shape.lon = lon;
+                    break;
+                }
+            }
+        }
+        return shape;
+    }
+
+    private static String find(List<String> names, String wanted) {
+        for (String name : names) {
+            if (name.toLowerCase(Locale.US).equals(wanted)) return name;
+        }
+        return null;
+    }
+
+    private static String quote(String identifier) {
+        return '"' + identifier.replace("\"", "\"\"") + '"';
+    }
+
+    private static final class Shape {
+        String key;
+        String geometry;
+        String lat;
+        String lon;
+
+        String key(String alias) {
+            return key != null ? "CAST(" + alias + "." + quote(key) + " AS VARCHAR)"
+                    : "md5(CAST(" + alias + " AS VARCHAR))";
+        }
+
+        String geometry(String alias) {
+            return geometry != null ? "ST_AsGeoJSON(" + alias + "." + quote(geometry) + ")" : "CAST(NULL AS VARCHAR)";
+        }
+
+        String columns() {
+            return geometry != null ? "* EXCLUDE (" + quote(geometry) + ")" : "*";
+        }
+    }
+}
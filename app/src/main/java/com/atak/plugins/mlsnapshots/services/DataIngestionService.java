@@ -1,77 +1,361 @@
-
 package com.atak.plugins.mlsnapshots.services;
 
+import android.annotation.TargetApi;
 import android.content.Context;
+import android.os.Build;
+import android.os.FileObserver;
+import com.atak.plugins.mlsnapshots.PluginExecutor;
 import com.atak.coremap.log.Log;
-import org.geotools.data.DataStore;
-import org.geotools.data.DataStoreFinder;
-import org.geotools.data.simple.SimpleFeatureSource;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
-import java.util.HashMap;
+import java.io.InputStream;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * Imports files dropped into the {@code imports} directory into the GeoPackage.
+ * <p>
+ * The directory is watched with a {@link FileObserver}, so nothing runs while it is idle. A file is
+ * imported once its size and modification time have stopped changing for {@link #QUIET_PERIOD_MS},
+ * which keeps half-copied files out. The SHA-256 of every imported file is recorded in a ledger,
+ * so a file is imported exactly once even across restarts or when it is copied in again.
+ * Each file goes to the first {@link ImportEngine} that can read it: the DuckDB/GDAL path when the
+ * spatial extension is available, otherwise GeoTools. An engine that fails before writing anything
+ * hands the file on to the next one. Features already written by a failed import cannot be taken back,
+ * so such a file is recorded in the ledger as partially imported and not retried, which would write them a
+ * second time.
+ */
 public class DataIngestionService {
 
     public static final String TAG = "DataIngestionService";
+
+    private static final long QUIET_PERIOD_MS = 2000;
+
+    private static final int EVENTS = FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO;
+
+    /** Files that belong to another file (e.g. shapefile components) or are still being written. */
+    private static final Set<String> SIDECAR_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "shx", "dbf", "prj", "cpg", "qix", "sbn", "sbx", "fix", "xml", "tmp", "part", "crdownload"));
+
+    private static final String[] SHAPEFILE_COMPONENTS = {"shp", "shx", "dbf", "prj", "cpg"};
+
     private final File importDir;
-    private final GeoPackageService geoPackageService;
-    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final File ledgerFile;
+    // In order of preference
+    private final List<ImportEngine> engines = new ArrayList<>();
+    private final Set<String> importedHashes = new HashSet<>();
+    // Path -> whether it changed again while its import was in flight
+    private final Map<String, Boolean> inFlight = new ConcurrentHashMap<>();
+    private FileObserver observer;
+    private volatile boolean running;
 
-    public DataIngestionService(Context context, GeoPackageService geoPackageService) {
+    public DataIngestionService(Context context, GeoPackageService geoPackageService, DuckDBService duckDBService) {
         this.importDir = new File(context.getExternalFilesDir(null), "imports");
         if (!importDir.exists() && !importDir.mkdirs()) {
             Log.e(TAG, "Failed to create import directory");
         }
-        this.geoPackageService = geoPackageService;
+        this.ledgerFile = new File(context.getExternalFilesDir(null), "imports.ledger");
+        if (duckDBService != null) {
+            engines.add(new DuckDBImportEngine(duckDBService, geoPackageService,
+                    new File(context.getCacheDir(), "import_staging")));
+        }
+        engines.add(new GeoToolsImportEngine(geoPackageService));
     }
 
     public void start() {
-        scheduler.scheduleAtFixedRate(this::pollImportDirectory, 0, 10, TimeUnit.SECONDS);
+        loadLedger();
+        running = true;
+        // FileObserver rather than java.nio.file.WatchService, which needs API 26
+        observer = Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q
+                ? new ImportDirObserver(importDir) : new ImportDirObserver(importDir.getAbsolutePath());
+        observer.startWatching();
+
+        // Pick up anything that arrived while the plugin was not running
+        File[] files = importDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                onFileChanged(file);
+            }
+        }
         Log.d(TAG, "Started watching for files in " + importDir.getAbsolutePath());
     }
 
-    private void pollImportDirectory() {
-        File[] files = importDir.listFiles();
-        if (files == null) return;
+    private void onFileChanged(File file) {
+        if (!running || !isImportable(file)) return;
+        String path = file.getAbsolutePath();
+        if (inFlight.putIfAbsent(path, Boolean.FALSE) != null) {
+            inFlight.put(path, Boolean.TRUE);
+            return;
+        }
+        awaitStable(file, -1, -1);
+    }
+
+    /**
+     * Re-checks the file after the quiet period and imports it once its size and modification time
+     * are the same as at the previous check.
+     */
+    private void awaitStable(final File file, final long lastSize, final long lastModified) {
+        final String path = file.getAbsolutePath();
+        // A check that never runs must not leave the file marked in flight, or its later changes would be ignored
+        Runnable rejected = () -> inFlight.remove(path);
+        try {
+            PluginExecutor.getInstance().schedule("import-" + file.getName(), PluginExecutor.JobType.DISK,
+                    QUIET_PERIOD_MS, TimeUnit.MILLISECONDS, context -> {
+                        List<File> parts = componentsOf(file);
+                        long size = 0, modified = 0;
+                        for (File part : parts) {
+                            size += part.length();
+                            modified = Math.max(modified, part.lastModified());
+                        }
+                        if (!running || !file.exists()) {
+                            inFlight.remove(path);
+                        } else if (size != lastSize || modified != lastModified) {
+                            awaitStable(file, size, modified);
+                        } else {
+                            importIfNew(file, parts);
+                        }
+                        return null;
+                    }, rejected);
+        } catch (RejectedExecutionException e) {
+            rejected.run();
+        }
+    }
+
+    private void importIfNew(final File file, List<File> parts) {
+        String claimed = null;
+        boolean submitted = false;
+        try {
+            final String hash = sha256(parts);
+            if (!claim(hash)) {
+                Log.d(TAG, "Skipping " + file.getName() + ", already imported");
+                return;
+            }
+            claimed = hash;
+            submitted = importFile(file, hash, 0);
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Error importing file: " + file.getName(), e);
+            if (claimed != null) release(claimed);
+        } finally {
+            if (!submitted) importDone(file);
+        }
+    }
 
-        for (File file : files) {
-            try {
-                if (file.isFile()) {
-                    importFile(file);
+    /**
+     * Starts the import with the first engine, from {@code firstEngine} on, that accepts the file.
+     * Engines finish asynchronously.
+     *
+     * @return true if an engine took the file and will call {@link #importDone} itself
+     */
+    private boolean importFile(final File file, final String hash, int firstEngine) throws IOException {
+        for (int i = firstEngine; i < engines.size(); i++) {
+            final ImportEngine engine = engines.get(i);
+            if (!engine.canImport(file)) continue;
+            final int next = i + 1;
+            final ImportStats stats = new ImportStats();
+            boolean started = engine.importFile(file, new ImportEngine.Listener() {
+                @Override
+                public void onProgress(String source, int layersDone, int layerCount, long features, double featuresPerSecond) {
+                    stats.sampleHeap();
+                    Log.d(TAG, String.format(Locale.US, "%s: %d/%d layers, %d features (%.0f features/s)",
+                            source, layersDone, layerCount, features, featuresPerSecond));
                 }
-            } catch (IOException e) {
-                Log.e(TAG, "Error importing file: " + file.getName(), e);
+
+                @Override
+                public void onFinished(String source, boolean success, long features, long elapsedMs) {
+                    stats.sampleHeap();
+                    Log.d(TAG, String.format(Locale.US,
+                            "%s import of %s: %s, %d features in %d ms (%.0f ms per million features, peak heap +%d MB)",
+                            engine.getName(), source, success ? "done" : "failed", features, elapsedMs,
+                            elapsedMs * 1e6 / Math.max(1, features), stats.peakHeapGrowthMb()));
+                    boolean handedOff = false;
+                    try {
+                        if (success) {
+                            recordImported(hash, source);
+                        } else if (features == 0) {
+                            // Nothing was written, so the next engine can start from scratch
+                            handedOff = importFile(file, hash, next);
+                            if (!handedOff) release(hash);
+                        } else {
+                            // Keep the hash claimed: a retry would append the same features again
+                            Log.e(TAG, source + " failed after writing " + features + " features, which are kept; "
+                                    + "the file will not be imported again");
+                            recordImported(hash, source + " (partial, " + features + " features)");
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        Log.e(TAG, "Failed to finish import of " + source, e);
+                        // Written features stay claimed for this session even if the ledger could not record them
+                        if (features == 0) release(hash);
+                    } finally {
+                        if (!handedOff) importDone(file);
+                    }
+                }
+            });
+            if (started) {
+                return true;
             }
         }
+        if (firstEngine == 0) {
+            Log.w(TAG, "No import engine can handle: " + file.getName());
+            recordImported(hash, file.getName());
+        }
+        return false;
     }
 
-    private void importFile(File file) throws IOException {
-        Map<String, Object> params = new HashMap<>();
-        params.put("url", file.toURI().toURL());
+    /** Watches the import directory for files written or moved into it. */
+    private final class ImportDirObserver extends FileObserver {
+        @SuppressWarnings("deprecation")
+        ImportDirObserver(String path) {
+            super(path, EVENTS);
+        }
 
-        DataStore dataStore = DataStoreFinder.getDataStore(params);
-        if (dataStore == null) {
-            Log.w(TAG, "No DataStore found that can handle: " + file.getName());
-            return;
+        // The path constructor is deprecated from API 29
+        @TargetApi(Build.VERSION_CODES.Q)
+        ImportDirObserver(File dir) {
+            super(dir, EVENTS);
+        }
+
+        @Override
+        public void onEvent(int event, String path) {
+            if (path != null) {
+                onFileChanged(new File(importDir, path));
+            }
+        }
+    }
+
+    /** Heap use during one import, for comparing engines. */
+    private static final class ImportStats {
+        private final long baseline = usedHeap();
+        private volatile long peak = baseline;
+
+        void sampleHeap() {
+            peak = Math.max(peak, usedHeap());
         }
 
-        String[] typeNames = dataStore.getTypeNames();
-        for (String typeName : typeNames) {
-            SimpleFeatureSource featureSource = dataStore.getFeatureSource(typeName);
-            if (featureSource != null) {
-                geoPackageService.createOrUpdateGeoPackage(typeName, featureSource);
+        long peakHeapGrowthMb() {
+            return Math.max(0, peak - baseline) / (1024 * 1024);
+        }
+
+        private static long usedHeap() {
+            Runtime runtime = Runtime.getRuntime();
+            return runtime.totalMemory() - runtime.freeMemory();
+        }
+    }
+
+    private void importDone(File file) {
+        if (Boolean.TRUE.equals(inFlight.remove(file.getAbsolutePath()))) {
+            onFileChanged(file);
+        }
+    }
+
+    private static boolean isImportable(File file) {
+        String name = file.getName();
+        return file.isFile() && !name.startsWith(".") && !SIDECAR_EXTENSIONS.contains(extension(name));
+    }
+
+    /**
+     * @return the file plus, for a shapefile, its existing component files
+     */
+    private static List<File> componentsOf(File file) {
+        List<File> parts = new ArrayList<>();
+        parts.add(file);
+        String name = file.getName();
+        if ("shp".equals(extension(name))) {
+            String base = name.substring(0, name.length() - 3);
+            for (String ext : SHAPEFILE_COMPONENTS) {
+                if (ext.equals("shp")) continue;
+                File part = new File(file.getParentFile(), base + ext);
+                if (!part.exists()) {
+                    part = new File(file.getParentFile(), base + ext.toUpperCase(Locale.US));
+                }
+                if (part.exists()) {
+                    parts.add(part);
+                }
+            }
+        }
+        return parts;
+    }
+
+    private static String extension(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.US);
+    }
+
+    private static String sha256(List<File> parts) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        byte[] buffer = new byte[64 * 1024];
+        for (File part : parts) {
+            try (InputStream in = new FileInputStream(part)) {
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, n);
+                }
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format(Locale.US, "%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private synchronized void loadLedger() {
+        importedHashes.clear();
+        if (!ledgerFile.exists()) return;
+        try (BufferedReader reader = new BufferedReader(new FileReader(ledgerFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int space = line.indexOf(' ');
+                if (space > 0) {
+                    importedHashes.add(line.substring(0, space));
+                }
             }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read import ledger", e);
+        }
+    }
+
+    /**
+     * @return false if a file with this hash was already imported or is being imported
+     */
+    private synchronized boolean claim(String hash) {
+        return importedHashes.add(hash);
+    }
+
+    private synchronized void release(String hash) {
+        importedHashes.remove(hash);
+    }
+
+    private synchronized void recordImported(String hash, String name) throws IOException {
+        try (Writer writer = new FileWriter(ledgerFile, true)) {
+            writer.write(hash + " " + name + "\n");
         }
-        
-        // Optionally, delete the file after successful import
-        // file.delete();
     }
 
     public void stop() {
-        scheduler.shutdown();
+        running = false;
+        if (observer != null) {
+            observer.stopWatching();
+            observer = null;
+        }
     }
 }
@@ -0,0 +1,154 @@
+package com.atak.plugins.mlsnapshots.services;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * A feed table refreshed without disturbing its readers.
+ * <p>
+ * Readers query the view {@code <name>}, which selects from one of two buffers, {@code <name>__a} and
+ * {@code <name>__b}. A refresh loads the other buffer, however long its download takes, and {@link #swap} then
+ * repoints the view in one transaction. The buffer that was live stays behind as {@code <name>__previous} until the
+ * next refresh starts loading into it, so consecutive versions can be diffed.
+ * <p>
+ * Refreshes of one table must not overlap; the {@link FeedScheduler} guarantees that for scheduled feeds.
+ * <p>
+ * Given a {@link ChangeFeed}, {@link #refresh} diffs each version against the one it replaces and publishes the
+ * changes once the swap is visible.
+ */
+final class DoubleBufferedTable {
+
+    private final String name;
+    private final ChangeFeed changeFeed;
+    // The buffer the view selects from; null until known
+    private String live;
+
+    DoubleBufferedTable(String name) {
+        this(name, null);
+    }
+
+    /**
+     * @param changeFeed where refreshes publish their changes, or null
+     */
+    DoubleBufferedTable(String name, ChangeFeed changeFeed) {
+        this.name = name;
+        this.changeFeed = changeFeed;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * @return the buffer to load the next version into
+     */
+    String shadow(Connection conn) throws SQLException {
+        String current = live(conn);
+        return (name + "__a").equals(current) ? name + "__b" : name + "__a";
+    }
+
+    /**
+     * @return the buffer readers currently see, or null before the first swap
+     */
+    String live(Connection conn) throws SQLException {
+        if (live == null) {
+            // After a restart, the view's definition says which buffer is live
+            try (PreparedStatement ps = conn.prepareStatement("SELECT sql FROM duckdb_views() "
+                    + "WHERE schema_name = 'main' AND view_name = ?")) {
+                ps.setString(1, name);
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (rs.next()) {
+                        String sql = rs.getString(1);
+                        live = sql.contains(name + "__b") ? name + "__b" : sql.contains(name + "__a") ? name + "__a" : null;
+                    }
+                }
+            }
+        }
+        return live;
+    }
+
+    /**
+     * @return what readers currently see, to select from: the live buffer, a plain table left by versions that
+     * refreshed in place, or null if the table has never been loaded
+     */
+    String current(Connection conn) throws SQLException {
+        String current = live(conn);
+        if (current == null && isLegacyTable(conn)) current = name;
+        return current;
+    }
+
+    /**
+     * Makes the shadow buffer live and keeps the previously live one as {@code <name>__previous}. A plain table
+     * of the same name, left by versions that refreshed in place, is dropped.
+     */
+    void swap(Connection conn) throws SQLException {
+        swap(conn, this);
+    }
+
+    /**
+     * Swaps several tables in one transaction, for feeds whose tables are read together.
+     */
+    static void swap(Connection conn, DoubleBufferedTable... tables) throws SQLException {
+        String[] next = new String[tables.length];
+        String[] previous = new String[tables.length];
+        boolean[] legacy = new boolean[tables.length];
+        for (int i = 0; i < tables.length; i++) {
+            previous[i] = tables[i].live(conn);
+            next[i] = tables[i].shadow(conn);
+            legacy[i] = previous[i] == null && tables[i].isLegacyTable(conn);
+        }
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("BEGIN TRANSACTION");
+            try {
+                for (int i = 0; i < tables.length; i++) {
+                    String name = tables[i].name;
+                    if (legacy[i]) stmt.execute("DROP TABLE " + name);
+                    stmt.execute("CREATE OR REPLACE VIEW " + name + " AS SELECT * FROM " + next[i]);
+                    if (previous[i] != null) {
+                        stmt.execute("CREATE OR REPLACE VIEW " + name + "__previous AS SELECT * FROM " + previous[i]);
+                    }
+                }
+                stmt.execute("COMMIT");
+            } catch (SQLException e) {
+                stmt.execute("ROLLBACK");
+                throw e;
+            }
+        }
+        for (int i = 0; i < tables.length; i++) {
+            tables[i].live = next[i];
+        }
+    }
+
+    private boolean isLegacyTable(Connection conn) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement("SELECT count(*) FROM duckdb_tables() "
+                + "WHERE schema_name = 'main' AND table_name = ?")) {
+            ps.setString(1, name);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() && rs.getLong(1) > 0;
+            }
+        }
+    }
+
+    /**
+     * Loads {@code select} into the shadow buffer and swaps it in.
+     *
+     * @return the number of rows in the new version
+     */
+    long refresh(Connection conn, String select) throws SQLException {
+        String shadow = shadow(conn);
+        long rows = 0;
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE OR REPLACE TABLE " + shadow + " AS " + select);
+            try (ResultSet rs = stmt.executeQuery("SELECT count(*) FROM " + shadow)) {
+                if (rs.next()) rows = rs.getLong(1);
+            }
+        }
+        ChangeFeed.Changes changes = changeFeed != null ? changeFeed.diff(conn, name, shadow, current(conn)) : null;
+        swap(conn);
+        if (changes != null) changeFeed.publish(changes);
+        return rows;
+    }
+}
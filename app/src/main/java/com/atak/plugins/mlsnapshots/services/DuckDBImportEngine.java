@@ -0,0 +1,173 @@
+package com.atak.plugins.mlsnapshots.services;
+
+import com.atak.coremap.log.Log;
+import com.atak.plugins.mlsnapshots.PluginExecutor;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Imports through the DuckDB spatial extension, so features never become Java objects.
+ * <p>
+ * Each layer is read with {@code ST_Read} and written by GDAL ({@code COPY ... (FORMAT GDAL)}) to a staging
+ * GeoPackage of its own, which is then merged into the main GeoPackage inside SQLite. Layers are listed with
+ * {@code ST_Read_Meta} when the extension provides it; otherwise the first layer is imported.
+ */
+public class DuckDBImportEngine implements ImportEngine {
+
+    private static final String TAG = "DuckDBImportEngine";
+
+    private static final Set<String> EXTENSIONS = new HashSet<>(Arrays.asList(
+            "shp", "kml", "geojson", "json", "gml", "gpx", "fgb", "gpkg", "tab", "mif"));
+
+    private final DuckDBService duckDBService;
+    private final GeoPackageService geoPackageService;
+    private final File stagingDir;
+    private Boolean available;
+
+    public DuckDBImportEngine(DuckDBService duckDBService, GeoPackageService geoPackageService, File stagingDir) {
+        this.duckDBService = duckDBService;
+        this.geoPackageService = geoPackageService;
+        this.stagingDir = stagingDir;
+        if (!stagingDir.exists() && !stagingDir.mkdirs()) {
+            Log.e(TAG, "Failed to create staging directory " + stagingDir);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "DuckDB";
+    }
+
+    @Override
+    public boolean canImport(File file) {
+        return EXTENSIONS.contains(extension(file.getName())) && isAvailable();
+    }
+
+    /**
+     * @return whether the spatial extension is loaded; checked once
+     */
+    private synchronized boolean isAvailable() {
+        if (available == null) {
+            try (Connection conn = duckDBService.newConnection();
+                 Statement stmt = conn.createStatement();
+                 ResultSet rs = stmt.executeQuery(
+                         "SELECT count(*) FROM duckdb_extensions() WHERE extension_name = 'spatial' AND loaded")) {
+                available = rs.next() && rs.getInt(1) > 0;
+            } catch (SQLException e) {
+                Log.w(TAG, "Could not check for the spatial extension: " + e.getMessage());
+                available = false;
+            }
+        }
+        return available;
+    }
+
+    @Override
+    public boolean importFile(final File file, final Listener listener) {
+        PluginExecutor.getInstance().submit("import-duckdb-" + file.getName(), PluginExecutor.JobType.DISK, context -> {
+            run(file, listener, context);
+            return null;
+        });
+        return true;
+    }
+
+    private void run(File file, Listener listener, PluginExecutor.JobContext context) {
+        long start = System.currentTimeMillis();
+        long features = 0;
+        boolean success = false;
+        // GDAL names the layer after the file, so each import stages <table>.gpkg in a directory of its own
+        File importDir = new File(stagingDir, UUID.randomUUID().toString());
+        try (Connection conn = duckDBService.newConnection();
+             Statement stmt = conn.createStatement()) {
+            if (!importDir.mkdirs()) {
+                throw new IOException("Cannot create staging directory " + importDir);
+            }
+            String path = escape(file.getAbsolutePath());
+            List<Layer> layers = listLayers(stmt, file, path);
+            for (int i = 0; i < layers.size(); i++) {
+                context.throwIfCancelled();
+                Layer layer = layers.get(i);
+                File staging = new File(importDir, layer.table + ".gpkg");
+                try {
+                    // No rtree in the staging file: the merge rebuilds the index once in the main GeoPackage
+                    stmt.execute(String.format(Locale.US,
+                            "COPY (SELECT * FROM ST_Read('%s'%s)) TO '%s' " +
+                            "(FORMAT GDAL, DRIVER 'GPKG', LAYER_CREATION_OPTIONS 'SPATIAL_INDEX=NO'%s)",
+                            path, layer.name != null ? ", layer='" + escape(layer.name) + "'" : "",
+                            escape(staging.getAbsolutePath()), layer.srs != null ? ", SRS '" + layer.srs + "'" : ""));
+                    features += geoPackageService.mergeLayer(staging, layer.table);
+                } finally {
+                    if (staging.exists() && !staging.delete()) {
+                        Log.w(TAG, "Failed to delete staging file " + staging);
+                    }
+                }
+                long elapsed = Math.max(1, System.currentTimeMillis() - start);
+                listener.onProgress(file.getName(), i + 1, layers.size(), features, features * 1000.0 / elapsed);
+                context.setProgress((i + 1) * 100 / layers.size(), layer.table);
+            }
+            success = true;
+        } catch (SQLException | IOException e) {
+            Log.e(TAG, "DuckDB import of " + file.getName() + " failed", e);
+        } finally {
+            if (importDir.exists() && !importDir.delete()) {
+                Log.w(TAG, "Failed to delete staging directory " + importDir);
+            }
+            listener.onFinished(file.getName(), success, features, System.currentTimeMillis() - start);
+        }
+    }
+
+    private static List<Layer> listLayers(Statement stmt, File file, String path) {
+        List<Layer> layers = new ArrayList<>();
+        try (ResultSet rs = stmt.executeQuery(String.format(Locale.US,
+                "SELECT layer.name, layer.geometry_fields[1].crs.auth_name, layer.geometry_fields[1].crs.auth_code " +
+                "FROM (SELECT unnest(layers) AS layer FROM ST_Read_Meta('%s'))", path))) {
+            while (rs.next()) {
+                String authName = rs.getString(2);
+                String authCode = rs.getString(3);
+                layers.add(new Layer(rs.getString(1), rs.getString(1),
+                        authName != null && authCode != null ? authName + ":" + authCode : null));
+            }
+        } catch (SQLException e) {
+            Log.d(TAG, "ST_Read_Meta unavailable, importing the first layer only: " + e.getMessage());
+        }
+        if (layers.isEmpty()) {
+            String name = file.getName();
+            int dot = name.lastIndexOf('.');
+            layers.add(new Layer(null, dot > 0 ? name.substring(0, dot) : name, null));
+        }
+        return layers;
+    }
+
+    private static String extension(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.US);
+    }
+
+    private static String escape(String sqlLiteral) {
+        return sqlLiteral.replace("'", "''");
+    }
+
+    private static final class Layer {
+        /** Layer name for ST_Read, or null for the default layer */
+        final String name;
+        final String table;
+        final String srs;
+
+        Layer(String name, String table, String srs) {
+            this.name = name;
+            this.table = table;
+            this.srs = srs;
+        }
+    }
+}
@@ -2,6 +2,7 @@ package com.atak.plugins.mlsnapshots.services;
 
 import com.atak.plugins.mlsnapshots.PluginMapComponent;
 import com.atakmap.coremap.log.Log;
+import org.duckdb.DuckDBConnection;
 
 import java.sql.Connection;
 import java.sql.DriverManager;
@@ -12,8 +13,11 @@ public class DuckDBService {
 
     private static final String TAG = "DuckDBService";
     private Connection conn;
+    private final String dbPath;
+    private final ChangeFeed changeFeed = new ChangeFeed();
 
     public DuckDBService(String dbPath) throws SQLException {
+        this.dbPath = dbPath;
         try {
             Class.forName("org.duckdb.DuckDBDriver");
             conn = DriverManager.getConnection("jdbc:duckdb:" + dbPath);
@@ -40,7 +44,12 @@ public class DuckDBService {
                 // stmt.execute("ATTACH ':memory:' AS mem");
                 
                 // Set S3 configuration for Overture Maps (No Auth needed for Overture)
-                stmt.execute("SET s3_region='us-west-2';");
+                try {
+                    stmt.execute("SET s3_region='us-west-2';");
+                } catch (SQLException e) {
+                    // Only httpfs knows the setting; local data still works without it
+                    Log.w(TAG, "Could not configure S3: " + e.getMessage());
+                }
                 
             }
         } catch (ClassNotFoundException | SQLException e) {
@@ -48,10 +57,33 @@ public class DuckDBService {
         }
     }
 
+    /**
+     * @return the database file, next to which derived data such as indexes can be kept
+     */
+    public String getDatabasePath() {
+        return dbPath;
+    }
+
+    /**
+     * @return where feed refreshes publish the rows they changed
+     */
+    public ChangeFeed getChangeFeed() {
+        return changeFeed;
+    }
+
     public Connection getConnection() {
         return conn;
     }
 
+    /**
+     * Opens an additional connection to the same database instance.
+     * Background jobs should use their own connection and close it when done,
+     * rather than closing the shared one returned by {@link #getConnection()}.
+     */
+    public Connection newConnection() throws SQLException {
+        return ((DuckDBConnection) conn).duplicate();
+    }
+
     public void close() throws SQLException {
         if (conn != null && !conn.isClosed()) {
             conn.close();
@@ -0,0 +1,17 @@
+package com.atak.plugins.mlsnapshots.services;
+
+/**
+ * Turns text into a fixed-length vector whose dot product with another embedding measures how related the two
+ * texts are.
+ */
+public interface Embedder {
+
+    int getDimensions();
+
+    /**
+     * @return the embedding of {@code text}, scaled to unit length
+     */
+    float[] embed(String text);
+
+    void close();
+}
@@ -1,12 +1,18 @@
 package com.atak.plugins.mlsnapshots.services;
 
+import com.atak.plugins.mlsnapshots.PluginExecutor;
 import com.atakmap.coremap.log.Log;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import java.io.BufferedInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
+import java.net.URI;
 import java.net.URL;
+import java.net.URLEncoder;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -25,9 +31,14 @@ public class EsriDataService {
 
     private static final String TAG = "EsriDataService";
     private final DuckDBService duckDBService;
+    private final StreamIngestService streamIngestService;
+    private final FeedScheduler feedScheduler;
 
-    public EsriDataService(DuckDBService duckDBService) {
+    public EsriDataService(DuckDBService duckDBService, StreamIngestService streamIngestService,
+                           FeedScheduler feedScheduler) {
         this.duckDBService = duckDBService;
+        this.streamIngestService = streamIngestService;
+        this.feedScheduler = feedScheduler;
     }
 
     /**
@@ -369,39 +380,89 @@ public class EsriDataService {
             return;
         }
 
-        try (Connection conn = duckDBService.getConnection();
-             Statement stmt = conn.createStatement()) {
-
-            String tableName = layerName.replaceAll("[^a-zA-Z0-9_]", "_");
-            String queryUrl = String.format("%s/%s/query?where=1%%3D1&outFields=*&f=geojson", serviceUrl, layerId);
+        final String tableName = layerName.replaceAll("[^a-zA-Z0-9_]", "_");
+        final String queryUrl = String.format("%s/%s/query?where=1%%3D1&outFields=*&f=geojson", serviceUrl, layerId);
 
-            stmt.execute(String.format(
-                "CREATE OR REPLACE TABLE %s AS SELECT * FROM ST_Read('%s');",
-                tableName, queryUrl
-            ));
-            Log.d(TAG, "Successfully created table " + tableName + " and loaded initial data.");
-            
-            String cronJobName = "refresh_" + tableName;
-            String cronQuery = String.format(
-                "CREATE OR REPLACE TABLE %s AS SELECT * FROM ST_Read('%s');",
-                tableName, queryUrl
-            );
-
-            stmt.execute(String.format("DELETE FROM cron.job WHERE name = '%s'", cronJobName));
-            stmt.execute(String.format(
-                "INSERT INTO cron.job(name, schedule, command) VALUES ('%s', '%s', '%s');",
-                cronJobName, refreshIntervalCron, cronQuery.replace("'", "''")
-            ));
+        // Older versions refreshed the layer with a cron job
+        try (Connection conn = duckDBService.newConnection();
+             Statement stmt = conn.createStatement()) {
+            stmt.execute(String.format("DELETE FROM cron.job WHERE name = '%s'", "refresh_" + tableName));
+        } catch (SQLException e) {
+            // No cron extension, or no such job
+        }
 
-            Log.d(TAG, "Scheduled cron job '" + cronJobName + "'");
+        // Loaded into a shadow table and swapped in, so the map keeps drawing the previous version meanwhile
+        final DoubleBufferedTable table = new DoubleBufferedTable(tableName, duckDBService.getChangeFeed());
+        final String select = String.format("SELECT * FROM ST_Read('%s')", queryUrl);
+        feedScheduler.schedule(tableName, refreshIntervalCron, run -> {
+            try (Connection conn = duckDBService.newConnection()) {
+                run.setRows(table.refresh(conn, select));
+            }
+        });
+        Log.d(TAG, "Scheduled refresh of " + tableName);
+    }
 
-        } catch (SQLException e) {
-            Log.e(TAG, "Failed to add Feature Server layer: " + layerName, e);
+    /**
+     * Subscribes to an ESRI StreamServer. Features land in the {@code stream_<name>} ring-buffer table as they are
+     * pushed, and {@code stream_<name>_latest} holds the latest feature of each track.
+     *
+     * @param streamUrl the StreamServer REST endpoint, whose websocket URL, token and track id field are looked
+     *                  up, or a {@code ws://}/{@code wss://} URL to subscribe to directly
+     */
+    public void addStreamServerLayer(final String streamName, final String streamUrl) {
+        if (streamIngestService == null) return;
+        final String tableName = "stream_" + streamName.replaceAll("[^a-zA-Z0-9_]", "_");
+        if (streamUrl.startsWith("ws://") || streamUrl.startsWith("wss://")) {
+            streamIngestService.subscribe(tableName, new WebSocketClient(URI.create(streamUrl)), null);
+            return;
         }
+        PluginExecutor.getInstance().submit("streamserver-" + streamName, PluginExecutor.JobType.NETWORK, context -> {
+            JsonObject info = fetchJson(streamUrl + (streamUrl.contains("?") ? "&" : "?") + "f=json");
+            if (info.has("error")) {
+                throw new IOException("StreamServer error: " + info.get("error"));
+            }
+            JsonObject stream = null;
+            for (JsonElement candidate : info.getAsJsonArray("streamUrls")) {
+                JsonObject entry = candidate.getAsJsonObject();
+                if ("ws".equals(entry.get("transport").getAsString())) {
+                    stream = entry;
+                    break;
+                }
+            }
+            if (stream == null) {
+                throw new IOException(streamUrl + " offers no websocket transport");
+            }
+            StringBuilder subscribeUrl = new StringBuilder(stream.getAsJsonArray("urls").get(0).getAsString())
+                    .append("/subscribe?outSR=4326");
+            if (stream.has("token") && !stream.get("token").isJsonNull()) {
+                subscribeUrl.append("&token=").append(URLEncoder.encode(stream.get("token").getAsString(), "UTF-8"));
+            }
+            String trackIdField = null;
+            JsonElement timeInfo = info.get("timeInfo");
+            if (timeInfo != null && timeInfo.isJsonObject() && timeInfo.getAsJsonObject().has("trackIdField")) {
+                trackIdField = timeInfo.getAsJsonObject().get("trackIdField").getAsString();
+            }
+            streamIngestService.subscribe(tableName, new WebSocketClient(URI.create(subscribeUrl.toString())),
+                    trackIdField);
+            Log.d(TAG, "Subscribed to StreamServer " + streamName + ", track id field " + trackIdField);
+            return null;
+        });
     }
 
-    public void addStreamServerLayer(String streamName, String streamUrl) {
-        Log.d(TAG, "addStreamServerLayer is not yet implemented.");
+    private JsonObject fetchJson(String address) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(address).openConnection();
+        connection.setConnectTimeout(15000);
+        connection.setReadTimeout(30000);
+        try {
+            if (connection.getResponseCode() != 200) {
+                throw new IOException("Server returned HTTP " + connection.getResponseCode() + " for " + address);
+            }
+            try (InputStream in = new BufferedInputStream(connection.getInputStream())) {
+                return JsonParser.parseString(new String(readAllBytes(in), "UTF-8")).getAsJsonObject();
+            }
+        } finally {
+            connection.disconnect();
+        }
     }
 
     public String getKmlForLayer(String layerName) {
@@ -0,0 +1,401 @@
+package com.atak.plugins.mlsnapshots.services;
+
+import com.atak.coremap.log.Log;
+import com.atak.plugins.mlsnapshots.PluginExecutor;
+import org.geotools.data.DataStore;
+import org.geotools.data.Query;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Streams the layers of opened data stores, or features pushed through a {@link LayerStream}, into the
+ * GeoPackage.
+ * <p>
+ * Each layer is read by its own COMPUTE job, so layers and files are read in parallel up to the core
+ * count. Readers push fixed-size chunks into a bounded queue and block when the writer falls behind,
+ * which caps memory use regardless of the file size. SQLite allows only one writer, so a single DISK
+ * job drains the queue. It is started on demand and keeps one {@link GeoPackageBulkWriter} open per
+ * table until every layer feeding that table has ended.
+ */
+public class FeatureIngestPipeline {
+
+    private static final String TAG = "FeatureIngestPipeline";
+
+    private static final int CHUNK_SIZE = 5000;
+    private static final long WRITER_IDLE_MS = 2000;
+
+    private final GeoPackageService geoPackageService;
+    private final BlockingQueue<Chunk> queue =
+            new ArrayBlockingQueue<>(Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+    // Only touched by the writer job; at most one runs at a time
+    private final Map<String, Table> tables = new HashMap<>();
+    private boolean writerRunning;
+
+    public FeatureIngestPipeline(GeoPackageService geoPackageService) {
+        this.geoPackageService = geoPackageService;
+    }
+
+    /**
+     * Starts importing every layer of the data store. The store is disposed once all layers are read.
+     */
+    public void submit(String source, DataStore dataStore, ImportEngine.Listener listener) throws IOException {
+        String[] typeNames = dataStore.getTypeNames();
+        final Ingest ingest = new Ingest(source, dataStore, typeNames.length, listener);
+        if (typeNames.length == 0) {
+            ingest.readerFinished();
+            listener.onFinished(source, true, 0, 0);
+            return;
+        }
+        for (String typeName : typeNames) {
+            final Layer layer = new Layer(ingest, typeName);
+            try {
+                PluginExecutor.getInstance().submit("ingest-" + source + "/" + typeName,
+                        PluginExecutor.JobType.COMPUTE, context -> {
+                            readLayer(layer, context);
+                            return null;
+                        });
+            } catch (RejectedExecutionException e) {
+                Log.e(TAG, "Could not queue layer " + typeName + " of " + source, e);
+                ingest.failed = true;
+                ingest.readerFinished();
+                endLayer(layer);
+            }
+        }
+    }
+
+    /**
+     * Opens a layer whose features are produced by the caller rather than read from a data store, such as
+     * features decoded from downloaded content. Chunks may be written from several threads; the layer
+     * ends, and the listener is told, once the stream is closed and everything written has been stored.
+     */
+    public LayerStream openStream(String source, String typeName, SimpleFeatureType schema,
+                                  ImportEngine.Listener listener) {
+        Layer layer = new Layer(new Ingest(source, null, 1, listener), typeName);
+        layer.schema = schema;
+        return new LayerStream(layer);
+    }
+
+    /** The producer side of a layer opened with {@link #openStream}. */
+    public final class LayerStream {
+        private final Layer layer;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private LayerStream(Layer layer) {
+            this.layer = layer;
+        }
+
+        /**
+         * Queues a chunk for writing, blocking while the writer is behind. The list must not be changed
+         * afterwards.
+         */
+        public void write(List<SimpleFeature> features) throws InterruptedException {
+            if (features.isEmpty() || closed.get()) return;
+            enqueue(new Chunk(layer, features, false));
+        }
+
+        /**
+         * Marks the import as failed. Chunks already queued are still written.
+         */
+        public void fail() {
+            layer.ingest.failed = true;
+        }
+
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                layer.ingest.readerFinished();
+                endLayer(layer);
+            }
+        }
+    }
+
+    private void readLayer(Layer layer, PluginExecutor.JobContext context) throws InterruptedException {
+        Ingest ingest = layer.ingest;
+        try {
+            SimpleFeatureSource featureSource = ingest.dataStore.getFeatureSource(layer.typeName);
+            layer.schema = featureSource.getSchema();
+            // Cheap for formats that store a count (e.g. shapefile), otherwise -1
+            int total = featureSource.getCount(Query.ALL);
+            long read = 0;
+            try (SimpleFeatureIterator iterator = featureSource.getFeatures().features()) {
+                List<SimpleFeature> chunk = new ArrayList<>(CHUNK_SIZE);
+                while (iterator.hasNext() && !layer.failed) {
+                    chunk.add(iterator.next());
+                    if (chunk.size() == CHUNK_SIZE) {
+                        context.throwIfCancelled();
+                        enqueue(new Chunk(layer, chunk, false));
+                        read += chunk.size();
+                        context.setProgress(total > 0 ? (int) (read * 100 / total) : -1, read + " features read");
+                        chunk = new ArrayList<>(CHUNK_SIZE);
+                    }
+                }
+                if (!chunk.isEmpty()) {
+                    enqueue(new Chunk(layer, chunk, false));
+                }
+            }
+        } catch (CancellationException | InterruptedException e) {
+            ingest.failed = true;
+            throw e;
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Failed to read layer " + layer.typeName + " of " + ingest.source, e);
+            ingest.failed = true;
+        } finally {
+            ingest.readerFinished();
+            endLayer(layer);
+        }
+    }
+
+    private void enqueue(Chunk chunk) throws InterruptedException {
+        queue.put(chunk);
+        ensureWriter();
+    }
+
+    /**
+     * Tells the writer that the layer has no more chunks, so it can finish the table and, with the last layer,
+     * report the import. Blocks until the marker is queued, even if interrupted, since without it the import
+     * never finishes. A writer that was cancelled meanwhile is restarted; if it cannot be, for instance because
+     * the executor has shut down, the layer is failed here instead.
+     */
+    private void endLayer(Layer layer) {
+        Chunk end = new Chunk(layer, null, true);
+        boolean queued = false;
+        boolean interrupted = false;
+        try {
+            while (!queued) {
+                try {
+                    ensureWriter();
+                    queued = queue.offer(end, 1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            ensureWriter();
+        } catch (RejectedExecutionException e) {
+            if (queued && !queue.remove(end)) {
+                // A writer took it before stopping
+                return;
+            }
+            Log.w(TAG, "Could not start writer, failing layer " + layer.typeName + " of " + layer.ingest.source
+                    + ": " + e.getMessage());
+            layer.failed = true;
+            layer.ingest.failed = true;
+            layer.ingest.layerWritten();
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void ensureWriter() {
+        synchronized (this) {
+            if (writerRunning) return;
+            writerRunning = true;
+        }
+        try {
+            PluginExecutor.getInstance().submit("ingest-writer", PluginExecutor.JobType.DISK,
+                    PluginExecutor.Priority.HIGH, context -> {
+                        drain();
+                        return null;
+                    });
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                writerRunning = false;
+            }
+            throw e;
+        }
+    }
+
+    private void drain() throws InterruptedException {
+        boolean idle = false;
+        try {
+            while (true) {
+                Chunk chunk = queue.poll(WRITER_IDLE_MS, TimeUnit.MILLISECONDS);
+                if (chunk != null) {
+                    write(chunk);
+                    continue;
+                }
+                synchronized (this) {
+                    if (queue.isEmpty() && tables.isEmpty()) {
+                        writerRunning = false;
+                        idle = true;
+                        return;
+                    }
+                }
+            }
+        } finally {
+            if (!idle) {
+                // Cancelled: keep what was committed and rebuild the indexes
+                for (Table table : tables.values()) {
+                    try {
+                        table.writer.close();
+                    } catch (IOException e) {
+                        Log.e(TAG, "Failed to close table " + table.writer.getTableName(), e);
+                    }
+                    for (Layer layer : table.layers) {
+                        layer.ingest.failed = true;
+                    }
+                }
+                tables.clear();
+                synchronized (this) {
+                    writerRunning = false;
+                }
+            }
+        }
+    }
+
+    private void write(Chunk chunk) {
+        Layer layer = chunk.layer;
+        Ingest ingest = layer.ingest;
+        Table table = tables.get(layer.typeName);
+
+        if (chunk.features != null && !layer.failed) {
+            try {
+                if (table == null) {
+                    table = new Table(geoPackageService.openBulkWriter(layer.typeName, layer.schema,
+                            "Imported from " + ingest.source), layer.schema);
+                    tables.put(layer.typeName, table);
+                } else if (!sameColumns(table.schema, layer.schema)) {
+                    // The writer's insert is built from the first layer's columns
+                    throw new IOException("Schema differs from the other layers being written to " + layer.typeName);
+                }
+                table.layers.add(layer);
+                table.writer.writeBatch(chunk.features);
+                ingest.features.addAndGet(chunk.features.size());
+                ingest.reportProgress();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to write layer " + layer.typeName + " of " + ingest.source, e);
+                layer.failed = true;
+                ingest.failed = true;
+            }
+        }
+
+        if (chunk.end) {
+            if (table != null && table.layers.remove(layer) && table.layers.isEmpty()) {
+                tables.remove(layer.typeName);
+                try {
+                    table.writer.finish();
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to finish table " + layer.typeName, e);
+                    ingest.failed = true;
+                }
+            }
+            ingest.layerWritten();
+        }
+    }
+
+    /**
+     * @return whether both schemas have the same attributes, by name and type, in the same order
+     */
+    private static boolean sameColumns(SimpleFeatureType a, SimpleFeatureType b) {
+        List<AttributeDescriptor> left = a.getAttributeDescriptors();
+        List<AttributeDescriptor> right = b.getAttributeDescriptors();
+        if (left.size() != right.size()) return false;
+        for (int i = 0; i < left.size(); i++) {
+            AttributeDescriptor x = left.get(i);
+            AttributeDescriptor y = right.get(i);
+            if (!x.getLocalName().equals(y.getLocalName())
+                    || !x.getType().getBinding().equals(y.getType().getBinding())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** One source file being imported. */
+    private static final class Ingest {
+        final String source;
+        /** Null for a caller-fed stream */
+        final DataStore dataStore;
+        final int layerCount;
+        final ImportEngine.Listener listener;
+        final long start = System.currentTimeMillis();
+        final AtomicInteger readersLeft;
+        final AtomicInteger layersLeft;
+        final AtomicLong features = new AtomicLong();
+        volatile boolean failed;
+
+        Ingest(String source, DataStore dataStore, int layerCount, ImportEngine.Listener listener) {
+            this.source = source;
+            this.dataStore = dataStore;
+            this.layerCount = layerCount;
+            this.listener = listener;
+            this.readersLeft = new AtomicInteger(layerCount);
+            this.layersLeft = new AtomicInteger(layerCount);
+        }
+
+        void readerFinished() {
+            if (readersLeft.decrementAndGet() <= 0 && dataStore != null) {
+                dataStore.dispose();
+            }
+        }
+
+        void reportProgress() {
+            long elapsed = Math.max(1, System.currentTimeMillis() - start);
+            long count = features.get();
+            listener.onProgress(source, layerCount - layersLeft.get(), layerCount, count, count * 1000.0 / elapsed);
+        }
+
+        void layerWritten() {
+            if (layersLeft.decrementAndGet() == 0) {
+                listener.onFinished(source, !failed, features.get(), System.currentTimeMillis() - start);
+            } else {
+                reportProgress();
+            }
+        }
+    }
+
+    private static final class Layer {
+        final Ingest ingest;
+        final String typeName;
+        volatile SimpleFeatureType schema;
+        volatile boolean failed;
+
+        Layer(Ingest ingest, String typeName) {
+            this.ingest = ingest;
+            this.typeName = typeName;
+        }
+    }
+
+    private static final class Chunk {
+        final Layer layer;
+        final List<SimpleFeature> features;
+        final boolean end;
+
+        Chunk(Layer layer, List<SimpleFeature> features, boolean end) {
+            this.layer = layer;
+            this.features = features;
+            this.end = end;
+        }
+    }
+
+    /** An open bulk writer, the schema it writes and the layers still feeding it. */
+    private static final class Table {
+        final GeoPackageBulkWriter writer;
+        final SimpleFeatureType schema;
+        final Set<Layer> layers = new HashSet<>();
+
+        Table(GeoPackageBulkWriter writer, SimpleFeatureType schema) {
+            this.writer = writer;
+            this.schema = schema;
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package com.atak.plugins.mlsnapshots.services;
+
+import com.atak.plugins.mlsnapshots.PluginExecutor;
+import com.atakmap.coremap.log.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Refreshes polled feeds as {@link PluginExecutor.JobType#FEED} jobs. The lane's limit caps how many feeds
+ * refresh at once.
+ * <p>
+ * A feed's next run is only scheduled once its current run has finished, so refreshes of one feed never overlap.
+ * Runs are spread out with jitter. A feed that takes more than half its interval to refresh is slowed to twice
+ * its average duration, and a failing feed backs off exponentially. {@link #getStatus()} reports each feed's
+ * health.
+ */
+public class FeedScheduler {
+
+    private static final String TAG = "FeedScheduler";
+
+    static final long DEFAULT_INTERVAL_S = 30;
+    // Each delay is the interval plus or minus this share of it
+    private static final double JITTER = 0.1;
+    // First runs are spread over this window, or the interval if shorter
+    private static final long FIRST_RUN_WINDOW_MS = 5000;
+    private static final long MAX_BACKOFF_MS = TimeUnit.MINUTES.toMillis(30);
+    // Weight of the latest run in the average duration
+    private static final double DURATION_SMOOTHING = 0.3;
+
+    public interface Refresh {
+        void run(Run run) throws Exception;
+    }
+
+    /**
+     * Passed to a refresh so it can report what it transferred and notice cancellation.
+     */
+    public static final class Run {
+        private final PluginExecutor.JobContext context;
+        private long rows = -1;
+        private long bytes;
+        private boolean unchanged;
+
+        Run(PluginExecutor.JobContext context) {
+            this.context = context;
+        }
+
+        public void throwIfCancelled() {
+            context.throwIfCancelled();
+        }
+
+        public boolean isCancelled() {
+            return context.isCancelled();
+        }
+
+        public void setRows(long rows) {
+            this.rows = rows;
+        }
+
+        public void addBytes(long bytes) {
+            this.bytes += bytes;
+        }
+
+        /**
+         * Marks the run as having found nothing new, e.g. a 304 or an unchanged feed timestamp.
+         */
+        public void setUnchanged() {
+            this.unchanged = true;
+        }
+    }
+
+    public static final class Status {
+        public final String name;
+        public final long intervalMs;
+        public final boolean running;
+        public final long runs;
+        public final long failures;
+        public final int consecutiveFailures;
+        public final long lastRunAt;
+        public final long nextRunAt;
+        public final long lastDurationMs;
+        /** Rows written by the last successful run, or -1 if the refresh did not say. */
+        public final long lastRows;
+        public final long lastBytes;
+        public final long totalBytes;
+        public final boolean lastUnchanged;
+        public final String lastError;
+
+        Status(Feed feed) {
+            this.name = feed.name;
+            this.intervalMs = feed.intervalMs;
+            this.running = feed.running;
+            this.runs = feed.runs;
+            this.failures = feed.failures;
+            this.consecutiveFailures = feed.consecutiveFailures;
+            this.lastRunAt = feed.lastRunAt;
+            this.nextRunAt = feed.nextRunAt;
+            this.lastDurationMs = feed.lastDurationMs;
+            this.lastRows = feed.lastRows;
+            this.lastBytes = feed.lastBytes;
+            this.totalBytes = feed.totalBytes;
+            this.lastUnchanged = feed.lastUnchanged;
+            this.lastError = feed.lastError;
+        }
+    }
+
+    private final Map<String, Feed> feeds = new ConcurrentHashMap<>();
+    private final Random random = new Random();
+    // Only times runs; the refreshes themselves run on the FEED lane
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "feed-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Refreshes {@code refresh} every {@code interval}, replacing any feed of the same name. The first run starts
+     * within a few seconds.
+     */
+    public void schedule(String name, long interval, TimeUnit unit, Refresh refresh) {
+        cancel(name);
+        Feed feed = new Feed(name, Math.max(1000, unit.toMillis(interval)), refresh);
+        feeds.put(name, feed);
+        feed.scheduleNext((long) (random.nextDouble() * Math.min(feed.intervalMs, FIRST_RUN_WINDOW_MS)));
+    }
+
+    /**
+     * @param interval seconds, or a cron expression; see {@link #parseIntervalSeconds(String)}
+     */
+    public void schedule(String name, String interval, Refresh refresh) {
+        schedule(name, parseIntervalSeconds(interval), TimeUnit.SECONDS, refresh);
+    }
+
+    /**
+     * Stops refreshing a feed, cancelling its run if one is in progress.
+     */
+    public void cancel(String name) {
+        Feed feed = feeds.remove(name);
+        if (feed != null) feed.cancel();
+    }
+
+    /**
+     * @return a snapshot of every feed's health, by name
+     */
+    public List<Status> getStatus() {
+        List<Status> status = new ArrayList<>();
+        for (Feed feed : feeds.values()) {
+            synchronized (feed) {
+                status.add(new Status(feed));
+            }
+        }
+        Collections.sort(status, (a, b) -> a.name.compareTo(b.name));
+        return status;
+    }
+
+    public void close() {
+        for (Feed feed : feeds.values()) {
+            feed.cancel();
+        }
+        feeds.clear();
+        timer.shutdownNow();
+    }
+
+    /**
+     * Reads a refresh interval given either as seconds or as a cron expression that repeats every N seconds
+     * ({@code *}{@code /N} in the seconds field of a six-field expression) or minutes (five fields, or a six-field
+     * expression with a fixed second). Anything else falls back to {@link #DEFAULT_INTERVAL_S}.
+     */
+    public static long parseIntervalSeconds(String interval) {
+        String trimmed = interval != null ? interval.trim() : "";
+        try {
+            if (trimmed.matches("\\d+")) {
+                return Math.max(1, Long.parseLong(trimmed));
+            }
+            String[] fields = trimmed.split("\\s+");
+            if (fields.length == 6 && fields[0].startsWith("*/")) {
+                return Math.max(1, Long.parseLong(fields[0].substring(2)));
+            }
+            String minutes = fields.length == 5 ? fields[0] : fields.length == 6 ? fields[1] : "";
+            if (minutes.startsWith("*/")) {
+                return 60 * Math.max(1, Long.parseLong(minutes.substring(2)));
+            }
+        } catch (NumberFormatException e) {
+            // Falls through to the default
+        }
+        Log.w(TAG, "Unsupported interval '" + interval + "', refreshing every " + DEFAULT_INTERVAL_S + " s");
+        return DEFAULT_INTERVAL_S;
+    }
+
+    private final class Feed {
+        final String name;
+        final long intervalMs;
+        final Refresh refresh;
+        // Guarded by this
+        private ScheduledFuture<?> next;
+        private PluginExecutor.JobHandle<?> job;
+        private boolean cancelled;
+        private double averageDurationMs;
+        volatile boolean running;
+        long runs;
+        long failures;
+        int consecutiveFailures;
+        long lastRunAt;
+        long nextRunAt;
+        long lastDurationMs;
+        long lastRows = -1;
+        long lastBytes;
+        long totalBytes;
+        boolean lastUnchanged;
+        String lastError;
+
+        Feed(String name, long intervalMs, Refresh refresh) {
+            this.name = name;
+            this.intervalMs = intervalMs;
+            this.refresh = refresh;
+        }
+
+        synchronized void scheduleNext(long delayMs) {
+            if (cancelled) return;
+            nextRunAt = System.currentTimeMillis() + delayMs;
+            try {
+                next = timer.schedule(this::due, delayMs, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // The scheduler is closed
+                cancelled = true;
+            }
+        }
+
+        private synchronized void due() {
+            if (cancelled) return;
+            try {
+                job = PluginExecutor.getInstance().submit("feed-" + name, PluginExecutor.JobType.FEED,
+                        context -> {
+                            execute(context);
+                            return null;
+                        });
+            } catch (RejectedExecutionException e) {
+                Log.w(TAG, "Could not queue refresh of " + name + ": " + e.getMessage());
+                scheduleNext(nextDelay());
+            }
+        }
+
+        private void execute(PluginExecutor.JobContext context) throws Exception {
+            Run run = new Run(context);
+            long start = System.nanoTime();
+            synchronized (this) {
+                running = true;
+                lastRunAt = System.currentTimeMillis();
+            }
+            Exception error = null;
+            try {
+                refresh.run(run);
+            } catch (Exception e) {
+                error = e;
+                throw e;
+            } finally {
+                long duration = (System.nanoTime() - start) / 1000000;
+                synchronized (this) {
+                    running = false;
+                    job = null;
+                    if (!(error instanceof CancellationException)) {
+                        record(run, error, duration);
+                    }
+                }
+                scheduleNext(nextDelay());
+            }
+        }
+
+        private void record(Run run, Exception error, long duration) {
+            runs++;
+            lastDurationMs = duration;
+            averageDurationMs = runs == 1 ? duration
+                    : averageDurationMs + DURATION_SMOOTHING * (duration - averageDurationMs);
+            if (error == null) {
+                consecutiveFailures = 0;
+                lastRows = run.rows;
+                lastBytes = run.bytes;
+                totalBytes += run.bytes;
+                lastUnchanged = run.unchanged;
+                lastError = null;
+            } else {
+                failures++;
+                consecutiveFailures++;
+                lastError = error.getMessage() != null ? error.getMessage() : error.getClass().getSimpleName();
+                Log.w(TAG, "Refresh of " + name + " failed (" + consecutiveFailures + " in a row): " + lastError);
+            }
+        }
+
+        private synchronized long nextDelay() {
+            long delay = intervalMs;
+            // Keep a slow feed from spending most of its time refreshing
+            if (averageDurationMs * 2 > delay) {
+                delay = (long) (averageDurationMs * 2);
+            }
+            if (consecutiveFailures > 0) {
+                delay = Math.max(delay, Math.min(MAX_BACKOFF_MS, delay << Math.min(consecutiveFailures, 10)));
+            }
+            return (long) (delay * (1 + JITTER * (2 * random.nextDouble() - 1)));
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            if (next != null) next.cancel(false);
+            if (job != null) job.cancel(true);
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package com.atak.plugins.mlsnapshots.services;
+
+import com.atak.coremap.log.Log;
+import org.geotools.geopkg.FeatureEntry;
+import org.geotools.geopkg.GeoPackage;
+import org.geotools.geopkg.geom.GeoPkgGeomWriter;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Appends features to one GeoPackage feature table in large transactions.
+ * <p>
+ * The rtree spatial index is dropped when the writer opens and rebuilt in one pass when it is finished
+ * or closed, so the load does not pay for a trigger-driven index update on every row. The layer bounds are
+ * accumulated while streaming instead of being computed with a separate pass over the source.
+ * While the writer is open its connection runs with {@code synchronous=OFF} and the database is in WAL
+ * mode, so a crash can lose the batch in progress but cannot corrupt the file. WAL mode is stored in the file,
+ * so the journal mode the file had before is restored when the last writer on it closes, leaving a GeoPackage
+ * that other tools can open read-only or copy as a single file.
+ * <p>
+ * Obtain instances from {@link GeoPackageService#openBulkWriter}. Not thread safe.
+ */
+public class GeoPackageBulkWriter implements Closeable {
+
+    private static final String TAG = "GeoPackageBulkWriter";
+
+    public static final int DEFAULT_BATCH_SIZE = 50000;
+
+    // Per GeoPackage: open writers, and the journal mode to restore after the last one
+    private static final Map<GeoPackage, Integer> openWriters = new IdentityHashMap<>();
+    private static final Map<GeoPackage, String> previousJournalModes = new IdentityHashMap<>();
+
+    private final GeoPackage geoPackage;
+    private final FeatureEntry entry;
+    private final String geometryColumn;
+    private final List<String> attributes = new ArrayList<>();
+    private final int srid;
+    private final int batchSize;
+    private final Connection conn;
+    private final PreparedStatement insert;
+    private final GeoPkgGeomWriter geomWriter = new GeoPkgGeomWriter();
+    private final Envelope bounds = new Envelope();
+    private final SimpleDateFormat timestampFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+    private int pending;
+    private long written;
+    private boolean finished;
+    private boolean closed;
+
+    GeoPackageBulkWriter(GeoPackage geoPackage, FeatureEntry entry, SimpleFeatureType schema, int batchSize) throws IOException {
+        this.geoPackage = geoPackage;
+        this.entry = entry;
+        this.batchSize = batchSize;
+        this.srid = entry.getSrid() != null ? entry.getSrid() : 0;
+        timestampFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        GeometryDescriptor geometry = schema.getGeometryDescriptor();
+        this.geometryColumn = entry.getGeometryColumn() != null ? entry.getGeometryColumn()
+                : geometry != null ? geometry.getLocalName() : null;
+        for (AttributeDescriptor descriptor : schema.getAttributeDescriptors()) {
+            if (!(descriptor instanceof GeometryDescriptor)) {
+                attributes.add(descriptor.getLocalName());
+            }
+        }
+
+        try {
+            conn = geoPackage.getDataSource().getConnection();
+        } catch (SQLException e) {
+            throw new IOException("Failed to open bulk writer for " + entry.getTableName(), e);
+        }
+        boolean wal = false;
+        try {
+            try (Statement stmt = conn.createStatement()) {
+                enterWal(geoPackage, stmt);
+                wal = true;
+                stmt.execute("PRAGMA synchronous=OFF");
+                // GeoPackageService.mergeLayer may hold the write lock for a whole layer
+                stmt.execute("PRAGMA busy_timeout=60000");
+            }
+            if (geometryColumn != null) {
+                dropSpatialIndex(conn, entry.getTableName(), geometryColumn);
+            }
+            conn.setAutoCommit(false);
+            insert = conn.prepareStatement(insertSql());
+        } catch (SQLException e) {
+            try {
+                if (wal) {
+                    try (Statement stmt = conn.createStatement()) {
+                        leaveWal(geoPackage, stmt);
+                    }
+                }
+                conn.close();
+            } catch (SQLException ignored) {
+            }
+            throw new IOException("Failed to open bulk writer for " + entry.getTableName(), e);
+        }
+    }
+
+    public String getTableName() {
+        return entry.getTableName();
+    }
+
+    public long getWrittenCount() {
+        return written;
+    }
+
+    public void write(SimpleFeature feature) throws IOException {
+        try {
+            int index = 1;
+            if (geometryColumn != null) {
+                Geometry geometry = (Geometry) feature.getDefaultGeometry();
+                if (geometry != null) {
+                    geometry.setSRID(srid);
+                    bounds.expandToInclude(geometry.getEnvelopeInternal());
+                    insert.setBytes(index++, geomWriter.write(geometry));
+                } else {
+                    insert.setNull(index++, java.sql.Types.BLOB);
+                }
+            }
+            for (String attribute : attributes) {
+                insert.setObject(index++, toSqlite(feature.getAttribute(attribute)));
+            }
+            insert.addBatch();
+            if (++pending >= batchSize) {
+                commit();
+            }
+        } catch (SQLException e) {
+            throw new IOException("Failed to write feature to " + entry.getTableName(), e);
+        }
+    }
+
+    /**
+     * Writes the features, committing each time a full batch has accumulated.
+     */
+    public void writeBatch(List<SimpleFeature> features) throws IOException {
+        for (SimpleFeature feature : features) {
+            write(feature);
+        }
+    }
+
+    /**
+     * Commits the remaining rows, updates the layer bounds and builds the spatial index.
+     *
+     * @return the number of features written
+     */
+    public long finish() throws IOException {
+        try {
+            commit();
+            updateContents();
+            conn.commit();
+        } catch (SQLException e) {
+            throw new IOException("Failed to finish bulk write to " + entry.getTableName(), e);
+        }
+        finished = true;
+        close();
+        return written;
+    }
+
+    /**
+     * Releases the connection. If {@link #finish()} was not called, the uncommitted batch is discarded and
+     * the spatial index is rebuilt over the rows already committed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            if (!finished) {
+                conn.rollback();
+            }
+            insert.close();
+            conn.setAutoCommit(true);
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("PRAGMA synchronous=NORMAL");
+                leaveWal(geoPackage, stmt);
+            }
+            conn.close();
+        } catch (SQLException e) {
+            Log.e(TAG, "Failed to close bulk writer for " + entry.getTableName(), e);
+        }
+        if (geometryColumn != null && !geoPackage.hasSpatialIndex(entry)) {
+            long start = System.currentTimeMillis();
+            geoPackage.createSpatialIndex(entry);
+            Log.d(TAG, "Built spatial index for " + entry.getTableName() + " in " + (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+
+    /**
+     * Switches the database to WAL for the first writer, remembering the mode it was in.
+     */
+    private static void enterWal(GeoPackage geoPackage, Statement stmt) throws SQLException {
+        synchronized (openWriters) {
+            Integer open = openWriters.get(geoPackage);
+            if (open == null) {
+                try (ResultSet rs = stmt.executeQuery("PRAGMA journal_mode")) {
+                    previousJournalModes.put(geoPackage, rs.next() ? rs.getString(1) : null);
+                }
+                stmt.execute("PRAGMA journal_mode=WAL");
+            }
+            openWriters.put(geoPackage, open == null ? 1 : open + 1);
+        }
+    }
+
+    /**
+     * Restores the journal mode once the last writer closes. The switch checkpoints the WAL into the file; if
+     * another connection still has the database open it fails, and the file stays in WAL mode.
+     */
+    private static void leaveWal(GeoPackage geoPackage, Statement stmt) {
+        synchronized (openWriters) {
+            Integer open = openWriters.get(geoPackage);
+            if (open == null) return;
+            if (open > 1) {
+                openWriters.put(geoPackage, open - 1);
+                return;
+            }
+            openWriters.remove(geoPackage);
+            String previous = previousJournalModes.remove(geoPackage);
+            if (previous == null || previous.equalsIgnoreCase("wal")) return;
+            try {
+                stmt.execute("PRAGMA journal_mode=" + previous);
+            } catch (SQLException e) {
+                Log.w(TAG, "Could not restore journal_mode=" + previous + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void commit() throws SQLException {
+        if (pending == 0) return;
+        insert.executeBatch();
+        conn.commit();
+        written += pending;
+        pending = 0;
+    }
+
+    private String insertSql() {
+        StringBuilder columns = new StringBuilder();
+        StringBuilder values = new StringBuilder();
+        if (geometryColumn != null) {
+            columns.append(quote(geometryColumn));
+            values.append('?');
+        }
+        for (String attribute : attributes) {
+            if (columns.length() > 0) {
+                columns.append(", ");
+                values.append(", ");
+            }
+            columns.append(quote(attribute));
+            values.append('?');
+        }
+        return "INSERT INTO " + quote(entry.getTableName()) + " (" + columns + ") VALUES (" + values + ")";
+    }
+
+    /**
+     * Drops the rtree table of a feature table, its triggers and its extension row.
+     * {@link GeoPackage#createSpatialIndex} recreates and repopulates them.
+     */
+    static void dropSpatialIndex(Connection conn, String table, String geometryColumn) throws SQLException {
+        String rtree = "rtree_" + table + "_" + geometryColumn;
+        List<String> triggers = new ArrayList<>();
+        try (PreparedStatement ps = conn.prepareStatement(
+                "SELECT name FROM sqlite_master WHERE type = 'trigger' AND tbl_name = ? AND name LIKE ?")) {
+            ps.setString(1, table);
+            ps.setString(2, rtree + "_%");
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    triggers.add(rs.getString(1));
+                }
+            }
+        }
+        try (Statement stmt = conn.createStatement()) {
+            for (String trigger : triggers) {
+                stmt.execute("DROP TRIGGER IF EXISTS " + quote(trigger));
+            }
+            stmt.execute("DROP TABLE IF EXISTS " + quote(rtree));
+        }
+        try (PreparedStatement ps = conn.prepareStatement(
+                "DELETE FROM gpkg_extensions WHERE table_name = ? AND column_name = ? AND extension_name = 'gpkg_rtree_index'")) {
+            ps.setString(1, table);
+            ps.setString(2, geometryColumn);
+            ps.executeUpdate();
+        }
+    }
+
+    /**
+     * Widens the layer bounds in gpkg_contents by what was written.
+     */
+    private void updateContents() throws SQLException {
+        if (bounds.isNull()) return;
+        try (PreparedStatement ps = conn.prepareStatement(
+                "UPDATE gpkg_contents SET " +
+                "min_x = min(coalesce(min_x, ?1), ?1), min_y = min(coalesce(min_y, ?2), ?2), " +
+                "max_x = max(coalesce(max_x, ?3), ?3), max_y = max(coalesce(max_y, ?4), ?4), " +
+                "last_change = strftime('%Y-%m-%dT%H:%M:%fZ', 'now') WHERE table_name = ?5")) {
+            ps.setDouble(1, bounds.getMinX());
+            ps.setDouble(2, bounds.getMinY());
+            ps.setDouble(3, bounds.getMaxX());
+            ps.setDouble(4, bounds.getMaxY());
+            ps.setString(5, entry.getTableName());
+            ps.executeUpdate();
+        }
+    }
+
+    /**
+     * Dates are stored as ISO-8601 text, as GeoPackage requires.
+     */
+    private Object toSqlite(Object value) {
+        if (value instanceof java.sql.Date) {
+            return value.toString();
+        }
+        if (value instanceof Date) {
+            return timestampFormat.format((Date) value);
+        }
+        return value;
+    }
+
+    static String quote(String identifier) {
+        return "\"" + identifier.replace("\"", "\"\"") + "\"";
+    }
+}
@@ -1,67 +1,274 @@
-
 package com.atak.plugins.mlsnapshots.services;
 
 import android.content.Context;
 import com.atak.coremap.log.Log;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.data.simple.SimpleFeatureSource;
-import org.geotools.data.simple.SimpleFeatureStore;
-import org.geotools.feature.FeatureCollection;
-import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.geotools.geopkg.GeoPackage;
 import org.geotools.geopkg.FeatureEntry;
-import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import java.io.File;
 import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 public class GeoPackageService {
 
     public static final String TAG = "GeoPackageService";
     private final File geoPackageFile;
+    private GeoPackage geoPackage;
 
     public GeoPackageService(Context context, String dbName) {
         File internalStorage = context.getFilesDir();
         this.geoPackageFile = new File(internalStorage, dbName);
     }
 
-    public void createOrUpdateGeoPackage(String tableName, SimpleFeatureSource featureSource) throws IOException {
-        GeoPackage geoPackage = new GeoPackage(geoPackageFile);
+    /**
+     * @return the GeoPackage, opened on first use and kept open until {@link #close()}
+     */
+    public synchronized GeoPackage getGeoPackage() throws IOException {
+        if (geoPackage == null) {
+            GeoPackage opened = new GeoPackage(geoPackageFile);
+            opened.init();
+            geoPackage = opened;
+        }
+        return geoPackage;
+    }
+
+    /**
+     * Appends the features to {@code tableName}, creating the table if needed. Writers are serialized
+     * because imports of different files run concurrently.
+     */
+    public synchronized void createOrUpdateGeoPackage(String tableName, SimpleFeatureSource featureSource) throws IOException {
+        long start = System.currentTimeMillis();
+        long count = writeAll(tableName, featureSource.getSchema(),
+                "Imported from " + featureSource.getName().getLocalPart(), featureSource.getFeatures());
+        Log.d(TAG, "Successfully wrote " + count + " features to table " + tableName
+                + " in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Appends the features to {@code tableName}, creating the table if needed.
+     *
+     * @return true if all features were written
+     */
+    public synchronized boolean addFeatures(String tableName, SimpleFeatureCollection features) {
         try {
-            SimpleFeatureType schema = featureSource.getSchema();
-            FeatureCollection<SimpleFeatureType, SimpleFeature> features = featureSource.getFeatures();
-
-            // Check if the table exists
-            boolean tableExists = false;
-            for (FeatureEntry entry : geoPackage.features()) {
-                if (entry.getTableName().equalsIgnoreCase(tableName)) {
-                    tableExists = true;
-                    break;
+            writeAll(tableName, features.getSchema(), tableName, features);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write features to table " + tableName, e);
+            return false;
+        }
+    }
+
+    /**
+     * Opens a bulk writer on {@code tableName}, creating the table from {@code schema} if it does not exist.
+     * The caller must {@link GeoPackageBulkWriter#finish()} or close it, and should not interleave it with
+     * other writes to the same GeoPackage.
+     */
+    public synchronized GeoPackageBulkWriter openBulkWriter(String tableName, SimpleFeatureType schema, String description)
+            throws IOException {
+        GeoPackage gpkg = getGeoPackage();
+        FeatureEntry entry = gpkg.feature(tableName);
+        if (entry == null) {
+            entry = new FeatureEntry();
+            entry.setTableName(tableName);
+            entry.setIdentifier(tableName);
+            entry.setDescription(description);
+            // Bounds are filled in by the bulk writer as it streams
+            gpkg.create(entry, schema);
+        }
+        return new GeoPackageBulkWriter(gpkg, entry, schema, GeoPackageBulkWriter.DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Appends the feature table {@code table} of another GeoPackage, such as one written by GDAL, to this one.
+     * The table is created with the source definition if it does not exist yet; otherwise columns are matched
+     * by name and the geometry column by role. The rows are copied inside SQLite in one transaction and the
+     * spatial index is rebuilt afterwards.
+     *
+     * @return the number of features copied
+     */
+    public synchronized long mergeLayer(File source, String table) throws IOException {
+        GeoPackage gpkg = getGeoPackage();
+        FeatureEntry existing = gpkg.feature(table);
+        long count;
+        try (Connection conn = gpkg.getDataSource().getConnection();
+             Statement stmt = conn.createStatement()) {
+            // The ingest pipeline may be committing a batch on another connection
+            stmt.execute("PRAGMA busy_timeout=60000");
+            stmt.execute("ATTACH DATABASE '" + source.getAbsolutePath().replace("'", "''") + "' AS staging");
+            try {
+                conn.setAutoCommit(false);
+                String sourceGeometry = geometryColumn(conn, "staging", table);
+                if (existing == null) {
+                    count = createFromStaging(conn, stmt, table);
+                } else {
+                    count = appendFromStaging(conn, stmt, table, sourceGeometry, existing.getGeometryColumn());
                 }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+                stmt.execute("DETACH DATABASE staging");
             }
+        } catch (SQLException e) {
+            throw new IOException("Failed to merge " + source.getName() + " into " + table, e);
+        }
 
-            if (!tableExists) {
-                // Create the feature entry for the new table
-                FeatureEntry newEntry = new FeatureEntry();
-                newEntry.setTableName(tableName);
-                newEntry.setIdentifier(tableName);
-                newEntry.setDescription("Imported from " + featureSource.getName().getLocalPart());
-                newEntry.setBounds(features.getBounds());
+        FeatureEntry entry = gpkg.feature(table);
+        if (entry != null && entry.getGeometryColumn() != null && !gpkg.hasSpatialIndex(entry)) {
+            gpkg.createSpatialIndex(entry);
+        }
+        return count;
+    }
 
-                // Create the table in the GeoPackage
-                geoPackage.create(newEntry, schema);
+    private static long createFromStaging(Connection conn, Statement stmt, String table) throws SQLException {
+        String ddl;
+        try (PreparedStatement ps = conn.prepareStatement(
+                "SELECT sql FROM staging.sqlite_master WHERE type = 'table' AND name = ?")) {
+            ps.setString(1, table);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next()) {
+                    throw new SQLException("Table " + table + " not found in staging GeoPackage");
+                }
+                ddl = rs.getString(1);
             }
+        }
+        // Unqualified, so the table is created in main
+        stmt.execute(ddl);
+        // Columns are listed: GDAL may add extension columns, such as definition_12_063, that main lacks
+        String srsColumns = "srs_name, srs_id, organization, organization_coordsys_id, definition, description";
+        stmt.execute("INSERT OR IGNORE INTO main.gpkg_spatial_ref_sys (" + srsColumns + ") SELECT " + srsColumns
+                + " FROM staging.gpkg_spatial_ref_sys");
+        String[][] metadata = {
+                {"gpkg_contents", "table_name, data_type, identifier, description, last_change, "
+                        + "min_x, min_y, max_x, max_y, srs_id"},
+                {"gpkg_geometry_columns", "table_name, column_name, geometry_type_name, srs_id, z, m"}};
+        for (String[] columns : metadata) {
+            try (PreparedStatement ps = conn.prepareStatement("INSERT INTO main." + columns[0] + " (" + columns[1]
+                    + ") SELECT " + columns[1] + " FROM staging." + columns[0] + " WHERE table_name = ?")) {
+                ps.setString(1, table);
+                ps.executeUpdate();
+            }
+        }
+        String quoted = GeoPackageBulkWriter.quote(table);
+        return stmt.executeUpdate("INSERT INTO main." + quoted + " SELECT * FROM staging." + quoted);
+    }
 
-            // Get a feature store and write the features
-            SimpleFeatureStore featureStore = (SimpleFeatureStore) geoPackage.getFeatureSource(tableName);
-            featureStore.addFeatures(features);
-            Log.d(TAG, "Successfully wrote " + features.size() + " features to table " + tableName);
+    private static long appendFromStaging(Connection conn, Statement stmt, String table,
+                                          String sourceGeometry, String targetGeometry) throws SQLException {
+        if (targetGeometry != null) {
+            GeoPackageBulkWriter.dropSpatialIndex(conn, table, targetGeometry);
+        }
 
-        } finally {
-            geoPackage.close();
+        Map<String, String> sourceColumns = new HashMap<>();
+        for (String column : dataColumns(stmt, "staging", table)) {
+            sourceColumns.put(column.toLowerCase(Locale.US), column);
+        }
+        StringBuilder into = new StringBuilder();
+        StringBuilder select = new StringBuilder();
+        if (sourceGeometry != null && targetGeometry != null) {
+            into.append(GeoPackageBulkWriter.quote(targetGeometry));
+            select.append(GeoPackageBulkWriter.quote(sourceGeometry));
+        }
+        for (String column : dataColumns(stmt, "main", table)) {
+            String match = sourceColumns.get(column.toLowerCase(Locale.US));
+            if (match == null || column.equalsIgnoreCase(targetGeometry) || match.equalsIgnoreCase(sourceGeometry)) {
+                continue;
+            }
+            if (into.length() > 0) {
+                into.append(", ");
+                select.append(", ");
+            }
+            into.append(GeoPackageBulkWriter.quote(column));
+            select.append(GeoPackageBulkWriter.quote(match));
+        }
+        String quoted = GeoPackageBulkWriter.quote(table);
+        long count = stmt.executeUpdate("INSERT INTO main." + quoted + " (" + into + ") SELECT " + select
+                + " FROM staging." + quoted);
+
+        // The staging extent is read first rather than joined with UPDATE ... FROM, which needs SQLite 3.33 and
+        // older Android devices ship with less
+        double[] extent = null;
+        try (PreparedStatement ps = conn.prepareStatement("SELECT min_x, min_y, max_x, max_y " +
+                "FROM staging.gpkg_contents WHERE table_name = ? AND min_x IS NOT NULL")) {
+            ps.setString(1, table);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) extent = new double[] {rs.getDouble(1), rs.getDouble(2), rs.getDouble(3), rs.getDouble(4)};
+            }
+        }
+        if (extent != null) {
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "UPDATE main.gpkg_contents SET " +
+                    "min_x = min(coalesce(min_x, ?2), ?2), min_y = min(coalesce(min_y, ?3), ?3), " +
+                    "max_x = max(coalesce(max_x, ?4), ?4), max_y = max(coalesce(max_y, ?5), ?5), " +
+                    "last_change = strftime('%Y-%m-%dT%H:%M:%fZ', 'now') " +
+                    "WHERE table_name = ?1")) {
+                ps.setString(1, table);
+                for (int i = 0; i < extent.length; i++) ps.setDouble(i + 2, extent[i]);
+                ps.executeUpdate();
+            }
+        }
+        return count;
+    }
+
+    private static String geometryColumn(Connection conn, String schema, String table) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(
+                "SELECT column_name FROM " + schema + ".gpkg_geometry_columns WHERE table_name = ?")) {
+            ps.setString(1, table);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getString(1) : null;
+            }
+        }
+    }
+
+    /**
+     * @return the columns of the table other than its primary key
+     */
+    private static List<String> dataColumns(Statement stmt, String schema, String table) throws SQLException {
+        List<String> columns = new ArrayList<>();
+        try (ResultSet rs = stmt.executeQuery("PRAGMA " + schema + ".table_info(" + GeoPackageBulkWriter.quote(table) + ")")) {
+            while (rs.next()) {
+                if (rs.getInt("pk") == 0) {
+                    columns.add(rs.getString("name"));
+                }
+            }
+        }
+        return columns;
+    }
+
+    private long writeAll(String tableName, SimpleFeatureType schema, String description,
+                          SimpleFeatureCollection features) throws IOException {
+        try (GeoPackageBulkWriter writer = openBulkWriter(tableName, schema, description);
+             SimpleFeatureIterator iterator = features.features()) {
+            while (iterator.hasNext()) {
+                writer.write(iterator.next());
+            }
+            return writer.finish();
         }
     }
-    
+
     public String getGeoPackagePath() {
         return geoPackageFile.getAbsolutePath();
     }
+
+    public synchronized void close() {
+        if (geoPackage != null) {
+            geoPackage.close();
+            geoPackage = null;
+        }
+    }
 }
@@ -0,0 +1,50 @@
+package com.atak.plugins.mlsnapshots.services;
+
+import org.geotools.data.DataStore;
+import org.geotools.data.DataStoreFinder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Imports any format GeoTools has a {@link DataStore} for, streaming features through a
+ * {@link FeatureIngestPipeline}.
+ */
+public class GeoToolsImportEngine implements ImportEngine {
+
+    private final FeatureIngestPipeline pipeline;
+
+    public GeoToolsImportEngine(GeoPackageService geoPackageService) {
+        this.pipeline = new FeatureIngestPipeline(geoPackageService);
+    }
+
+    @Override
+    public String getName() {
+        return "GeoTools";
+    }
+
+    @Override
+    public boolean canImport(File file) {
+        return true;
+    }
+
+    @Override
+    public boolean importFile(File file, Listener listener) throws IOException {
+        Map<String, Object> params = new HashMap<>();
+        params.put("url", file.toURI().toURL());
+
+        DataStore dataStore = DataStoreFinder.getDataStore(params);
+        if (dataStore == null) {
+            return false;
+        }
+        try {
+            pipeline.submit(file.getName(), dataStore, listener);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            dataStore.dispose();
+            throw e;
+        }
+    }
+}
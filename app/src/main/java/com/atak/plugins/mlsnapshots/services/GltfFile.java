@@ -0,0 +1,297 @@
+package com.atak.plugins.mlsnapshots.services;
+
+import android.util.Base64;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * A glTF 2.0 asset, {@code .gltf} or {@code .glb}, opened for reading without loading its binary data.
+ * <p>
+ * Only the JSON is parsed onto the heap. The GLB binary chunk and external {@code .bin} buffers are
+ * memory-mapped, and accessors read straight from the mapping, so the cost of opening a model does not
+ * grow with its size. Embedded {@code data:} buffers are the exception and are decoded into memory.
+ */
+public class GltfFile {
+
+    private static final int GLB_MAGIC = 0x46546C67;
+    private static final int CHUNK_JSON = 0x4E4F534A;
+    private static final int CHUNK_BIN = 0x004E4942;
+
+    public static final int BYTE = 5120;
+    public static final int UNSIGNED_BYTE = 5121;
+    public static final int SHORT = 5122;
+    public static final int UNSIGNED_SHORT = 5123;
+    public static final int UNSIGNED_INT = 5125;
+    public static final int FLOAT = 5126;
+
+    public final File file;
+    public final JsonObject json;
+    private final ByteBuffer[] buffers;
+
+    private GltfFile(File file, JsonObject json, ByteBuffer[] buffers) {
+        this.file = file;
+        this.json = json;
+        this.buffers = buffers;
+    }
+
+    public static GltfFile open(File file) throws IOException {
+        JsonObject json;
+        ByteBuffer glbBinary = null;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, header, 0);
+            if (header.getInt(0) == GLB_MAGIC) {
+                long offset = 12;
+                long length = Math.min(header.getInt(8) & 0xFFFFFFFFL, channel.size());
+                String text = null;
+                ByteBuffer chunkHeader = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+                while (offset + 8 <= length) {
+                    chunkHeader.clear();
+                    readFully(channel, chunkHeader, offset);
+                    long chunkLength = chunkHeader.getInt(0) & 0xFFFFFFFFL;
+                    int chunkType = chunkHeader.getInt(4);
+                    offset += 8;
+                    if (offset + chunkLength > length) {
+                        throw new IOException("Truncated GLB chunk in " + file.getName());
+                    }
+                    if (chunkType == CHUNK_JSON) {
+                        ByteBuffer chunk = ByteBuffer.allocate((int) chunkLength);
+                        readFully(channel, chunk, offset);
+                        text = new String(chunk.array(), "UTF-8");
+                    } else if (chunkType == CHUNK_BIN && glbBinary == null) {
+                        glbBinary = channel.map(FileChannel.MapMode.READ_ONLY, offset, chunkLength);
+                    }
+                    offset += chunkLength;
+                }
+                if (text == null) {
+                    throw new IOException("No JSON chunk in " + file.getName());
+                }
+                json = new Gson().fromJson(text, JsonObject.class);
+            } else {
+                ByteBuffer text = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                byte[] bytes = new byte[text.remaining()];
+                text.get(bytes);
+                json = new Gson().fromJson(new String(bytes, "UTF-8"), JsonObject.class);
+            }
+        }
+        if (json == null) {
+            throw new IOException("Empty glTF JSON in " + file.getName());
+        }
+        checkSupported(json);
+
+        JsonArray bufferList = array(json, "buffers");
+        ByteBuffer[] buffers = new ByteBuffer[bufferList.size()];
+        for (int i = 0; i < buffers.length; i++) {
+            JsonObject buffer = bufferList.get(i).getAsJsonObject();
+            if (!buffer.has("uri")) {
+                if (i != 0 || glbBinary == null) {
+                    throw new IOException("Buffer " + i + " has no data in " + file.getName());
+                }
+                buffers[i] = glbBinary;
+            } else {
+                buffers[i] = load(file, buffer.get("uri").getAsString());
+            }
+        }
+        return new GltfFile(file, json, buffers);
+    }
+
+    private static void checkSupported(JsonObject json) throws IOException {
+        for (JsonElement extension : array(json, "extensionsRequired")) {
+            String name = extension.getAsString();
+            if (name.equals("KHR_draco_mesh_compression") || name.startsWith("EXT_meshopt_compression")) {
+                throw new IOException("Compressed meshes (" + name + ") are not supported");
+            }
+        }
+    }
+
+    /**
+     * Resolves a buffer or image URI: {@code data:} URIs are decoded, anything else is a file next to the asset
+     * and is mapped.
+     */
+    static ByteBuffer load(File asset, String uri) throws IOException {
+        if (uri.startsWith("data:")) {
+            int comma = uri.indexOf(',');
+            if (comma < 0 || !uri.substring(0, comma).endsWith(";base64")) {
+                throw new IOException("Unsupported data URI in " + asset.getName());
+            }
+            return ByteBuffer.wrap(Base64.decode(uri.substring(comma + 1), Base64.DEFAULT));
+        }
+        File file = resolve(asset, uri);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            // The mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    static File resolve(File asset, String uri) throws IOException {
+        return new File(asset.getParentFile(), URLDecoder.decode(uri.replace("+", "%2B"), "UTF-8"));
+    }
+
+    /**
+     * @return the named top-level array, empty if absent
+     */
+    public JsonArray array(String name) {
+        return array(json, name);
+    }
+
+    private static JsonArray array(JsonObject object, String name) {
+        return object.has(name) ? object.getAsJsonArray(name) : new JsonArray();
+    }
+
+    /**
+     * @return a little-endian view of the buffer view's bytes; no data is copied
+     */
+    public ByteBuffer bufferView(int index) throws IOException {
+        JsonObject view = array("bufferViews").get(index).getAsJsonObject();
+        int bufferIndex = view.get("buffer").getAsInt();
+        if (bufferIndex >= buffers.length) {
+            throw new IOException("Buffer view " + index + " references missing buffer " + bufferIndex);
+        }
+        int offset = view.has("byteOffset") ? view.get("byteOffset").getAsInt() : 0;
+        int length = view.get("byteLength").getAsInt();
+        ByteBuffer buffer = buffers[bufferIndex].duplicate();
+        if (offset + length > buffer.capacity()) {
+            throw new IOException("Buffer view " + index + " exceeds its buffer");
+        }
+        buffer.limit(offset + length).position(offset);
+        return buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public Accessor accessor(int index) throws IOException {
+        JsonObject accessor = array("accessors").get(index).getAsJsonObject();
+        if (accessor.has("sparse")) {
+            throw new IOException("Sparse accessors are not supported");
+        }
+        int componentType = accessor.get("componentType").getAsInt();
+        int components = components(accessor.get("type").getAsString());
+        int count = accessor.get("count").getAsInt();
+        boolean normalized = accessor.has("normalized") && accessor.get("normalized").getAsBoolean();
+        if (!accessor.has("bufferView")) {
+            // No data: all zeros
+            return new Accessor(null, count, components, componentType, 0, normalized);
+        }
+        int viewIndex = accessor.get("bufferView").getAsInt();
+        JsonObject view = array("bufferViews").get(viewIndex).getAsJsonObject();
+        int componentSize = componentSize(componentType);
+        int stride = view.has("byteStride") ? view.get("byteStride").getAsInt() : components * componentSize;
+        int offset = accessor.has("byteOffset") ? accessor.get("byteOffset").getAsInt() : 0;
+
+        ByteBuffer data = bufferView(viewIndex);
+        if (count > 0 && offset + (long) (count - 1) * stride + components * componentSize > data.capacity()) {
+            throw new IOException("Accessor " + index + " exceeds its buffer view");
+        }
+        data.position(offset);
+        return new Accessor(data.slice().order(ByteOrder.LITTLE_ENDIAN), count, components, componentType, stride,
+                normalized);
+    }
+
+    private static int components(String type) throws IOException {
+        switch (type) {
+            case "SCALAR": return 1;
+            case "VEC2": return 2;
+            case "VEC3": return 3;
+            case "VEC4": return 4;
+            case "MAT2": return 4;
+            case "MAT3": return 9;
+            case "MAT4": return 16;
+            default: throw new IOException("Unknown accessor type " + type);
+        }
+    }
+
+    private static int componentSize(int componentType) throws IOException {
+        switch (componentType) {
+            case BYTE:
+            case UNSIGNED_BYTE:
+                return 1;
+            case SHORT:
+            case UNSIGNED_SHORT:
+                return 2;
+            case UNSIGNED_INT:
+            case FLOAT:
+                return 4;
+            default:
+                throw new IOException("Unknown component type " + componentType);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) throw new IOException("Unexpected end of file");
+        }
+    }
+
+    /** Typed, strided reads over an accessor's bytes. Safe to share between threads. */
+    public static final class Accessor {
+        private final ByteBuffer data;
+        public final int count;
+        public final int components;
+        public final int componentType;
+        private final int stride;
+        private final boolean normalized;
+        private final int componentSize;
+
+        Accessor(ByteBuffer data, int count, int components, int componentType, int stride, boolean normalized)
+                throws IOException {
+            this.data = data;
+            this.count = count;
+            this.components = components;
+            this.componentType = componentType;
+            this.stride = stride;
+            this.normalized = normalized;
+            this.componentSize = componentSize(componentType);
+        }
+
+        /**
+         * @return the component as a float, mapped to [0, 1] or [-1, 1] when the accessor is normalized
+         */
+        public float get(int element, int component) {
+            if (data == null) return 0;
+            int at = element * stride + component * componentSize;
+            switch (componentType) {
+                case FLOAT:
+                    return data.getFloat(at);
+                case UNSIGNED_BYTE:
+                    return normalized ? (data.get(at) & 0xFF) / 255f : data.get(at) & 0xFF;
+                case BYTE:
+                    return normalized ? Math.max(data.get(at) / 127f, -1f) : data.get(at);
+                case UNSIGNED_SHORT:
+                    return normalized ? (data.getShort(at) & 0xFFFF) / 65535f : data.getShort(at) & 0xFFFF;
+                case SHORT:
+                    return normalized ? Math.max(data.getShort(at) / 32767f, -1f) : data.getShort(at);
+                default:
+                    return data.getInt(at);
+            }
+        }
+
+        /**
+         * @return the first component as an unsigned integer, as used for indices
+         */
+        public int getIndex(int element) {
+            if (data == null) return 0;
+            int at = element * stride;
+            switch (componentType) {
+                case UNSIGNED_BYTE:
+                case BYTE:
+                    return data.get(at) & 0xFF;
+                case UNSIGNED_SHORT:
+                case SHORT:
+                    return data.getShort(at) & 0xFFFF;
+                default:
+                    return data.getInt(at);
+            }
+        }
+    }
+}
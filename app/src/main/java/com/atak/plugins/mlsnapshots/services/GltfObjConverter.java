@@ -0,0 +1,791 @@
+package com.atak.plugins.mlsnapshots.services;
+
+import com.atak.coremap.log.Log;
+import com.atak.plugins.mlsnapshots.PluginExecutor;
+import com.atak.plugins.mlsnapshots.helpers.Matrix4;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Converts a glTF 2.0 model ({@code .gltf} or {@code .glb}) to Wavefront OBJ with an MTL material library.
+ * <p>
+ * Geometry is read from the memory-mapped buffers of a {@link GltfFile} and written one primitive at a time
+ * through a fixed direct buffer, with numbers formatted by hand, so converting a model allocates almost
+ * nothing per vertex. Node transforms are applied, giving the OBJ the model's scene coordinates. Textures
+ * are written or copied next to the OBJ. {@link #writeLods} adds simplified levels of detail alongside it.
+ * Stateless, so one instance can convert several files at once.
+ */
+public class GltfObjConverter {
+
+    private static final String TAG = "GltfObjConverter";
+
+    private static final int OUTPUT_BUFFER_SIZE = 256 * 1024;
+    private static final int MAX_NODE_DEPTH = 256;
+    private static final int TRIANGLES = 4;
+
+    /**
+     * @return the OBJ file written to {@code outputDir}
+     */
+    public File convert(File input, File outputDir, PluginExecutor.JobContext context) throws IOException {
+        GltfFile gltf = GltfFile.open(input);
+        String base = baseName(input.getName());
+        File objFile = new File(outputDir, base + ".obj");
+
+        String[] materials = writeMaterials(gltf, outputDir, base);
+        Conversion conversion;
+        try (Output out = new Output(objFile)) {
+            conversion = new Conversion(gltf, out, materials, context);
+            out.put("# Converted from ").put(sanitize(input.getName())).newline();
+            if (materials.length > 0) {
+                out.put("mtllib ").put(base).put(".mtl").newline();
+            }
+            walk(gltf, conversion);
+        }
+        Log.d(TAG, "Converted " + input.getName() + ": " + conversion.vertexCount + " vertices, "
+                + conversion.triangleCount + " triangles");
+        return objFile;
+    }
+
+    /** Levels of detail written by {@link #writeLods}. */
+    public static final class LodOptions {
+        /**
+         * Three levels for map display: about a quarter of a large building model, then a block-scale and a
+         * city-scale stand-in. Positions snap to 1/65535 of the model extent, well under a centimetre for a
+         * building, and normals to 10 bits, below what shading shows.
+         */
+        public static final LodOptions DEFAULT = new LodOptions(new int[] {50000, 10000, 2000}, 16, 10);
+
+        /** Triangle budget of each level for the whole model, most detailed first */
+        public final int[] triangleBudgets;
+        /** Bits per axis to snap positions to over the model bounds, or 0 to keep them as they are */
+        public final int positionBits;
+        /** Bits per component to snap normals to, or 0 to keep them as they are */
+        public final int normalBits;
+
+        public LodOptions(int[] triangleBudgets, int positionBits, int normalBits) {
+            this.triangleBudgets = triangleBudgets.clone();
+            this.positionBits = positionBits;
+            this.normalBits = normalBits;
+        }
+    }
+
+    /** The files written by {@link #writeLods} and the time spent in each stage. */
+    public static final class LodReport {
+        public final List<File> files = new ArrayList<>();
+        /** Milliseconds per stage, in the order the stages ran */
+        public final Map<String, Long> stageMillis = new LinkedHashMap<>();
+
+        void time(String stage, long startNanos) {
+            Long previous = stageMillis.get(stage);
+            long millis = (System.nanoTime() - startNanos) / 1000000;
+            stageMillis.put(stage, previous != null ? previous + millis : millis);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder result = new StringBuilder();
+            result.append(files.size()).append(" levels of detail (");
+            boolean first = true;
+            for (Map.Entry<String, Long> stage : stageMillis.entrySet()) {
+                if (!first) result.append(", ");
+                result.append(stage.getKey()).append(' ').append(stage.getValue()).append(" ms");
+                first = false;
+            }
+            return result.append(')').toString();
+        }
+    }
+
+    /**
+     * Writes simplified copies of the model next to the OBJ from {@link #convert}, as {@code <base>_lod1.obj},
+     * {@code <base>_lod2.obj} and so on, one per triangle budget, sharing its material library. Budgets the model
+     * already fits are skipped. Primitives are welded, optionally quantized first so near-duplicate vertices
+     * weld too, and each level is simplified from the one before it, every primitive by the same ratio.
+     */
+    public LodReport writeLods(File input, File outputDir, LodOptions options, PluginExecutor.JobContext context)
+            throws IOException {
+        LodReport report = new LodReport();
+        String base = baseName(input.getName());
+
+        long start = System.nanoTime();
+        final GltfFile gltf = GltfFile.open(input);
+        final List<Part> parts = new ArrayList<>();
+        final double[] origin = new double[3];
+        walk(gltf, new PrimitiveVisitor() {
+            @Override
+            public void visit(String meshName, JsonObject primitive, double[] transform) throws IOException {
+                if (parts.isEmpty()) {
+                    // Positions are stored as floats relative to the first primitive's origin
+                    origin[0] = transform[12];
+                    origin[1] = transform[13];
+                    origin[2] = transform[14];
+                }
+                Part part = readPrimitive(gltf, meshName, primitive, transform, origin);
+                if (part != null) parts.add(part);
+            }
+        });
+        report.time("read", start);
+
+        if (options.positionBits > 0 || options.normalBits > 0) {
+            start = System.nanoTime();
+            float[] bounds = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE,
+                    -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+            for (Part part : parts) {
+                float[] positions = part.mesh.positions;
+                for (int i = 0; i < part.mesh.vertexCount * 3; i++) {
+                    bounds[i % 3] = Math.min(bounds[i % 3], positions[i]);
+                    bounds[3 + i % 3] = Math.max(bounds[3 + i % 3], positions[i]);
+                }
+            }
+            float extent = Math.max(bounds[3] - bounds[0], Math.max(bounds[4] - bounds[1], bounds[5] - bounds[2]));
+            float step = options.positionBits > 0 ? extent / ((1 << Math.min(options.positionBits, 24)) - 1) : 0;
+            for (Part part : parts) {
+                MeshSimplifier.quantizePositions(part.mesh, bounds, step);
+                MeshSimplifier.quantizeNormals(part.mesh, options.normalBits);
+            }
+            report.time("quantize", start);
+        }
+
+        start = System.nanoTime();
+        long triangles = 0;
+        for (Part part : parts) {
+            part.mesh = MeshSimplifier.weld(part.mesh);
+            triangles += part.mesh.triangleCount();
+        }
+        report.time("weld", start);
+
+        String[] materials = materialNames(gltf);
+        MeshSimplifier simplifier = new MeshSimplifier();
+        int level = 0;
+        for (int budget : options.triangleBudgets) {
+            if (budget <= 0 || budget >= triangles) continue;
+            start = System.nanoTime();
+            double ratio = (double) budget / triangles;
+            triangles = 0;
+            for (Part part : parts) {
+                if (context != null) {
+                    context.throwIfCancelled();
+                }
+                int target = (int) Math.max(1, Math.round(part.mesh.triangleCount() * ratio));
+                part.mesh = simplifier.simplify(part.mesh, target);
+                triangles += part.mesh.triangleCount();
+            }
+            report.time("simplify", start);
+
+            start = System.nanoTime();
+            level++;
+            File lodFile = new File(outputDir, base + "_lod" + level + ".obj");
+            writeLod(lodFile, input, base, parts, materials, origin);
+            report.files.add(lodFile);
+            report.time("write", start);
+            Log.d(TAG, "Wrote " + lodFile.getName() + ": " + triangles + " triangles");
+        }
+        return report;
+    }
+
+    public static boolean isModel(File file) {
+        String name = file.getName().toLowerCase(Locale.US);
+        return file.isFile() && (name.endsWith(".gltf") || name.endsWith(".glb"));
+    }
+
+    /**
+     * @return the nodes of the default scene, or every node without a parent if the asset has no scenes
+     */
+    private static int[] rootNodes(GltfFile gltf) {
+        JsonArray scenes = gltf.array("scenes");
+        if (scenes.size() > 0) {
+            int scene = gltf.json.has("scene") ? gltf.json.get("scene").getAsInt() : 0;
+            JsonObject sceneJson = scenes.get(Math.min(scene, scenes.size() - 1)).getAsJsonObject();
+            JsonArray nodes = sceneJson.has("nodes") ? sceneJson.getAsJsonArray("nodes") : new JsonArray();
+            int[] roots = new int[nodes.size()];
+            for (int i = 0; i < roots.length; i++) {
+                roots[i] = nodes.get(i).getAsInt();
+            }
+            return roots;
+        }
+        JsonArray nodes = gltf.array("nodes");
+        boolean[] child = new boolean[nodes.size()];
+        for (JsonElement node : nodes) {
+            JsonObject json = node.getAsJsonObject();
+            if (json.has("children")) {
+                for (JsonElement c : json.getAsJsonArray("children")) {
+                    child[c.getAsInt()] = true;
+                }
+            }
+        }
+        int count = 0;
+        int[] roots = new int[nodes.size()];
+        for (int i = 0; i < child.length; i++) {
+            if (!child[i]) roots[count++] = i;
+        }
+        int[] result = new int[count];
+        System.arraycopy(roots, 0, result, 0, count);
+        return result;
+    }
+
+    private interface PrimitiveVisitor {
+        void visit(String meshName, JsonObject primitive, double[] transform) throws IOException;
+    }
+
+    /**
+     * Visits every primitive of the default scene with its node's accumulated transform.
+     */
+    private static void walk(GltfFile gltf, PrimitiveVisitor visitor) throws IOException {
+        for (int node : rootNodes(gltf)) {
+            walk(gltf, node, Matrix4.identity(), 0, visitor);
+        }
+    }
+
+    private static void walk(GltfFile gltf, int index, double[] parent, int depth, PrimitiveVisitor visitor)
+            throws IOException {
+        if (depth > MAX_NODE_DEPTH) {
+            throw new IOException("Node hierarchy too deep, or cyclic");
+        }
+        JsonObject node = gltf.array("nodes").get(index).getAsJsonObject();
+        double[] transform = Matrix4.multiply(parent, localTransform(node));
+        if (node.has("mesh")) {
+            JsonObject mesh = gltf.array("meshes").get(node.get("mesh").getAsInt()).getAsJsonObject();
+            String name = mesh.has("name") ? sanitize(mesh.get("name").getAsString()) : "mesh";
+            for (JsonElement primitive : mesh.getAsJsonArray("primitives")) {
+                visitor.visit(name, primitive.getAsJsonObject(), transform);
+            }
+        }
+        if (node.has("children")) {
+            for (JsonElement child : node.getAsJsonArray("children")) {
+                walk(gltf, child.getAsInt(), transform, depth + 1, visitor);
+            }
+        }
+    }
+
+    /** State of one conversion: running vertex counts, for OBJ's file-global indices, and progress. */
+    private static final class Conversion implements PrimitiveVisitor {
+        final GltfFile gltf;
+        final Output out;
+        final String[] materials;
+        final PluginExecutor.JobContext context;
+        final int primitiveTotal;
+        int primitivesDone;
+        long vertexCount;
+        long texCoordCount;
+        long normalCount;
+        long triangleCount;
+        int objectCount;
+
+        Conversion(GltfFile gltf, Output out, String[] materials, PluginExecutor.JobContext context) {
+            this.gltf = gltf;
+            this.out = out;
+            this.materials = materials;
+            this.context = context;
+            int total = 0;
+            for (JsonElement mesh : gltf.array("meshes")) {
+                total += mesh.getAsJsonObject().getAsJsonArray("primitives").size();
+            }
+            this.primitiveTotal = Math.max(1, total);
+        }
+
+        @Override
+        public void visit(String name, JsonObject primitive, double[] transform) throws IOException {
+            if (context != null) {
+                context.throwIfCancelled();
+            }
+            writePrimitive(out, name, primitive, transform);
+            primitivesDone++;
+            if (context != null) {
+                context.setProgress(Math.min(99, primitivesDone * 100 / primitiveTotal), null);
+            }
+        }
+
+        private void writePrimitive(Output out, String name, JsonObject primitive, double[] transform) throws IOException {
+            int mode = primitive.has("mode") ? primitive.get("mode").getAsInt() : TRIANGLES;
+            JsonObject attributes = primitive.getAsJsonObject("attributes");
+            if (mode != TRIANGLES || !attributes.has("POSITION")) return;
+
+            GltfFile.Accessor positions = gltf.accessor(attributes.get("POSITION").getAsInt());
+            GltfFile.Accessor texCoords = attributes.has("TEXCOORD_0")
+                    ? gltf.accessor(attributes.get("TEXCOORD_0").getAsInt()) : null;
+            GltfFile.Accessor normals = attributes.has("NORMAL")
+                    ? gltf.accessor(attributes.get("NORMAL").getAsInt()) : null;
+
+            out.put("o ").put(name).put('_').putInt(objectCount++).newline();
+            double[] xyz = new double[3];
+            for (int i = 0; i < positions.count; i++) {
+                xyz[0] = positions.get(i, 0);
+                xyz[1] = positions.get(i, 1);
+                xyz[2] = positions.get(i, 2);
+                Matrix4.transformPoint(transform, xyz, 0);
+                out.put("v ").putNumber(xyz[0]).put(' ').putNumber(xyz[1]).put(' ').putNumber(xyz[2]).newline();
+            }
+            if (texCoords != null) {
+                for (int i = 0; i < texCoords.count; i++) {
+                    // glTF puts the texture origin top left, OBJ bottom left
+                    out.put("vt ").putNumber(texCoords.get(i, 0)).put(' ').putNumber(1 - texCoords.get(i, 1)).newline();
+                }
+            }
+            if (normals != null) {
+                double[] normalTransform = Matrix4.normalTransform(transform);
+                for (int i = 0; i < normals.count; i++) {
+                    xyz[0] = normals.get(i, 0);
+                    xyz[1] = normals.get(i, 1);
+                    xyz[2] = normals.get(i, 2);
+                    Matrix4.transformVector(normalTransform, xyz, 0);
+                    double length = Math.sqrt(xyz[0] * xyz[0] + xyz[1] * xyz[1] + xyz[2] * xyz[2]);
+                    if (length > 0) {
+                        xyz[0] /= length;
+                        xyz[1] /= length;
+                        xyz[2] /= length;
+                    }
+                    out.put("vn ").putNumber(xyz[0]).put(' ').putNumber(xyz[1]).put(' ').putNumber(xyz[2]).newline();
+                }
+            }
+
+            if (primitive.has("material")) {
+                int material = primitive.get("material").getAsInt();
+                if (material < materials.length) {
+                    out.put("usemtl ").put(materials[material]).newline();
+                }
+            }
+
+            // A mirroring transform reverses the winding
+            boolean flip = Matrix4.determinant3(transform) < 0;
+            GltfFile.Accessor indices = primitive.has("indices") ? gltf.accessor(primitive.get("indices").getAsInt()) : null;
+            int count = indices != null ? indices.count : positions.count;
+            for (int i = 0; i + 2 < count; i += 3) {
+                int a = indices != null ? indices.getIndex(i) : i;
+                int b = indices != null ? indices.getIndex(i + 1) : i + 1;
+                int c = indices != null ? indices.getIndex(i + 2) : i + 2;
+                if (flip) {
+                    int swap = b;
+                    b = c;
+                    c = swap;
+                }
+                out.put('f');
+                writeVertex(out, a, texCoords != null, normals != null);
+                writeVertex(out, b, texCoords != null, normals != null);
+                writeVertex(out, c, texCoords != null, normals != null);
+                out.newline();
+                triangleCount++;
+            }
+
+            vertexCount += positions.count;
+            if (texCoords != null) texCoordCount += texCoords.count;
+            if (normals != null) normalCount += normals.count;
+        }
+
+        private void writeVertex(Output out, int index, boolean texCoord, boolean normal) throws IOException {
+            out.put(' ').putInt(vertexCount + index + 1);
+            if (texCoord || normal) {
+                out.put('/');
+                if (texCoord) out.putInt(texCoordCount + index + 1);
+                if (normal) out.put('/').putInt(normalCount + index + 1);
+            }
+        }
+    }
+
+    /** A primitive read into memory for simplification. */
+    private static final class Part {
+        final String name;
+        final int material;
+        MeshSimplifier.Mesh mesh;
+
+        Part(String name, int material, MeshSimplifier.Mesh mesh) {
+            this.name = name;
+            this.material = material;
+            this.mesh = mesh;
+        }
+    }
+
+    /**
+     * Reads a triangle primitive with the transform applied, texture coordinates flipped for OBJ and the winding
+     * corrected for mirroring transforms.
+     *
+     * @return null for primitives that are not triangle lists with positions
+     */
+    private static Part readPrimitive(GltfFile gltf, String name, JsonObject primitive, double[] transform,
+                                      double[] origin) throws IOException {
+        int mode = primitive.has("mode") ? primitive.get("mode").getAsInt() : TRIANGLES;
+        JsonObject attributes = primitive.getAsJsonObject("attributes");
+        if (mode != TRIANGLES || !attributes.has("POSITION")) return null;
+
+        GltfFile.Accessor positions = gltf.accessor(attributes.get("POSITION").getAsInt());
+        GltfFile.Accessor texCoords = attributes.has("TEXCOORD_0")
+                ? gltf.accessor(attributes.get("TEXCOORD_0").getAsInt()) : null;
+        GltfFile.Accessor normals = attributes.has("NORMAL")
+                ? gltf.accessor(attributes.get("NORMAL").getAsInt()) : null;
+        GltfFile.Accessor indices = primitive.has("indices") ? gltf.accessor(primitive.get("indices").getAsInt()) : null;
+        int vertexCount = positions.count;
+        int indexCount = (indices != null ? indices.count : vertexCount) / 3 * 3;
+        MeshSimplifier.Mesh mesh = new MeshSimplifier.Mesh(vertexCount, indexCount,
+                normals != null && normals.count >= vertexCount, texCoords != null && texCoords.count >= vertexCount);
+
+        double[] xyz = new double[3];
+        double[] normalTransform = Matrix4.normalTransform(transform);
+        for (int i = 0; i < vertexCount; i++) {
+            xyz[0] = positions.get(i, 0);
+            xyz[1] = positions.get(i, 1);
+            xyz[2] = positions.get(i, 2);
+            Matrix4.transformPoint(transform, xyz, 0);
+            mesh.positions[i * 3] = (float) (xyz[0] - origin[0]);
+            mesh.positions[i * 3 + 1] = (float) (xyz[1] - origin[1]);
+            mesh.positions[i * 3 + 2] = (float) (xyz[2] - origin[2]);
+            if (mesh.normals != null) {
+                xyz[0] = normals.get(i, 0);
+                xyz[1] = normals.get(i, 1);
+                xyz[2] = normals.get(i, 2);
+                Matrix4.transformVector(normalTransform, xyz, 0);
+                double length = Math.sqrt(xyz[0] * xyz[0] + xyz[1] * xyz[1] + xyz[2] * xyz[2]);
+                for (int c = 0; c < 3; c++) {
+                    mesh.normals[i * 3 + c] = (float) (length > 0 ? xyz[c] / length : xyz[c]);
+                }
+            }
+            if (mesh.texCoords != null) {
+                mesh.texCoords[i * 2] = texCoords.get(i, 0);
+                mesh.texCoords[i * 2 + 1] = 1 - texCoords.get(i, 1);
+            }
+        }
+
+        boolean flip = Matrix4.determinant3(transform) < 0;
+        int count = 0;
+        for (int i = 0; i < indexCount; i += 3) {
+            int a = indices != null ? indices.getIndex(i) : i;
+            int b = indices != null ? indices.getIndex(i + 1) : i + 1;
+            int c = indices != null ? indices.getIndex(i + 2) : i + 2;
+            if (a >= vertexCount || b >= vertexCount || c >= vertexCount) continue;
+            mesh.indices[count++] = a;
+            mesh.indices[count++] = flip ? c : b;
+            mesh.indices[count++] = flip ? b : c;
+        }
+        mesh.indexCount = count;
+        int material = primitive.has("material") ? primitive.get("material").getAsInt() : -1;
+        return new Part(name, material, mesh);
+    }
+
+    private static void writeLod(File file, File input, String base, List<Part> parts, String[] materials,
+                                 double[] origin) throws IOException {
+        long vertexBase = 1;
+        long texCoordBase = 1;
+        long normalBase = 1;
+        int object = 0;
+        try (Output out = new Output(file)) {
+            out.put("# Simplified from ").put(sanitize(input.getName())).newline();
+            if (materials.length > 0) {
+                out.put("mtllib ").put(base).put(".mtl").newline();
+            }
+            for (Part part : parts) {
+                MeshSimplifier.Mesh mesh = part.mesh;
+                if (mesh.indexCount == 0) continue;
+                out.put("o ").put(part.name).put('_').putInt(object++).newline();
+                for (int i = 0; i < mesh.vertexCount; i++) {
+                    out.put("v ").putNumber(mesh.positions[i * 3] + origin[0]).put(' ')
+                            .putNumber(mesh.positions[i * 3 + 1] + origin[1]).put(' ')
+                            .putNumber(mesh.positions[i * 3 + 2] + origin[2]).newline();
+                }
+                if (mesh.texCoords != null) {
+                    for (int i = 0; i < mesh.vertexCount; i++) {
+                        out.put("vt ").putNumber(mesh.texCoords[i * 2]).put(' ')
+                                .putNumber(mesh.texCoords[i * 2 + 1]).newline();
+                    }
+                }
+                if (mesh.normals != null) {
+                    for (int i = 0; i < mesh.vertexCount; i++) {
+                        out.put("vn ").putNumber(mesh.normals[i * 3]).put(' ').putNumber(mesh.normals[i * 3 + 1])
+                                .put(' ').putNumber(mesh.normals[i * 3 + 2]).newline();
+                    }
+                }
+                if (part.material >= 0 && part.material < materials.length) {
+                    out.put("usemtl ").put(materials[part.material]).newline();
+                }
+                for (int i = 0; i + 2 < mesh.indexCount; i += 3) {
+                    out.put('f');
+                    for (int k = 0; k < 3; k++) {
+                        int index = mesh.indices[i + k];
+                        out.put(' ').putInt(vertexBase + index);
+                        if (mesh.texCoords != null || mesh.normals != null) {
+                            out.put('/');
+                            if (mesh.texCoords != null) out.putInt(texCoordBase + index);
+                            if (mesh.normals != null) out.put('/').putInt(normalBase + index);
+                        }
+                    }
+                    out.newline();
+                }
+                vertexBase += mesh.vertexCount;
+                if (mesh.texCoords != null) texCoordBase += mesh.vertexCount;
+                if (mesh.normals != null) normalBase += mesh.vertexCount;
+            }
+        }
+    }
+
+    private static double[] localTransform(JsonObject node) {
+        if (node.has("matrix")) {
+            return doubles(node.getAsJsonArray("matrix"));
+        }
+        return Matrix4.fromTranslationRotationScale(
+                node.has("translation") ? doubles(node.getAsJsonArray("translation")) : null,
+                node.has("rotation") ? doubles(node.getAsJsonArray("rotation")) : null,
+                node.has("scale") ? doubles(node.getAsJsonArray("scale")) : null);
+    }
+
+    private static double[] doubles(JsonArray array) {
+        double[] values = new double[array.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = array.get(i).getAsDouble();
+        }
+        return values;
+    }
+
+    /**
+     * Writes {@code <base>.mtl} with the base color, opacity and emission of each material, and the base
+     * color texture.
+     *
+     * @return the OBJ material name for each glTF material index
+     */
+    private static String[] writeMaterials(GltfFile gltf, File outputDir, String base) throws IOException {
+        JsonArray materials = gltf.array("materials");
+        String[] names = materialNames(gltf);
+        if (names.length == 0) return names;
+
+        Map<Integer, String> images = new HashMap<>();
+        try (Output out = new Output(new File(outputDir, base + ".mtl"))) {
+            for (int i = 0; i < names.length; i++) {
+                JsonObject material = materials.get(i).getAsJsonObject();
+                out.put("newmtl ").put(names[i]).newline();
+                double[] color = {1, 1, 1, 1};
+                String texture = null;
+                if (material.has("pbrMetallicRoughness")) {
+                    JsonObject pbr = material.getAsJsonObject("pbrMetallicRoughness");
+                    if (pbr.has("baseColorFactor")) {
+                        color = doubles(pbr.getAsJsonArray("baseColorFactor"));
+                    }
+                    if (pbr.has("baseColorTexture")) {
+                        texture = writeTexture(gltf, pbr.getAsJsonObject("baseColorTexture").get("index").getAsInt(),
+                                outputDir, base, images);
+                    }
+                }
+                out.put("Ka 0 0 0").newline();
+                out.put("Kd ").putNumber(color[0]).put(' ').putNumber(color[1]).put(' ').putNumber(color[2]).newline();
+                out.put("Ks 0 0 0").newline();
+                if (material.has("emissiveFactor")) {
+                    double[] emissive = doubles(material.getAsJsonArray("emissiveFactor"));
+                    out.put("Ke ").putNumber(emissive[0]).put(' ').putNumber(emissive[1]).put(' ')
+                            .putNumber(emissive[2]).newline();
+                }
+                if (color.length > 3 && color[3] < 1) {
+                    out.put("d ").putNumber(color[3]).newline();
+                }
+                out.put("illum 1").newline();
+                if (texture != null) {
+                    out.put("map_Kd ").put(texture).newline();
+                }
+                out.newline();
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @return a unique OBJ material name for each glTF material index
+     */
+    private static String[] materialNames(GltfFile gltf) {
+        JsonArray materials = gltf.array("materials");
+        String[] names = new String[materials.size()];
+        Set<String> used = new HashSet<>();
+        for (int i = 0; i < names.length; i++) {
+            JsonObject material = materials.get(i).getAsJsonObject();
+            String name = material.has("name") ? sanitize(material.get("name").getAsString()) : "material";
+            names[i] = used.add(name) ? name : name + "_" + i;
+            used.add(names[i]);
+        }
+        return names;
+    }
+
+    /**
+     * Makes the texture's image available next to the OBJ, copying or extracting it once per image.
+     *
+     * @return the image file name, or null if the texture has no usable image
+     */
+    private static String writeTexture(GltfFile gltf, int textureIndex, File outputDir, String base,
+                                       Map<Integer, String> written) {
+        try {
+            JsonObject texture = gltf.array("textures").get(textureIndex).getAsJsonObject();
+            if (!texture.has("source")) return null;
+            int imageIndex = texture.get("source").getAsInt();
+            if (written.containsKey(imageIndex)) return written.get(imageIndex);
+
+            JsonObject image = gltf.array("images").get(imageIndex).getAsJsonObject();
+            String uri = image.has("uri") ? image.get("uri").getAsString() : null;
+            String name;
+            if (uri != null && !uri.startsWith("data:")) {
+                File source = GltfFile.resolve(gltf.file, uri);
+                name = sanitize(source.getName());
+                File target = new File(outputDir, name);
+                if (!target.getCanonicalPath().equals(source.getCanonicalPath())) {
+                    copy(source, target);
+                }
+            } else {
+                String mimeType = image.has("mimeType") ? image.get("mimeType").getAsString()
+                        : uri != null ? uri.substring(5, Math.max(5, uri.indexOf(';'))) : "image/png";
+                name = base + "_image" + imageIndex + (mimeType.equals("image/jpeg") ? ".jpg" : ".png");
+                ByteBuffer data = uri != null ? GltfFile.load(gltf.file, uri)
+                        : gltf.bufferView(image.get("bufferView").getAsInt());
+                try (FileOutputStream out = new FileOutputStream(new File(outputDir, name));
+                     FileChannel channel = out.getChannel()) {
+                    while (data.hasRemaining()) {
+                        channel.write(data);
+                    }
+                }
+            }
+            written.put(imageIndex, name);
+            return name;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Could not write texture " + textureIndex + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static void copy(File source, File target) throws IOException {
+        try (FileInputStream in = new FileInputStream(source);
+             FileOutputStream out = new FileOutputStream(target);
+             FileChannel from = in.getChannel();
+             FileChannel to = out.getChannel()) {
+            long position = 0;
+            long size = from.size();
+            while (position < size) {
+                position += from.transferTo(position, size - position, to);
+            }
+        }
+    }
+
+    private static String baseName(String name) {
+        int dot = name.lastIndexOf('.');
+        return sanitize(dot > 0 ? name.substring(0, dot) : name);
+    }
+
+    /**
+     * OBJ and MTL names are whitespace-delimited ASCII.
+     */
+    private static String sanitize(String name) {
+        StringBuilder result = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            result.append(c > ' ' && c < 127 ? c : '_');
+        }
+        return result.length() > 0 ? result.toString() : "_";
+    }
+
+    /**
+     * ASCII output through a direct buffer that is flushed to the file channel when full.
+     */
+    private static final class Output implements Closeable {
+        private final FileOutputStream stream;
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(OUTPUT_BUFFER_SIZE);
+        private final byte[] digits = new byte[20];
+
+        Output(File file) throws IOException {
+            stream = new FileOutputStream(file);
+            channel = stream.getChannel();
+        }
+
+        Output put(String ascii) throws IOException {
+            for (int i = 0; i < ascii.length(); i++) {
+                put(ascii.charAt(i));
+            }
+            return this;
+        }
+
+        Output put(char c) throws IOException {
+            if (!buffer.hasRemaining()) flush();
+            buffer.put((byte) c);
+            return this;
+        }
+
+        Output newline() throws IOException {
+            return put('\n');
+        }
+
+        Output putInt(long value) throws IOException {
+            if (buffer.remaining() < 21) flush();
+            if (value < 0) {
+                buffer.put((byte) '-');
+                value = -value;
+            }
+            int n = 0;
+            do {
+                digits[n++] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (value > 0);
+            while (n > 0) {
+                buffer.put(digits[--n]);
+            }
+            return this;
+        }
+
+        /**
+         * Writes the value with up to six decimals and no trailing zeros.
+         */
+        Output putNumber(double value) throws IOException {
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                return put('0');
+            }
+            double magnitude = Math.abs(value);
+            if (magnitude >= 1e12) {
+                return put(Double.toString(value));
+            }
+            long scaled = Math.round(magnitude * 1e6);
+            if (value < 0 && scaled != 0) put('-');
+            putInt(scaled / 1000000);
+            long fraction = scaled % 1000000;
+            if (fraction != 0) {
+                int width = 6;
+                while (fraction % 10 == 0) {
+                    fraction /= 10;
+                    width--;
+                }
+                put('.');
+                for (int w = width - 1; w > 0 && fraction < pow10(w); w--) {
+                    put('0');
+                }
+                putInt(fraction);
+            }
+            return this;
+        }
+
+        private static long pow10(int exponent) {
+            long result = 1;
+            for (int i = 0; i < exponent; i++) result *= 10;
+            return result;
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                stream.close();
+            }
+        }
+    }
+}
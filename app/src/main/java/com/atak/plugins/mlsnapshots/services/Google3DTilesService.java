@@ -4,205 +4,463 @@ package com.atak.plugins.mlsnapshots.services;
 import com.atak.coremap.log.Log;
 import com.atak.plugins.mlsnapshots.PluginExecutor;
 import com.atakmap.map.layer.feature.geometry.Envelope;
-import com.google.gson.Gson;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import org.geotools.feature.DefaultFeatureCollection;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
-import org.geotools.geometry.jts.JTS;
-import org.geotools.referencing.CRS;
 import org.locationtech.jts.geom.Coordinate;
 import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.GeometryFactory;
-import org.locationtech.jts.geom.LinearRing;
 import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.index.strtree.STRtree;
+import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
-import org.opengis.referencing.crs.CoordinateReferenceSystem;
-import org.opengis.referencing.operation.MathTransform;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.Executor;
+import java.util.Map;
+import java.util.Locale;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Extracts building footprints with heights from Google Photorealistic 3D Tiles.
+ * <p>
+ * The tileset is walked down to building-scale tiles over the AOI. Each selected tile's mesh is
+ * downloaded on the NETWORK lane, then decoded and segmented into buildings by a COMPUTE job, and the
+ * footprints are streamed into the GeoPackage in batches by the {@link FeatureIngestPipeline}. At most
+ * {@link #MAX_TILES_IN_FLIGHT} tiles are downloaded or decoded at once.
+ * <p>
+ * A building on the edge of a tile may be cut in two by it, or appear whole in two overlapping tiles, so
+ * footprints near a tile's bounds are held back and merged across tiles once every tile is done. Tiles whose
+ * meshes cannot be decoded, such as Draco-compressed ones, fall back to the footprint of their bounding
+ * volume, without heights.
+ */
 public class Google3DTilesService {
     public static final String TAG = "Google3DTilesService";
     private static final String TILES_BASE_URL = "https://tile.googleapis.com/v1/3dtiles/";
 
-    private final GeoPackageService geoPackageService;
-    private final Executor executor = PluginExecutor.getExecutor();
-    private final Gson gson = new Gson();
+    // Roughly building scale; coarser tiles would give footprints of whole blocks
+    private static final double DEFAULT_TARGET_GEOMETRIC_ERROR = 20.0;
+
+    private static final String TABLE_NAME = "google_building_footprints";
+    private static final int MAX_TILES_IN_FLIGHT = 8;
+    private static final long PROGRESS_INTERVAL_MS = 500;
+    // Footprints from different tiles this close together are one building; a little over one extractor cell
+    private static final double MERGE_DISTANCE_M = 1.5;
+    private static final double METERS_PER_DEGREE = 111320;
+
+    private final TilesetCache cache;
+    private final FeatureIngestPipeline pipeline;
+    private final TileContentDecoder decoder = new TileContentDecoder();
+    private final BuildingFootprintExtractor extractor = new BuildingFootprintExtractor();
+    private final SimpleFeatureType featureType = createFeatureType();
     private final GeometryFactory geometryFactory = new GeometryFactory();
-    private MathTransform ecefToWgs84Transform;
+    private double targetGeometricError = DEFAULT_TARGET_GEOMETRIC_ERROR;
 
     public interface ProgressListener {
         void onProgress(String message);
         void onComplete(boolean success, String finalMessage);
     }
 
-    public Google3DTilesService(GeoPackageService geoPackageService) {
-        this.geoPackageService = geoPackageService;
-        try {
-            CoordinateReferenceSystem ecef = CRS.decode("EPSG:4978"); // ECEF
-            CoordinateReferenceSystem wgs84 = CRS.decode("EPSG:4326"); // WGS84
-            this.ecefToWgs84Transform = CRS.findMathTransform(ecef, wgs84, true);
-        } catch (Exception e) {
-            Log.e(TAG, "Failed to initialize coordinate transforms", e);
-        }
+    /**
+     * @param cacheDir directory for fetched tileset JSON and tile content, reused across imports
+     */
+    public Google3DTilesService(GeoPackageService geoPackageService, File cacheDir) {
+        this.cache = new TilesetCache(cacheDir);
+        this.pipeline = new FeatureIngestPipeline(geoPackageService);
+    }
+
+    /**
+     * Tiles are refined until their geometric error (in meters) is at or below this value.
+     */
+    public void setTargetGeometricError(double targetGeometricError) {
+        this.targetGeometricError = targetGeometricError;
     }
 
     public void startImport(String apiKey, Envelope aoi, ProgressListener listener) {
-        if (ecefToWgs84Transform == null) {
-            listener.onComplete(false, "CRS transform not initialized.");
-            return;
+        listener.onProgress("Starting import...");
+        Polygon area = toPolygon(aoi);
+        final Extraction extraction = new Extraction(area, listener);
+
+        TilesetTraversal traversal = new TilesetTraversal(apiKey, area, targetGeometricError, cache,
+                extraction::add,
+                new TilesetTraversal.Listener() {
+                    @Override
+                    public void onProgress(int fetched, int cacheHits, int pending, int selected) {
+                        extraction.walked(fetched, cacheHits);
+                    }
+
+                    @Override
+                    public void onComplete(boolean success, String error) {
+                        extraction.traversalComplete(success, error);
+                    }
+                });
+        try {
+            traversal.start(new URL(TILES_BASE_URL + "root.json"));
+        } catch (MalformedURLException e) {
+            extraction.traversalComplete(false, e.getMessage());
         }
+    }
 
-        executor.execute(() -> {
-            try {
-                listener.onProgress("Starting import...");
-                DefaultFeatureCollection featureCollection = new DefaultFeatureCollection(null, createFeatureType());
+    private Polygon toPolygon(Envelope envelope) {
+        return geometryFactory.createPolygon(new Coordinate[]{
+                new Coordinate(envelope.minX, envelope.minY),
+                new Coordinate(envelope.maxX, envelope.minY),
+                new Coordinate(envelope.maxX, envelope.maxY),
+                new Coordinate(envelope.minX, envelope.maxY),
+                new Coordinate(envelope.minX, envelope.minY)});
+    }
+
+    private SimpleFeatureType createFeatureType() {
+        SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+        builder.setName("GoogleBuildingFootprint");
+        builder.setCRS(null); // Let GeoPackage handle CRS
+        builder.add("the_geom", Polygon.class);
+        builder.add("source", String.class);
+        builder.add("height", Double.class);
+        builder.add("base_elevation", Double.class);
+        return builder.buildFeatureType();
+    }
 
-                String rootUrl = TILES_BASE_URL + "root.json?key=" + apiKey;
-                processTile(rootUrl, apiKey, aoi, featureCollection, listener);
+    /** A footprint near the bounds of its tile, written once it has been merged with its neighbours. */
+    private static final class EdgeFootprint {
+        final TilesetTraversal.TileNode tile;
+        final Polygon polygon;
+        final double height;
+        final double baseElevation;
 
-                if (featureCollection.isEmpty()) {
-                    listener.onComplete(true, "Import complete. No new building footprints found in the specified area.");
-                    return;
-                }
+        EdgeFootprint(TilesetTraversal.TileNode tile, Polygon polygon, double height, double baseElevation) {
+            this.tile = tile;
+            this.polygon = polygon;
+            this.height = height;
+            this.baseElevation = baseElevation;
+        }
+    }
 
-                listener.onProgress("Saving " + featureCollection.size() + " building footprints to GeoPackage...");
-                boolean success = geoPackageService.addFeatures("google_buildings", featureCollection);
+    /**
+     * One import: queues the tiles selected by the traversal, runs them through download and extraction,
+     * and closes the feature stream once the traversal has finished and every tile is done.
+     */
+    private final class Extraction implements ImportEngine.Listener {
+        private final Polygon aoi;
+        private final ProgressListener listener;
+        private final FeatureIngestPipeline.LayerStream stream;
+        private final long start = System.currentTimeMillis();
+        private final Deque<TilesetTraversal.TileNode> queue = new ArrayDeque<>();
+        private int inFlight;
+        private boolean traversalDone;
+        private boolean closed;
+        private String error;
+        private volatile int tilesetsWalked;
+        private volatile int tilesetCacheHits;
+        private final AtomicInteger tilesSelected = new AtomicInteger();
+        private final AtomicInteger tilesDone = new AtomicInteger();
+        private final AtomicInteger tilesUnsupported = new AtomicInteger();
+        private final AtomicLong footprints = new AtomicLong();
+        private final AtomicLong lastProgress = new AtomicLong();
+        // Guarded by itself
+        private final List<EdgeFootprint> edgeFootprints = new ArrayList<>();
 
-                String finalMessage = success ? "Successfully saved " + featureCollection.size() + " features." : "Failed to save features to GeoPackage.";
-                listener.onComplete(success, finalMessage);
+        Extraction(Polygon aoi, ProgressListener listener) {
+            this.aoi = aoi;
+            this.listener = listener;
+            this.stream = pipeline.openStream("Google 3D Tiles", TABLE_NAME, featureType, this);
+        }
 
-            } catch (Exception e) {
-                Log.e(TAG, "Error during 3D tiles import", e);
-                listener.onComplete(false, "Error: " + e.getMessage());
+        void add(TilesetTraversal.TileNode tile) {
+            tilesSelected.incrementAndGet();
+            synchronized (this) {
+                queue.add(tile);
             }
-        });
-    }
+            pump();
+        }
+
+        void walked(int fetched, int cacheHits) {
+            tilesetsWalked = fetched;
+            tilesetCacheHits = cacheHits;
+            reportProgress(false);
+        }
 
-    private void processTile(String tileUrl, String apiKey, Geometry aoi, DefaultFeatureCollection featureCollection, ProgressListener listener) throws Exception {
-        JsonObject tile = fetchJson(tileUrl);
-        if (tile == null) return;
+        void traversalComplete(boolean success, String traversalError) {
+            Log.d(TAG, "Tileset traversal finished in " + (System.currentTimeMillis() - start) + " ms");
+            synchronized (this) {
+                traversalDone = true;
+                if (!success) {
+                    error = traversalError;
+                    queue.clear();
+                }
+            }
+            if (!success) {
+                stream.fail();
+            }
+            pump();
+        }
 
-        JsonObject root = tile.getAsJsonObject("root");
-        if (root == null) return;
+        private void pump() {
+            boolean close = false;
+            synchronized (this) {
+                while (inFlight < MAX_TILES_IN_FLIGHT && !queue.isEmpty()) {
+                    final TilesetTraversal.TileNode tile = queue.poll();
+                    inFlight++;
+                    try {
+                        PluginExecutor.getInstance().submit("3dtiles-content", PluginExecutor.JobType.NETWORK, context -> {
+                            download(tile);
+                            return null;
+                        });
+                    } catch (RejectedExecutionException e) {
+                        inFlight--;
+                        Log.w(TAG, "Could not queue tile download: " + e.getMessage());
+                        stream.fail();
+                    }
+                }
+                if (traversalDone && inFlight == 0 && queue.isEmpty() && !closed) {
+                    closed = true;
+                    close = true;
+                }
+            }
+            if (close) {
+                try {
+                    List<SimpleFeature> merged = mergeEdgeFootprints();
+                    footprints.addAndGet(merged.size());
+                    stream.write(merged);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    stream.fail();
+                }
+                stream.close();
+            }
+        }
 
-        Polygon footprint = getFootprint(root);
-        if (footprint != null) {
-            if (aoi.intersects(footprint)) {
-                listener.onProgress("Found intersecting tile. Adding to collection.");
-                featureCollection.add(SimpleFeatureBuilder.build(featureCollection.getSchema(), new Object[]{footprint, "Google 3D Tiles"}, null));
-            } else {
-                // If the root doesn't intersect, no need to check children
+        private void download(final TilesetTraversal.TileNode tile) {
+            final byte[] content;
+            try {
+                content = load(tile.contentUrl);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to fetch tile " + TilesetCache.cacheKey(tile.contentUrl) + ": " + e.getMessage());
+                tileDone();
                 return;
             }
+            try {
+                PluginExecutor.getInstance().submit("3dtiles-extract", PluginExecutor.JobType.COMPUTE, context -> {
+                    try {
+                        extract(tile, content);
+                    } finally {
+                        tileDone();
+                    }
+                    return null;
+                });
+            } catch (RejectedExecutionException e) {
+                Log.w(TAG, "Could not queue tile extraction: " + e.getMessage());
+                stream.fail();
+                tileDone();
+            }
         }
 
-        // Recursively process children
-        if (root.has("children")) {
-            JsonArray children = root.getAsJsonArray("children");
-            for (JsonElement childElement : children) {
-                JsonObject childObject = childElement.getAsJsonObject();
-                if (getFootprint(childObject) != null && getFootprint(childObject).intersects(aoi)) {
-                    if (childObject.has("content") && childObject.getAsJsonObject("content").has("uri")) {
-                        String childUri = childObject.getAsJsonObject("content").get("uri").getAsString();
-                        String childUrl = TILES_BASE_URL + childUri + "?key=" + apiKey;
-                        // This is where we would typically load a b3dm file and parse it.
-                        // For footprints, we can just use the bounding box of the child.
-                        Polygon childFootprint = getFootprint(childObject);
-                        if(childFootprint != null) {
-                             featureCollection.add(SimpleFeatureBuilder.build(featureCollection.getSchema(), new Object[]{childFootprint, "Google 3D Tiles"}, null));
-                        }
+        private void extract(TilesetTraversal.TileNode tile, byte[] content) throws InterruptedException {
+            TileContentDecoder.Mesh mesh;
+            try {
+                mesh = decoder.decode(content, tile.transform);
+            } catch (TileContentDecoder.UnsupportedContentException e) {
+                if (tilesUnsupported.getAndIncrement() == 0) {
+                    Log.w(TAG, "Using tile bounds for undecodable tile content: " + e.getMessage());
+                }
+                writeTileBounds(tile);
+                return;
+            } catch (IOException | RuntimeException e) {
+                Log.w(TAG, "Failed to decode tile " + TilesetCache.cacheKey(tile.contentUrl) + ": " + e.getMessage());
+                return;
+            }
+
+            List<SimpleFeature> features = new ArrayList<>();
+            Geometry tileEdge = tile.footprint != null ? tile.footprint.getBoundary() : null;
+            for (BuildingFootprintExtractor.Footprint footprint : extractor.extract(mesh)) {
+                Coordinate[] ring = new Coordinate[footprint.ring.length / 2];
+                for (int i = 0; i < ring.length; i++) {
+                    ring[i] = new Coordinate(footprint.ring[i * 2], footprint.ring[i * 2 + 1]);
+                }
+                Polygon polygon = geometryFactory.createPolygon(ring);
+                if (tileEdge == null || polygon.isWithinDistance(tileEdge, mergeDistance(polygon))) {
+                    synchronized (edgeFootprints) {
+                        edgeFootprints.add(new EdgeFootprint(tile, polygon, footprint.height, footprint.baseElevation));
                     }
-                     // In a full implementation, we'd recursively call processTile for subtree files here
+                    continue;
                 }
+                if (!aoi.intersects(polygon)) continue;
+                features.add(SimpleFeatureBuilder.build(featureType,
+                        new Object[]{polygon, "Google 3D Tiles", footprint.height, footprint.baseElevation}, null));
             }
+            footprints.addAndGet(features.size());
+            stream.write(features);
         }
-    }
 
-    private Polygon getFootprint(JsonObject tileNode) throws Exception {
-        if (!tileNode.has("boundingVolume") || !tileNode.getAsJsonObject("boundingVolume").has("box")) {
-            return null;
-        }
-        JsonArray boxArray = tileNode.getAsJsonObject("boundingVolume").getAsJsonArray("box");
-
-        // Extract OBB parameters
-        double cx = boxArray.get(0).getAsDouble();
-        double cy = boxArray.get(1).getAsDouble();
-        double cz = boxArray.get(2).getAsDouble();
-
-        double ux_x = boxArray.get(3).getAsDouble();
-        double ux_y = boxArray.get(4).getAsDouble();
-        double ux_z = boxArray.get(5).getAsDouble();
-
-        double uy_x = boxArray.get(6).getAsDouble();
-        double uy_y = boxArray.get(7).getAsDouble();
-        double uy_z = boxArray.get(8).getAsDouble();
-
-        double uz_x = boxArray.get(9).getAsDouble();
-        double uz_y = boxArray.get(10).getAsDouble();
-        double uz_z = boxArray.get(11).getAsDouble();
-
-        // Calculate 8 corner points in ECEF
-        List<double[]> ecefCorners = new ArrayList<>();
-        for (int i = -1; i <= 1; i += 2) {
-            for (int j = -1; j <= 1; j += 2) {
-                for (int k = -1; k <= 1; k += 2) {
-                    double x = cx + i * ux_x + j * uy_x + k * uz_x;
-                    double y = cy + i * ux_y + j * uy_y + k * uz_y;
-                    double z = cz + i * ux_z + j * uy_z + k * uz_z;
-                    ecefCorners.add(new double[]{x, y, z});
+        /**
+         * Writes the tile's bounding-volume footprint in place of the buildings its content would give.
+         */
+        private void writeTileBounds(TilesetTraversal.TileNode tile) throws InterruptedException {
+            if (tile.footprint == null || !aoi.intersects(tile.footprint)) return;
+            List<SimpleFeature> features = new ArrayList<>(1);
+            features.add(SimpleFeatureBuilder.build(featureType,
+                    new Object[]{tile.footprint, "Google 3D Tiles (tile bounds)", null, null}, null));
+            footprints.addAndGet(1);
+            stream.write(features);
+        }
+
+        /**
+         * Joins the held footprints that come from different tiles and lie within {@link #MERGE_DISTANCE_M} of
+         * each other: the two halves of a building cut by a tile boundary, or one building found in two tiles.
+         * A merged footprint is the convex hull of its parts, as each part already is, with the highest roof
+         * and the lowest ground.
+         */
+        private List<SimpleFeature> mergeEdgeFootprints() {
+            List<EdgeFootprint> held;
+            synchronized (edgeFootprints) {
+                held = new ArrayList<>(edgeFootprints);
+                edgeFootprints.clear();
+            }
+            STRtree index = new STRtree();
+            for (int i = 0; i < held.size(); i++) {
+                index.insert(held.get(i).polygon.getEnvelopeInternal(), i);
+            }
+            int[] parent = new int[held.size()];
+            for (int i = 0; i < parent.length; i++) parent[i] = i;
+            for (int i = 0; i < held.size(); i++) {
+                EdgeFootprint footprint = held.get(i);
+                double distance = mergeDistance(footprint.polygon);
+                org.locationtech.jts.geom.Envelope search =
+                        new org.locationtech.jts.geom.Envelope(footprint.polygon.getEnvelopeInternal());
+                search.expandBy(distance);
+                for (Object candidate : index.query(search)) {
+                    int j = (Integer) candidate;
+                    EdgeFootprint other = held.get(j);
+                    if (j <= i || other.tile == footprint.tile) continue;
+                    if (footprint.polygon.isWithinDistance(other.polygon, distance)) {
+                        parent[root(parent, i)] = root(parent, j);
+                    }
+                }
+            }
+
+            Map<Integer, List<EdgeFootprint>> groups = new HashMap<>();
+            for (int i = 0; i < held.size(); i++) {
+                int root = root(parent, i);
+                List<EdgeFootprint> group = groups.get(root);
+                if (group == null) {
+                    group = new ArrayList<>();
+                    groups.put(root, group);
+                }
+                group.add(held.get(i));
+            }
+            List<SimpleFeature> features = new ArrayList<>();
+            for (List<EdgeFootprint> group : groups.values()) {
+                Geometry polygon = group.get(0).polygon;
+                double roof = Double.NEGATIVE_INFINITY;
+                double baseElevation = Double.POSITIVE_INFINITY;
+                Polygon[] parts = new Polygon[group.size()];
+                for (int i = 0; i < parts.length; i++) {
+                    EdgeFootprint part = group.get(i);
+                    parts[i] = part.polygon;
+                    roof = Math.max(roof, part.baseElevation + part.height);
+                    baseElevation = Math.min(baseElevation, part.baseElevation);
+                }
+                if (parts.length > 1) {
+                    polygon = geometryFactory.createMultiPolygon(parts).convexHull();
                 }
+                double height = roof - baseElevation;
+                if (!(polygon instanceof Polygon) || !aoi.intersects(polygon)) continue;
+                features.add(SimpleFeatureBuilder.build(featureType,
+                        new Object[]{polygon, "Google 3D Tiles", height, baseElevation}, null));
             }
+            if (!held.isEmpty()) {
+                Log.d(TAG, "Merged " + held.size() + " footprints on tile edges into " + features.size());
+            }
+            return features;
+        }
+
+        private void tileDone() {
+            tilesDone.incrementAndGet();
+            synchronized (this) {
+                inFlight--;
+            }
+            reportProgress(false);
+            pump();
         }
 
-        // Transform corners to WGS84
-        List<Coordinate> wgs84Corners = new ArrayList<>();
-        for (double[] ecefCorner : ecefCorners) {
-            double[] wgs84Corner = new double[3];
-            JTS.transform(ecefCorner, 0, wgs84Corner, 0, ecefToWgs84Transform, 1);
-            wgs84Corners.add(new Coordinate(wgs84Corner[0], wgs84Corner[1]));
+        private void reportProgress(boolean force) {
+            long now = System.currentTimeMillis();
+            long last = lastProgress.get();
+            if (!force && (now - last < PROGRESS_INTERVAL_MS || !lastProgress.compareAndSet(last, now))) return;
+            double seconds = Math.max(1, now - start) / 1000.0;
+            listener.onProgress(String.format(Locale.US,
+                    "Walked %d tilesets (%d cached); %d of %d tiles processed (%.1f tiles/s), %d footprints (%.1f/s)",
+                    tilesetsWalked, tilesetCacheHits, tilesDone.get(), tilesSelected.get(), tilesDone.get() / seconds,
+                    footprints.get(), footprints.get() / seconds));
         }
 
-        // Create convex hull of the 2D projected points to form the footprint
-        Geometry convexHull = geometryFactory.createMultiPointFromCoords(wgs84Corners.toArray(new Coordinate[0])).convexHull();
-        if (convexHull instanceof Polygon) {
-            return (Polygon) convexHull;
+        @Override
+        public void onProgress(String source, int layersDone, int layerCount, long features, double featuresPerSecond) {
+        }
+
+        @Override
+        public void onFinished(String source, boolean success, long features, long elapsedMs) {
+            String failure;
+            synchronized (this) {
+                failure = error;
+            }
+            double seconds = Math.max(1, System.currentTimeMillis() - start) / 1000.0;
+            String stats = String.format(Locale.US, "%d tiles in %.1f s (%.1f tiles/s, %.1f footprints/s)",
+                    tilesDone.get(), seconds, tilesDone.get() / seconds, features / seconds);
+            Log.d(TAG, "Extracted " + features + " building footprints from " + stats
+                    + ", " + tilesUnsupported.get() + " undecodable tiles saved as their bounds");
+            reportProgress(true);
+
+            if (failure != null) {
+                listener.onComplete(false, "Error: " + failure);
+            } else if (!success) {
+                listener.onComplete(false, "Failed to save building footprints to GeoPackage.");
+            } else if (features == 0) {
+                listener.onComplete(true, tilesUnsupported.get() > 0
+                        ? "Import complete. " + tilesUnsupported.get() + " tiles use compressed meshes that cannot be decoded."
+                        : "Import complete. No building footprints found in the specified area.");
+            } else {
+                listener.onComplete(true, "Saved " + features + " building footprints from " + stats
+                        + (tilesUnsupported.get() > 0 ? "; " + tilesUnsupported.get()
+                        + " tiles with compressed meshes were saved as their bounds, without heights." : "."));
+            }
         }
-        return null;
     }
 
-    private JsonObject fetchJson(String urlString) {
-        try {
-            URL url = new URL(urlString);
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("GET");
-            if (conn.getResponseCode() != 200) {
-                Log.w(TAG, "Failed to fetch JSON from " + urlString + ". Response code: " + conn.getResponseCode());
-                return null;
-            }
-            BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream()));
-            return gson.fromJson(in, JsonObject.class);
-        } catch (Exception e) {
-            Log.e(TAG, "Exception while fetching JSON from " + urlString, e);
-            return null;
+    private static int root(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
         }
+        return i;
     }
 
-    private SimpleFeatureType createFeatureType() {
-        SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
-        builder.setName("GoogleBuildingFootprint");
-        builder.setCRS(null); // Let GeoPackage handle CRS
-        builder.add("the_geom", Polygon.class);
-        builder.add("source", String.class);
-        return builder.buildFeatureType();
+    /**
+     * @return {@link #MERGE_DISTANCE_M} in degrees of longitude at the polygon's latitude, the wider of the two
+     */
+    private static double mergeDistance(Polygon polygon) {
+        org.locationtech.jts.geom.Envelope envelope = polygon.getEnvelopeInternal();
+        double lat = Math.toRadians((envelope.getMinY() + envelope.getMaxY()) / 2);
+        return MERGE_DISTANCE_M / (METERS_PER_DEGREE * Math.max(0.01, Math.cos(lat)));
+    }
+
+    /**
+     * @return the tile content, from the cache when present
+     */
+    private byte[] load(URL url) throws IOException {
+        byte[] data = cache.get(url);
+        if (data == null) {
+            data = TilesetTraversal.fetch(url);
+            cache.put(url, data);
+        }
+        return data;
     }
 }
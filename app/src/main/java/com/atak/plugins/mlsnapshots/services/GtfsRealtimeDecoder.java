@@ -0,0 +1,427 @@
+package com.atak.plugins.mlsnapshots.services;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.sql.SQLException;
+
+/**
+ * Decodes a GTFS-Realtime {@code FeedMessage} straight from its protobuf bytes.
+ * <p>
+ * Vehicle positions and trip update stop times are passed to a {@link Handler} one at a time in records that are
+ * reused for the next one, so no object graph is built for the feed. Alerts and unknown fields are skipped.
+ * Field numbers follow gtfs-realtime.proto.
+ */
+final class GtfsRealtimeDecoder {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static final int NONE = Integer.MIN_VALUE;
+
+    private static final int WIRE_VARINT = 0;
+    private static final int WIRE_FIXED64 = 1;
+    private static final int WIRE_LENGTH = 2;
+    private static final int WIRE_FIXED32 = 5;
+
+    interface Handler {
+        /**
+         * @param timestamp POSIX seconds at which the feed was produced, or 0 if it has none
+         * @return false to stop decoding, e.g. because the feed has not changed
+         */
+        boolean header(long timestamp);
+
+        void vehicle(Vehicle vehicle) throws SQLException;
+
+        void stopTime(StopTime stopTime) throws SQLException;
+    }
+
+    static final class Trip {
+        String tripId;
+        String routeId;
+        String startDate;
+        String startTime;
+        int directionId;
+        int scheduleRelationship;
+
+        void clear() {
+            tripId = routeId = startDate = startTime = null;
+            directionId = scheduleRelationship = NONE;
+        }
+    }
+
+    static final class Vehicle {
+        final Trip trip = new Trip();
+        String entityId;
+        String vehicleId;
+        String label;
+        double lat;
+        double lon;
+        double bearing;
+        double speed;
+        String stopId;
+        int currentStopSequence;
+        int currentStatus;
+        long timestamp;
+
+        void clear() {
+            trip.clear();
+            entityId = vehicleId = label = stopId = null;
+            lat = lon = bearing = speed = Double.NaN;
+            currentStopSequence = currentStatus = NONE;
+            timestamp = 0;
+        }
+    }
+
+    static final class StopTime {
+        final Trip trip = new Trip();
+        String entityId;
+        String vehicleId;
+        long timestamp;
+        int stopSequence;
+        String stopId;
+        int arrivalDelay;
+        long arrivalTime;
+        int departureDelay;
+        long departureTime;
+        int scheduleRelationship;
+
+        void clearStop() {
+            stopSequence = arrivalDelay = departureDelay = scheduleRelationship = NONE;
+            stopId = null;
+            arrivalTime = departureTime = 0;
+        }
+    }
+
+    private final Vehicle vehicle = new Vehicle();
+    private final StopTime stopTime = new StopTime();
+    private byte[] buf;
+    private int pos;
+
+    /**
+     * Decodes the first {@code length} bytes of {@code data}.
+     *
+     * @throws IOException if the bytes are not a well-formed FeedMessage
+     */
+    void decode(byte[] data, int length, Handler handler) throws IOException, SQLException {
+        buf = data;
+        pos = 0;
+        try {
+            while (pos < length) {
+                int tag = (int) varint();
+                int end;
+                switch (tag) {
+                    case 1 << 3 | WIRE_LENGTH:
+                        end = limit(length);
+                        if (!handler.header(header(end))) return;
+                        pos = end;
+                        break;
+                    case 2 << 3 | WIRE_LENGTH:
+                        end = limit(length);
+                        entity(end, handler);
+                        pos = end;
+                        break;
+                    default:
+                        skip(tag, length);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Truncated GTFS-Realtime message at byte " + pos);
+        } finally {
+            buf = null;
+        }
+    }
+
+    private long header(int end) throws IOException {
+        long timestamp = 0;
+        while (pos < end) {
+            int tag = (int) varint();
+            if (tag == (3 << 3 | WIRE_VARINT)) {
+                timestamp = varint();
+            } else {
+                skip(tag, end);
+            }
+        }
+        return timestamp;
+    }
+
+    /**
+     * Entity fields are usually in field order, with the id first, but that is not guaranteed; the id is read
+     * before the payload is decoded.
+     */
+    private void entity(int end, Handler handler) throws IOException, SQLException {
+        String id = null;
+        boolean deleted = false;
+        int tripUpdate = -1, tripUpdateEnd = -1, position = -1, positionEnd = -1;
+        while (pos < end) {
+            int tag = (int) varint();
+            switch (tag) {
+                case 1 << 3 | WIRE_LENGTH:
+                    id = string();
+                    break;
+                case 2 << 3 | WIRE_VARINT:
+                    deleted = varint() != 0;
+                    break;
+                case 3 << 3 | WIRE_LENGTH:
+                    tripUpdateEnd = limit(end);
+                    tripUpdate = pos;
+                    pos = tripUpdateEnd;
+                    break;
+                case 4 << 3 | WIRE_LENGTH:
+                    positionEnd = limit(end);
+                    position = pos;
+                    pos = positionEnd;
+                    break;
+                default:
+                    skip(tag, end);
+            }
+        }
+        if (deleted) return;
+        if (position >= 0) {
+            pos = position;
+            vehicle.clear();
+            vehicle.entityId = id;
+            vehiclePosition(positionEnd);
+            handler.vehicle(vehicle);
+        }
+        if (tripUpdate >= 0) {
+            pos = tripUpdate;
+            tripUpdate(tripUpdateEnd, id, handler);
+        }
+        pos = end;
+    }
+
+    private void vehiclePosition(int end) throws IOException {
+        while (pos < end) {
+            int tag = (int) varint();
+            int sub;
+            switch (tag) {
+                case 1 << 3 | WIRE_LENGTH:
+                    sub = limit(end);
+                    trip(sub, vehicle.trip);
+                    break;
+                case 2 << 3 | WIRE_LENGTH:
+                    sub = limit(end);
+                    position(sub);
+                    break;
+                case 3 << 3 | WIRE_VARINT:
+                    vehicle.currentStopSequence = (int) varint();
+                    break;
+                case 4 << 3 | WIRE_VARINT:
+                    vehicle.currentStatus = (int) varint();
+                    break;
+                case 5 << 3 | WIRE_VARINT:
+                    vehicle.timestamp = varint();
+                    break;
+                case 7 << 3 | WIRE_LENGTH:
+                    vehicle.stopId = string();
+                    break;
+                case 8 << 3 | WIRE_LENGTH:
+                    sub = limit(end);
+                    while (pos < sub) {
+                        int field = (int) varint();
+                        if (field == (1 << 3 | WIRE_LENGTH)) {
+                            vehicle.vehicleId = string();
+                        } else if (field == (2 << 3 | WIRE_LENGTH)) {
+                            vehicle.label = string();
+                        } else {
+                            skip(field, sub);
+                        }
+                    }
+                    break;
+                default:
+                    skip(tag, end);
+            }
+        }
+    }
+
+    private void position(int end) throws IOException {
+        while (pos < end) {
+            int tag = (int) varint();
+            switch (tag) {
+                case 1 << 3 | WIRE_FIXED32:
+                    vehicle.lat = Float.intBitsToFloat(fixed32());
+                    break;
+                case 2 << 3 | WIRE_FIXED32:
+                    vehicle.lon = Float.intBitsToFloat(fixed32());
+                    break;
+                case 3 << 3 | WIRE_FIXED32:
+                    vehicle.bearing = Float.intBitsToFloat(fixed32());
+                    break;
+                case 5 << 3 | WIRE_FIXED32:
+                    vehicle.speed = Float.intBitsToFloat(fixed32());
+                    break;
+                default:
+                    skip(tag, end);
+            }
+        }
+    }
+
+    /**
+     * Encoders write the stop time updates (field 2) before the vehicle and timestamp (fields 3 and 4), so the
+     * trip-level fields are read in a first pass and the stop times emitted in a second.
+     */
+    private void tripUpdate(int end, String entityId, Handler handler) throws IOException, SQLException {
+        int start = pos;
+        stopTime.trip.clear();
+        stopTime.entityId = entityId;
+        stopTime.vehicleId = null;
+        stopTime.timestamp = 0;
+        while (pos < end) {
+            int tag = (int) varint();
+            int sub;
+            switch (tag) {
+                case 1 << 3 | WIRE_LENGTH:
+                    sub = limit(end);
+                    trip(sub, stopTime.trip);
+                    break;
+                case 3 << 3 | WIRE_LENGTH:
+                    sub = limit(end);
+                    while (pos < sub) {
+                        int field = (int) varint();
+                        if (field == (1 << 3 | WIRE_LENGTH)) {
+                            stopTime.vehicleId = string();
+                        } else {
+                            skip(field, sub);
+                        }
+                    }
+                    break;
+                case 4 << 3 | WIRE_VARINT:
+                    stopTime.timestamp = varint();
+                    break;
+                default:
+                    skip(tag, end);
+            }
+        }
+        pos = start;
+        while (pos < end) {
+            int tag = (int) varint();
+            if (tag == (2 << 3 | WIRE_LENGTH)) {
+                int sub = limit(end);
+                stopTime.clearStop();
+                stopTimeUpdate(sub);
+                handler.stopTime(stopTime);
+            } else {
+                skip(tag, end);
+            }
+        }
+    }
+
+    private void stopTimeUpdate(int end) throws IOException {
+        while (pos < end) {
+            int tag = (int) varint();
+            switch (tag) {
+                case 1 << 3 | WIRE_VARINT:
+                    stopTime.stopSequence = (int) varint();
+                    break;
+                case 2 << 3 | WIRE_LENGTH:
+                case 3 << 3 | WIRE_LENGTH: {
+                    boolean arrival = tag >>> 3 == 2;
+                    int sub = limit(end);
+                    while (pos < sub) {
+                        int field = (int) varint();
+                        if (field == (1 << 3 | WIRE_VARINT)) {
+                            int delay = (int) varint();
+                            if (arrival) stopTime.arrivalDelay = delay; else stopTime.departureDelay = delay;
+                        } else if (field == (2 << 3 | WIRE_VARINT)) {
+                            long time = varint();
+                            if (arrival) stopTime.arrivalTime = time; else stopTime.departureTime = time;
+                        } else {
+                            skip(field, sub);
+                        }
+                    }
+                    break;
+                }
+                case 4 << 3 | WIRE_LENGTH:
+                    stopTime.stopId = string();
+                    break;
+                case 5 << 3 | WIRE_VARINT:
+                    stopTime.scheduleRelationship = (int) varint();
+                    break;
+                default:
+                    skip(tag, end);
+            }
+        }
+    }
+
+    private void trip(int end, Trip trip) throws IOException {
+        while (pos < end) {
+            int tag = (int) varint();
+            switch (tag) {
+                case 1 << 3 | WIRE_LENGTH:
+                    trip.tripId = string();
+                    break;
+                case 2 << 3 | WIRE_LENGTH:
+                    trip.startTime = string();
+                    break;
+                case 3 << 3 | WIRE_LENGTH:
+                    trip.startDate = string();
+                    break;
+                case 4 << 3 | WIRE_VARINT:
+                    trip.scheduleRelationship = (int) varint();
+                    break;
+                case 5 << 3 | WIRE_LENGTH:
+                    trip.routeId = string();
+                    break;
+                case 6 << 3 | WIRE_VARINT:
+                    trip.directionId = (int) varint();
+                    break;
+                default:
+                    skip(tag, end);
+            }
+        }
+    }
+
+    private long varint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buf[pos++];
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        throw new IOException("Malformed varint at byte " + pos);
+    }
+
+    private int fixed32() {
+        int value = (buf[pos] & 0xFF) | (buf[pos + 1] & 0xFF) << 8 | (buf[pos + 2] & 0xFF) << 16
+                | (buf[pos + 3] & 0xFF) << 24;
+        pos += 4;
+        return value;
+    }
+
+    /**
+     * Reads a length prefix and returns where the value ends.
+     */
+    private int limit(int outer) throws IOException {
+        long length = varint();
+        if (length < 0 || pos + length > outer) {
+            throw new IOException("Field of " + length + " bytes overruns its message at byte " + pos);
+        }
+        return pos + (int) length;
+    }
+
+    private String string() throws IOException {
+        int end = limit(buf.length);
+        String value = new String(buf, pos, end - pos, UTF_8);
+        pos = end;
+        return value;
+    }
+
+    private void skip(int tag, int end) throws IOException {
+        switch (tag & 7) {
+            case WIRE_VARINT:
+                varint();
+                break;
+            case WIRE_FIXED64:
+                pos += 8;
+                break;
+            case WIRE_LENGTH:
+                pos = limit(end);
+                break;
+            case WIRE_FIXED32:
+                pos += 4;
+                break;
+            default:
+                throw new IOException("Unsupported wire type " + (tag & 7) + " at byte " + pos);
+        }
+        if (pos > end) throw new IOException("Field overruns its message at byte " + pos);
+    }
+}
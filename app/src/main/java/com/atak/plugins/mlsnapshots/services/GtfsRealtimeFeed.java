@@ -0,0 +1,301 @@
+package com.atak.plugins.mlsnapshots.services;
+
+import com.atakmap.coremap.log.Log;
+import org.duckdb.DuckDBAppender;
+import org.duckdb.DuckDBConnection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * One GTFS-Realtime feed. Each refresh fetches the protobuf, decodes it with {@link GtfsRealtimeDecoder} and
+ * appends the records into fresh {@code <table>_vehicles} and {@code <table>_trip_updates} snapshots, one row per
+ * vehicle and per stop time. Both are {@link DoubleBufferedTable}s: a snapshot is loaded beside the one being read
+ * and the two are swapped in together. What changed since the previous snapshot is added to
+ * {@code <table>_changes}, and the vehicles that moved are published on the {@link ChangeFeed}.
+ * <p>
+ * A refresh stops early when the server answers 304 or the feed header timestamp has not moved, so polling a
+ * citywide feed every few seconds costs little when it has not been republished.
+ */
+class GtfsRealtimeFeed {
+
+    private static final String TAG = "GtfsRealtimeFeed";
+
+    // Changes older than this are dropped
+    private static final long CHANGE_RETENTION_S = 3600;
+
+    private static final String VEHICLE_COLUMNS = "(entity_id VARCHAR, vehicle_id VARCHAR, label VARCHAR, "
+            + "trip_id VARCHAR, route_id VARCHAR, direction_id INTEGER, start_date VARCHAR, lat DOUBLE, lon DOUBLE, "
+            + "bearing DOUBLE, speed DOUBLE, stop_id VARCHAR, current_stop_sequence INTEGER, current_status INTEGER, "
+            + "timestamp BIGINT)";
+    private static final String STOP_TIME_COLUMNS = "(entity_id VARCHAR, trip_id VARCHAR, route_id VARCHAR, "
+            + "direction_id INTEGER, start_date VARCHAR, vehicle_id VARCHAR, stop_sequence INTEGER, stop_id VARCHAR, "
+            + "arrival_delay INTEGER, arrival_time BIGINT, departure_delay INTEGER, departure_time BIGINT, "
+            + "schedule_relationship INTEGER, timestamp BIGINT)";
+
+    private final DuckDBService duckDBService;
+    private final String table;
+    private final String url;
+    private final DoubleBufferedTable vehicles;
+    private final DoubleBufferedTable tripUpdates;
+    private final GtfsRealtimeDecoder decoder = new GtfsRealtimeDecoder();
+    // Reused across refreshes; grows to the largest feed seen
+    private byte[] buffer = new byte[64 * 1024];
+    // Validators of the version that is loaded; those of a fetched version wait until it has been swapped in
+    private String etag;
+    private String lastModified;
+    private String fetchedEtag;
+    private String fetchedLastModified;
+    private long feedTimestamp;
+
+    GtfsRealtimeFeed(DuckDBService duckDBService, String table, String url) {
+        this.duckDBService = duckDBService;
+        this.table = table;
+        this.url = url;
+        this.vehicles = new DoubleBufferedTable(table + "_vehicles");
+        this.tripUpdates = new DoubleBufferedTable(table + "_trip_updates");
+    }
+
+    /**
+     * Run by the {@link FeedScheduler}, so refreshes of one feed never overlap.
+     */
+    void refresh(FeedScheduler.Run run) throws IOException, SQLException {
+        long start = System.nanoTime();
+        int length = fetch();
+        if (length < 0) {
+            run.setUnchanged();
+            return;
+        }
+        run.addBytes(length);
+        run.throwIfCancelled();
+
+        try (Connection conn = duckDBService.newConnection(); Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS " + table + "_changes (feed_timestamp BIGINT, kind VARCHAR, "
+                    + "key VARCHAR, change VARCHAR)");
+            String vehiclesNext = vehicles.shadow(conn);
+            String tripUpdatesNext = tripUpdates.shadow(conn);
+            stmt.execute("CREATE OR REPLACE TABLE " + vehiclesNext + " " + VEHICLE_COLUMNS);
+            stmt.execute("CREATE OR REPLACE TABLE " + tripUpdatesNext + " " + STOP_TIME_COLUMNS);
+
+            Appender appender;
+            DuckDBConnection duck = conn.unwrap(DuckDBConnection.class);
+            try (DuckDBAppender vehicleRows = duck.createAppender("main", vehiclesNext);
+                 DuckDBAppender stopTimeRows = duck.createAppender("main", tripUpdatesNext)) {
+                appender = new Appender(vehicleRows, stopTimeRows);
+                decoder.decode(buffer, length, appender);
+            }
+            if (appender.unchanged) {
+                // The same version as the one loaded, so its validators can be trusted
+                commitValidators();
+                run.setUnchanged();
+                return;
+            }
+            run.throwIfCancelled();
+
+            long timestamp = appender.timestamp > 0 ? appender.timestamp : System.currentTimeMillis() / 1000;
+            int changes = diff(conn, timestamp, vehiclesNext, current(conn, vehicles, vehiclesNext),
+                    tripUpdatesNext, current(conn, tripUpdates, tripUpdatesNext));
+            ChangeFeed changeFeed = duckDBService.getChangeFeed();
+            ChangeFeed.Changes moved = changeFeed.diff(conn, vehicles.getName(), vehiclesNext,
+                    vehicles.current(conn));
+            DoubleBufferedTable.swap(conn, vehicles, tripUpdates);
+            commitValidators();
+            if (moved != null) changeFeed.publish(moved);
+            feedTimestamp = appender.timestamp;
+            Log.d(TAG, String.format(Locale.US, "%s: %d vehicles, %d stop times, %d changes from %d bytes in %d ms",
+                    table, appender.vehicleCount, appender.stopTimeCount, changes, length,
+                    (System.nanoTime() - start) / 1000000));
+            run.setRows(appender.vehicleCount + appender.stopTimeCount);
+        }
+    }
+
+    /**
+     * @return what readers see of {@code table}, or an empty relation shaped like {@code next} before the first load
+     */
+    private static String current(Connection conn, DoubleBufferedTable table, String next) throws SQLException {
+        String current = table.current(conn);
+        return current != null ? current : "(SELECT * FROM " + next + " LIMIT 0)";
+    }
+
+    /**
+     * Records vehicles that appeared, disappeared or moved, and stop times whose prediction changed.
+     */
+    private int diff(Connection conn, long timestamp, String vehiclesNext, String vehiclesNow,
+                     String tripUpdatesNext, String tripUpdatesNow) throws SQLException {
+        int changes = 0;
+        String vehicleKey = "coalesce(vehicle_id, entity_id)";
+        try (PreparedStatement ps = conn.prepareStatement("INSERT INTO " + table + "_changes "
+                + "SELECT ?, 'vehicle', coalesce(n.key, o.key), CASE WHEN o.key IS NULL THEN 'added' "
+                + "WHEN n.key IS NULL THEN 'removed' ELSE 'updated' END FROM "
+                + "(SELECT " + vehicleKey + " AS key, * FROM " + vehiclesNext + ") n FULL OUTER JOIN "
+                + "(SELECT " + vehicleKey + " AS key, * FROM " + vehiclesNow + ") o ON n.key = o.key "
+                + "WHERE o.key IS NULL OR n.key IS NULL OR n.lat IS DISTINCT FROM o.lat "
+                + "OR n.lon IS DISTINCT FROM o.lon OR n.trip_id IS DISTINCT FROM o.trip_id "
+                + "OR n.current_stop_sequence IS DISTINCT FROM o.current_stop_sequence "
+                + "OR n.current_status IS DISTINCT FROM o.current_status")) {
+            ps.setLong(1, timestamp);
+            changes += ps.executeUpdate();
+        }
+        String stopKey = "concat_ws(':', trip_id, start_date, coalesce(CAST(stop_sequence AS VARCHAR), stop_id))";
+        try (PreparedStatement ps = conn.prepareStatement("INSERT INTO " + table + "_changes "
+                + "SELECT ?, 'stop_time', coalesce(n.key, o.key), CASE WHEN o.key IS NULL THEN 'added' "
+                + "WHEN n.key IS NULL THEN 'removed' ELSE 'updated' END FROM "
+                + "(SELECT " + stopKey + " AS key, * FROM " + tripUpdatesNext + ") n FULL OUTER JOIN "
+                + "(SELECT " + stopKey + " AS key, * FROM " + tripUpdatesNow + ") o ON n.key = o.key "
+                + "WHERE o.key IS NULL OR n.key IS NULL OR n.arrival_time IS DISTINCT FROM o.arrival_time "
+                + "OR n.arrival_delay IS DISTINCT FROM o.arrival_delay "
+                + "OR n.departure_time IS DISTINCT FROM o.departure_time "
+                + "OR n.departure_delay IS DISTINCT FROM o.departure_delay "
+                + "OR n.schedule_relationship IS DISTINCT FROM o.schedule_relationship")) {
+            ps.setLong(1, timestamp);
+            changes += ps.executeUpdate();
+        }
+        try (PreparedStatement ps = conn.prepareStatement("DELETE FROM " + table + "_changes WHERE feed_timestamp < ?")) {
+            ps.setLong(1, timestamp - CHANGE_RETENTION_S);
+            ps.executeUpdate();
+        }
+        return changes;
+    }
+
+    /**
+     * Reads the feed into {@link #buffer}.
+     *
+     * @return the number of bytes read, or -1 if the server reports the feed unchanged
+     */
+    private int fetch() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(10000);
+        connection.setReadTimeout(15000);
+        connection.setRequestProperty("Accept", "application/x-protobuf, application/octet-stream");
+        if (etag != null) connection.setRequestProperty("If-None-Match", etag);
+        if (lastModified != null) connection.setRequestProperty("If-Modified-Since", lastModified);
+        try {
+            int code = connection.getResponseCode();
+            if (code == HttpURLConnection.HTTP_NOT_MODIFIED) return -1;
+            if (code != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Server returned HTTP " + code + " for " + url);
+            }
+            int expected = connection.getContentLength();
+            if (expected > buffer.length) buffer = new byte[expected];
+            int length = 0;
+            try (InputStream in = connection.getInputStream()) {
+                int read;
+                while ((read = in.read(buffer, length, buffer.length - length)) != -1) {
+                    length += read;
+                    if (length == buffer.length) buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+            }
+            fetchedEtag = connection.getHeaderField("ETag");
+            fetchedLastModified = connection.getHeaderField("Last-Modified");
+            return length;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Sends the fetched version's validators from now on. Until then a failed or cancelled refresh leaves the
+     * old ones in place, so the next poll cannot get a 304 for a version that was never loaded.
+     */
+    private void commitValidators() {
+        etag = fetchedEtag;
+        lastModified = fetchedLastModified;
+    }
+
+    private final class Appender implements GtfsRealtimeDecoder.Handler {
+        private final DuckDBAppender vehicles;
+        private final DuckDBAppender stopTimes;
+        long timestamp;
+        boolean unchanged;
+        int vehicleCount;
+        int stopTimeCount;
+
+        Appender(DuckDBAppender vehicles, DuckDBAppender stopTimes) {
+            this.vehicles = vehicles;
+            this.stopTimes = stopTimes;
+        }
+
+        @Override
+        public boolean header(long timestamp) {
+            this.timestamp = timestamp;
+            unchanged = timestamp != 0 && timestamp == feedTimestamp;
+            return !unchanged;
+        }
+
+        @Override
+        public void vehicle(GtfsRealtimeDecoder.Vehicle vehicle) throws SQLException {
+            vehicles.beginRow();
+            vehicles.append(vehicle.entityId);
+            vehicles.append(vehicle.vehicleId);
+            vehicles.append(vehicle.label);
+            vehicles.append(vehicle.trip.tripId);
+            vehicles.append(vehicle.trip.routeId);
+            appendInt(vehicles, vehicle.trip.directionId);
+            vehicles.append(vehicle.trip.startDate);
+            appendDouble(vehicles, vehicle.lat);
+            appendDouble(vehicles, vehicle.lon);
+            appendDouble(vehicles, vehicle.bearing);
+            appendDouble(vehicles, vehicle.speed);
+            vehicles.append(vehicle.stopId);
+            appendInt(vehicles, vehicle.currentStopSequence);
+            appendInt(vehicles, vehicle.currentStatus);
+            appendLong(vehicles, vehicle.timestamp);
+            vehicles.endRow();
+            vehicleCount++;
+        }
+
+        @Override
+        public void stopTime(GtfsRealtimeDecoder.StopTime stopTime) throws SQLException {
+            stopTimes.beginRow();
+            stopTimes.append(stopTime.entityId);
+            stopTimes.append(stopTime.trip.tripId);
+            stopTimes.append(stopTime.trip.routeId);
+            appendInt(stopTimes, stopTime.trip.directionId);
+            stopTimes.append(stopTime.trip.startDate);
+            stopTimes.append(stopTime.vehicleId);
+            appendInt(stopTimes, stopTime.stopSequence);
+            stopTimes.append(stopTime.stopId);
+            appendInt(stopTimes, stopTime.arrivalDelay);
+            appendLong(stopTimes, stopTime.arrivalTime);
+            appendInt(stopTimes, stopTime.departureDelay);
+            appendLong(stopTimes, stopTime.departureTime);
+            appendInt(stopTimes, stopTime.scheduleRelationship);
+            appendLong(stopTimes, stopTime.timestamp);
+            stopTimes.endRow();
+            stopTimeCount++;
+        }
+    }
+
+    private static void appendInt(DuckDBAppender appender, int value) throws SQLException {
+        if (value == GtfsRealtimeDecoder.NONE) {
+            appender.append((String) null);
+        } else {
+            appender.append(value);
+        }
+    }
+
+    // Absent times are 0 in the decoder, as in the feed
+    private static void appendLong(DuckDBAppender appender, long value) throws SQLException {
+        if (value == 0) {
+            appender.append((String) null);
+        } else {
+            appender.append(value);
+        }
+    }
+
+    private static void appendDouble(DuckDBAppender appender, double value) throws SQLException {
+        if (Double.isNaN(value)) {
+            appender.append((String) null);
+        } else {
+            appender.append(value);
+        }
+    }
+}
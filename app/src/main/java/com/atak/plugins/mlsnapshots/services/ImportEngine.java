@@ -0,0 +1,33 @@
+package com.atak.plugins.mlsnapshots.services;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A way of loading every layer of a vector file into the GeoPackage.
+ */
+public interface ImportEngine {
+
+    interface Listener {
+        void onProgress(String source, int layersDone, int layerCount, long features, double featuresPerSecond);
+
+        /**
+         * Called exactly once, after every layer of the source has been read and written or the import failed.
+         */
+        void onFinished(String source, boolean success, long features, long elapsedMs);
+    }
+
+    String getName();
+
+    /**
+     * @return false if this engine cannot be used for the file at all, e.g. a format it does not read
+     */
+    boolean canImport(File file);
+
+    /**
+     * Starts importing the file in the background.
+     *
+     * @return false if the file turned out to be unreadable by this engine, in which case the listener is not called
+     */
+    boolean importFile(File file, Listener listener) throws IOException;
+}
@@ -0,0 +1,166 @@
+package com.atak.plugins.mlsnapshots.services;
+
+import android.view.Choreographer;
+import com.google.gson.JsonObject;
+import org.maplibre.gl.style.sources.GeoJsonOptions;
+import org.maplibre.gl.style.sources.GeoJsonSource;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * A GeoJSON source whose features are added, updated and removed one at a time by feature id.
+ * <p>
+ * Updates may come from any thread and only touch a map of serialized features; the source itself is rewritten on
+ * the UI thread at most once per frame, however many features changed since the last frame. A feature that did not
+ * change is not serialized again. When handing the collection to MapLibre costs more than a frame, the next
+ * rewrite waits as many frames, so a layer with thousands of moving entities cannot starve the renderer.
+ */
+final class LiveGeoJsonSource implements Choreographer.FrameCallback {
+
+    private static final long FRAME_NANOS = 16666667;
+    // Rewrites wait at most this many frames, however slow the last one was
+    private static final int MAX_SKIPPED_FRAMES = 30;
+    private static final int CLUSTER_RADIUS = 50;
+    private static final int CLUSTER_MAX_ZOOM = 14;
+
+    private final boolean clustered;
+    private final Executor uiThread;
+    private final GeoJsonSource source;
+    // Serialized features by id, in insertion order; guarded by this
+    private final Map<String, String> features = new LinkedHashMap<>();
+    private boolean dirty;
+    private boolean scheduled;
+    // UI thread only
+    private int framesToSkip;
+    private boolean closed;
+
+    /**
+     * @param clustered whether MapLibre clusters the points; clusters carry a {@code point_count} property
+     * @param uiThread runs tasks on the thread that owns the map
+     */
+    LiveGeoJsonSource(String id, boolean clustered, Executor uiThread) {
+        this.clustered = clustered;
+        this.uiThread = uiThread;
+        this.source = clustered
+                ? new GeoJsonSource(id, new GeoJsonOptions().withCluster(true).withClusterRadius(CLUSTER_RADIUS)
+                        .withClusterMaxZoom(CLUSTER_MAX_ZOOM))
+                : new GeoJsonSource(id);
+    }
+
+    boolean isClustered() {
+        return clustered;
+    }
+
+    GeoJsonSource getSource() {
+        return source;
+    }
+
+    /**
+     * Adds {@code feature}, or replaces the feature with the same {@code id}.
+     */
+    void put(JsonObject feature) {
+        String featureId = feature.get("id").getAsString();
+        String json = feature.toString();
+        synchronized (this) {
+            features.put(featureId, json);
+        }
+        changed();
+    }
+
+    void remove(String featureId) {
+        boolean removed;
+        synchronized (this) {
+            removed = features.remove(featureId) != null;
+        }
+        if (removed) changed();
+    }
+
+    void clear() {
+        synchronized (this) {
+            features.clear();
+        }
+        changed();
+    }
+
+    /**
+     * Applies one batch of {@link ChangeFeed} changes; inserts and updates both replace by id.
+     */
+    void apply(ChangeFeed.Changes changes) {
+        synchronized (this) {
+            if (changes.reset) features.clear();
+            for (JsonObject feature : changes.inserts) {
+                features.put(feature.get("id").getAsString(), feature.toString());
+            }
+            for (JsonObject feature : changes.updates) {
+                features.put(feature.get("id").getAsString(), feature.toString());
+            }
+            for (String featureId : changes.deletes) {
+                features.remove(featureId);
+            }
+        }
+        changed();
+    }
+
+    /**
+     * Stops rewriting the source, e.g. once it has been removed from the style.
+     */
+    void close() {
+        uiThread.execute(() -> {
+            closed = true;
+            Choreographer.getInstance().removeFrameCallback(this);
+        });
+    }
+
+    private void changed() {
+        synchronized (this) {
+            dirty = true;
+            if (scheduled) return;
+            scheduled = true;
+        }
+        uiThread.execute(() -> {
+            if (!closed) Choreographer.getInstance().postFrameCallback(this);
+        });
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (closed) return;
+        if (framesToSkip > 0) {
+            framesToSkip--;
+            Choreographer.getInstance().postFrameCallback(this);
+            return;
+        }
+        long start = System.nanoTime();
+        StringBuilder json;
+        synchronized (this) {
+            if (!dirty) {
+                scheduled = false;
+                return;
+            }
+            int length = 48;
+            for (String feature : features.values()) {
+                length += feature.length() + 1;
+            }
+            json = new StringBuilder(length).append("{\"type\":\"FeatureCollection\",\"features\":[");
+            boolean first = true;
+            for (String feature : features.values()) {
+                if (!first) json.append(',');
+                json.append(feature);
+                first = false;
+            }
+            dirty = false;
+        }
+        source.setGeoJson(json.append("]}").toString());
+        framesToSkip = (int) Math.min(MAX_SKIPPED_FRAMES, (System.nanoTime() - start) / FRAME_NANOS);
+        synchronized (this) {
+            // Changes made while this frame was being written are picked up by a later one
+            if (dirty) {
+                Choreographer.getInstance().postFrameCallback(this);
+            } else {
+                scheduled = false;
+            }
+        }
+    }
+}
@@ -3,17 +3,22 @@ package com.atak.plugins.mlsnapshots.services;
 
 import android.graphics.Color;
 import androidx.annotation.NonNull;
+import com.atak.plugins.mlsnapshots.PluginExecutor;
 import com.atakmap.android.maps.MapView;
+import com.atakmap.coremap.log.Log;
 import com.google.gson.Gson;
+import com.google.gson.JsonObject;
 import com.google.gson.reflect.TypeToken;
 import org.maplibre.gl.maps.MapLibreMap;
 import org.maplibre.gl.maps.Style;
+import org.maplibre.gl.style.expressions.Expression;
 import org.maplibre.gl.style.layers.CircleLayer;
 import org.maplibre.gl.style.layers.FillLayer;
 import org.maplibre.gl.style.layers.Layer;
 import org.maplibre.gl.style.layers.LineLayer;
 import org.maplibre.gl.style.layers.PropertyFactory;
 import org.maplibre.gl.style.layers.RasterLayer;
+import org.maplibre.gl.style.layers.SymbolLayer;
 import org.maplibre.gl.style.sources.GeoJsonSource;
 import org.maplibre.gl.style.sources.RasterSource;
 import org.maplibre.gl.style.sources.Source;
@@ -21,16 +26,27 @@ import org.maplibre.gl.style.sources.VectorSource;
 import org.maplibre.gl.style.sources.TileSet;
 import org.maplibre.gl.geometry.LatLngBounds;
 
+import java.net.URI;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 
 public class MapLibreService {
 
+    private static final String TAG = "MapLibreService";
+
     private final MapView mapView;
     private MapLibreMap map;
     private Style style;
     private final Gson gson = new Gson();
     private final Map<String, String> sourceUrls = new HashMap<>();
+    private final Map<String, LiveGeoJsonSource> liveSources = new ConcurrentHashMap<>();
+    private final Map<String, FollowedTable> followedTables = new ConcurrentHashMap<>();
 
     public MapLibreService(MapView mapView) {
         this.mapView = mapView;
@@ -54,16 +70,103 @@ public class MapLibreService {
 
     public void addVectorSource(String sourceId, String url) {
         if (style == null) return;
-        GeoJsonSource geoJsonSource = new GeoJsonSource(sourceId, url);
+        GeoJsonSource geoJsonSource = new GeoJsonSource(sourceId, URI.create(url));
         style.addSource(geoJsonSource);
     }
 
+    /**
+     * Adds a GeoJSON source that is fed feature by feature with {@link #putFeature} and {@link #removeFeature}
+     * instead of from a URL. However often features change, MapLibre is handed the source at most once per frame.
+     *
+     * @param cluster whether to cluster the points; a point layer added with {@link #updateFeatureLayer} then
+     *                draws the clusters with their counts
+     */
+    public void addLiveSource(String sourceId, boolean cluster) {
+        if (style == null) return;
+        removeLiveSource(sourceId);
+        LiveGeoJsonSource live = new LiveGeoJsonSource(sourceId, cluster, mapView::post);
+        liveSources.put(sourceId, live);
+        style.addSource(live.getSource());
+    }
+
+    /**
+     * Adds a feature to a live source, or replaces the feature with the same {@code id}. May be called from any
+     * thread.
+     */
+    public void putFeature(String sourceId, JsonObject feature) {
+        LiveGeoJsonSource live = liveSources.get(sourceId);
+        if (live != null) live.put(feature);
+    }
+
+    public void removeFeature(String sourceId, String featureId) {
+        LiveGeoJsonSource live = liveSources.get(sourceId);
+        if (live != null) live.remove(featureId);
+    }
+
+    public void clearFeatures(String sourceId) {
+        LiveGeoJsonSource live = liveSources.get(sourceId);
+        if (live != null) live.clear();
+    }
+
+    public void removeLiveSource(String sourceId) {
+        stopFollowing(sourceId);
+        LiveGeoJsonSource live = liveSources.remove(sourceId);
+        if (live == null) return;
+        live.close();
+        if (style != null) style.removeSource(sourceId);
+    }
+
+    /**
+     * Keeps the live source {@code sourceId} in step with a feed table, adding it unclustered if there is none.
+     * The source starts from the whole table and then takes each refresh's inserts, updates and deletes from the
+     * {@link ChangeFeed} by feature id, so nothing is re-downloaded.
+     */
+    public void followTable(final String sourceId, final DuckDBService duckDBService, final String table) {
+        stopFollowing(sourceId);
+        if (!liveSources.containsKey(sourceId)) addLiveSource(sourceId, false);
+        LiveGeoJsonSource live = liveSources.get(sourceId);
+        if (live == null) return;
+        final FollowedTable followed = new FollowedTable(live, duckDBService.getChangeFeed(), table);
+        followedTables.put(sourceId, followed);
+        // Subscribed before the snapshot is read, so no refresh in between is missed; changes that arrive
+        // before the snapshot is applied are held back and replayed after it
+        followed.changeFeed.subscribe(table, followed);
+        try {
+            PluginExecutor.getInstance().submit("follow-" + table, PluginExecutor.JobType.DISK, context -> {
+                try (Connection conn = duckDBService.newConnection()) {
+                    followed.applySnapshot(followed.changeFeed.snapshot(conn, table));
+                } catch (SQLException | RuntimeException e) {
+                    Log.w(TAG, "Could not read " + table + ", not following it: " + e.getMessage());
+                    stopFollowing(sourceId, followed);
+                }
+                return null;
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Could not queue the first read of " + table + ", not following it: " + e.getMessage());
+            stopFollowing(sourceId, followed);
+        }
+    }
+
+    public void stopFollowing(String sourceId) {
+        FollowedTable followed = followedTables.remove(sourceId);
+        if (followed != null) followed.changeFeed.unsubscribe(followed.table, followed);
+    }
+
+    private void stopFollowing(String sourceId, FollowedTable followed) {
+        followedTables.remove(sourceId, followed);
+        followed.changeFeed.unsubscribe(followed.table, followed);
+    }
+
     public void updateFeatureLayer(String layerId, String sourceId, String styleJson) {
         if (style == null) return;
 
         if (style.getLayer(layerId) != null) {
             style.removeLayer(layerId);
         }
+        if (style.getLayer(layerId + "-clusters") != null) {
+            style.removeLayer(layerId + "-clusters");
+            style.removeLayer(layerId + "-cluster-count");
+        }
 
         Map<String, Object> styleMap = gson.fromJson(styleJson, new TypeToken<Map<String, Object>>() {}.getType());
         String geometryType = (String) styleMap.get("geometryType");
@@ -73,10 +176,32 @@ public class MapLibreService {
         switch (geometryType.toLowerCase()) {
             case "point":
                 CircleLayer circleLayer = new CircleLayer(layerId, sourceId);
+                int fill = Color.parseColor((String) styleMap.get("fill"));
+                float size = ((Double) styleMap.get("size")).floatValue();
                 circleLayer.setProperties(
-                        PropertyFactory.circleColor(Color.parseColor((String) styleMap.get("fill"))),
-                        PropertyFactory.circleRadius(((Double) styleMap.get("size")).floatValue())
+                        PropertyFactory.circleColor(fill),
+                        PropertyFactory.circleRadius(size)
                 );
+                LiveGeoJsonSource live = liveSources.get(sourceId);
+                if (live != null && live.isClustered()) {
+                    // Clusters are features with a point_count; the style only applies to single points
+                    circleLayer.setFilter(Expression.not(Expression.has("point_count")));
+                    CircleLayer clusterLayer = new CircleLayer(layerId + "-clusters", sourceId);
+                    clusterLayer.setFilter(Expression.has("point_count"));
+                    clusterLayer.setProperties(
+                            PropertyFactory.circleColor(fill),
+                            PropertyFactory.circleRadius(size * 3)
+                    );
+                    SymbolLayer countLayer = new SymbolLayer(layerId + "-cluster-count", sourceId);
+                    countLayer.setFilter(Expression.has("point_count"));
+                    countLayer.setProperties(
+                            PropertyFactory.textField(Expression.toString(Expression.get("point_count"))),
+                            PropertyFactory.textSize(12f),
+                            PropertyFactory.textAllowOverlap(true)
+                    );
+                    style.addLayer(clusterLayer);
+                    style.addLayer(countLayer);
+                }
                 style.addLayer(circleLayer);
                 break;
             case "line":
@@ -149,4 +274,42 @@ public class MapLibreService {
         if (map == null) return;
         map.snapshot(callback);
     }
+
+    /**
+     * Hands a followed table's changes to its live source, once the snapshot they build on has been applied.
+     */
+    private static final class FollowedTable implements ChangeFeed.Listener {
+        final LiveGeoJsonSource live;
+        final ChangeFeed changeFeed;
+        final String table;
+        // Changes published before the snapshot was applied, oldest first; null afterwards. Guarded by this
+        private List<ChangeFeed.Changes> held = new ArrayList<>();
+
+        FollowedTable(LiveGeoJsonSource live, ChangeFeed changeFeed, String table) {
+            this.live = live;
+            this.changeFeed = changeFeed;
+            this.table = table;
+        }
+
+        @Override
+        public synchronized void onChanges(ChangeFeed.Changes changes) {
+            if (held != null) {
+                held.add(changes);
+            } else {
+                live.apply(changes);
+            }
+        }
+
+        /**
+         * Applies the snapshot, which replaces everything, then the changes held back while it was read. Those
+         * that the snapshot already contains are applied again, which upserts by id make harmless.
+         */
+        synchronized void applySnapshot(ChangeFeed.Changes snapshot) {
+            live.apply(snapshot);
+            for (ChangeFeed.Changes changes : held) {
+                live.apply(changes);
+            }
+            held = null;
+        }
+    }
 }
@@ -0,0 +1,51 @@
+package com.atak.plugins.mlsnapshots.services;
+
+import android.content.Context;
+import com.atakmap.coremap.log.Log;
+import com.google.mediapipe.tasks.core.BaseOptions;
+import com.google.mediapipe.tasks.text.textembedder.TextEmbedder;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * {@link Embedder} backed by a MediaPipe text embedding model, such as the Universal Sentence Encoder.
+ */
+public class MediaPipeEmbedder implements Embedder {
+
+    private static final String TAG = "MediaPipeEmbedder";
+
+    private final TextEmbedder textEmbedder;
+    private final int dimensions;
+
+    public MediaPipeEmbedder(Context context, File modelFile) throws IOException {
+        if (!modelFile.exists()) {
+            throw new IOException("Embedding model not found at: " + modelFile);
+        }
+        TextEmbedder.TextEmbedderOptions options = TextEmbedder.TextEmbedderOptions.builder()
+                .setBaseOptions(BaseOptions.builder().setModelAssetPath(modelFile.getAbsolutePath()).build())
+                .setL2Normalize(true)
+                .build();
+        textEmbedder = TextEmbedder.createFromOptions(context, options);
+        dimensions = embed("").length;
+        Log.d(TAG, "Loaded " + modelFile.getName() + ", " + dimensions + " dimensions");
+    }
+
+    @Override
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    /**
+     * The task runner is not safe for concurrent calls, so embeddings are computed one at a time.
+     */
+    @Override
+    public synchronized float[] embed(String text) {
+        return textEmbedder.embed(text).embeddingResult().embeddings().get(0).floatEmbedding();
+    }
+
+    @Override
+    public synchronized void close() {
+        textEmbedder.close();
+    }
+}
@@ -0,0 +1,585 @@
+package com.atak.plugins.mlsnapshots.services;
+
+import java.util.Arrays;
+
+/**
+ * Triangle mesh decimation by edge collapse with quadric error metrics (Garland and Heckbert).
+ * <p>
+ * Meshes are flat vertex and index arrays. Instead of a priority queue, each pass collapses every edge
+ * whose error is under a threshold that grows from pass to pass, which is much cheaper and nearly as
+ * good. Edges collapse onto whichever endpoint has the lower error, so texture coordinates and normals
+ * are carried over unchanged rather than interpolated. Collapses that would flip a face or make the mesh
+ * non-manifold are rejected, and border vertices, including UV seams left open by welding, only collapse
+ * along the border.
+ * <p>
+ * Instances hold the working state of one simplification and are not thread safe.
+ */
+public class MeshSimplifier {
+
+    private static final int MAX_PASSES = 100;
+    private static final double AGGRESSIVENESS = 7;
+
+    /** An indexed triangle list. Normals and texture coordinates are optional. */
+    public static final class Mesh {
+        public float[] positions;
+        public float[] normals;
+        public float[] texCoords;
+        public int vertexCount;
+        public int[] indices;
+        public int indexCount;
+
+        public Mesh(int vertexCount, int indexCount, boolean hasNormals, boolean hasTexCoords) {
+            this.positions = new float[vertexCount * 3];
+            this.normals = hasNormals ? new float[vertexCount * 3] : null;
+            this.texCoords = hasTexCoords ? new float[vertexCount * 2] : null;
+            this.vertexCount = vertexCount;
+            this.indices = new int[indexCount];
+            this.indexCount = indexCount;
+        }
+
+        public int triangleCount() {
+            return indexCount / 3;
+        }
+    }
+
+    /**
+     * Snaps positions to a grid of {@code step} anchored at {@code origin}, for a fixed number of bits over the
+     * model bounds. Vertices that differ by less than a step then weld.
+     */
+    public static void quantizePositions(Mesh mesh, float[] origin, float step) {
+        if (step <= 0) return;
+        for (int i = 0; i < mesh.vertexCount * 3; i++) {
+            float o = origin[i % 3];
+            mesh.positions[i] = o + Math.round((mesh.positions[i] - o) / step) * step;
+        }
+    }
+
+    /**
+     * Snaps each normal component to a signed {@code bits}-bit value.
+     */
+    public static void quantizeNormals(Mesh mesh, int bits) {
+        if (mesh.normals == null || bits <= 0) return;
+        float scale = (1 << (bits - 1)) - 1;
+        for (int i = 0; i < mesh.vertexCount * 3; i++) {
+            mesh.normals[i] = Math.round(mesh.normals[i] * scale) / scale;
+        }
+    }
+
+    /**
+     * Merges vertices whose attributes are bit-for-bit equal and drops triangles that become degenerate.
+     */
+    public static Mesh weld(Mesh mesh) {
+        int n = mesh.vertexCount;
+        int capacity = Integer.highestOneBit(Math.max(4, n * 2 - 1)) << 1;
+        int mask = capacity - 1;
+        int[] table = new int[capacity];
+        Arrays.fill(table, -1);
+        int[] remap = new int[n];
+        int unique = 0;
+        Mesh welded = new Mesh(n, mesh.indexCount, mesh.normals != null, mesh.texCoords != null);
+        for (int v = 0; v < n; v++) {
+            int slot = hash(mesh, v) & mask;
+            while (true) {
+                int existing = table[slot];
+                if (existing < 0) {
+                    table[slot] = v;
+                    remap[v] = unique;
+                    copyVertex(mesh, v, welded, unique);
+                    unique++;
+                    break;
+                }
+                if (sameVertex(mesh, existing, v)) {
+                    remap[v] = remap[existing];
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+        welded.vertexCount = unique;
+
+        int count = 0;
+        for (int i = 0; i + 2 < mesh.indexCount; i += 3) {
+            int a = remap[mesh.indices[i]], b = remap[mesh.indices[i + 1]], c = remap[mesh.indices[i + 2]];
+            if (a == b || b == c || a == c) continue;
+            welded.indices[count++] = a;
+            welded.indices[count++] = b;
+            welded.indices[count++] = c;
+        }
+        welded.indexCount = count;
+        return welded;
+    }
+
+    private static int hash(Mesh mesh, int v) {
+        int h = 17;
+        for (int c = 0; c < 3; c++) {
+            h = h * 31 + Float.floatToIntBits(mesh.positions[v * 3 + c]);
+        }
+        if (mesh.normals != null) {
+            for (int c = 0; c < 3; c++) {
+                h = h * 31 + Float.floatToIntBits(mesh.normals[v * 3 + c]);
+            }
+        }
+        if (mesh.texCoords != null) {
+            h = h * 31 + Float.floatToIntBits(mesh.texCoords[v * 2]);
+            h = h * 31 + Float.floatToIntBits(mesh.texCoords[v * 2 + 1]);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean sameVertex(Mesh mesh, int a, int b) {
+        for (int c = 0; c < 3; c++) {
+            if (mesh.positions[a * 3 + c] != mesh.positions[b * 3 + c]) return false;
+            if (mesh.normals != null && mesh.normals[a * 3 + c] != mesh.normals[b * 3 + c]) return false;
+        }
+        return mesh.texCoords == null || (mesh.texCoords[a * 2] == mesh.texCoords[b * 2]
+                && mesh.texCoords[a * 2 + 1] == mesh.texCoords[b * 2 + 1]);
+    }
+
+    private static void copyVertex(Mesh from, int a, Mesh to, int b) {
+        System.arraycopy(from.positions, a * 3, to.positions, b * 3, 3);
+        if (from.normals != null) System.arraycopy(from.normals, a * 3, to.normals, b * 3, 3);
+        if (from.texCoords != null) System.arraycopy(from.texCoords, a * 2, to.texCoords, b * 2, 2);
+    }
+
+    // Working state
+    private int vertexCount;
+    private double[] position;
+    private float[] normals;
+    private float[] texCoords;
+    /** Symmetric 4x4 quadric per vertex, upper triangle row by row: 10 values */
+    private double[] quadric;
+    private boolean[] border;
+    private int[] refStart;
+    private int[] refCount;
+    private int triangleCount;
+    private int[] triangles;
+    private double[] error;
+    /** Normal of each triangle before simplification, which bounds how far it may turn in total */
+    private double[] normal;
+    private boolean[] deleted;
+    private boolean[] dirty;
+    private int[] refTriangle;
+    private int[] refCorner;
+    private int refs;
+    private int[] mark;
+    private int stamp;
+    private boolean[] deleted0 = new boolean[64];
+    private boolean[] deleted1 = new boolean[64];
+    private int collapseChoice;
+
+    /**
+     * @return a new mesh with at most about {@code targetTriangles} triangles; fewer collapses are possible
+     * when the remaining ones would flip faces or break borders
+     */
+    public Mesh simplify(Mesh input, int targetTriangles) {
+        init(input);
+        int initialCount = triangleCount;
+        int deletedCount = 0;
+        for (int pass = 0; pass < MAX_PASSES; pass++) {
+            if (initialCount - deletedCount <= targetTriangles) break;
+            if (pass % 5 == 0) {
+                updateMesh(pass);
+            }
+            Arrays.fill(dirty, 0, triangleCount, false);
+            double threshold = 1e-9 * Math.pow(pass + 3, AGGRESSIVENESS);
+            double[] target = new double[3];
+
+            for (int t = 0; t < triangleCount; t++) {
+                if (error[t * 4 + 3] > threshold || deleted[t] || dirty[t]) continue;
+                for (int j = 0; j < 3; j++) {
+                    if (error[t * 4 + j] >= threshold) continue;
+                    int i0 = triangles[t * 3 + j];
+                    int i1 = triangles[t * 3 + (j + 1) % 3];
+                    if (border[i0] != border[i1]) continue;
+
+                    if (!canCollapse(i0, i1)) continue;
+
+                    collapseError(i0, i1, target);
+                    int choice = collapseChoice;
+                    deleted0 = ensure(deleted0, refCount[i0]);
+                    deleted1 = ensure(deleted1, refCount[i1]);
+                    if (flipped(target, i0, i1, deleted0) || flipped(target, i1, i0, deleted1)) continue;
+
+                    // i0 survives, taking i1's attributes if i1 was the better position
+                    System.arraycopy(target, 0, position, i0 * 3, 3);
+                    if (choice == 1) {
+                        copyAttributes(i1, i0);
+                    }
+                    for (int k = 0; k < 10; k++) {
+                        quadric[i0 * 10 + k] += quadric[i1 * 10 + k];
+                    }
+                    int start = refs;
+                    deletedCount += updateTriangles(i0, i0, deleted0);
+                    deletedCount += updateTriangles(i0, i1, deleted1);
+                    int count = refs - start;
+                    if (count <= refCount[i0]) {
+                        // Reuse the old slot
+                        if (count > 0) {
+                            System.arraycopy(refTriangle, start, refTriangle, refStart[i0], count);
+                            System.arraycopy(refCorner, start, refCorner, refStart[i0], count);
+                        }
+                        refs = start;
+                    } else {
+                        refStart[i0] = start;
+                    }
+                    refCount[i0] = count;
+                    break;
+                }
+                if (initialCount - deletedCount <= targetTriangles) break;
+            }
+        }
+        return compact();
+    }
+
+    private void init(Mesh input) {
+        int n = input.vertexCount;
+        vertexCount = n;
+        position = new double[n * 3];
+        for (int i = 0; i < n * 3; i++) {
+            position[i] = input.positions[i];
+        }
+        // Attributes are modified in place, so work on copies
+        normals = input.normals != null ? Arrays.copyOf(input.normals, n * 3) : null;
+        texCoords = input.texCoords != null ? Arrays.copyOf(input.texCoords, n * 2) : null;
+
+        quadric = new double[n * 10];
+        border = new boolean[n];
+        refStart = new int[n];
+        refCount = new int[n];
+        triangleCount = input.indexCount / 3;
+        triangles = Arrays.copyOf(input.indices, triangleCount * 3);
+        error = new double[triangleCount * 4];
+        normal = new double[triangleCount * 3];
+        deleted = new boolean[triangleCount];
+        dirty = new boolean[triangleCount];
+        mark = new int[n];
+        stamp = 0;
+        refTriangle = new int[triangleCount * 3 * 2];
+        refCorner = new int[triangleCount * 3 * 2];
+    }
+
+    private void copyAttributes(int from, int to) {
+        if (normals != null) System.arraycopy(normals, from * 3, normals, to * 3, 3);
+        if (texCoords != null) System.arraycopy(texCoords, from * 2, texCoords, to * 2, 2);
+    }
+
+    /**
+     * Compacts deleted triangles away and rebuilds the vertex to triangle references. On the first pass
+     * also computes the quadrics, face normals, borders and edge errors.
+     */
+    private void updateMesh(int pass) {
+        if (pass > 0) {
+            int dst = 0;
+            for (int t = 0; t < triangleCount; t++) {
+                if (deleted[t]) continue;
+                if (dst != t) {
+                    System.arraycopy(triangles, t * 3, triangles, dst * 3, 3);
+                    System.arraycopy(error, t * 4, error, dst * 4, 4);
+                    System.arraycopy(normal, t * 3, normal, dst * 3, 3);
+                }
+                deleted[dst] = false;
+                dst++;
+            }
+            triangleCount = dst;
+        }
+
+        if (pass == 0) {
+            for (int t = 0; t < triangleCount; t++) {
+                int a = triangles[t * 3], b = triangles[t * 3 + 1], c = triangles[t * 3 + 2];
+                double ux = position[b * 3] - position[a * 3], uy = position[b * 3 + 1] - position[a * 3 + 1],
+                        uz = position[b * 3 + 2] - position[a * 3 + 2];
+                double vx = position[c * 3] - position[a * 3], vy = position[c * 3 + 1] - position[a * 3 + 1],
+                        vz = position[c * 3 + 2] - position[a * 3 + 2];
+                double nx = uy * vz - uz * vy, ny = uz * vx - ux * vz, nz = ux * vy - uy * vx;
+                double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+                if (length > 0) {
+                    nx /= length;
+                    ny /= length;
+                    nz /= length;
+                }
+                normal[t * 3] = nx;
+                normal[t * 3 + 1] = ny;
+                normal[t * 3 + 2] = nz;
+                double d = -(nx * position[a * 3] + ny * position[a * 3 + 1] + nz * position[a * 3 + 2]);
+                for (int k = 0; k < 3; k++) {
+                    addPlane(triangles[t * 3 + k], nx, ny, nz, d);
+                }
+            }
+        }
+
+        // Vertex to triangle references
+        Arrays.fill(refCount, 0);
+        for (int t = 0; t < triangleCount; t++) {
+            for (int k = 0; k < 3; k++) {
+                refCount[triangles[t * 3 + k]]++;
+            }
+        }
+        int start = 0;
+        for (int v = 0; v < refStart.length; v++) {
+            refStart[v] = start;
+            start += refCount[v];
+            refCount[v] = 0;
+        }
+        for (int t = 0; t < triangleCount; t++) {
+            for (int k = 0; k < 3; k++) {
+                int v = triangles[t * 3 + k];
+                int r = refStart[v] + refCount[v]++;
+                refTriangle[r] = t;
+                refCorner[r] = k;
+            }
+        }
+        refs = start;
+
+        if (pass == 0) {
+            findBorders();
+            double[] scratch = new double[3];
+            for (int t = 0; t < triangleCount; t++) {
+                updateErrors(t, scratch);
+            }
+        }
+    }
+
+    /**
+     * A vertex is on a border if one of its edges belongs to a single triangle.
+     */
+    private void findBorders() {
+        int[] neighbours = new int[16];
+        int[] counts = new int[16];
+        for (int v = 0; v < refStart.length; v++) {
+            int found = 0;
+            for (int k = 0; k < refCount[v]; k++) {
+                int t = refTriangle[refStart[v] + k];
+                for (int c = 0; c < 3; c++) {
+                    int id = triangles[t * 3 + c];
+                    int s = 0;
+                    while (s < found && neighbours[s] != id) s++;
+                    if (s == found) {
+                        if (found == neighbours.length) {
+                            neighbours = Arrays.copyOf(neighbours, found * 2);
+                            counts = Arrays.copyOf(counts, found * 2);
+                        }
+                        neighbours[found] = id;
+                        counts[found] = 1;
+                        found++;
+                    } else {
+                        counts[s]++;
+                    }
+                }
+            }
+            for (int s = 0; s < found; s++) {
+                if (counts[s] == 1) {
+                    border[neighbours[s]] = true;
+                }
+            }
+        }
+    }
+
+    private void addPlane(int v, double a, double b, double c, double d) {
+        int q = v * 10;
+        quadric[q] += a * a;
+        quadric[q + 1] += a * b;
+        quadric[q + 2] += a * c;
+        quadric[q + 3] += a * d;
+        quadric[q + 4] += b * b;
+        quadric[q + 5] += b * c;
+        quadric[q + 6] += b * d;
+        quadric[q + 7] += c * c;
+        quadric[q + 8] += c * d;
+        quadric[q + 9] += d * d;
+    }
+
+    private void updateErrors(int t, double[] scratch) {
+        double min = Double.MAX_VALUE;
+        for (int j = 0; j < 3; j++) {
+            double e = collapseError(triangles[t * 3 + j], triangles[t * 3 + (j + 1) % 3], scratch);
+            error[t * 4 + j] = e;
+            min = Math.min(min, e);
+        }
+        error[t * 4 + 3] = min;
+    }
+
+    /**
+     * Error of collapsing the edge onto the better of its endpoints, which is written to {@code target};
+     * {@link #collapseChoice} records which one.
+     */
+    private double collapseError(int v0, int v1, double[] target) {
+        double e0 = vertexError(v0, v1, position[v0 * 3], position[v0 * 3 + 1], position[v0 * 3 + 2]);
+        double e1 = vertexError(v0, v1, position[v1 * 3], position[v1 * 3 + 1], position[v1 * 3 + 2]);
+        int chosen = e1 < e0 ? v1 : v0;
+        collapseChoice = e1 < e0 ? 1 : 0;
+        target[0] = position[chosen * 3];
+        target[1] = position[chosen * 3 + 1];
+        target[2] = position[chosen * 3 + 2];
+        return Math.min(e0, e1);
+    }
+
+    private double vertexError(int v0, int v1, double x, double y, double z) {
+        int a = v0 * 10, b = v1 * 10;
+        double[] q = quadric;
+        return (q[a] + q[b]) * x * x + 2 * (q[a + 1] + q[b + 1]) * x * y + 2 * (q[a + 2] + q[b + 2]) * x * z
+                + 2 * (q[a + 3] + q[b + 3]) * x + (q[a + 4] + q[b + 4]) * y * y + 2 * (q[a + 5] + q[b + 5]) * y * z
+                + 2 * (q[a + 6] + q[b + 6]) * y + (q[a + 7] + q[b + 7]) * z * z + 2 * (q[a + 8] + q[b + 8]) * z
+                + (q[a + 9] + q[b + 9]);
+    }
+
+    /**
+     * Whether collapsing the edge keeps the mesh manifold: the endpoints may share no neighbours other than the
+     * far corners of the triangles on the edge. Border vertices also only collapse along a border edge, which
+     * keeps borders and UV seams in place.
+     */
+    private boolean canCollapse(int v0, int v1) {
+        if (++stamp == Integer.MAX_VALUE) {
+            Arrays.fill(mark, 0);
+            stamp = 1;
+        }
+        int shared = 0;
+        for (int k = 0; k < refCount[v0]; k++) {
+            int t = refTriangle[refStart[v0] + k];
+            if (deleted[t]) continue;
+            boolean onEdge = false;
+            for (int c = 0; c < 3; c++) {
+                int v = triangles[t * 3 + c];
+                if (v == v1) onEdge = true;
+                mark[v] = stamp;
+            }
+            if (onEdge) shared++;
+        }
+        if (border[v0] && border[v1] && shared != 1) return false;
+
+        int common = 0;
+        int counted = ++stamp;
+        for (int k = 0; k < refCount[v1]; k++) {
+            int t = refTriangle[refStart[v1] + k];
+            if (deleted[t]) continue;
+            for (int c = 0; c < 3; c++) {
+                int v = triangles[t * 3 + c];
+                if (v == v0 || v == v1) continue;
+                if (mark[v] == counted - 1) {
+                    mark[v] = counted;
+                    common++;
+                }
+            }
+        }
+        return common == shared;
+    }
+
+    /**
+     * Whether moving {@code v0} to {@code p} would fold one of its triangles over. Triangles that the
+     * collapse removes, those sharing the edge to {@code v1}, are marked in {@code removed}.
+     */
+    private boolean flipped(double[] p, int v0, int v1, boolean[] removed) {
+        for (int k = 0; k < refCount[v0]; k++) {
+            int r = refStart[v0] + k;
+            int t = refTriangle[r];
+            if (deleted[t]) continue;
+            int s = refCorner[r];
+            int id1 = triangles[t * 3 + (s + 1) % 3];
+            int id2 = triangles[t * 3 + (s + 2) % 3];
+            if (id1 == v1 || id2 == v1) {
+                removed[k] = true;
+                continue;
+            }
+            removed[k] = false;
+            // The triangle's normal now and after the move
+            double e1x = position[id1 * 3] - position[v0 * 3], e1y = position[id1 * 3 + 1] - position[v0 * 3 + 1],
+                    e1z = position[id1 * 3 + 2] - position[v0 * 3 + 2];
+            double e2x = position[id2 * 3] - position[v0 * 3], e2y = position[id2 * 3 + 1] - position[v0 * 3 + 1],
+                    e2z = position[id2 * 3 + 2] - position[v0 * 3 + 2];
+            double ox = e1y * e2z - e1z * e2y, oy = e1z * e2x - e1x * e2z, oz = e1x * e2y - e1y * e2x;
+            double d1x = position[id1 * 3] - p[0], d1y = position[id1 * 3 + 1] - p[1], d1z = position[id1 * 3 + 2] - p[2];
+            double d2x = position[id2 * 3] - p[0], d2y = position[id2 * 3 + 1] - p[1], d2z = position[id2 * 3 + 2] - p[2];
+            double l1 = Math.sqrt(d1x * d1x + d1y * d1y + d1z * d1z);
+            double l2 = Math.sqrt(d2x * d2x + d2y * d2y + d2z * d2z);
+            if (l1 == 0 || l2 == 0) return true;
+            // Reject new slivers, but let existing ones, which are common in scanned meshes, get better
+            double cosine = Math.abs((d1x * d2x + d1y * d2y + d1z * d2z) / (l1 * l2));
+            if (cosine > 0.999) {
+                double oldLengths = Math.sqrt((e1x * e1x + e1y * e1y + e1z * e1z) * (e2x * e2x + e2y * e2y + e2z * e2z));
+                if (oldLengths == 0 || cosine > Math.abs(e1x * e2x + e1y * e2y + e1z * e2z) / oldLengths) return true;
+            }
+            double nx = d1y * d2z - d1z * d2y, ny = d1z * d2x - d1x * d2z, nz = d1x * d2y - d1y * d2x;
+            double newLength = Math.sqrt(nx * nx + ny * ny + nz * nz);
+            double oldLength = Math.sqrt(ox * ox + oy * oy + oz * oz);
+            if (newLength == 0) return true;
+            if (oldLength > 0 && (nx * ox + ny * oy + nz * oz) / (newLength * oldLength) < 0.5) return true;
+            if ((nx * normal[t * 3] + ny * normal[t * 3 + 1] + nz * normal[t * 3 + 2]) / newLength < 0.2) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Points the triangles of {@code v} at {@code i0}, deleting those marked in {@code removed}, and appends
+     * the survivors to the reference list.
+     *
+     * @return the number of triangles deleted
+     */
+    private int updateTriangles(int i0, int v, boolean[] removed) {
+        int deletedCount = 0;
+        double[] scratch = new double[3];
+        for (int k = 0; k < refCount[v]; k++) {
+            int r = refStart[v] + k;
+            int t = refTriangle[r];
+            if (deleted[t]) continue;
+            if (removed[k]) {
+                deleted[t] = true;
+                deletedCount++;
+                continue;
+            }
+            int corner = refCorner[r];
+            triangles[t * 3 + corner] = i0;
+            dirty[t] = true;
+            updateErrors(t, scratch);
+            if (refs == refTriangle.length) {
+                refTriangle = Arrays.copyOf(refTriangle, refs * 2);
+                refCorner = Arrays.copyOf(refCorner, refs * 2);
+            }
+            refTriangle[refs] = t;
+            refCorner[refs] = corner;
+            refs++;
+        }
+        return deletedCount;
+    }
+
+    private static boolean[] ensure(boolean[] array, int size) {
+        return array.length >= size ? array : new boolean[Math.max(size, array.length * 2)];
+    }
+
+    /**
+     * @return the surviving triangles with unreferenced vertices dropped
+     */
+    private Mesh compact() {
+        int n = vertexCount;
+        int[] remap = new int[n];
+        Arrays.fill(remap, -1);
+        int vertices = 0;
+        int alive = 0;
+        for (int t = 0; t < triangleCount; t++) {
+            if (deleted[t]) continue;
+            alive++;
+            for (int k = 0; k < 3; k++) {
+                int v = triangles[t * 3 + k];
+                if (remap[v] < 0) remap[v] = vertices++;
+            }
+        }
+        Mesh result = new Mesh(vertices, alive * 3, normals != null, texCoords != null);
+        for (int v = 0; v < n; v++) {
+            int to = remap[v];
+            if (to < 0) continue;
+            result.positions[to * 3] = (float) position[v * 3];
+            result.positions[to * 3 + 1] = (float) position[v * 3 + 1];
+            result.positions[to * 3 + 2] = (float) position[v * 3 + 2];
+            if (normals != null) System.arraycopy(normals, v * 3, result.normals, to * 3, 3);
+            if (texCoords != null) System.arraycopy(texCoords, v * 2, result.texCoords, to * 2, 2);
+        }
+        int i = 0;
+        for (int t = 0; t < triangleCount; t++) {
+            if (deleted[t]) continue;
+            for (int k = 0; k < 3; k++) {
+                result.indices[i++] = remap[triangles[t * 3 + k]];
+            }
+        }
+        normals = null;
+        texCoords = null;
+        return result;
+    }
+}
@@ -1,49 +1,236 @@
-
 package com.atak.plugins.mlsnapshots.services;
 
 import com.atak.coremap.log.Log;
-import de.javagl.jgltf.model.io.GltfModelReader;
-import de.javagl.jgltf.model.GltfModel;
-import de.javagl.jgltf.obj.ObjWriter;
+import com.atak.plugins.mlsnapshots.PluginExecutor;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.RejectedExecutionException;
 
+/**
+ * Converts glTF and GLB models to OBJ on the COMPUTE lane, one file or a whole directory at a time, with
+ * simplified levels of detail next to each.
+ */
 public class ModelConversionService {
 
     public static final String TAG = "ModelConversionService";
 
+    private static final int MAX_PARALLEL = Runtime.getRuntime().availableProcessors();
+
+    private final GltfObjConverter converter = new GltfObjConverter();
+    private volatile GltfObjConverter.LodOptions lodOptions = GltfObjConverter.LodOptions.DEFAULT;
+
     public interface ConversionListener {
         void onProgress(String message);
         void onComplete(boolean success, String outputPath);
     }
 
     public ModelConversionService() {
-        // Initialization, if needed
     }
 
-    public void convertGltfToObj(File gltfFile, File outputDir, ConversionListener listener) {
+    /**
+     * Sets the levels of detail to write next to each converted model, or null for none; the default is
+     * {@link GltfObjConverter.LodOptions#DEFAULT}. Applies to conversions started afterwards.
+     */
+    public void setLodOptions(GltfObjConverter.LodOptions options) {
+        this.lodOptions = options;
+    }
+
+    /**
+     * Converts one {@code .gltf} or {@code .glb} file.
+     */
+    public PluginExecutor.JobHandle<File> convertGltfToObj(final File gltfFile, final File outputDir,
+                                                          final ConversionListener listener) {
         listener.onProgress("Starting conversion of " + gltfFile.getName());
+        return PluginExecutor.getInstance().submit("convert-" + gltfFile.getName(), PluginExecutor.JobType.COMPUTE,
+                context -> {
+                    try {
+                        File objFile = converter.convert(gltfFile, outputDir, context);
+                        writeLods(gltfFile, outputDir, context, listener);
+                        listener.onProgress("Conversion successful.");
+                        listener.onComplete(true, objFile.getAbsolutePath());
+                        return objFile;
+                    } catch (CancellationException e) {
+                        listener.onComplete(false, "Cancelled");
+                        throw e;
+                    } catch (IOException | RuntimeException e) {
+                        Log.e(TAG, "Failed to convert " + gltfFile.getName(), e);
+                        listener.onComplete(false, e.getMessage());
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * Writes the configured levels of detail. A failure here is logged and leaves the full-resolution OBJ as the
+     * result of the conversion.
+     */
+    private void writeLods(File file, File outputDir, PluginExecutor.JobContext context, ConversionListener listener) {
+        GltfObjConverter.LodOptions options = lodOptions;
+        if (options == null) return;
+        try {
+            GltfObjConverter.LodReport report = converter.writeLods(file, outputDir, options, context);
+            Log.d(TAG, file.getName() + ": " + report);
+            if (listener != null) {
+                listener.onProgress("Wrote " + report);
+            }
+        } catch (IOException | RuntimeException e) {
+            if (e instanceof CancellationException) throw (CancellationException) e;
+            Log.w(TAG, "Could not simplify " + file.getName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Converts every {@code .gltf} and {@code .glb} file in {@code inputDir}, up to one file per core at a
+     * time, largest first so a big model does not run alone at the end. {@link ConversionListener#onComplete}
+     * is called once, with the output directory, after every file has finished or the batch is cancelled.
+     */
+    public Batch convertDirectory(File inputDir, File outputDir, ConversionListener listener) {
+        File[] found = inputDir.listFiles();
+        List<File> files = new ArrayList<>();
+        if (found != null) {
+            for (File file : found) {
+                if (GltfObjConverter.isModel(file)) {
+                    files.add(file);
+                }
+            }
+        }
+        Collections.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(b.length(), a.length());
+            }
+        });
+        Batch batch = new Batch(files, outputDir, listener);
+        listener.onProgress("Converting " + files.size() + " models");
+        batch.pump();
+        return batch;
+    }
 
-        try (FileInputStream fis = new FileInputStream(gltfFile)) {
-            GltfModelReader reader = new GltfModelReader();
-            GltfModel gltfModel = reader.read(fis);
+    /** A directory conversion in progress. */
+    public final class Batch {
+        private final List<File> files;
+        private final File outputDir;
+        private final ConversionListener listener;
+        private final long start = System.currentTimeMillis();
+        // Files being converted; the handle is null until submit returns
+        private final Map<File, PluginExecutor.JobHandle<?>> inFlight = new HashMap<>();
+        private int next;
+        private int converted;
+        private int failed;
+        private long bytesDone;
+        private boolean cancelled;
+        private boolean completed;
 
-            File objFile = new File(outputDir, gltfFile.getName().replace(".gltf", ".obj"));
+        private Batch(List<File> files, File outputDir, ConversionListener listener) {
+            this.files = files;
+            this.outputDir = outputDir;
+            this.listener = listener;
+        }
+
+        /**
+         * Stops starting new files and cancels the ones in progress; their partial output is left behind.
+         */
+        public void cancel() {
+            List<File> dequeued = new ArrayList<>();
+            synchronized (this) {
+                cancelled = true;
+                for (Map.Entry<File, PluginExecutor.JobHandle<?>> entry : inFlight.entrySet()) {
+                    PluginExecutor.JobHandle<?> handle = entry.getValue();
+                    if (handle == null) continue;
+                    boolean queued = handle.getState() == PluginExecutor.State.QUEUED;
+                    // Running jobs notice at the next primitive and finish through the job's own path
+                    if (handle.cancel(false) && queued) {
+                        dequeued.add(entry.getKey());
+                    }
+                }
+            }
+            for (File file : dequeued) {
+                finished(file, false);
+            }
+            pump();
+        }
+
+        public synchronized boolean isDone() {
+            return completed;
+        }
+
+        private void pump() {
+            List<File> rejected = new ArrayList<>();
+            synchronized (this) {
+                while (!cancelled && next < files.size() && inFlight.size() < MAX_PARALLEL) {
+                    final File file = files.get(next++);
+                    inFlight.put(file, null);
+                    try {
+                        PluginExecutor.JobHandle<?> handle = PluginExecutor.getInstance().submit(
+                                "convert-" + file.getName(), PluginExecutor.JobType.COMPUTE, context -> {
+                                    boolean success = false;
+                                    try {
+                                        converter.convert(file, outputDir, context);
+                                        writeLods(file, outputDir, context, null);
+                                        success = true;
+                                    } catch (IOException | RuntimeException e) {
+                                        if (!(e instanceof CancellationException)) {
+                                            Log.e(TAG, "Failed to convert " + file.getName(), e);
+                                        }
+                                    } finally {
+                                        finished(file, success);
+                                    }
+                                    return null;
+                                });
+                        if (inFlight.containsKey(file)) {
+                            inFlight.put(file, handle);
+                        }
+                    } catch (RejectedExecutionException e) {
+                        Log.w(TAG, "Could not queue conversion of " + file.getName() + ": " + e.getMessage());
+                        rejected.add(file);
+                    }
+                }
+            }
+            for (File file : rejected) {
+                finished(file, false);
+            }
+            checkComplete();
+        }
+
+        private void finished(File file, boolean success) {
+            String progress;
+            synchronized (this) {
+                if (!inFlight.containsKey(file)) return;
+                inFlight.remove(file);
+                if (success) {
+                    converted++;
+                    bytesDone += file.length();
+                } else {
+                    failed++;
+                }
+                double seconds = Math.max(1, System.currentTimeMillis() - start) / 1000.0;
+                progress = String.format(Locale.US, "Converted %d of %d models (%d failed), %.1f MB/s",
+                        converted, files.size(), failed, bytesDone / seconds / (1024 * 1024));
+            }
+            listener.onProgress(progress);
+            pump();
+        }
 
-            try (FileOutputStream fos = new FileOutputStream(objFile)) {
-                ObjWriter.write(gltfModel, fos);
-                listener.onProgress("Conversion successful.");
-                listener.onComplete(true, objFile.getAbsolutePath());
-            } catch (IOException e) {
-                Log.e(TAG, "Failed to write OBJ file", e);
-                listener.onComplete(false, e.getMessage());
+        private void checkComplete() {
+            boolean success;
+            String summary;
+            synchronized (this) {
+                if (completed || !inFlight.isEmpty() || (!cancelled && next < files.size())) return;
+                completed = true;
+                success = !cancelled && failed == 0;
+                summary = "Converted " + converted + " of " + files.size() + " models in "
+                        + (System.currentTimeMillis() - start) + " ms" + (cancelled ? " (cancelled)" : "");
             }
-        } catch (Exception e) {
-            Log.e(TAG, "Failed to read glTF file", e);
-            listener.onComplete(false, e.getMessage());
+            Log.d(TAG, summary);
+            listener.onComplete(success, outputDir.getAbsolutePath());
         }
     }
 }
@@ -1,71 +1,740 @@
 package com.atak.plugins.mlsnapshots.services;
 
 import android.util.Log;
-import java.io.BufferedInputStream;
+import com.atak.plugins.mlsnapshots.PluginExecutor;
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.RejectedExecutionException;
 
+/**
+ * Downloads model files, which run to several gigabytes, in parallel HTTP Range segments.
+ * <p>
+ * Data goes to {@code <file>.part}, preallocated to the full size and written with positional
+ * {@link FileChannel} writes, so segments land in place without coordination. Bytes received per segment
+ * are saved to {@code <file>.part.json}; a later download of the same URL picks up where it stopped, as long
+ * as the server still reports the same size and validator. Failed segments are retried with backoff. When a
+ * checksum is given or published next to the file, SHA-256 is computed over the completed prefix while segments
+ * are still arriving, so only the tail is left to hash at the end. The file is renamed into place once complete
+ * and verified.
+ * <p>
+ * Servers that ignore Range requests get a single sequential download that cannot resume.
+ */
 public class ModelDownloadService {
 
     private static final String TAG = "ModelDownloadService";
 
+    private static final long DEFAULT_SEGMENT_SIZE = 16L * 1024 * 1024;
+    // Leaves one NETWORK slot free for other work
+    private static final int DEFAULT_PARALLEL_SEGMENTS = 3;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int HASH_CHUNK_SIZE = 1024 * 1024;
+    private static final int MAX_ATTEMPTS = 4;
+    private static final long RETRY_DELAY_MS = 1000;
+    private static final long PROGRESS_INTERVAL_MS = 250;
+    private static final long STATE_INTERVAL_MS = 2000;
+    private static final int TIMEOUT_MS = 30000;
+
+    private final long segmentSize;
+    private final int parallelSegments;
+
     public interface DownloadListener {
         void onProgress(int progress);
         void onComplete(File file);
         void onError(String error);
     }
 
-    public void downloadModel(String fileUrl, File destinationFile, DownloadListener listener) {
-        new Thread(() -> {
-            InputStream input = null;
-            OutputStream output = null;
-            HttpURLConnection connection = null;
+    public ModelDownloadService() {
+        this(DEFAULT_SEGMENT_SIZE, DEFAULT_PARALLEL_SEGMENTS);
+    }
+
+    ModelDownloadService(long segmentSize, int parallelSegments) {
+        this.segmentSize = segmentSize;
+        this.parallelSegments = parallelSegments;
+    }
+
+    public Download downloadModel(String fileUrl, File destinationFile, DownloadListener listener) {
+        return downloadModel(fileUrl, destinationFile, null, listener);
+    }
+
+    /**
+     * @param expectedSha256 hex digest the file must match, or null to skip verification
+     * @return the download; cancelling it keeps the partial file for a later resume and reports an error to the
+     * listener
+     */
+    public Download downloadModel(String fileUrl, File destinationFile, String expectedSha256,
+                                  DownloadListener listener) {
+        Download download = new Download(fileUrl, destinationFile, expectedSha256, null, listener);
+        download.start();
+        return download;
+    }
+
+    /**
+     * Downloads a file whose SHA-256 is published next to it, in the {@code sha256sum} format. The checksum is
+     * fetched first, and the download fails if it cannot be.
+     *
+     * @param checksumUrl the checksum file, usually {@code fileUrl + ".sha256"}
+     */
+    public Download downloadVerified(String fileUrl, String checksumUrl, File destinationFile,
+                                     DownloadListener listener) {
+        Download download = new Download(fileUrl, destinationFile, null, checksumUrl, listener);
+        download.start();
+        return download;
+    }
+
+    /** Segment map saved next to the partial file. */
+    private static final class SavedState {
+        String url;
+        long length;
+        String validator;
+        long segmentSize;
+        long[] received;
+    }
+
+    /** The server no longer serves the version of the file the partial download came from. */
+    private static final class ChangedException extends IOException {
+        ChangedException(String message) {
+            super(message);
+        }
+    }
+
+    /** A download in progress. */
+    public final class Download {
+        private final String fileUrl;
+        private final File destination;
+        private final File partFile;
+        private final File stateFile;
+        private final String checksumUrl;
+        private final DownloadListener listener;
+        // Set before any segment starts; fetched from checksumUrl when not given
+        private String expectedSha256;
+        private final Map<Integer, PluginExecutor.JobHandle<?>> inFlight = new HashMap<>();
+        private final Set<HttpURLConnection> connections = new HashSet<>();
+
+        private URL url;
+        private SavedState state;
+        private RandomAccessFile file;
+        private FileChannel channel;
+        private MessageDigest digest;
+        private long hashedUpTo;
+        private boolean hashing;
+        private int nextSegment;
+        private long receivedAtStart;
+        private long startedAt;
+        private long lastProgressAt;
+        private int lastPercent = -1;
+        private long lastSavedAt;
+        private boolean cancelled;
+        private boolean finished;
+
+        private Download(String fileUrl, File destination, String expectedSha256, String checksumUrl,
+                         DownloadListener listener) {
+            this.fileUrl = fileUrl;
+            this.destination = destination;
+            this.partFile = new File(destination.getPath() + ".part");
+            this.stateFile = new File(destination.getPath() + ".part.json");
+            this.expectedSha256 = expectedSha256;
+            this.checksumUrl = checksumUrl;
+            this.listener = listener;
+        }
+
+        /**
+         * Stops the download. The partial file and segment map are kept, so downloading the same URL to the
+         * same file resumes it.
+         */
+        public void cancel() {
+            synchronized (this) {
+                if (finished) return;
+                cancelled = true;
+            }
+            fail("Download cancelled", null);
+        }
+
+        public synchronized boolean isDone() {
+            return finished;
+        }
+
+        private void start() {
+            startedAt = System.currentTimeMillis();
             try {
-                URL url = new URL(fileUrl);
-                connection = (HttpURLConnection) url.openConnection();
-                connection.connect();
+                submit("model-download-" + destination.getName(), context -> {
+                    probe(context);
+                    return null;
+                });
+            } catch (RejectedExecutionException e) {
+                fail("Could not start download: " + e.getMessage(), null);
+            }
+        }
 
-                if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
-                    listener.onError("Server returned HTTP " + connection.getResponseCode()
-                            + " " + connection.getResponseMessage());
+        private PluginExecutor.JobHandle<?> submit(String name, final PluginExecutor.Job<?> job) {
+            return PluginExecutor.getInstance().submit(name, PluginExecutor.JobType.NETWORK, context -> {
+                try {
+                    return job.run(context);
+                } catch (CancellationException e) {
+                    fail("Download cancelled", null);
+                    throw e;
+                } catch (Exception e) {
+                    fail(e.getMessage(), e);
+                    return null;
+                }
+            });
+        }
+
+        /**
+         * Asks for the first byte to learn the size and whether ranges are supported. A server that answers with
+         * the whole file is downloaded from that same response.
+         */
+        private void probe(PluginExecutor.JobContext context) throws IOException {
+            if (expectedSha256 == null && checksumUrl != null) {
+                expectedSha256 = fetchChecksum();
+            }
+            url = new URL(fileUrl);
+            HttpURLConnection connection = open(url);
+            try {
+                connection.setRequestProperty("Range", "bytes=0-0");
+                int code = connection.getResponseCode();
+                if (code == HttpURLConnection.HTTP_OK) {
+                    Log.d(TAG, fileUrl + " does not support ranges, downloading sequentially");
+                    downloadWhole(connection, context);
                     return;
                 }
+                if (code != HttpURLConnection.HTTP_PARTIAL) {
+                    throw new IOException("Server returned HTTP " + code + " " + connection.getResponseMessage());
+                }
+                long length = totalLength(connection.getHeaderField("Content-Range"));
+                if (length <= 0) {
+                    throw new IOException("Server did not report the file size");
+                }
+                String validator = validator(connection);
+                drain(connection);
+                openSegments(length, validator);
+            } finally {
+                release(connection);
+            }
+            // A resumed download may already hold most or all of the file
+            hashPrefix();
+            pump();
+        }
 
-                int fileLength = connection.getContentLength();
+        /**
+         * @return the digest from the first field of the checksum file
+         */
+        private String fetchChecksum() throws IOException {
+            HttpURLConnection connection = open(new URL(checksumUrl));
+            try {
+                int code = connection.getResponseCode();
+                if (code != HttpURLConnection.HTTP_OK) {
+                    throw new IOException("No checksum for " + destination.getName() + ": HTTP " + code);
+                }
+                byte[] buffer = new byte[1024];
+                int length = 0;
+                try (InputStream in = connection.getInputStream()) {
+                    int n;
+                    while (length < buffer.length && (n = in.read(buffer, length, buffer.length - length)) != -1) {
+                        length += n;
+                    }
+                }
+                String[] fields = new String(buffer, 0, length, "US-ASCII").trim().split("\\s+");
+                if (!fields[0].matches("[0-9a-fA-F]{64}")) {
+                    throw new IOException("Unreadable checksum for " + destination.getName());
+                }
+                return fields[0];
+            } finally {
+                release(connection);
+            }
+        }
 
-                input = new BufferedInputStream(url.openStream(), 8192);
-                output = new FileOutputStream(destinationFile);
+        /**
+         * Resumes from the saved segment map if it describes the same remote file, otherwise preallocates a new
+         * partial file.
+         */
+        private void openSegments(long length, String validator) throws IOException {
+            SavedState saved = loadState();
+            boolean resume = saved != null && fileUrl.equals(saved.url) && saved.length == length
+                    && saved.segmentSize == segmentSize && equal(saved.validator, validator)
+                    && saved.received != null && partFile.length() == length;
+            if (!resume) {
+                saved = new SavedState();
+                saved.url = fileUrl;
+                saved.length = length;
+                saved.validator = validator;
+                saved.segmentSize = segmentSize;
+                saved.received = new long[(int) ((length + segmentSize - 1) / segmentSize)];
+                if (partFile.exists() && !partFile.delete()) {
+                    throw new IOException("Could not delete stale " + partFile.getName());
+                }
+            }
+            file = new RandomAccessFile(partFile, "rw");
+            if (!resume) {
+                file.setLength(length);
+            }
+            channel = file.getChannel();
+            digest = expectedSha256 != null ? sha256() : null;
+            synchronized (this) {
+                if (finished) {
+                    file.close();
+                    throw new CancellationException("Download cancelled");
+                }
+                state = saved;
+                receivedAtStart = received();
+            }
+            if (resume) {
+                Log.d(TAG, "Resuming " + destination.getName() + " at " + receivedAtStart + " of " + length + " bytes");
+            }
+            saveState(true);
+        }
 
-                byte[] data = new byte[1024];
-                long total = 0;
-                int count;
-                while ((count = input.read(data)) != -1) {
-                    total += count;
-                    if (fileLength > 0) {
-                        listener.onProgress((int) (total * 100 / fileLength));
+        /**
+         * Keeps up to {@link #parallelSegments} segments downloading, and completes the download once every
+         * segment is in and hashed.
+         */
+        private void pump() {
+            List<Integer> rejected = new ArrayList<>();
+            boolean complete;
+            synchronized (this) {
+                if (finished || state == null) return;
+                while (inFlight.size() < parallelSegments && nextSegment < state.received.length) {
+                    final int segment = nextSegment++;
+                    if (state.received[segment] >= segmentLength(segment)) continue;
+                    inFlight.put(segment, null);
+                    try {
+                        PluginExecutor.JobHandle<?> handle = submit(
+                                "model-download-" + destination.getName() + "-" + segment, context -> {
+                                    downloadSegment(segment, context);
+                                    return null;
+                                });
+                        if (inFlight.containsKey(segment)) {
+                            inFlight.put(segment, handle);
+                        }
+                    } catch (RejectedExecutionException e) {
+                        inFlight.remove(segment);
+                        rejected.add(segment);
                     }
-                    output.write(data, 0, count);
                 }
+                complete = rejected.isEmpty() && inFlight.isEmpty() && nextSegment >= state.received.length
+                        && !hashing && (digest == null || hashedUpTo == state.length);
+            }
+            if (!rejected.isEmpty()) {
+                fail("Could not queue download segments", null);
+            } else if (complete) {
+                complete();
+            }
+        }
 
-                output.flush();
-                listener.onComplete(destinationFile);
+        private void downloadSegment(int segment, PluginExecutor.JobContext context) throws IOException {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    transfer(segment, context);
+                    break;
+                } catch (ChangedException e) {
+                    deleteState();
+                    throw e;
+                } catch (IOException e) {
+                    if (attempt == MAX_ATTEMPTS || isStopped()) throw e;
+                    long delay = RETRY_DELAY_MS << (attempt - 1);
+                    Log.w(TAG, "Segment " + segment + " of " + destination.getName() + " failed (" + e.getMessage()
+                            + "), retrying in " + delay + " ms");
+                    synchronized (this) {
+                        try {
+                            // cancel() and fail() wake this up
+                            if (!finished) wait(delay);
+                        } catch (InterruptedException interrupted) {
+                            Thread.currentThread().interrupt();
+                            throw new CancellationException("Interrupted");
+                        }
+                    }
+                    context.throwIfCancelled();
+                }
+            }
+            synchronized (this) {
+                inFlight.remove(segment);
+            }
+            saveState(true);
+            pump();
+            hashPrefix();
+            pump();
+        }
 
-            } catch (Exception e) {
-                Log.e(TAG, "Download failed", e);
-                listener.onError(e.getMessage());
+        private void transfer(int segment, PluginExecutor.JobContext context) throws IOException {
+            long segmentStart = segment * segmentSize;
+            long end = segmentStart + segmentLength(segment) - 1;
+            long position;
+            synchronized (this) {
+                position = segmentStart + state.received[segment];
+            }
+            if (position > end) return;
+
+            HttpURLConnection connection = open(url);
+            try {
+                connection.setRequestProperty("Range", "bytes=" + position + "-" + end);
+                if (state.validator != null) {
+                    connection.setRequestProperty("If-Range", state.validator);
+                }
+                int code = connection.getResponseCode();
+                if (code == HttpURLConnection.HTTP_OK) {
+                    throw new ChangedException(destination.getName() + " changed on the server, restart the download");
+                }
+                if (code != HttpURLConnection.HTTP_PARTIAL) {
+                    throw new IOException("Server returned HTTP " + code + " " + connection.getResponseMessage());
+                }
+                String range = connection.getHeaderField("Content-Range");
+                if (range == null || !range.startsWith("bytes " + position + "-")) {
+                    throw new IOException("Unexpected Content-Range " + range);
+                }
+
+                ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                try (InputStream in = connection.getInputStream()) {
+                    while (position <= end) {
+                        context.throwIfCancelled();
+                        int n = in.read(buffer.array(), 0, (int) Math.min(BUFFER_SIZE, end - position + 1));
+                        if (n < 0) {
+                            throw new IOException("Connection closed at byte " + position);
+                        }
+                        buffer.position(0).limit(n);
+                        while (buffer.hasRemaining()) {
+                            position += channel.write(buffer, position);
+                        }
+                        synchronized (this) {
+                            state.received[segment] = position - segmentStart;
+                        }
+                        progress(context);
+                        saveState(false);
+                    }
+                }
             } finally {
+                release(connection);
+            }
+        }
+
+        /**
+         * Feeds the contiguous downloaded prefix to the digest. One thread hashes at a time; the others return at
+         * once, and the hashing thread keeps going until it has caught up with what they wrote.
+         */
+        private void hashPrefix() throws IOException {
+            ByteBuffer buffer = null;
+            while (true) {
+                long from;
+                long to;
+                synchronized (this) {
+                    if (digest == null || hashing || finished) return;
+                    from = hashedUpTo;
+                    to = Math.min(contiguousEnd(), from + HASH_CHUNK_SIZE);
+                    if (to <= from) return;
+                    hashing = true;
+                }
                 try {
-                    if (output != null) output.close();
-                    if (input != null) input.close();
-                } catch (IOException ignored) {
+                    if (buffer == null) buffer = ByteBuffer.allocate(HASH_CHUNK_SIZE);
+                    buffer.clear().limit((int) (to - from));
+                    while (buffer.hasRemaining()) {
+                        if (channel.read(buffer, from + buffer.position()) < 0) {
+                            throw new IOException("Unexpected end of " + partFile.getName());
+                        }
+                    }
+                    digest.update(buffer.array(), 0, buffer.limit());
+                } finally {
+                    synchronized (this) {
+                        hashedUpTo = to;
+                        hashing = false;
+                    }
                 }
-                if (connection != null) connection.disconnect();
             }
-        }).start();
+        }
+
+        private long contiguousEnd() {
+            for (int i = (int) (hashedUpTo / segmentSize); i < state.received.length; i++) {
+                if (state.received[i] < segmentLength(i)) {
+                    return i * segmentSize + state.received[i];
+                }
+            }
+            return state.length;
+        }
+
+        private void complete() {
+            synchronized (this) {
+                if (finished) return;
+                finished = true;
+            }
+            try {
+                channel.force(false);
+                file.close();
+                finish(digest);
+            } catch (IOException e) {
+                Log.e(TAG, "Download failed", e);
+                listener.onError(e.getMessage());
+            }
+        }
+
+        /**
+         * Verifies the digest, if any, and moves the partial file into place.
+         */
+        private void finish(MessageDigest digest) throws IOException {
+            if (digest != null) {
+                String actual = hex(digest.digest());
+                if (!actual.equalsIgnoreCase(expectedSha256)) {
+                    partFile.delete();
+                    deleteState();
+                    throw new IOException("Checksum mismatch for " + destination.getName() + ": expected "
+                            + expectedSha256 + ", got " + actual);
+                }
+            }
+            if (destination.exists() && !destination.delete()) {
+                throw new IOException("Could not replace " + destination.getName());
+            }
+            if (!partFile.renameTo(destination)) {
+                throw new IOException("Could not move " + partFile.getName() + " into place");
+            }
+            deleteState();
+            long seconds = Math.max(1, System.currentTimeMillis() - startedAt) / 1000;
+            Log.d(TAG, "Downloaded " + destination.getName() + " (" + destination.length() / (1024 * 1024) + " MB) in "
+                    + seconds + " s");
+            listener.onProgress(100);
+            listener.onComplete(destination);
+        }
+
+        /**
+         * Fallback for servers without Range support: one sequential pass, hashed as it is written.
+         */
+        private void downloadWhole(HttpURLConnection connection, PluginExecutor.JobContext context)
+                throws IOException {
+            long length = connection.getContentLength();
+            MessageDigest digest = expectedSha256 != null ? sha256() : null;
+            deleteState();
+            synchronized (this) {
+                state = null;
+            }
+            long total = 0;
+            try (InputStream in = connection.getInputStream();
+                 FileOutputStream out = new FileOutputStream(partFile)) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    context.throwIfCancelled();
+                    if (isStopped()) {
+                        throw new CancellationException("Download cancelled");
+                    }
+                    out.write(buffer, 0, n);
+                    if (digest != null) digest.update(buffer, 0, n);
+                    total += n;
+                    if (length > 0) {
+                        reportProgress(context, (int) (total * 100 / length), total, length);
+                    }
+                }
+                out.getFD().sync();
+            }
+            synchronized (this) {
+                if (finished) return;
+                finished = true;
+            }
+            finish(digest);
+        }
+
+        private void fail(String message, Exception e) {
+            List<PluginExecutor.JobHandle<?>> handles = new ArrayList<>();
+            List<HttpURLConnection> open;
+            synchronized (this) {
+                if (finished) return;
+                finished = true;
+                for (PluginExecutor.JobHandle<?> handle : inFlight.values()) {
+                    if (handle != null) handles.add(handle);
+                }
+                open = new ArrayList<>(connections);
+                notifyAll();
+            }
+            if (e != null) {
+                Log.e(TAG, "Download failed", e);
+            }
+            for (PluginExecutor.JobHandle<?> handle : handles) {
+                // No interrupt: it would close the shared channel under the other segments
+                handle.cancel(false);
+            }
+            for (HttpURLConnection connection : open) {
+                // Unblocks reads waiting on the socket
+                connection.disconnect();
+            }
+            if (stateFile.exists()) {
+                saveState(true);
+            }
+            try {
+                if (file != null) file.close();
+            } catch (IOException ignored) {
+            }
+            listener.onError(message);
+        }
+
+        private synchronized boolean isStopped() {
+            return finished || cancelled;
+        }
+
+        private void progress(PluginExecutor.JobContext context) {
+            long done;
+            long length;
+            synchronized (this) {
+                done = received();
+                length = state.length;
+            }
+            reportProgress(context, (int) (done * 100 / length), done, length);
+        }
+
+        /**
+         * Reports at most every {@link #PROGRESS_INTERVAL_MS}, and only when the percentage has changed.
+         */
+        private void reportProgress(PluginExecutor.JobContext context, int percent, long done, long length) {
+            long now = System.currentTimeMillis();
+            synchronized (this) {
+                if (percent == lastPercent || now - lastProgressAt < PROGRESS_INTERVAL_MS) return;
+                lastPercent = percent;
+                lastProgressAt = now;
+            }
+            double seconds = Math.max(1, now - startedAt) / 1000.0;
+            double rate = (done - receivedAtStart) / seconds / (1024 * 1024);
+            listener.onProgress(percent);
+            context.setProgress(percent, String.format(Locale.US, "%s: %d of %d MB, %.1f MB/s",
+                    destination.getName(), done / (1024 * 1024), length / (1024 * 1024), rate));
+        }
+
+        private long received() {
+            long total = 0;
+            for (long r : state.received) {
+                total += r;
+            }
+            return total;
+        }
+
+        private long segmentLength(int segment) {
+            return Math.min(segmentSize, state.length - segment * segmentSize);
+        }
+
+        private SavedState loadState() {
+            if (!stateFile.exists()) return null;
+            try (Reader reader = new FileReader(stateFile)) {
+                return new Gson().fromJson(reader, SavedState.class);
+            } catch (IOException | JsonSyntaxException e) {
+                Log.w(TAG, "Ignoring unreadable " + stateFile.getName() + ": " + e.getMessage());
+                return null;
+            }
+        }
+
+        /**
+         * Writes the segment map through a temporary file, at most every {@link #STATE_INTERVAL_MS} unless
+         * {@code force} is set.
+         */
+        private void saveState(boolean force) {
+            String json;
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                if (state == null || (!force && now - lastSavedAt < STATE_INTERVAL_MS)) return;
+                lastSavedAt = now;
+                json = new Gson().toJson(state);
+            }
+            File temp = new File(stateFile.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8")) {
+                writer.write(json);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not save download state: " + e.getMessage());
+                temp.delete();
+                return;
+            }
+            if (!temp.renameTo(stateFile)) {
+                temp.delete();
+            }
+        }
+
+        private void deleteState() {
+            stateFile.delete();
+        }
+
+        private HttpURLConnection open(URL url) throws IOException {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setConnectTimeout(TIMEOUT_MS);
+            connection.setReadTimeout(TIMEOUT_MS);
+            // Content-Range offsets only make sense on the raw bytes
+            connection.setRequestProperty("Accept-Encoding", "identity");
+            synchronized (this) {
+                connections.add(connection);
+            }
+            return connection;
+        }
+
+        private void release(HttpURLConnection connection) {
+            synchronized (this) {
+                connections.remove(connection);
+            }
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * @return the total from a {@code Content-Range: bytes first-last/total} header, or -1
+     */
+    private static long totalLength(String contentRange) {
+        if (contentRange == null) return -1;
+        int slash = contentRange.lastIndexOf('/');
+        if (slash < 0) return -1;
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return a strong ETag, or else Last-Modified, to check on resume that the file has not changed
+     */
+    private static String validator(HttpURLConnection connection) {
+        String etag = connection.getHeaderField("ETag");
+        if (etag != null && !etag.startsWith("W/")) return etag;
+        return connection.getHeaderField("Last-Modified");
+    }
+
+    private static void drain(HttpURLConnection connection) throws IOException {
+        try (InputStream in = connection.getInputStream()) {
+            byte[] buffer = new byte[256];
+            while (in.read(buffer) != -1) {
+                // Reading to the end lets the connection be reused
+            }
+        }
+    }
+
+    private static MessageDigest sha256() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder result = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            result.append(String.format(Locale.US, "%02x", b & 0xFF));
+        }
+        return result.toString();
     }
 }
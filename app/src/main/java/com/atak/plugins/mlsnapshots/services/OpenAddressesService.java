@@ -26,7 +26,7 @@ public class OpenAddressesService {
 
     public static final String TAG = "OpenAddressesService";
     private final DuckDBService duckDBService;
-    private final Executor executor = PluginExecutor.getExecutor();
+    private final Executor executor = PluginExecutor.getExecutor(PluginExecutor.JobType.NETWORK);
     private final File dataDir;
 
     public interface ResultListener {
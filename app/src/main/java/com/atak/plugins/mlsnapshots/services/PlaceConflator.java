@@ -0,0 +1,503 @@
+package com.atak.plugins.mlsnapshots.services;
+
+import com.atak.plugins.mlsnapshots.PluginExecutor;
+import com.atakmap.coremap.log.Log;
+import org.duckdb.DuckDBAppender;
+import org.duckdb.DuckDBConnection;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Merges place records from several sources into one record per real-world place.
+ * <p>
+ * Records are blocked by geohash cell so that only places in the same or a nearby cell are
+ * ever compared: the adjacent rows, and as many columns either side as the match distance spans at
+ * that latitude. Candidate pairs are scored on name similarity and distance, matching pairs are
+ * clustered with union-find, and each cluster is written out as one place with its provenance.
+ * <p>
+ * Matching runs on the {@link PluginExecutor.JobType#COMPUTE} lane, so {@link #conflate} must not be
+ * called from a COMPUTE job itself.
+ */
+public class PlaceConflator {
+
+    private static final String TAG = "PlaceConflator";
+
+    // 15 bits per axis is geohash precision 6: cells of ~1.2 km x 0.6 km, larger than the default match radius,
+    // so every candidate pair lies in the same or a neighbouring row of cells.
+    private static final int MAX_CELL_BITS = 15;
+    private static final double EARTH_RADIUS_M = 6371008.8;
+    private static final double METERS_PER_DEGREE = Math.toRadians(EARTH_RADIUS_M);
+
+    private double maxDistanceMeters = 150;
+    // Bits per axis of the blocking grid; coarser than MAX_CELL_BITS when the match radius needs larger cells
+    private int cellBits = MAX_CELL_BITS;
+    private double matchThreshold = 0.78;
+
+    /**
+     * Sets how far apart two records may be and still match; the blocking grid is coarsened so its cells stay
+     * at least that tall. Cells narrow towards the poles, which {@link #lonCellRange} makes up for.
+     */
+    public void setMaxDistanceMeters(double maxDistanceMeters) {
+        int bits = MAX_CELL_BITS;
+        while (bits > 1 && 180.0 / (1 << bits) * METERS_PER_DEGREE < maxDistanceMeters) {
+            bits--;
+        }
+        this.maxDistanceMeters = maxDistanceMeters;
+        this.cellBits = bits;
+    }
+
+    public void setMatchThreshold(double matchThreshold) {
+        this.matchThreshold = matchThreshold;
+    }
+
+    /**
+     * Conflates the given tables into {@code outputTable}.
+     *
+     * @param sourceTables tables with (id, name, category, geom, source) columns, most trusted first.
+     *                     The representative of a cluster is taken from the most trusted table.
+     * @return the number of places written
+     */
+    public int conflate(Connection conn, List<String> sourceTables, String outputTable) throws SQLException {
+        long start = System.currentTimeMillis();
+        Places places = load(conn, sourceTables);
+        long loaded = System.currentTimeMillis();
+
+        long[] blocks = blockByCell(places, cellBits);
+        Map<Long, int[]> cellRanges = cellRanges(blocks);
+        int[] parent = match(places, blocks, cellRanges);
+        long matched = System.currentTimeMillis();
+
+        int written = write(conn, places, parent, outputTable);
+        Log.d(TAG, String.format(Locale.US,
+                "Conflated %d records into %d places in %d cells (load %d ms, match %d ms, write %d ms)",
+                places.size, written, cellRanges.size(), loaded - start, matched - loaded,
+                System.currentTimeMillis() - matched));
+        return written;
+    }
+
+    /** Column-oriented copy of the input records, so matching touches primitive arrays only. */
+    private static final class Places {
+        int size;
+        String[] ids, names, categories, sources;
+        char[][] keys;
+        double[] lon, lat;
+        int[] rank;
+
+        Places(int capacity) {
+            ids = new String[capacity];
+            names = new String[capacity];
+            categories = new String[capacity];
+            sources = new String[capacity];
+            keys = new char[capacity][];
+            lon = new double[capacity];
+            lat = new double[capacity];
+            rank = new int[capacity];
+        }
+
+        void add(String id, String name, String category, String source, double x, double y, int sourceRank) {
+            if (size == ids.length) {
+                int capacity = size * 2;
+                ids = Arrays.copyOf(ids, capacity);
+                names = Arrays.copyOf(names, capacity);
+                categories = Arrays.copyOf(categories, capacity);
+                sources = Arrays.copyOf(sources, capacity);
+                keys = Arrays.copyOf(keys, capacity);
+                lon = Arrays.copyOf(lon, capacity);
+                lat = Arrays.copyOf(lat, capacity);
+                rank = Arrays.copyOf(rank, capacity);
+            }
+            ids[size] = id;
+            names[size] = name;
+            categories[size] = category;
+            sources[size] = source;
+            keys[size] = normalizeName(name).toCharArray();
+            lon[size] = x;
+            lat[size] = y;
+            rank[size] = sourceRank;
+            size++;
+        }
+    }
+
+    private Places load(Connection conn, List<String> sourceTables) throws SQLException {
+        Places places = new Places(1024);
+        try (Statement stmt = conn.createStatement()) {
+            for (int rank = 0; rank < sourceTables.size(); rank++) {
+                String table = sourceTables.get(rank);
+                try (ResultSet rs = stmt.executeQuery(
+                        "SELECT CAST(id AS VARCHAR), name, category, source, ST_X(ST_Centroid(geom)), ST_Y(ST_Centroid(geom)) " +
+                        "FROM " + table + " WHERE geom IS NOT NULL")) {
+                    while (rs.next()) {
+                        places.add(rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4),
+                                rs.getDouble(5), rs.getDouble(6), rank);
+                    }
+                }
+            }
+        }
+        return places;
+    }
+
+    /**
+     * @return records sorted by geohash cell, packed as (cell << 32 | index)
+     */
+    private static long[] blockByCell(Places places, int cellBits) {
+        long[] blocks = new long[places.size];
+        for (int i = 0; i < places.size; i++) {
+            blocks[i] = (geohashCell(places.lon[i], places.lat[i], cellBits) << 32) | i;
+        }
+        Arrays.sort(blocks);
+        return blocks;
+    }
+
+    private static Map<Long, int[]> cellRanges(long[] blocks) {
+        Map<Long, int[]> ranges = new HashMap<>();
+        int start = 0;
+        for (int i = 1; i <= blocks.length; i++) {
+            if (i == blocks.length || (blocks[i] >>> 32) != (blocks[start] >>> 32)) {
+                ranges.put(blocks[start] >>> 32, new int[]{start, i});
+                start = i;
+            }
+        }
+        return ranges;
+    }
+
+    private int[] match(Places places, long[] blocks, Map<Long, int[]> cellRanges) throws SQLException {
+        List<int[]> cells = new ArrayList<>(cellRanges.values());
+        int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), cells.size()));
+        int chunk = Math.max(1, (cells.size() + threads * 4 - 1) / (threads * 4));
+
+        PluginExecutor executor = PluginExecutor.getInstance();
+        List<Future<long[]>> results = new ArrayList<>();
+        try {
+            for (int from = 0; from < cells.size(); from += chunk) {
+                final BlockMatcher matcher = new BlockMatcher(places, blocks, cellRanges,
+                        cells.subList(from, Math.min(cells.size(), from + chunk)));
+                results.add(executor.submit("conflate-cells", PluginExecutor.JobType.COMPUTE, context -> matcher.call()));
+            }
+
+            int[] parent = new int[places.size];
+            for (int i = 0; i < parent.length; i++) parent[i] = i;
+            for (Future<long[]> result : results) {
+                for (long pair : result.get()) {
+                    union(parent, (int) (pair >>> 32), (int) pair);
+                }
+            }
+            return parent;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Conflation interrupted", e);
+        } catch (ExecutionException e) {
+            throw new SQLException("Conflation failed", e.getCause());
+        } finally {
+            for (Future<long[]> result : results) {
+                result.cancel(true);
+            }
+        }
+    }
+
+    /** Compares every record of a group of cells with the records of the same and neighbouring cells. */
+    private final class BlockMatcher {
+        private final Places places;
+        private final long[] blocks;
+        private final Map<Long, int[]> cellRanges;
+        private final List<int[]> cells;
+        private long[] pairs = new long[64];
+        private int pairCount;
+
+        BlockMatcher(Places places, long[] blocks, Map<Long, int[]> cellRanges, List<int[]> cells) {
+            this.places = places;
+            this.blocks = blocks;
+            this.cellRanges = cellRanges;
+            this.cells = cells;
+        }
+
+        long[] call() {
+            JaroWinkler similarity = new JaroWinkler();
+            for (int[] range : cells) {
+                long cell = blocks[range[0]] >>> 32;
+                int cx = deinterleave(cell >>> 1, cellBits);
+                int cy = deinterleave(cell, cellBits);
+                for (int dy = -1; dy <= 1; dy++) {
+                    int columns = lonCellRange(cy, cy + dy);
+                    for (int dx = -columns; dx <= columns; dx++) {
+                        long neighbour = interleave(cx + dx, cy + dy, cellBits);
+                        // Each unordered pair of cells is handled once, by the lower cell key
+                        if (neighbour < cell) continue;
+                        int[] other = cellRanges.get(neighbour);
+                        if (other == null) continue;
+                        compare(similarity, range, other, neighbour == cell);
+                    }
+                }
+            }
+            return Arrays.copyOf(pairs, pairCount);
+        }
+
+        private void compare(JaroWinkler similarity, int[] a, int[] b, boolean sameCell) {
+            for (int p = a[0]; p < a[1]; p++) {
+                int i = (int) blocks[p];
+                for (int q = sameCell ? p + 1 : b[0]; q < b[1]; q++) {
+                    int j = (int) blocks[q];
+                    double distance = distanceMeters(places.lat[i], places.lon[i], places.lat[j], places.lon[j]);
+                    if (distance > maxDistanceMeters) continue;
+                    if (score(similarity, i, j, distance) >= matchThreshold) {
+                        if (pairCount == pairs.length) pairs = Arrays.copyOf(pairs, pairCount * 2);
+                        pairs[pairCount++] = ((long) i << 32) | (j & 0xffffffffL);
+                    }
+                }
+            }
+        }
+
+        private double score(JaroWinkler similarity, int i, int j, double distance) {
+            char[] a = places.keys[i];
+            char[] b = places.keys[j];
+            if (a.length == 0 || b.length == 0) return 0;
+            double nameScore = similarity.similarity(a, b);
+            if (nameScore < 0.9 && contains(a, b)) {
+                // "Starbucks" vs "Starbucks Coffee"
+                nameScore = 0.9;
+            }
+            double score = 0.75 * nameScore + 0.25 * (1 - distance / maxDistanceMeters);
+            String ci = places.categories[i];
+            if (ci != null && ci.equals(places.categories[j])) {
+                score += 0.05;
+            }
+            return score;
+        }
+    }
+
+    /**
+     * @return how many columns apart records in rows {@code y1} and {@code y2} can be and still lie within the
+     *         match distance. Depends only on the pair of rows, so both cells of a pair see each other.
+     */
+    private int lonCellRange(int y1, int y2) {
+        int cells = 1 << cellBits;
+        // Cells are narrowest at the poleward edge of the two rows
+        double south = Math.min(y1, y2) * 180.0 / cells - 90;
+        double north = (Math.max(y1, y2) + 1) * 180.0 / cells - 90;
+        double cos = Math.cos(Math.toRadians(Math.min(90, Math.max(Math.abs(south), Math.abs(north)))));
+        double cellWidthMeters = 360.0 / cells * METERS_PER_DEGREE * cos;
+        return (int) Math.min(cells, Math.max(1, Math.ceil(maxDistanceMeters / cellWidthMeters)));
+    }
+
+    private int write(Connection conn, Places places, int[] parent, String outputTable) throws SQLException {
+        // Group members by cluster root
+        int[] order = new int[places.size];
+        long[] packed = new long[places.size];
+        for (int i = 0; i < places.size; i++) {
+            packed[i] = ((long) find(parent, i) << 32) | i;
+        }
+        Arrays.sort(packed);
+        for (int i = 0; i < packed.length; i++) order[i] = (int) packed[i];
+
+        String staging = outputTable + "_staging";
+        int written = 0;
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE OR REPLACE TABLE " + staging + " (place_id VARCHAR, name VARCHAR, category VARCHAR, " +
+                    "lon DOUBLE, lat DOUBLE, sources VARCHAR, source_ids VARCHAR, member_count INTEGER)");
+
+            try (DuckDBAppender appender = conn.unwrap(DuckDBConnection.class).createAppender("main", staging)) {
+                int start = 0;
+                for (int k = 1; k <= order.length; k++) {
+                    if (k == order.length || (packed[k] >>> 32) != (packed[start] >>> 32)) {
+                        appendCluster(appender, places, order, start, k);
+                        written++;
+                        start = k;
+                    }
+                }
+            }
+
+            stmt.execute("CREATE OR REPLACE TABLE " + outputTable + " AS " +
+                    "SELECT place_id, name, category, ST_Point(lon, lat) AS geom, sources AS source, source_ids, member_count " +
+                    "FROM " + staging);
+            stmt.execute("DROP TABLE IF EXISTS " + staging);
+        }
+        return written;
+    }
+
+    private static void appendCluster(DuckDBAppender appender, Places places, int[] order, int from, int to) throws SQLException {
+        int best = order[from];
+        for (int k = from + 1; k < to; k++) {
+            int i = order[k];
+            if (places.rank[i] < places.rank[best]
+                    || (places.rank[i] == places.rank[best] && length(places.names[i]) > length(places.names[best]))) {
+                best = i;
+            }
+        }
+
+        String category = places.categories[best];
+        TreeSet<String> sources = new TreeSet<>();
+        StringBuilder sourceIds = new StringBuilder();
+        for (int k = from; k < to; k++) {
+            int i = order[k];
+            if (category == null) category = places.categories[i];
+            sources.add(String.valueOf(places.sources[i]));
+            if (sourceIds.length() > 0) sourceIds.append(';');
+            sourceIds.append(places.sources[i]).append(':').append(places.ids[i]);
+        }
+
+        StringBuilder sourceList = new StringBuilder();
+        for (String source : sources) {
+            if (sourceList.length() > 0) sourceList.append(',');
+            sourceList.append(source);
+        }
+
+        appender.beginRow();
+        appender.append(places.ids[best]);
+        appender.append(places.names[best]);
+        appender.append(category);
+        appender.append(places.lon[best]);
+        appender.append(places.lat[best]);
+        appender.append(sourceList.toString());
+        appender.append(sourceIds.toString());
+        appender.append(to - from);
+        appender.endRow();
+    }
+
+    // --- Helpers ---
+
+    static long geohashCell(double lon, double lat, int bits) {
+        return interleave(lonCell(lon, bits), latCell(lat, bits), bits);
+    }
+
+    private static int lonCell(double lon, int bits) {
+        int cells = 1 << bits;
+        return Math.min(cells - 1, Math.max(0, (int) ((lon + 180.0) / 360.0 * cells)));
+    }
+
+    private static int latCell(double lat, int bits) {
+        int cells = 1 << bits;
+        return Math.min(cells - 1, Math.max(0, (int) ((lat + 90.0) / 180.0 * cells)));
+    }
+
+    /** Geohash bit order: longitude bits in the odd positions, latitude bits in the even ones. */
+    private static long interleave(int x, int y, int bits) {
+        if (x < 0 || y < 0 || x >= (1 << bits) || y >= (1 << bits)) return -1;
+        long result = 0;
+        for (int bit = bits - 1; bit >= 0; bit--) {
+            result = (result << 2) | (((x >>> bit) & 1) << 1) | ((y >>> bit) & 1);
+        }
+        return result;
+    }
+
+    private static int deinterleave(long bits, int cellBits) {
+        int result = 0;
+        for (int bit = 0; bit < cellBits; bit++) {
+            result |= (int) ((bits >>> (2 * bit)) & 1) << bit;
+        }
+        return result;
+    }
+
+    private static double distanceMeters(double lat1, double lon1, double lat2, double lon2) {
+        // Equirectangular approximation, accurate to well under a metre at these distances
+        double x = Math.toRadians(lon2 - lon1) * Math.cos(Math.toRadians((lat1 + lat2) / 2));
+        double y = Math.toRadians(lat2 - lat1);
+        return Math.sqrt(x * x + y * y) * EARTH_RADIUS_M;
+    }
+
+    static String normalizeName(String name) {
+        if (name == null) return "";
+        String folded = Normalizer.normalize(name, Normalizer.Form.NFD).toLowerCase(Locale.ROOT);
+        StringBuilder sb = new StringBuilder(folded.length());
+        boolean space = false;
+        for (int i = 0; i < folded.length(); i++) {
+            char c = folded.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                if (space && sb.length() > 0) sb.append(' ');
+                sb.append(c);
+                space = false;
+            } else if (Character.getType(c) != Character.NON_SPACING_MARK) {
+                space = true;
+            }
+        }
+        return sb.toString();
+    }
+
+    private static boolean contains(char[] a, char[] b) {
+        char[] longer = a.length >= b.length ? a : b;
+        char[] shorter = a.length >= b.length ? b : a;
+        if (shorter.length < 4) return false;
+        outer:
+        for (int i = 0; i <= longer.length - shorter.length; i++) {
+            for (int j = 0; j < shorter.length; j++) {
+                if (longer[i + j] != shorter[j]) continue outer;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static int length(String s) {
+        return s == null ? 0 : s.length();
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private static void union(int[] parent, int a, int b) {
+        int ra = find(parent, a);
+        int rb = find(parent, b);
+        if (ra != rb) {
+            if (ra < rb) parent[rb] = ra; else parent[ra] = rb;
+        }
+    }
+
+    /** Jaro-Winkler similarity with reusable scratch buffers; one instance per thread. */
+    private static final class JaroWinkler {
+        private boolean[] matchedA = new boolean[64];
+        private boolean[] matchedB = new boolean[64];
+
+        double similarity(char[] a, char[] b) {
+            if (matchedA.length < a.length) matchedA = new boolean[a.length * 2];
+            if (matchedB.length < b.length) matchedB = new boolean[b.length * 2];
+            Arrays.fill(matchedA, 0, a.length, false);
+            Arrays.fill(matchedB, 0, b.length, false);
+
+            int window = Math.max(0, Math.max(a.length, b.length) / 2 - 1);
+            int matches = 0;
+            for (int i = 0; i < a.length; i++) {
+                int from = Math.max(0, i - window);
+                int to = Math.min(b.length, i + window + 1);
+                for (int j = from; j < to; j++) {
+                    if (!matchedB[j] && a[i] == b[j]) {
+                        matchedA[i] = true;
+                        matchedB[j] = true;
+                        matches++;
+                        break;
+                    }
+                }
+            }
+            if (matches == 0) return 0;
+
+            int transpositions = 0;
+            for (int i = 0, j = 0; i < a.length; i++) {
+                if (!matchedA[i]) continue;
+                while (!matchedB[j]) j++;
+                if (a[i] != b[j]) transpositions++;
+                j++;
+            }
+
+            double m = matches;
+            double jaro = (m / a.length + m / b.length + (m - transpositions / 2.0) / m) / 3.0;
+            int prefix = 0;
+            while (prefix < Math.min(4, Math.min(a.length, b.length)) && a[prefix] == b[prefix]) prefix++;
+            return jaro + prefix * 0.1 * (1 - jaro);
+        }
+    }
+}
@@ -1,18 +1,58 @@
 package com.atak.plugins.mlsnapshots.services;
 
+import com.atak.plugins.mlsnapshots.PluginExecutor;
+import com.atak.plugins.mlsnapshots.helpers.TileRenderer;
 import com.atakmap.coremap.log.Log;
 
+import java.io.File;
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
 
 public class PlacesDataService {
 
     private static final String TAG = "PlacesDataService";
+
+    public static final String OVERTURE_RELEASE = "2024-04-16.0";
+
+    // Pointing straight at the type=place partition lets DuckDB skip listing every other Hive partition.
+    public static final String OVERTURE_PLACES_SOURCE =
+            "s3://overturemaps-us-west-2/release/" + OVERTURE_RELEASE + "/theme=places/type=place/*";
+
+    // Zoom 13 tiles are roughly 5 km across at mid latitudes, so a typical download covers a handful of tiles.
+    static final int CACHE_ZOOM = 13;
+
+    // About 40 km square at mid latitudes; larger areas are refused rather than fetched as one remote scan
+    static final int MAX_TILES_PER_REQUEST = 64;
+
     private final DuckDBService duckDBService;
+    private final File cacheDir;
+    private final String overtureSource;
+    private final PlaceConflator conflator = new PlaceConflator();
+
+    public PlacesDataService(DuckDBService duckDBService, File cacheDir) {
+        this(duckDBService, cacheDir, OVERTURE_PLACES_SOURCE);
+    }
 
-    public PlacesDataService(DuckDBService duckDBService) {
+    /**
+     * @param duckDBService  DuckDB instance to load the places into
+     * @param cacheDir       directory for the per-quadkey Parquet tiles
+     * @param overtureSource Parquet glob of the Overture places partition. Any directory laid out like the
+     *                       release (e.g. a local copy used in place of S3) works.
+     */
+    public PlacesDataService(DuckDBService duckDBService, File cacheDir, String overtureSource) {
         this.duckDBService = duckDBService;
+        this.overtureSource = overtureSource;
+        // Tiles from different sources/releases must never be mixed
+        this.cacheDir = new File(cacheDir, Integer.toHexString(overtureSource.hashCode()));
+        if (!this.cacheDir.exists() && !this.cacheDir.mkdirs()) {
+            Log.e(TAG, "Failed to create places cache directory " + this.cacheDir);
+        }
     }
 
     /**
@@ -23,33 +63,24 @@ public class PlacesDataService {
      * @param minLat Minimum Latitude
      * @param maxLon Maximum Longitude
      * @param maxLat Maximum Latitude
+     * @return the background job, which can be observed or cancelled. It fails with an
+     *         {@link IllegalArgumentException} if the area covers more than {@link #MAX_TILES_PER_REQUEST} tiles.
      */
-    public void downloadAndFusePlaces(double minLon, double minLat, double maxLon, double maxLat) {
-        new Thread(() -> {
-            try (Connection conn = duckDBService.getConnection();
+    public PluginExecutor.JobHandle<PlacesResult> downloadAndFusePlaces(double minLon, double minLat, double maxLon, double maxLat) {
+        return PluginExecutor.getInstance().submit("places-download", PluginExecutor.JobType.NETWORK, context -> {
+            int places = 0;
+            int missingTiles = 0;
+            try (Connection conn = duckDBService.newConnection();
                  Statement stmt = conn.createStatement()) {
 
                 Log.d(TAG, "Starting Places Download for BBOX: " + minLon + "," + minLat + "," + maxLon + "," + maxLat);
 
-                // 1. Overture Maps Places (S3 Parquet)
-                // We use a simplified query for demonstration.
-                // In a real scenario, we would need to handle large data volumes carefully.
-                try {
-                    String overtureQuery = String.format(
-                            "SELECT id, names.primary as name, categories.main as category, geometry as geom, 'Overture' as source " +
-                            "FROM read_parquet('s3://overturemaps-us-west-2/release/2024-04-16.0/theme=places/type=*/*', filename=true, hive_partitioning=1) " +
-                            "WHERE bbox.minx >= %f AND bbox.miny >= %f AND bbox.maxx <= %f AND bbox.maxy <= %f " +
-                            "LIMIT 1000", 
-                            minLon, minLat, maxLon, maxLat
-                    );
-                    
-                    stmt.execute("CREATE OR REPLACE TABLE overture_places AS " + overtureQuery);
-                    Log.d(TAG, "Overture Places downloaded.");
-                } catch (SQLException e) {
-                    Log.e(TAG, "Failed to download Overture Maps data: " + e.getMessage());
-                }
+                // 1. Overture Maps Places (S3 Parquet, cached locally per quadkey)
+                context.setProgress(0, "Downloading Overture places");
+                missingTiles = loadOverturePlaces(conn, minLon, minLat, maxLon, maxLat);
 
                 // 2. USGS GNIS (Placeholder)
+                context.throwIfCancelled();
                 try {
                     stmt.execute("CREATE OR REPLACE TABLE usgs_places (id VARCHAR, name VARCHAR, category VARCHAR, geom GEOMETRY, source VARCHAR)");
                     Log.d(TAG, "USGS GNIS placeholder created.");
@@ -57,14 +88,12 @@ public class PlacesDataService {
                      Log.e(TAG, "Failed to create USGS placeholder: " + e.getMessage());
                 }
 
-                // 3. Fuse Data
+                // 3. Fuse Data: one record per real-world place, Overture preferred
+                context.throwIfCancelled();
+                context.setProgress(60, "Conflating places");
                 try {
-                    stmt.execute("CREATE OR REPLACE TABLE fused_places AS " +
-                            "SELECT name, category, geom, source FROM overture_places " +
-                            "UNION ALL " +
-                            "SELECT name, category, geom, source FROM usgs_places");
-
-                    Log.d(TAG, "Data Fused into 'fused_places' table.");
+                    places = conflator.conflate(conn, Arrays.asList("overture_places", "usgs_places"), "fused_places");
+                    Log.d(TAG, "Data Fused into 'fused_places' table: " + places + " places.");
                 } catch (SQLException e) {
                      Log.e(TAG, "Failed to fuse data: " + e.getMessage());
                 }
@@ -72,6 +101,176 @@ public class PlacesDataService {
             } catch (SQLException e) {
                 Log.e(TAG, "Error connecting to DuckDB for places download", e);
             }
-        }).start();
+            PlacesResult result = new PlacesResult(places, missingTiles);
+            context.setProgress(100, result.isIncomplete()
+                    ? "Places ready, " + missingTiles + " Overture tiles could not be downloaded" : "Places ready");
+            return result;
+        });
+    }
+
+    /** What a places download produced. */
+    public static final class PlacesResult {
+        /** Places in 'fused_places'. */
+        public final int places;
+        /** Overture tiles of the area that were neither cached nor downloadable, so their places are missing. */
+        public final int missingTiles;
+
+        PlacesResult(int places, int missingTiles) {
+            this.places = places;
+            this.missingTiles = missingTiles;
+        }
+
+        public boolean isIncomplete() {
+            return missingTiles > 0;
+        }
+    }
+
+    /**
+     * Fills the quadkey cache for the bounding box and rebuilds 'overture_places' from it.
+     * Only quadkeys that are not cached yet are fetched from the remote source, in a single scan
+     * whose bbox predicate lets DuckDB skip row groups using their min/max statistics.
+     * If that fetch fails, 'overture_places' still holds exactly the cached part of the area,
+     * never places left over from an earlier request.
+     *
+     * @return the number of tiles that could not be fetched and are missing from 'overture_places'
+     * @throws IllegalArgumentException if the area covers more than {@link #MAX_TILES_PER_REQUEST} tiles
+     */
+    int loadOverturePlaces(Connection conn, double minLon, double minLat, double maxLon, double maxLat) throws SQLException {
+        List<String> quadKeys = coveringQuadKeys(minLon, minLat, maxLon, maxLat, CACHE_ZOOM);
+        if (quadKeys.size() > MAX_TILES_PER_REQUEST) {
+            throw new IllegalArgumentException("Area covers " + quadKeys.size() + " places tiles, at most "
+                    + MAX_TILES_PER_REQUEST + " can be loaded at once");
+        }
+        List<String> missing = new ArrayList<>();
+        for (String quadKey : quadKeys) {
+            if (!tileFile(quadKey).exists()) {
+                missing.add(quadKey);
+            }
+        }
+        Log.d(TAG, "Places tiles: " + quadKeys.size() + " requested, " + missing.size() + " not cached");
+
+        try (Statement stmt = conn.createStatement()) {
+            int unavailable = 0;
+            if (!missing.isEmpty()) {
+                try {
+                    if (overtureSource.startsWith("s3://")) {
+                        stmt.execute("SET s3_region='us-west-2';");
+                    }
+                    // Keeps Parquet footers in memory between scans of the same release
+                    stmt.execute("SET enable_object_cache=true;");
+                    fetchTiles(stmt, missing);
+                } catch (SQLException | IOException e) {
+                    Log.e(TAG, "Failed to download Overture Maps data: " + e.getMessage());
+                }
+                for (String quadKey : missing) {
+                    if (!tileFile(quadKey).exists()) unavailable++;
+                }
+            }
+
+            StringBuilder files = new StringBuilder();
+            for (String quadKey : quadKeys) {
+                if (!tileFile(quadKey).exists()) continue;
+                if (files.length() > 0) files.append(", ");
+                files.append('\'').append(escape(tileFile(quadKey).getAbsolutePath())).append('\'');
+            }
+
+            if (files.length() == 0) {
+                stmt.execute("CREATE OR REPLACE TABLE overture_places "
+                        + "(id VARCHAR, name VARCHAR, category VARCHAR, geom GEOMETRY, source VARCHAR)");
+                Log.w(TAG, "No Overture places available for the area.");
+                return unavailable;
+            }
+            stmt.execute(String.format(Locale.US,
+                    "CREATE OR REPLACE TABLE overture_places AS " +
+                    "SELECT id, name, category, ST_GeomFromWKB(geometry) AS geom, 'Overture' AS source " +
+                    "FROM read_parquet([%s]) " +
+                    "WHERE (bbox.xmin + bbox.xmax) / 2 BETWEEN %f AND %f " +
+                    "AND (bbox.ymin + bbox.ymax) / 2 BETWEEN %f AND %f",
+                    files, minLon, maxLon, minLat, maxLat));
+            if (unavailable > 0) {
+                Log.w(TAG, "Overture Places loaded without " + unavailable + " of " + quadKeys.size() + " tiles.");
+            } else {
+                Log.d(TAG, "Overture Places loaded from " + quadKeys.size() + " cached tiles.");
+            }
+            return unavailable;
+        }
+    }
+
+    private void fetchTiles(Statement stmt, List<String> quadKeys) throws SQLException, IOException {
+        double fetchMinLon = 180, fetchMinLat = 90, fetchMaxLon = -180, fetchMaxLat = -90;
+        for (String quadKey : quadKeys) {
+            double[] b = quadKeyBounds(quadKey);
+            fetchMinLon = Math.min(fetchMinLon, b[0]);
+            fetchMinLat = Math.min(fetchMinLat, b[1]);
+            fetchMaxLon = Math.max(fetchMaxLon, b[2]);
+            fetchMaxLat = Math.max(fetchMaxLat, b[3]);
+        }
+
+        long start = System.currentTimeMillis();
+        stmt.execute(String.format(Locale.US,
+                "CREATE OR REPLACE TEMP TABLE overture_fetch AS " +
+                "SELECT id, names.primary AS name, categories.primary AS category, confidence, geometry, bbox " +
+                "FROM read_parquet('%s', hive_partitioning=1) " +
+                "WHERE bbox.xmin <= %f AND bbox.xmax >= %f AND bbox.ymin <= %f AND bbox.ymax >= %f",
+                escape(overtureSource), fetchMaxLon, fetchMinLon, fetchMaxLat, fetchMinLat));
+        Log.d(TAG, "Fetched " + quadKeys.size() + " tiles from " + overtureSource + " in " + (System.currentTimeMillis() - start) + " ms");
+
+        try {
+            for (String quadKey : quadKeys) {
+                double[] b = quadKeyBounds(quadKey);
+                File target = tileFile(quadKey);
+                // Downloads of overlapping areas may write the same tile at once, so each writes its own file
+                // and renames it into place; the cache only ever holds complete tiles.
+                File partial = File.createTempFile(quadKey + "-", ".tmp", cacheDir);
+                try {
+                    // Each place belongs to exactly one tile (by bbox centre) so tiles never overlap.
+                    // Tiles are written even when empty, otherwise empty areas would be fetched again every time.
+                    stmt.execute(String.format(Locale.US,
+                            "COPY (SELECT * FROM overture_fetch " +
+                            "WHERE (bbox.xmin + bbox.xmax) / 2 >= %f AND (bbox.xmin + bbox.xmax) / 2 < %f " +
+                            "AND (bbox.ymin + bbox.ymax) / 2 >= %f AND (bbox.ymin + bbox.ymax) / 2 < %f " +
+                            "ORDER BY bbox.ymin, bbox.xmin) " +
+                            "TO '%s' (FORMAT PARQUET, COMPRESSION ZSTD)",
+                            b[0], b[2], b[1], b[3], escape(partial.getAbsolutePath())));
+                    if (!partial.renameTo(target)) {
+                        Log.w(TAG, "Failed to move places tile into cache: " + target);
+                    }
+                } finally {
+                    if (partial.exists() && !partial.delete()) {
+                        Log.w(TAG, "Failed to delete partial places tile " + partial);
+                    }
+                }
+            }
+        } finally {
+            stmt.execute("DROP TABLE IF EXISTS overture_fetch");
+        }
+    }
+
+    static List<String> coveringQuadKeys(double minLon, double minLat, double maxLon, double maxLat, int zoom) {
+        int minX = TileRenderer.lon2tile(minLon, zoom);
+        int maxX = TileRenderer.lon2tile(maxLon, zoom);
+        int minY = TileRenderer.lat2tile(maxLat, zoom);
+        int maxY = TileRenderer.lat2tile(minLat, zoom);
+
+        List<String> quadKeys = new ArrayList<>((maxX - minX + 1) * (maxY - minY + 1));
+        for (int x = minX; x <= maxX; x++) {
+            for (int y = minY; y <= maxY; y++) {
+                quadKeys.add(TileRenderer.tileToQuadKey(x, y, zoom));
+            }
+        }
+        return quadKeys;
+    }
+
+    private static double[] quadKeyBounds(String quadKey) {
+        int[] tile = TileRenderer.quadKeyToTile(quadKey);
+        return TileRenderer.tileBounds(tile[0], tile[1], tile[2]);
+    }
+
+    private File tileFile(String quadKey) {
+        return new File(cacheDir, quadKey + ".parquet");
+    }
+
+    private static String escape(String sqlLiteral) {
+        return sqlLiteral.replace("'", "''");
     }
 }
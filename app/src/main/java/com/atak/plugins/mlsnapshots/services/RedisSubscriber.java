@@ -0,0 +1,184 @@
+package com.atak.plugins.mlsnapshots.services;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Minimal RESP2 client for Redis Pub/Sub. It authenticates, subscribes to one channel, or to a pattern when the
+ * channel contains a glob character, and returns each published message. Only the replies a subscribed
+ * connection can receive are parsed.
+ */
+class RedisSubscriber implements StreamIngestService.Source {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    // Silence after which the connection is checked with a PING
+    private static final int IDLE_TIMEOUT_MS = 30000;
+    private static final int MAX_BULK = 16 * 1024 * 1024;
+
+    private final String host;
+    private final int port;
+    private final boolean tls;
+    private final String user;
+    private final String password;
+    private final String channel;
+    private final boolean pattern;
+    private volatile Socket socket;
+    private DataInputStream in;
+    private OutputStream out;
+    private boolean pingSent;
+
+    /**
+     * @param connectionString {@code redis://[[user]:password@]host[:port]}, or {@code rediss://} for TLS
+     */
+    RedisSubscriber(String connectionString, String channel) {
+        URI uri = URI.create(connectionString);
+        String scheme = uri.getScheme() != null ? uri.getScheme().toLowerCase(Locale.US) : "";
+        if (!scheme.equals("redis") && !scheme.equals("rediss")) {
+            throw new IllegalArgumentException("Not a redis:// URL: " + connectionString);
+        }
+        if (uri.getHost() == null) {
+            throw new IllegalArgumentException("No host in " + connectionString);
+        }
+        this.host = uri.getHost();
+        this.port = uri.getPort() > 0 ? uri.getPort() : 6379;
+        this.tls = scheme.equals("rediss");
+        String userInfo = uri.getUserInfo();
+        if (userInfo == null) {
+            this.user = null;
+            this.password = null;
+        } else {
+            int colon = userInfo.indexOf(':');
+            this.user = colon > 0 ? userInfo.substring(0, colon) : null;
+            this.password = colon >= 0 ? userInfo.substring(colon + 1) : userInfo;
+        }
+        this.channel = channel;
+        this.pattern = channel.indexOf('*') >= 0 || channel.indexOf('?') >= 0 || channel.indexOf('[') >= 0;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        Socket opened = StreamIngestService.openSocket(host, port, tls);
+        socket = opened;
+        opened.setSoTimeout(IDLE_TIMEOUT_MS);
+        in = new DataInputStream(new BufferedInputStream(opened.getInputStream()));
+        out = opened.getOutputStream();
+        pingSent = false;
+        if (password != null && !password.isEmpty()) {
+            if (user != null) {
+                command("AUTH", user, password);
+            } else {
+                command("AUTH", password);
+            }
+            // An error reply is thrown by readReply
+            readReply(in.read());
+        }
+        command(pattern ? "PSUBSCRIBE" : "SUBSCRIBE", channel);
+    }
+
+    @Override
+    public StreamIngestService.Message read() throws IOException {
+        while (true) {
+            int type;
+            try {
+                type = in.read();
+            } catch (SocketTimeoutException e) {
+                if (pingSent) throw new IOException("No reply from " + host + " to PING");
+                command("PING");
+                pingSent = true;
+                continue;
+            }
+            if (type == -1) return null;
+            pingSent = false;
+            Object reply = readReply(type);
+            if (!(reply instanceof List)) continue;
+            List<?> parts = (List<?>) reply;
+            if (parts.isEmpty()) continue;
+            String kind = String.valueOf(parts.get(0));
+            if (kind.equals("message") && parts.size() == 3) {
+                return new StreamIngestService.Message((String) parts.get(1), (String) parts.get(2));
+            }
+            if (kind.equals("pmessage") && parts.size() == 4) {
+                return new StreamIngestService.Message((String) parts.get(2), (String) parts.get(3));
+            }
+            // Subscription confirmations and PONGs
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        Socket opened = socket;
+        socket = null;
+        if (opened != null) opened.close();
+    }
+
+    private void command(String... args) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        buffer.write(('*' + Integer.toString(args.length) + "\r\n").getBytes(UTF_8));
+        for (String arg : args) {
+            byte[] bytes = arg.getBytes(UTF_8);
+            buffer.write(('$' + Integer.toString(bytes.length) + "\r\n").getBytes(UTF_8));
+            buffer.write(bytes);
+            buffer.write('\r');
+            buffer.write('\n');
+        }
+        out.write(buffer.toByteArray());
+        out.flush();
+    }
+
+    private Object readReply(int type) throws IOException {
+        switch (type) {
+            case -1:
+                throw new EOFException("Connection to " + host + " closed");
+            case '+':
+                return readLine();
+            case '-':
+                throw new IOException("Redis error: " + readLine());
+            case ':':
+                return Long.parseLong(readLine());
+            case '$': {
+                int length = Integer.parseInt(readLine());
+                if (length < 0) return null;
+                if (length > MAX_BULK) throw new IOException("Message of " + length + " bytes is too large");
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                readLine();
+                return new String(bytes, UTF_8);
+            }
+            case '*': {
+                int count = Integer.parseInt(readLine());
+                if (count < 0) return null;
+                List<Object> items = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    items.add(readReply(in.read()));
+                }
+                return items;
+            }
+            default:
+                throw new IOException("Unexpected RESP reply type '" + (char) type + "'");
+        }
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            int c = in.read();
+            if (c == -1) throw new EOFException("Connection to " + host + " closed");
+            if (c == '\r') {
+                in.read();
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+    }
+}
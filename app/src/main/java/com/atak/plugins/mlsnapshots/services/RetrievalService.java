@@ -0,0 +1,417 @@
+package com.atak.plugins.mlsnapshots.services;
+
+import com.atak.plugins.mlsnapshots.PluginExecutor;
+import com.atakmap.coremap.log.Log;
+import org.duckdb.DuckDBAppender;
+import org.duckdb.DuckDBConnection;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds the DuckDB rows most relevant to a question, so they can be given to the model as context.
+ * <p>
+ * Each row of a watched table is described as text, embedded, and added to a {@link VectorIndex} saved next to
+ * the database. The text and a hash of the row are kept in the {@code _embeddings} table; a refresh only embeds
+ * rows whose hash is new and drops those whose hash is gone, and is skipped altogether while the table's
+ * checksum is unchanged.
+ */
+public class RetrievalService {
+
+    private static final String TAG = "RetrievalService";
+
+    static final String EMBEDDINGS_TABLE = "_embeddings";
+
+    private static final int M = 16;
+    private static final int EF_CONSTRUCTION = 100;
+    private static final int EF_SEARCH = 64;
+    private static final int MAX_TEXT = 512;
+    // Rebuild the graph once this share of it is removed rows
+    private static final double COMPACT_THRESHOLD = 0.3;
+
+    public static final class Passage {
+        public final String table;
+        public final String text;
+        public final float similarity;
+
+        Passage(String table, String text, float similarity) {
+            this.table = table;
+            this.text = text;
+            this.similarity = similarity;
+        }
+    }
+
+    private final DuckDBService duckDBService;
+    private final Embedder embedder;
+    private final File indexFile;
+    private final Set<String> tables = Collections.synchronizedSet(new LinkedHashSet<String>());
+    // Table checksums as of their last refresh
+    private final Map<String, String> checksums = Collections.synchronizedMap(new HashMap<String, String>());
+    // Refreshes run one at a time; they would only queue on the embedder anyway
+    private final Object updateLock = new Object();
+    private VectorIndex index;
+    private ScheduledFuture<?> refreshTask;
+
+    public RetrievalService(DuckDBService duckDBService, Embedder embedder) {
+        this.duckDBService = duckDBService;
+        this.embedder = embedder;
+        this.indexFile = new File(duckDBService.getDatabasePath() + ".vectors");
+    }
+
+    /**
+     * Adds a table to the ones searched, and indexes it in the background.
+     */
+    public void watch(String table) {
+        tables.add(table);
+        refresh(table);
+    }
+
+    /**
+     * Stops refreshing a table; the rows already embedded stay searchable.
+     */
+    public void unwatch(String table) {
+        tables.remove(table);
+    }
+
+    /**
+     * Re-checks every watched table every {@code period}, picking up rows changed by feed refreshes.
+     */
+    public synchronized void startAutoRefresh(long period, TimeUnit unit) {
+        stopAutoRefresh();
+        refreshTask = PluginExecutor.getInstance().scheduleAtFixedRate("retrieval-refresh",
+                PluginExecutor.JobType.COMPUTE, period, period, unit, context -> {
+                    List<String> snapshot;
+                    synchronized (tables) {
+                        snapshot = new ArrayList<>(tables);
+                    }
+                    for (String table : snapshot) {
+                        context.throwIfCancelled();
+                        update(table, context);
+                    }
+                    return null;
+                });
+    }
+
+    public synchronized void stopAutoRefresh() {
+        if (refreshTask != null) {
+            refreshTask.cancel(false);
+            refreshTask = null;
+        }
+    }
+
+    /**
+     * Brings the embeddings of one table up to date in the background.
+     */
+    public PluginExecutor.JobHandle<Integer> refresh(final String table) {
+        try {
+            return PluginExecutor.getInstance().submit("embed-" + table, PluginExecutor.JobType.COMPUTE,
+                    PluginExecutor.Priority.LOW, context -> update(table, context));
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Could not queue indexing of " + table + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return the {@code k} rows most related to {@code question}, most related first
+     */
+    public List<Passage> retrieve(String question, int k) throws SQLException, IOException {
+        long start = System.nanoTime();
+        VectorIndex vectors = index();
+        List<VectorIndex.Hit> hits = vectors.search(embedder.embed(question), k, Math.max(EF_SEARCH, k));
+        List<Passage> passages = new ArrayList<>(hits.size());
+        if (hits.isEmpty()) return passages;
+
+        StringBuilder keys = new StringBuilder();
+        Map<Long, Float> similarities = new HashMap<>();
+        for (VectorIndex.Hit hit : hits) {
+            if (keys.length() > 0) keys.append(',');
+            keys.append(hit.key);
+            similarities.put(hit.key, hit.similarity);
+        }
+        Map<Long, Passage> byKey = new HashMap<>();
+        try (Connection conn = duckDBService.newConnection();
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT key, table_name, content FROM " + EMBEDDINGS_TABLE
+                     + " WHERE key IN (" + keys + ")")) {
+            while (rs.next()) {
+                long key = rs.getLong(1);
+                byKey.put(key, new Passage(rs.getString(2), rs.getString(3), similarities.get(key)));
+            }
+        }
+        for (VectorIndex.Hit hit : hits) {
+            Passage passage = byKey.get(hit.key);
+            if (passage != null) passages.add(passage);
+        }
+        Log.d(TAG, String.format(Locale.US, "Retrieved %d rows in %.1f ms", passages.size(),
+                (System.nanoTime() - start) / 1e6));
+        return passages;
+    }
+
+    /**
+     * @return the question preceded by the {@code k} most related rows, ready to send to the model
+     */
+    public String buildPrompt(String question, int k) throws SQLException, IOException {
+        List<Passage> passages = retrieve(question, k);
+        if (passages.isEmpty()) return question;
+        StringBuilder prompt = new StringBuilder("Relevant records from the map layers:\n");
+        for (Passage passage : passages) {
+            prompt.append("- ").append(passage.text).append('\n');
+        }
+        return prompt.append("\nQuestion: ").append(question).toString();
+    }
+
+    public synchronized void close() {
+        stopAutoRefresh();
+        embedder.close();
+    }
+
+    /**
+     * Embeds the rows of {@code table} that are new since the last refresh and drops the ones that are gone.
+     *
+     * @return the number of rows embedded
+     */
+    private int update(String table, PluginExecutor.JobContext context) throws SQLException, IOException {
+        synchronized (updateLock) {
+            return updateLocked(table, context);
+        }
+    }
+
+    private int updateLocked(String table, PluginExecutor.JobContext context) throws SQLException, IOException {
+        VectorIndex vectors = index();
+        String quoted = GeoPackageBulkWriter.quote(table);
+        try (Connection conn = duckDBService.newConnection(); Statement stmt = conn.createStatement()) {
+            StringBuilder row = new StringBuilder();
+            StringBuilder columns = new StringBuilder();
+            String location = null;
+            try (PreparedStatement ps = conn.prepareStatement("SELECT column_name, data_type "
+                    + "FROM information_schema.columns WHERE table_name = ? ORDER BY ordinal_position")) {
+                ps.setString(1, table);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        String column = GeoPackageBulkWriter.quote(rs.getString(1));
+                        String type = rs.getString(2);
+                        row.append(row.length() > 0 ? ", " : "").append(column);
+                        if ("GEOMETRY".equalsIgnoreCase(type)) {
+                            // Where a feature is matters to the question, its vertices do not
+                            if (location == null) {
+                                location = ", ST_Y(ST_Centroid(" + column + ")), ST_X(ST_Centroid(" + column + "))";
+                            }
+                        } else if (!"BLOB".equalsIgnoreCase(type)) {
+                            columns.append(", ").append(column);
+                        }
+                    }
+                }
+            }
+            if (row.length() == 0) {
+                Log.w(TAG, "Table " + table + " not found");
+                return 0;
+            }
+            if (location != null) {
+                columns.append(location);
+            }
+            String rowHash = "md5(CAST(row(" + row + ") AS VARCHAR))";
+
+            String checksum;
+            try (ResultSet rs = stmt.executeQuery("SELECT concat(count(*), ':', coalesce(bit_xor(hash(row(" + row
+                    + "))), 0)) FROM " + quoted)) {
+                rs.next();
+                checksum = rs.getString(1);
+            }
+            if (checksum.equals(checksums.get(table))) return 0;
+            long start = System.nanoTime();
+
+            // Rows whose hash disappeared were changed or deleted
+            List<Long> gone = new ArrayList<>();
+            Set<String> known = new HashSet<>();
+            try (PreparedStatement ps = conn.prepareStatement("SELECT e.key, e.row_hash, h.row_hash IS NULL FROM "
+                    + EMBEDDINGS_TABLE + " e LEFT JOIN (SELECT DISTINCT " + rowHash + " AS row_hash FROM " + quoted
+                    + ") h ON e.row_hash = h.row_hash WHERE e.table_name = ?")) {
+                ps.setString(1, table);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        if (rs.getBoolean(3)) {
+                            gone.add(rs.getLong(1));
+                        } else {
+                            known.add(rs.getString(2));
+                        }
+                    }
+                }
+            }
+
+            int added = 0;
+            try (DuckDBAppender appender = conn.unwrap(DuckDBConnection.class).createAppender("main", EMBEDDINGS_TABLE);
+                 ResultSet rs = stmt.executeQuery("SELECT " + rowHash + columns + " FROM " + quoted)) {
+                int count = rs.getMetaData().getColumnCount();
+                int attributes = location != null ? count - 2 : count;
+                String[] labels = new String[attributes + 1];
+                for (int i = 2; i <= attributes; i++) {
+                    labels[i] = rs.getMetaData().getColumnLabel(i);
+                }
+                while (rs.next()) {
+                    String hash = rs.getString(1);
+                    if (!known.add(hash)) continue;
+                    if (added % 64 == 0) context.throwIfCancelled();
+                    String text = describe(table, rs, labels, location != null);
+                    long key = key(table, hash);
+                    vectors.add(key, embedder.embed(text));
+                    appender.beginRow();
+                    appender.append(key);
+                    appender.append(table);
+                    appender.append(hash);
+                    appender.append(text);
+                    appender.endRow();
+                    added++;
+                }
+            }
+
+            if (!gone.isEmpty()) {
+                for (long key : gone) {
+                    vectors.remove(key);
+                }
+                deleteKeys(stmt, gone);
+            }
+            if (added > 0 || !gone.isEmpty()) {
+                save(vectors);
+            }
+            checksums.put(table, checksum);
+            Log.d(TAG, String.format(Locale.US, "%s: embedded %d rows, dropped %d in %d ms", table, added,
+                    gone.size(), (System.nanoTime() - start) / 1000000));
+            return added;
+        }
+    }
+
+    /**
+     * Describes a row as {@code table: column=value, ...}, followed by its location if it has a geometry. The
+     * first column is the row hash; the attributes follow, then latitude and longitude.
+     */
+    private static String describe(String table, ResultSet rs, String[] labels, boolean located) throws SQLException {
+        StringBuilder text = new StringBuilder(table).append(':');
+        for (int i = 2; i < labels.length && text.length() < MAX_TEXT; i++) {
+            Object value = rs.getObject(i);
+            if (value == null) continue;
+            String string = value.toString().trim();
+            if (string.isEmpty()) continue;
+            text.append(' ').append(labels[i]).append('=').append(string).append(',');
+        }
+        if (text.charAt(text.length() - 1) == ',') {
+            text.setLength(text.length() - 1);
+        }
+        if (located) {
+            double lat = rs.getDouble(labels.length);
+            if (!rs.wasNull()) {
+                text.append(String.format(Locale.US, " at %.5f, %.5f", lat, rs.getDouble(labels.length + 1)));
+            }
+        }
+        return text.length() > MAX_TEXT ? text.substring(0, MAX_TEXT) : text.toString();
+    }
+
+    /**
+     * Loads the index on first use and reconciles it with {@code _embeddings}, which may be ahead of or behind
+     * the saved file if the plugin stopped between the two being written.
+     */
+    private synchronized VectorIndex index() throws SQLException, IOException {
+        if (index != null) return index;
+        VectorIndex loaded = null;
+        if (indexFile.exists()) {
+            try {
+                loaded = VectorIndex.load(indexFile);
+                if (loaded.getDimensions() != embedder.getDimensions()) {
+                    Log.i(TAG, "Embedding model changed, re-embedding every row");
+                    loaded = null;
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Could not read " + indexFile + ", re-embedding every row: " + e.getMessage());
+            }
+        }
+        if (loaded == null) {
+            loaded = new VectorIndex(embedder.getDimensions(), M, EF_CONSTRUCTION);
+        }
+        try (Connection conn = duckDBService.newConnection(); Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS " + EMBEDDINGS_TABLE
+                    + " (key BIGINT, table_name VARCHAR, row_hash VARCHAR, content VARCHAR)");
+            Set<Long> stored = new HashSet<>();
+            List<Long> orphans = new ArrayList<>();
+            try (ResultSet rs = stmt.executeQuery("SELECT key FROM " + EMBEDDINGS_TABLE)) {
+                while (rs.next()) {
+                    long key = rs.getLong(1);
+                    if (loaded.contains(key)) {
+                        stored.add(key);
+                    } else {
+                        orphans.add(key);
+                    }
+                }
+            }
+            for (long key : loaded.keys()) {
+                if (!stored.contains(key)) loaded.remove(key);
+            }
+            // Their rows are embedded again by the next refresh
+            deleteKeys(stmt, orphans);
+            Log.d(TAG, "Vector index has " + loaded.size() + " rows, " + orphans.size() + " to re-embed");
+        }
+        index = loaded;
+        return index;
+    }
+
+    /**
+     * Saves the index, first rebuilding it without removed rows if there are many. Only called by a refresh,
+     * so nothing else is adding rows meanwhile.
+     */
+    private void save(VectorIndex vectors) throws IOException {
+        if (vectors.removedFraction() > COMPACT_THRESHOLD) {
+            vectors = vectors.compact();
+            synchronized (this) {
+                index = vectors;
+            }
+        }
+        vectors.save(indexFile);
+    }
+
+    private static void deleteKeys(Statement stmt, List<Long> keys) throws SQLException {
+        for (int from = 0; from < keys.size(); from += 1000) {
+            StringBuilder list = new StringBuilder();
+            for (long key : keys.subList(from, Math.min(keys.size(), from + 1000))) {
+                if (list.length() > 0) list.append(',');
+                list.append(key);
+            }
+            stmt.execute("DELETE FROM " + EMBEDDINGS_TABLE + " WHERE key IN (" + list + ")");
+        }
+    }
+
+    /**
+     * @return a key that is stable across refreshes for identical rows of a table
+     */
+    private static long key(String table, String rowHash) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest((table + '\u0000' + rowHash)
+                    .getBytes(Charset.forName("UTF-8")));
+            long key = 0;
+            for (int i = 0; i < 8; i++) {
+                key = (key << 8) | (digest[i] & 0xFF);
+            }
+            return key;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,537 @@
+package com.atak.plugins.mlsnapshots.services;
+
+import com.atak.plugins.mlsnapshots.PluginExecutor;
+import com.atakmap.coremap.log.Log;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import org.duckdb.DuckDBAppender;
+import org.duckdb.DuckDBConnection;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One OGC SensorThings API service, polled incrementally.
+ * <p>
+ * Each poll lists the Datastreams with their Thing location and ObservedProperty expanded, and skips every
+ * datastream whose {@code phenomenonTime} has not moved since its watermark. The others are fetched with
+ * {@code phenomenonTime gt <watermark>} in ascending order, so only new observations are transferred and appended
+ * to {@code <table>_observations}. Pages are fetched {@link #MAX_CONCURRENT_PAGES} at a time across datastreams;
+ * a backfill whose size is known from {@code @iot.count} is split into {@code $skip} pages fetched in parallel,
+ * otherwise {@code @iot.nextLink} is followed. A datastream's watermark only advances once all of its pages were
+ * written, and the rows of a datastream that failed are removed again so the next poll repeats them.
+ */
+class SensorThingsFeed {
+
+    private static final String TAG = "SensorThingsFeed";
+
+    private static final int MAX_CONCURRENT_PAGES = 3;
+    private static final int PAGE_SIZE = 1000;
+    private static final int MAX_SKIP_PAGES = 200;
+
+    private final DuckDBService duckDBService;
+    private final String table;
+    private final String root;
+    private final DoubleBufferedTable datastreams;
+    private final Object lock = new Object();
+    private final ArrayDeque<Page> pending = new ArrayDeque<>();
+    // Watermarks of the datastreams, loaded from <table>_watermarks on the first poll
+    private Map<String, String> watermarks;
+    private int inFlight;
+    private boolean polling;
+    private long pollId;
+    private long pollStart;
+    private final AtomicInteger appended = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * @param url the service root, e.g. {@code https://example.com/FROST-Server/v1.1}; a trailing
+     *            {@code /Datastreams} or {@code /Observations} is ignored
+     */
+    SensorThingsFeed(DuckDBService duckDBService, String table, String url) {
+        this.duckDBService = duckDBService;
+        this.table = table;
+        String trimmed = url.replaceAll("[?#].*$", "").replaceAll("/+$", "");
+        this.root = trimmed.replaceAll("/(Datastreams|Observations)$", "");
+        this.datastreams = new DoubleBufferedTable(table + "_datastreams");
+    }
+
+    /**
+     * Run by the {@link FeedScheduler} on the FEED lane. Pages are fetched as NETWORK jobs, which this waits for,
+     * so the run's duration and rows cover the whole poll.
+     */
+    void poll(FeedScheduler.Run run) throws IOException, SQLException {
+        synchronized (lock) {
+            polling = true;
+            pollId = System.currentTimeMillis();
+            pollStart = System.nanoTime();
+            appended.set(0);
+            bytes.set(0);
+        }
+        List<Series> changed;
+        try {
+            changed = listDatastreams(run);
+        } catch (IOException | SQLException | RuntimeException e) {
+            synchronized (lock) {
+                polling = false;
+            }
+            throw e;
+        }
+        synchronized (lock) {
+            for (Series series : changed) {
+                series.outstanding = 1;
+                pending.add(new Page(series, 0, observationsUrl(series, series.watermark == null)));
+            }
+            if (changed.isEmpty()) polling = false;
+            pump();
+            // Pages that are running write to the tables until they finish, so the poll always waits for them,
+            // even when cancelled; returning early would let a new poll start on uncommitted watermarks
+            boolean interrupted = false;
+            boolean abandoned = false;
+            while (polling) {
+                if (!abandoned && (interrupted || run.isCancelled())) {
+                    abandon(changed);
+                    abandoned = true;
+                    continue;
+                }
+                try {
+                    lock.wait(1000);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Poll of " + table + " was interrupted");
+            }
+        }
+        run.addBytes(bytes.get());
+        run.setRows(appended.get());
+        if (changed.isEmpty()) run.setUnchanged();
+        run.throwIfCancelled();
+    }
+
+    /**
+     * Loads the listing into a shadow of {@code <table>_datastreams}, swaps it in once complete, and returns the datastreams that have observations past their
+     * watermark.
+     */
+    private List<Series> listDatastreams(FeedScheduler.Run run) throws IOException, SQLException {
+        List<Series> changed = new ArrayList<>();
+        try (Connection conn = duckDBService.newConnection(); Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS " + table + "_observations (datastream_id VARCHAR, "
+                    + "observation_id VARCHAR, phenomenon_time VARCHAR, result_time VARCHAR, result VARCHAR, "
+                    + "result_number DOUBLE, poll_id BIGINT)");
+            stmt.execute("CREATE TABLE IF NOT EXISTS " + table + "_watermarks (datastream_id VARCHAR PRIMARY KEY, "
+                    + "phenomenon_time VARCHAR)");
+            String shadow = datastreams.shadow(conn);
+            stmt.execute("CREATE OR REPLACE TABLE " + shadow + " (datastream_id VARCHAR, name VARCHAR, "
+                    + "description VARCHAR, unit VARCHAR, observed_property VARCHAR, thing_id VARCHAR, "
+                    + "thing_name VARCHAR, lon DOUBLE, lat DOUBLE, phenomenon_time VARCHAR)");
+            if (watermarks == null) {
+                Map<String, String> loaded = new HashMap<>();
+                try (ResultSet rs = stmt.executeQuery("SELECT datastream_id, phenomenon_time FROM "
+                        + table + "_watermarks")) {
+                    while (rs.next()) {
+                        loaded.put(rs.getString(1), rs.getString(2));
+                    }
+                }
+                watermarks = loaded;
+            }
+
+            String next = root + "/Datastreams?$top=" + PAGE_SIZE
+                    + "&$select=" + encode("@iot.id,name,description,unitOfMeasurement,phenomenonTime")
+                    + "&$expand=" + encode("Thing($select=@iot.id,name;$expand=Locations($select=location;$top=1)),"
+                    + "ObservedProperty($select=name)");
+            try (DuckDBAppender appender = conn.unwrap(DuckDBConnection.class)
+                    .createAppender("main", shadow)) {
+                while (next != null) {
+                    run.throwIfCancelled();
+                    JsonObject page;
+                    try (InputStream in = open(next, bytes)) {
+                        page = JsonParser.parseReader(new InputStreamReader(in, "UTF-8")).getAsJsonObject();
+                    }
+                    for (JsonElement element : page.getAsJsonArray("value")) {
+                        JsonObject datastream = element.getAsJsonObject();
+                        Series series = appendDatastream(appender, datastream);
+                        if (series.phenomenonEnd == null || !series.phenomenonEnd.equals(series.watermark)) {
+                            changed.add(series);
+                        }
+                    }
+                    next = page.has("@iot.nextLink") ? page.get("@iot.nextLink").getAsString() : null;
+                }
+            }
+            datastreams.swap(conn);
+            stmt.execute("CREATE OR REPLACE VIEW " + table + "_latest AS SELECT d.*, o.phenomenon_time AS "
+                    + "observed, o.result, o.result_number, ST_Point(d.lon, d.lat) AS geom FROM " + table
+                    + "_datastreams d LEFT JOIN (SELECT * FROM " + table + "_observations QUALIFY row_number() "
+                    + "OVER (PARTITION BY datastream_id ORDER BY try_cast(split_part(phenomenon_time, '/', 1) "
+                    + "AS TIMESTAMPTZ) DESC NULLS LAST) = 1) o ON d.datastream_id = o.datastream_id");
+        }
+        return changed;
+    }
+
+    private Series appendDatastream(DuckDBAppender appender, JsonObject datastream) throws SQLException {
+        JsonElement id = datastream.get("@iot.id");
+        Series series = new Series(id.getAsString(), id.getAsJsonPrimitive().isNumber() ? id.getAsString()
+                : "'" + id.getAsString().replace("'", "''") + "'");
+        series.watermark = watermarks.get(series.id);
+        String phenomenonTime = string(datastream.get("phenomenonTime"));
+        if (phenomenonTime != null) {
+            int slash = phenomenonTime.indexOf('/');
+            series.phenomenonEnd = slash >= 0 ? phenomenonTime.substring(slash + 1) : phenomenonTime;
+        }
+        JsonObject unit = object(datastream.get("unitOfMeasurement"));
+        JsonObject property = object(datastream.get("ObservedProperty"));
+        JsonObject thing = object(datastream.get("Thing"));
+        double lon = Double.NaN, lat = Double.NaN;
+        if (thing != null && thing.has("Locations") && thing.getAsJsonArray("Locations").size() > 0) {
+            JsonObject location = object(thing.getAsJsonArray("Locations").get(0).getAsJsonObject().get("location"));
+            JsonElement coordinates = location != null ? location.get("coordinates") : null;
+            if (coordinates != null && coordinates.isJsonArray() && coordinates.getAsJsonArray().size() >= 2
+                    && coordinates.getAsJsonArray().get(0).isJsonPrimitive()) {
+                JsonArray point = coordinates.getAsJsonArray();
+                lon = point.get(0).getAsDouble();
+                lat = point.get(1).getAsDouble();
+            }
+        }
+        appender.beginRow();
+        appender.append(series.id);
+        appender.append(string(datastream.get("name")));
+        appender.append(string(datastream.get("description")));
+        appender.append(unit != null ? string(unit.has("symbol") ? unit.get("symbol") : unit.get("name")) : null);
+        appender.append(property != null ? string(property.get("name")) : null);
+        appender.append(thing != null ? string(thing.get("@iot.id")) : null);
+        appender.append(thing != null ? string(thing.get("name")) : null);
+        appendDouble(appender, lon);
+        appendDouble(appender, lat);
+        appender.append(phenomenonTime);
+        appender.endRow();
+        return series;
+    }
+
+    /**
+     * @param count whether to ask for {@code @iot.count}, so a backfill can be split into parallel pages
+     */
+    private String observationsUrl(Series series, boolean count) {
+        StringBuilder url = new StringBuilder(root).append("/Datastreams(").append(series.key)
+                .append(")/Observations?$orderby=").append(encode("phenomenonTime asc"))
+                .append("&$top=").append(PAGE_SIZE)
+                .append("&$select=").append(encode("@iot.id,phenomenonTime,resultTime,result"));
+        if (series.watermark != null) {
+            url.append("&$filter=").append(encode("phenomenonTime gt " + series.watermark));
+        }
+        if (count) url.append("&$count=true");
+        return url.toString();
+    }
+
+    /**
+     * Rolls back every datastream of a cancelled poll: queued pages are dropped, and datastreams with pages still
+     * running are rolled back once those finish. Called with {@link #lock} held.
+     */
+    private void abandon(List<Series> series) {
+        for (Series s : series) {
+            s.failed = true;
+        }
+        List<Series> dropped = new ArrayList<>();
+        for (Page page : pending) {
+            page.series.outstanding--;
+            dropped.add(page.series);
+        }
+        pending.clear();
+        for (Series s : dropped) {
+            settle(s);
+        }
+    }
+
+    /**
+     * Submits queued pages up to the concurrency cap. Called with {@link #lock} held.
+     */
+    private void pump() {
+        while (inFlight < MAX_CONCURRENT_PAGES && !pending.isEmpty()) {
+            final Page page = pending.poll();
+            inFlight++;
+            try {
+                PluginExecutor.getInstance().submit("sensorthings-" + page.series.id, PluginExecutor.JobType.NETWORK,
+                        context -> {
+                            boolean ok = false;
+                            try {
+                                fetch(page);
+                                ok = true;
+                            } finally {
+                                finished(page, ok);
+                            }
+                            return null;
+                        });
+            } catch (RejectedExecutionException e) {
+                Log.w(TAG, "Could not queue " + table + " page: " + e.getMessage());
+                inFlight--;
+                page.series.failed = true;
+                page.series.outstanding--;
+                settle(page.series);
+            }
+        }
+    }
+
+    private void fetch(Page page) throws IOException, SQLException {
+        Series series = page.series;
+        String nextLink = null;
+        long count = -1;
+        String last = null;
+        int rows = 0;
+        try (Connection conn = duckDBService.newConnection();
+             DuckDBAppender appender = conn.unwrap(DuckDBConnection.class)
+                     .createAppender("main", table + "_observations");
+             InputStream in = open(page.url, bytes)) {
+            JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals("value")) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        String time = appendObservation(reader, appender, series.id);
+                        if (time != null) last = time;
+                        rows++;
+                    }
+                    reader.endArray();
+                } else if (name.equals("@iot.nextLink")) {
+                    nextLink = reader.nextString();
+                } else if (name.equals("@iot.count")) {
+                    count = reader.nextLong();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        appended.addAndGet(rows);
+
+        synchronized (lock) {
+            if (last != null && page.index >= series.lastPage) {
+                series.lastPage = page.index;
+                series.candidate = last;
+            }
+            if (nextLink == null || series.failed) return;
+            if (page.index == 0 && count > PAGE_SIZE && count <= (long) PAGE_SIZE * MAX_SKIP_PAGES) {
+                // The rest of a backfill of known size is fetched in parallel
+                String base = observationsUrl(series, false);
+                for (int skip = PAGE_SIZE, index = 1; skip < count; skip += PAGE_SIZE, index++) {
+                    series.outstanding++;
+                    pending.add(new Page(series, index, base + "&$skip=" + skip));
+                }
+            } else {
+                series.outstanding++;
+                pending.add(new Page(series, page.index + 1, nextLink));
+            }
+        }
+    }
+
+    private void finished(Page page, boolean ok) {
+        synchronized (lock) {
+            inFlight--;
+            if (!ok) page.series.failed = true;
+            page.series.outstanding--;
+            settle(page.series);
+            pump();
+        }
+    }
+
+    /**
+     * Commits or rolls back a datastream once its last page is done, and ends the poll with the last one.
+     * Called with {@link #lock} held.
+     */
+    private void settle(Series series) {
+        if (series.outstanding > 0) return;
+        try (Connection conn = duckDBService.newConnection()) {
+            if (series.failed) {
+                try (PreparedStatement ps = conn.prepareStatement("DELETE FROM " + table
+                        + "_observations WHERE datastream_id = ? AND poll_id = ?")) {
+                    ps.setString(1, series.id);
+                    ps.setLong(2, pollId);
+                    ps.executeUpdate();
+                }
+            } else if (series.candidate != null) {
+                try (PreparedStatement ps = conn.prepareStatement("INSERT OR REPLACE INTO " + table
+                        + "_watermarks VALUES (?, ?)")) {
+                    ps.setString(1, series.id);
+                    ps.setString(2, series.candidate);
+                    ps.executeUpdate();
+                }
+                watermarks.put(series.id, series.candidate);
+            }
+        } catch (SQLException e) {
+            Log.e(TAG, "Failed to settle datastream " + series.id + " of " + table, e);
+        }
+        if (inFlight == 0 && pending.isEmpty() && polling) {
+            polling = false;
+            lock.notifyAll();
+            Log.d(TAG, String.format(Locale.US, "%s: appended %d observations in %d ms", table, appended.get(),
+                    (System.nanoTime() - pollStart) / 1000000));
+        }
+    }
+
+    /**
+     * @return the watermark the observation would set: the end of its phenomenon time
+     */
+    private String appendObservation(JsonReader reader, DuckDBAppender appender, String datastreamId)
+            throws IOException, SQLException {
+        String id = null, phenomenonTime = null, resultTime = null, result = null;
+        double number = Double.NaN;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "@iot.id":
+                    id = reader.nextString();
+                    break;
+                case "phenomenonTime":
+                    phenomenonTime = reader.nextString();
+                    break;
+                case "resultTime":
+                    resultTime = reader.nextString();
+                    break;
+                case "result":
+                    JsonToken token = reader.peek();
+                    if (token == JsonToken.NUMBER) {
+                        result = reader.nextString();
+                        number = Double.parseDouble(result);
+                    } else if (token == JsonToken.STRING) {
+                        result = reader.nextString();
+                    } else if (token == JsonToken.BOOLEAN) {
+                        result = Boolean.toString(reader.nextBoolean());
+                    } else {
+                        result = JsonParser.parseReader(reader).toString();
+                    }
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        appender.beginRow();
+        appender.append(datastreamId);
+        appender.append(id);
+        appender.append(phenomenonTime);
+        appender.append(resultTime);
+        appender.append(result);
+        appendDouble(appender, number);
+        appender.append(pollId);
+        appender.endRow();
+        if (phenomenonTime == null) return null;
+        int slash = phenomenonTime.indexOf('/');
+        return slash >= 0 ? phenomenonTime.substring(slash + 1) : phenomenonTime;
+    }
+
+    /**
+     * @param bytes incremented as the response is read
+     */
+    private static InputStream open(String url, final AtomicLong bytes) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(15000);
+        connection.setReadTimeout(60000);
+        connection.setRequestProperty("Accept", "application/json");
+        int code = connection.getResponseCode();
+        if (code != HttpURLConnection.HTTP_OK) {
+            connection.disconnect();
+            throw new IOException("Server returned HTTP " + code + " for " + url);
+        }
+        return new FilterInputStream(connection.getInputStream()) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) bytes.incrementAndGet();
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int read = super.read(buffer, offset, length);
+                if (read > 0) bytes.addAndGet(read);
+                return read;
+            }
+        };
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8").replace("+", "%20");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static JsonObject object(JsonElement element) {
+        return element != null && element.isJsonObject() ? element.getAsJsonObject() : null;
+    }
+
+    private static String string(JsonElement element) {
+        return element != null && element.isJsonPrimitive() ? element.getAsString() : null;
+    }
+
+    private static void appendDouble(DuckDBAppender appender, double value) throws SQLException {
+        if (Double.isNaN(value)) {
+            appender.append((String) null);
+        } else {
+            appender.append(value);
+        }
+    }
+
+    private static final class Series {
+        final String id;
+        // The id as written in a URL: numbers bare, strings quoted
+        final String key;
+        String watermark;
+        String phenomenonEnd;
+        // Watermark reached by this poll, from the highest page fetched so far
+        String candidate;
+        int lastPage = -1;
+        int outstanding;
+        boolean failed;
+
+        Series(String id, String key) {
+            this.id = id;
+            this.key = key;
+        }
+    }
+
+    private static final class Page {
+        final Series series;
+        final int index;
+        final String url;
+
+        Page(Series series, int index, String url) {
+            this.series = series;
+            this.index = index;
+            this.url = url;
+        }
+    }
+}
@@ -0,0 +1,507 @@
+package com.atak.plugins.mlsnapshots.services;
+
+import com.atak.plugins.mlsnapshots.PluginExecutor;
+import com.atakmap.coremap.log.Log;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import org.duckdb.DuckDBAppender;
+import org.duckdb.DuckDBConnection;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Writes messages pushed by Redis Pub/Sub channels and websocket streams to DuckDB as they arrive.
+ * <p>
+ * Each subscription has its own reader thread, which only receives messages and queues them. The queued messages
+ * are decoded and appended in one batch per table on the {@link PluginExecutor.JobType#STREAM} lane every
+ * {@link #FLUSH_INTERVAL_MS}, or sooner once a batch is full. Stream tables are ring buffers: rows older than the
+ * retention window, and the oldest rows beyond the row cap, are dropped as new ones arrive. The
+ * {@code <table>_latest} view holds the most recent message of each entity, with its position as a point.
+ */
+public class StreamIngestService {
+
+    private static final String TAG = "StreamIngestService";
+
+    private static final long FLUSH_INTERVAL_MS = 250;
+    // Queued messages that trigger a flush before the next tick
+    private static final int BATCH_ROWS = 2000;
+    // A reader this far ahead of the writer drops its oldest messages; positions are only useful fresh
+    private static final int QUEUE_CAPACITY = 50000;
+    private static final long TRIM_INTERVAL_MS = 1000;
+    private static final long MIN_BACKOFF_MS = 500;
+    private static final long MAX_BACKOFF_MS = 30000;
+    static final int CONNECT_TIMEOUT_MS = 10000;
+
+    private static final String[] ID_FIELDS = {"id", "entity_id", "uid", "trackId", "track_id", "name"};
+    private static final String[] LAT_FIELDS = {"lat", "latitude"};
+    private static final String[] LON_FIELDS = {"lon", "lng", "longitude"};
+
+    /**
+     * A push connection. {@link #connect()} and {@link #read()} are only called from the subscription's reader
+     * thread; {@link #close()} may be called from any thread and must unblock a pending read.
+     */
+    interface Source extends Closeable {
+        /**
+         * Connects and subscribes; called again after each disconnect.
+         */
+        void connect() throws IOException;
+
+        /**
+         * Blocks until the next message.
+         *
+         * @return the message, or null once the server has ended the stream
+         */
+        Message read() throws IOException;
+    }
+
+    static final class Message {
+        final long received = System.currentTimeMillis();
+        final String channel;
+        final String text;
+
+        Message(String channel, String text) {
+            this.channel = channel;
+            this.text = text;
+        }
+    }
+
+    public static final class Stats {
+        public final String table;
+        public final boolean connected;
+        public final long received;
+        public final long written;
+        public final long dropped;
+        public final int queued;
+        public final long lastMessageMs;
+
+        Stats(Stream stream) {
+            this.table = stream.table;
+            this.connected = stream.connected;
+            this.received = stream.received.get();
+            this.written = stream.written.get();
+            this.dropped = stream.dropped.get();
+            this.queued = stream.queue.size();
+            this.lastMessageMs = stream.lastMessage;
+        }
+    }
+
+    private final DuckDBService duckDBService;
+    private final Map<String, Stream> streams = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushQueued = new AtomicBoolean();
+    // Held while writing, so close() can wait out a running flush
+    private final Object flushLock = new Object();
+    private volatile long retentionMs = TimeUnit.MINUTES.toMillis(15);
+    private volatile int maxRows = 100000;
+    private Connection connection;
+    private ScheduledFuture<?> flushTask;
+    private boolean closed;
+
+    public StreamIngestService(DuckDBService duckDBService) {
+        this.duckDBService = duckDBService;
+    }
+
+    /**
+     * Rows older than this are dropped from every stream table.
+     */
+    public void setRetention(long duration, TimeUnit unit) {
+        retentionMs = unit.toMillis(duration);
+    }
+
+    /**
+     * Caps each stream table at this many rows, dropping the oldest.
+     */
+    public void setMaxRows(int maxRows) {
+        this.maxRows = maxRows;
+    }
+
+    /**
+     * Starts receiving from {@code source} into {@code table}, replacing any subscription already writing there.
+     *
+     * @param idField the message attribute identifying an entity, or null to look for a usual one such as
+     *                {@code id} or {@code uid}
+     */
+    synchronized void subscribe(String table, Source source, String idField) {
+        if (closed) throw new IllegalStateException("StreamIngestService is closed");
+        unsubscribe(table);
+        Stream stream = new Stream(table, source, idField);
+        streams.put(table, stream);
+        if (flushTask == null) {
+            flushTask = PluginExecutor.getInstance().scheduleAtFixedRate("stream-flush",
+                    PluginExecutor.JobType.STREAM, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS,
+                    context -> {
+                        flush();
+                        return null;
+                    });
+        }
+        stream.reader.start();
+        Log.d(TAG, "Subscribed " + table);
+    }
+
+    /**
+     * Stops a subscription. Rows already written stay in the table until they age out.
+     */
+    public synchronized void unsubscribe(String table) {
+        Stream stream = streams.remove(table);
+        if (stream != null) {
+            stream.stop();
+        }
+    }
+
+    /**
+     * @return a snapshot of every subscription's counters
+     */
+    public List<Stats> getStats() {
+        List<Stats> stats = new ArrayList<>();
+        for (Stream stream : streams.values()) {
+            stats.add(new Stats(stream));
+        }
+        return stats;
+    }
+
+    /**
+     * Stops every subscription and writes what they had already received.
+     */
+    public void close() {
+        List<Stream> stopped;
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            if (flushTask != null) {
+                flushTask.cancel(false);
+                flushTask = null;
+            }
+            stopped = new ArrayList<>(streams.values());
+            for (Stream stream : stopped) {
+                stream.stop();
+            }
+        }
+        synchronized (flushLock) {
+            try {
+                flush();
+            } catch (SQLException e) {
+                Log.e(TAG, "Failed to write queued stream messages", e);
+            }
+            streams.clear();
+            if (connection != null) {
+                try {
+                    connection.close();
+                } catch (SQLException e) {
+                    Log.w(TAG, "Failed to close stream connection", e);
+                }
+                connection = null;
+            }
+        }
+    }
+
+    private void requestFlush() {
+        if (!flushQueued.compareAndSet(false, true)) return;
+        try {
+            PluginExecutor.getInstance().submit("stream-flush", PluginExecutor.JobType.STREAM,
+                    PluginExecutor.Priority.HIGH, context -> {
+                        flushQueued.set(false);
+                        flush();
+                        return null;
+                    });
+        } catch (RejectedExecutionException e) {
+            flushQueued.set(false);
+        }
+    }
+
+    private void flush() throws SQLException {
+        synchronized (flushLock) {
+            if (streams.isEmpty()) return;
+            if (connection == null) {
+                connection = duckDBService.newConnection();
+            }
+            long now = System.currentTimeMillis();
+            for (Stream stream : streams.values()) {
+                try {
+                    flush(stream, now);
+                } catch (SQLException e) {
+                    // One bad table must not hold back the others
+                    Log.e(TAG, "Failed to write " + stream.table, e);
+                }
+            }
+        }
+    }
+
+    private void flush(Stream stream, long now) throws SQLException {
+        if (!stream.created) {
+            create(stream.table);
+            stream.created = true;
+        }
+        List<Message> batch = new ArrayList<>(Math.min(stream.queue.size(), QUEUE_CAPACITY));
+        stream.queue.drainTo(batch);
+        if (!batch.isEmpty()) {
+            try (DuckDBAppender appender = connection.unwrap(DuckDBConnection.class)
+                    .createAppender("main", stream.table)) {
+                for (Message message : batch) {
+                    Decoded decoded = decode(message.text, stream.idField);
+                    appender.beginRow();
+                    appender.append(message.received);
+                    appender.append(message.channel);
+                    appender.append(decoded.entityId != null ? decoded.entityId : message.channel);
+                    appendCoordinate(appender, decoded.lon);
+                    appendCoordinate(appender, decoded.lat);
+                    appender.append(message.text);
+                    appender.endRow();
+                }
+            }
+            stream.written.addAndGet(batch.size());
+        }
+        if (now - stream.lastTrim >= TRIM_INTERVAL_MS) {
+            trim(stream.table, now);
+            stream.lastTrim = now;
+        }
+    }
+
+    private void create(String table) throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS " + table + " (received_ms BIGINT, channel VARCHAR, "
+                    + "entity_id VARCHAR, lon DOUBLE, lat DOUBLE, payload VARCHAR)");
+            try {
+                stmt.execute("CREATE OR REPLACE VIEW " + table + "_latest AS SELECT epoch_ms(received_ms) AS received, "
+                        + "channel, entity_id, lon, lat, payload, ST_Point(lon, lat) AS geom FROM " + table
+                        + " WHERE entity_id IS NOT NULL "
+                        + "QUALIFY row_number() OVER (PARTITION BY entity_id ORDER BY received_ms DESC) = 1");
+            } catch (SQLException e) {
+                // The messages are still worth keeping without it
+                Log.w(TAG, "No " + table + "_latest view, is the spatial extension loaded? " + e.getMessage());
+            }
+        }
+    }
+
+    private void trim(String table, long now) throws SQLException {
+        try (PreparedStatement byAge = connection.prepareStatement(
+                "DELETE FROM " + table + " WHERE received_ms < ?")) {
+            byAge.setLong(1, now - retentionMs);
+            byAge.executeUpdate();
+        }
+        // The subquery is the newest row past the cap; it is null, and nothing is deleted, while the table is
+        // within the cap
+        try (PreparedStatement bySize = connection.prepareStatement("DELETE FROM " + table
+                + " WHERE received_ms <= (SELECT received_ms FROM " + table
+                + " ORDER BY received_ms DESC LIMIT 1 OFFSET ?)")) {
+            bySize.setInt(1, maxRows);
+            bySize.executeUpdate();
+        }
+    }
+
+    private static void appendCoordinate(DuckDBAppender appender, double value) throws SQLException {
+        if (Double.isNaN(value)) {
+            appender.append((String) null);
+        } else {
+            appender.append(value);
+        }
+    }
+
+    static final class Decoded {
+        String entityId;
+        double lon = Double.NaN;
+        double lat = Double.NaN;
+    }
+
+    /**
+     * Picks the entity and position out of a message. Understands Esri features ({@code attributes} and an
+     * {@code x}/{@code y} geometry), GeoJSON features, and flat objects with {@code lat}/{@code lon} style fields;
+     * anything else is kept only as payload.
+     */
+    static Decoded decode(String text, String idField) {
+        Decoded decoded = new Decoded();
+        JsonElement parsed;
+        try {
+            parsed = JsonParser.parseString(text);
+        } catch (JsonParseException e) {
+            return decoded;
+        }
+        if (!parsed.isJsonObject()) return decoded;
+        JsonObject root = parsed.getAsJsonObject();
+        JsonObject attributes = root;
+        if (root.has("attributes") && root.get("attributes").isJsonObject()) {
+            attributes = root.getAsJsonObject("attributes");
+        } else if (root.has("properties") && root.get("properties").isJsonObject()) {
+            attributes = root.getAsJsonObject("properties");
+        }
+
+        JsonElement geometry = root.get("geometry");
+        if (geometry != null && geometry.isJsonObject()) {
+            JsonObject shape = geometry.getAsJsonObject();
+            JsonElement coordinates = shape.get("coordinates");
+            if (coordinates != null && coordinates.isJsonArray()) {
+                JsonArray point = coordinates.getAsJsonArray();
+                if (point.size() >= 2) {
+                    decoded.lon = number(point.get(0));
+                    decoded.lat = number(point.get(1));
+                }
+            } else {
+                decoded.lon = number(shape.get("x"));
+                decoded.lat = number(shape.get("y"));
+            }
+        }
+        if (Double.isNaN(decoded.lon) || Double.isNaN(decoded.lat)) {
+            decoded.lon = first(attributes, LON_FIELDS);
+            decoded.lat = first(attributes, LAT_FIELDS);
+        }
+
+        if (idField != null) {
+            decoded.entityId = string(attributes.get(idField));
+        } else {
+            for (String field : ID_FIELDS) {
+                decoded.entityId = string(attributes.get(field));
+                if (decoded.entityId == null && attributes != root) {
+                    decoded.entityId = string(root.get(field));
+                }
+                if (decoded.entityId != null) break;
+            }
+        }
+        return decoded;
+    }
+
+    private static double first(JsonObject object, String[] fields) {
+        for (String field : fields) {
+            double value = number(object.get(field));
+            if (!Double.isNaN(value)) return value;
+        }
+        return Double.NaN;
+    }
+
+    private static double number(JsonElement element) {
+        if (element == null || !element.isJsonPrimitive()) return Double.NaN;
+        JsonPrimitive primitive = element.getAsJsonPrimitive();
+        if (primitive.isBoolean()) return Double.NaN;
+        try {
+            return primitive.getAsDouble();
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    private static String string(JsonElement element) {
+        if (element == null || !element.isJsonPrimitive()) return null;
+        return element.getAsString();
+    }
+
+    /**
+     * Opens a TCP connection, wrapped in TLS with the host name verified when {@code tls} is set.
+     */
+    static Socket openSocket(String host, int port, boolean tls) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+            socket.setKeepAlive(true);
+            socket.setTcpNoDelay(true);
+            if (!tls) return socket;
+            SSLSocket secure = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault())
+                    .createSocket(socket, host, port, true);
+            secure.startHandshake();
+            if (!HttpsURLConnection.getDefaultHostnameVerifier().verify(host, secure.getSession())) {
+                secure.close();
+                throw new IOException("Certificate does not match " + host);
+            }
+            return secure;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private final class Stream implements Runnable {
+        final String table;
+        final Source source;
+        final String idField;
+        final ArrayBlockingQueue<Message> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        final Thread reader;
+        final AtomicLong received = new AtomicLong();
+        final AtomicLong written = new AtomicLong();
+        final AtomicLong dropped = new AtomicLong();
+        volatile boolean running = true;
+        volatile boolean connected;
+        volatile long lastMessage;
+        // Only touched by flushes, which run one at a time
+        boolean created;
+        long lastTrim;
+
+        Stream(String table, Source source, String idField) {
+            this.table = table;
+            this.source = source;
+            this.idField = idField;
+            this.reader = new Thread(this, "stream-" + table);
+            this.reader.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            long backoff = MIN_BACKOFF_MS;
+            while (running) {
+                try {
+                    source.connect();
+                    connected = true;
+                    backoff = MIN_BACKOFF_MS;
+                    Log.d(TAG, table + ": connected");
+                    Message message;
+                    while (running && (message = source.read()) != null) {
+                        received.incrementAndGet();
+                        lastMessage = message.received;
+                        while (!queue.offer(message)) {
+                            if (queue.poll() != null) dropped.incrementAndGet();
+                        }
+                        if (queue.size() >= BATCH_ROWS) requestFlush();
+                    }
+                    if (running) Log.w(TAG, table + ": server ended the stream");
+                } catch (IOException e) {
+                    if (running) Log.w(TAG, table + ": " + e.getMessage());
+                } finally {
+                    connected = false;
+                    try {
+                        source.close();
+                    } catch (IOException e) {
+                        Log.w(TAG, table + ": " + e.getMessage());
+                    }
+                }
+                if (!running) break;
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                backoff = Math.min(MAX_BACKOFF_MS, backoff * 2);
+            }
+            Log.d(TAG, table + ": stopped");
+        }
+
+        void stop() {
+            running = false;
+            reader.interrupt();
+            try {
+                source.close();
+            } catch (IOException e) {
+                Log.w(TAG, table + ": " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,434 @@
+package com.atak.plugins.mlsnapshots.services;
+
+import com.atak.plugins.mlsnapshots.PluginExecutor;
+import com.atakmap.coremap.log.Log;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Answers questions such as "show vehicles within 2 km of the hospital" by having the model write DuckDB
+ * spatial SQL against the tables on the map, and running it.
+ * <p>
+ * The model sees the instructions and the table schemas as a prompt prefix, which {@link AIService} caches, so
+ * only the question has to be processed per request. Generated SQL must parse as a single SELECT, is bound with
+ * {@code EXPLAIN} before it runs, and runs wrapped in a row limit. A statement that fails validation is sent back
+ * to the model once with the error. Validated SQL is cached by normalized question and a hash of the schemas,
+ * so asking again skips the model entirely until a table or column changes.
+ */
+public class TextToSqlService {
+
+    private static final String TAG = "TextToSqlService";
+
+    static final String CACHE_TABLE = "_sql_cache";
+
+    public static final int DEFAULT_MAX_ROWS = 500;
+
+    private static final String INSTRUCTIONS = "You translate questions about map data into one DuckDB SQL "
+            + "SELECT statement. The spatial extension is loaded. Geometry columns hold longitude/latitude "
+            + "(EPSG:4326). For distances in meters between points use "
+            + "ST_Distance_Sphere(ST_FlipCoordinates(a), ST_FlipCoordinates(b)); for other shapes use their "
+            + "ST_Centroid. Build a point with ST_Point(longitude, latitude). Only use the tables and columns below. "
+            + "Reply with the SQL only, without explanation.\n\nTables:\n";
+
+    private static final Pattern CODE_BLOCK = Pattern.compile("```(?:sql)?\\s*(.*?)```", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+
+    public interface QueryListener {
+        void onResult(Result result);
+
+        void onError(String error);
+    }
+
+    public static final class Result {
+        public final String question;
+        public final String sql;
+        public final FeatureData data;
+        /** Whether the SQL came from the cache rather than the model */
+        public final boolean cached;
+        /** Whether more rows matched than were returned */
+        public final boolean truncated;
+        public final long elapsedMs;
+
+        Result(String question, String sql, FeatureData data, boolean cached, boolean truncated, long elapsedMs) {
+            this.question = question;
+            this.sql = sql;
+            this.data = data;
+            this.cached = cached;
+            this.truncated = truncated;
+            this.elapsedMs = elapsedMs;
+        }
+    }
+
+    private final DuckDBService duckDBService;
+    private final AIService aiService;
+    private volatile int maxRows = DEFAULT_MAX_ROWS;
+
+    public TextToSqlService(DuckDBService duckDBService, AIService aiService) {
+        this.duckDBService = duckDBService;
+        this.aiService = aiService;
+    }
+
+    public void setMaxRows(int maxRows) {
+        this.maxRows = maxRows;
+    }
+
+    /**
+     * Answers a question in the background. The listener is called once, from a background thread.
+     */
+    public Query ask(String question, QueryListener listener) {
+        Query query = new Query(question, listener);
+        query.submit("sql-lookup", context -> {
+            query.lookUp();
+            return null;
+        });
+        return query;
+    }
+
+    /**
+     * Drops every cached translation, e.g. after the model has been changed.
+     */
+    public void clearCache() throws SQLException {
+        try (Connection conn = duckDBService.newConnection(); Statement stmt = conn.createStatement()) {
+            createCacheTable(conn);
+            stmt.execute("DELETE FROM " + CACHE_TABLE);
+        }
+    }
+
+    /**
+     * Creates the cache keyed by schema hash and question. A cache from versions without the key, which
+     * {@code INSERT OR REPLACE} needs, is dropped and recreated; it only holds translations.
+     */
+    private static void createCacheTable(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            boolean legacy;
+            try (ResultSet rs = stmt.executeQuery("SELECT (SELECT count(*) FROM duckdb_tables() WHERE table_name = '"
+                    + CACHE_TABLE + "'), (SELECT count(*) FROM duckdb_constraints() WHERE table_name = '"
+                    + CACHE_TABLE + "' AND constraint_type = 'PRIMARY KEY')")) {
+                legacy = rs.next() && rs.getLong(1) > 0 && rs.getLong(2) == 0;
+            }
+            if (legacy) stmt.execute("DROP TABLE " + CACHE_TABLE);
+            stmt.execute("CREATE TABLE IF NOT EXISTS " + CACHE_TABLE + " (schema_hash VARCHAR, question VARCHAR, "
+                    + "sql VARCHAR, created TIMESTAMP DEFAULT current_timestamp, hits INTEGER DEFAULT 0, "
+                    + "PRIMARY KEY (schema_hash, question))");
+        }
+    }
+
+    /**
+     * Describes the user tables as {@code name(column TYPE, ...)}, one per line, for the prompt and the schema
+     * hash. The buffers behind a double-buffered feed ({@code x__a}, {@code x__b}, {@code x__previous}) are left
+     * out; the feed is described by its view.
+     */
+    static String describeTables(Connection conn) throws SQLException {
+        StringBuilder catalog = new StringBuilder();
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT table_name, column_name, data_type "
+                     + "FROM information_schema.columns WHERE table_schema = 'main' AND table_name NOT LIKE '\\_%' "
+                     + "ESCAPE '\\' AND table_name NOT LIKE '%\\_\\_%' ESCAPE '\\' "
+                     + "ORDER BY table_name, ordinal_position")) {
+            String current = null;
+            while (rs.next()) {
+                String table = rs.getString(1);
+                if (!table.equals(current)) {
+                    if (current != null) catalog.append(")\n");
+                    catalog.append(table).append('(');
+                    current = table;
+                } else {
+                    catalog.append(", ");
+                }
+                catalog.append(rs.getString(2)).append(' ').append(rs.getString(3));
+            }
+            if (current != null) catalog.append(")\n");
+        }
+        return catalog.toString();
+    }
+
+    /**
+     * Lower case, compatibility-normalized, single-spaced and without trailing punctuation, so trivially
+     * different wordings of the same question share a cache entry.
+     */
+    static String normalize(String question) {
+        String text = Normalizer.normalize(question, Normalizer.Form.NFKC).toLowerCase(Locale.ROOT);
+        text = text.replaceAll("\\s+", " ").trim();
+        return text.replaceAll("[\\s?.!]+$", "");
+    }
+
+    /**
+     * @return the SQL in a model reply: the first code block if there is one, else the whole reply, without a
+     * trailing semicolon
+     */
+    static String extractSql(String reply) {
+        Matcher matcher = CODE_BLOCK.matcher(reply);
+        String sql = matcher.find() ? matcher.group(1) : reply;
+        sql = sql.trim();
+        while (sql.endsWith(";")) {
+            sql = sql.substring(0, sql.length() - 1).trim();
+        }
+        return sql;
+    }
+
+    /**
+     * Checks that {@code sql} is a single SELECT and binds against the current tables, without running it.
+     *
+     * @return null if it is valid, else the reason it is not
+     */
+    static String validate(Connection conn, String sql) throws SQLException {
+        if (sql.isEmpty()) return "The reply contained no SQL";
+        if (sql.indexOf(';') >= 0) return "Only a single statement is allowed";
+        // json_serialize_sql only accepts SELECT statements, and reports anything else as an error
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT json_extract_string(json_serialize_sql('"
+                     + sql.replace("'", "''") + "'), '$.error_message')")) {
+            if (rs.next() && rs.getString(1) != null) {
+                return rs.getString(1);
+            }
+        }
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("EXPLAIN " + sql);
+        } catch (SQLException e) {
+            return e.getMessage();
+        }
+        return null;
+    }
+
+    /** One question on its way through lookup, generation, validation and execution. */
+    public final class Query {
+        private final String question;
+        private final String normalized;
+        private final QueryListener listener;
+        private final long start = System.nanoTime();
+        private final AtomicBoolean done = new AtomicBoolean();
+        private volatile PluginExecutor.JobHandle<?> job;
+        private volatile AIService.Request generation;
+        private String catalog;
+        private String schemaHash;
+
+        private Query(String question, QueryListener listener) {
+            this.question = question;
+            this.normalized = normalize(question);
+            this.listener = listener;
+        }
+
+        public void cancel() {
+            PluginExecutor.JobHandle<?> handle = job;
+            if (handle != null) handle.cancel(false);
+            AIService.Request request = generation;
+            if (request != null) request.cancel();
+            fail("Cancelled");
+        }
+
+        public boolean isDone() {
+            return done.get();
+        }
+
+        private void submit(String name, PluginExecutor.Job<Void> step) {
+            try {
+                job = PluginExecutor.getInstance().submit(name, PluginExecutor.JobType.COMPUTE,
+                        PluginExecutor.Priority.HIGH, context -> {
+                            try {
+                                return step.run(context);
+                            } catch (SQLException e) {
+                                Log.e(TAG, "Query failed: " + question, e);
+                                fail(e.getMessage());
+                                return null;
+                            }
+                        });
+            } catch (RejectedExecutionException e) {
+                fail("Too many pending queries: " + e.getMessage());
+            }
+        }
+
+        private void lookUp() throws SQLException {
+            if (done.get()) return;
+            try (Connection conn = duckDBService.newConnection(); Statement stmt = conn.createStatement()) {
+                createCacheTable(conn);
+                catalog = describeTables(conn);
+                schemaHash = hash(catalog);
+                String sql = null;
+                try (PreparedStatement ps = conn.prepareStatement("SELECT sql FROM " + CACHE_TABLE
+                        + " WHERE schema_hash = ? AND question = ?")) {
+                    ps.setString(1, schemaHash);
+                    ps.setString(2, normalized);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        if (rs.next()) sql = rs.getString(1);
+                    }
+                }
+                if (sql != null) {
+                    try (PreparedStatement ps = conn.prepareStatement("UPDATE " + CACHE_TABLE
+                            + " SET hits = hits + 1 WHERE schema_hash = ? AND question = ?")) {
+                        ps.setString(1, schemaHash);
+                        ps.setString(2, normalized);
+                        ps.executeUpdate();
+                    }
+                    try {
+                        run(conn, sql, true);
+                        return;
+                    } catch (SQLException e) {
+                        // It ran before; the data has changed under it since. Ask the model again.
+                        Log.d(TAG, "Cached SQL for \"" + question + "\" failed, regenerating: " + e.getMessage());
+                        forget(conn);
+                    }
+                }
+            }
+            if (catalog.isEmpty()) {
+                fail("There are no tables to query");
+                return;
+            }
+            generate(question, true);
+        }
+
+        /**
+         * Has the model write SQL for {@code prompt}; a reply that fails validation is sent back once.
+         */
+        private void generate(String prompt, final boolean mayRetry) {
+            if (done.get()) return;
+            generation = aiService.generateContent(INSTRUCTIONS + catalog, prompt, PluginExecutor.Priority.HIGH,
+                    new AIService.ResponseListener() {
+                        @Override
+                        public void onResponse(final String response) {
+                            submit("sql-run", context -> {
+                                check(extractSql(response), mayRetry);
+                                return null;
+                            });
+                        }
+
+                        @Override
+                        public void onPartialResponse(String partialText) {
+                        }
+
+                        @Override
+                        public void onError(String error) {
+                            fail(error);
+                        }
+                    });
+        }
+
+        private void check(String sql, boolean mayRetry) throws SQLException {
+            if (done.get()) return;
+            try (Connection conn = duckDBService.newConnection()) {
+                String problem = validate(conn, sql);
+                if (problem != null) {
+                    Log.d(TAG, "Rejected SQL for \"" + question + "\": " + problem);
+                    if (mayRetry) {
+                        generate(question + "\n\nThis SQL was rejected:\n" + sql + "\nError: " + problem
+                                + "\nReply with corrected SQL.", false);
+                    } else {
+                        fail("Could not write valid SQL: " + problem);
+                    }
+                    return;
+                }
+                run(conn, sql, false);
+                remember(conn, sql);
+            }
+        }
+
+        /**
+         * Caches SQL that has run. A query for the same question that finished first may have cached its own
+         * SQL already; the later one replaces it.
+         */
+        private void remember(Connection conn, String sql) {
+            try (PreparedStatement ps = conn.prepareStatement("INSERT OR REPLACE INTO " + CACHE_TABLE
+                    + " (schema_hash, question, sql) VALUES (?, ?, ?)")) {
+                ps.setString(1, schemaHash);
+                ps.setString(2, normalized);
+                ps.setString(3, sql);
+                ps.executeUpdate();
+            } catch (SQLException e) {
+                // The answer has been delivered; only the cache entry is lost
+                Log.w(TAG, "Could not cache SQL for \"" + question + "\": " + e.getMessage());
+            }
+        }
+
+        private void forget(Connection conn) throws SQLException {
+            try (PreparedStatement ps = conn.prepareStatement("DELETE FROM " + CACHE_TABLE
+                    + " WHERE schema_hash = ? AND question = ?")) {
+                ps.setString(1, schemaHash);
+                ps.setString(2, normalized);
+                ps.executeUpdate();
+            }
+        }
+
+        /**
+         * Runs the statement wrapped in a row limit, with geometries returned as WKT.
+         */
+        private void run(Connection conn, String sql, boolean cached) throws SQLException {
+            int limit = maxRows;
+            StringBuilder columns = new StringBuilder();
+            try (Statement stmt = conn.createStatement();
+                 ResultSet rs = stmt.executeQuery("DESCRIBE SELECT * FROM (" + sql + ") AS q")) {
+                while (rs.next()) {
+                    String column = GeoPackageBulkWriter.quote(rs.getString(1));
+                    if (columns.length() > 0) columns.append(", ");
+                    if ("GEOMETRY".equalsIgnoreCase(rs.getString(2))) {
+                        columns.append("ST_AsText(").append(column).append(") AS ").append(column);
+                    } else {
+                        columns.append(column);
+                    }
+                }
+            }
+
+            List<String> names = new ArrayList<>();
+            List<Map<String, Object>> rows = new ArrayList<>();
+            boolean truncated = false;
+            try (Statement stmt = conn.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT " + columns + " FROM (" + sql + ") AS q LIMIT " + (limit + 1))) {
+                ResultSetMetaData meta = rs.getMetaData();
+                for (int i = 1; i <= meta.getColumnCount(); i++) {
+                    names.add(meta.getColumnLabel(i));
+                }
+                while (rs.next()) {
+                    if (rows.size() == limit) {
+                        truncated = true;
+                        break;
+                    }
+                    Map<String, Object> row = new LinkedHashMap<>();
+                    for (int i = 1; i <= names.size(); i++) {
+                        row.put(names.get(i - 1), rs.getObject(i));
+                    }
+                    rows.add(row);
+                }
+            }
+            long elapsed = (System.nanoTime() - start) / 1000000;
+            Log.d(TAG, String.format(Locale.US, "\"%s\": %d rows in %d ms%s", question, rows.size(), elapsed,
+                    cached ? " (cached SQL)" : ""));
+            if (done.compareAndSet(false, true)) {
+                listener.onResult(new Result(question, sql, new FeatureData(names, rows), cached, truncated, elapsed));
+            }
+        }
+
+        private void fail(String error) {
+            if (done.compareAndSet(false, true)) {
+                listener.onError(error);
+            }
+        }
+    }
+
+    private static String hash(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes(Charset.forName("UTF-8")));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(String.format(Locale.US, "%02x", b & 0xFF));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
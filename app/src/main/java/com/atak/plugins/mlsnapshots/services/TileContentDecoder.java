@@ -0,0 +1,282 @@
+package com.atak.plugins.mlsnapshots.services;
+
+import com.atak.plugins.mlsnapshots.helpers.Matrix4;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import de.javagl.jgltf.model.AccessorByteData;
+import de.javagl.jgltf.model.AccessorData;
+import de.javagl.jgltf.model.AccessorFloatData;
+import de.javagl.jgltf.model.AccessorIntData;
+import de.javagl.jgltf.model.AccessorModel;
+import de.javagl.jgltf.model.AccessorShortData;
+import de.javagl.jgltf.model.GltfModel;
+import de.javagl.jgltf.model.MeshModel;
+import de.javagl.jgltf.model.MeshPrimitiveModel;
+import de.javagl.jgltf.model.NodeModel;
+import de.javagl.jgltf.model.SceneModel;
+import de.javagl.jgltf.model.io.GltfModelReader;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Decodes 3D Tiles content, either a b3dm or a bare glb, into a triangle mesh in ECEF.
+ * <p>
+ * Vertices go through the glTF node hierarchy, the glTF y-up to 3D Tiles z-up rotation, the
+ * {@code RTC_CENTER} or {@code CESIUM_RTC} offset, and finally the accumulated tile transform. Only
+ * triangle-list primitives are read.
+ */
+public class TileContentDecoder {
+
+    private static final int GLB_MAGIC = 0x46546C67;
+    private static final int B3DM_MAGIC = 0x6D643362;
+    private static final int GLB_JSON_CHUNK = 0x4E4F534A;
+    private static final int B3DM_HEADER_LENGTH = 28;
+    private static final int GL_TRIANGLES = 4;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** glTF is y-up, 3D Tiles z-up: (x, y, z) becomes (x, -z, y) */
+    private static final double[] Y_UP_TO_Z_UP = {
+            1, 0, 0, 0,
+            0, 0, 1, 0,
+            0, -1, 0, 0,
+            0, 0, 0, 1};
+
+    /** Content that is valid but cannot be decoded here. */
+    public static class UnsupportedContentException extends IOException {
+        public UnsupportedContentException(String message) {
+            super(message);
+        }
+    }
+
+    /** Triangles in ECEF meters. */
+    public static final class Mesh {
+        /** x, y, z per vertex */
+        public double[] positions = new double[3 * 1024];
+        public int vertexCount;
+        /** Three vertex indices per triangle */
+        public int[] indices = new int[3 * 1024];
+        public int indexCount;
+
+        void addVertex(double[] xyz) {
+            if (positions.length < (vertexCount + 1) * 3) {
+                positions = Arrays.copyOf(positions, positions.length * 2);
+            }
+            System.arraycopy(xyz, 0, positions, vertexCount * 3, 3);
+            vertexCount++;
+        }
+
+        void addIndex(int index) {
+            if (indices.length == indexCount) {
+                indices = Arrays.copyOf(indices, indices.length * 2);
+            }
+            indices[indexCount++] = index;
+        }
+    }
+
+    private final Gson gson = new Gson();
+
+    /**
+     * @param tileTransform the tile's accumulated transform, or null for none
+     * @throws UnsupportedContentException for content that is not a mesh or uses an unsupported encoding
+     */
+    public Mesh decode(byte[] content, double[] tileTransform) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(content).order(ByteOrder.LITTLE_ENDIAN);
+        if (content.length < 12) {
+            throw new IOException("Content too short");
+        }
+        int magic = buffer.getInt(0);
+        double[] transform = tileTransform != null ? tileTransform : Matrix4.identity();
+
+        int glbOffset = 0;
+        if (magic == B3DM_MAGIC) {
+            if (content.length < B3DM_HEADER_LENGTH) {
+                throw new IOException("Truncated b3dm header");
+            }
+            int featureTableJsonLength = buffer.getInt(12);
+            int featureTableBinaryLength = buffer.getInt(16);
+            int batchTableJsonLength = buffer.getInt(20);
+            int batchTableBinaryLength = buffer.getInt(24);
+            double[] rtcCenter = rtcCenter(buffer, B3DM_HEADER_LENGTH, featureTableJsonLength, featureTableBinaryLength);
+            if (rtcCenter != null) {
+                transform = Matrix4.multiply(transform, Matrix4.translation(rtcCenter[0], rtcCenter[1], rtcCenter[2]));
+            }
+            glbOffset = B3DM_HEADER_LENGTH + featureTableJsonLength + featureTableBinaryLength
+                    + batchTableJsonLength + batchTableBinaryLength;
+            if (glbOffset + 12 > content.length) {
+                throw new IOException("Truncated b3dm");
+            }
+            magic = buffer.getInt(glbOffset);
+        }
+        if (magic != GLB_MAGIC) {
+            throw new UnsupportedContentException("Not a b3dm or glb tile");
+        }
+
+        JsonObject json = glbJson(buffer, glbOffset);
+        checkSupported(json);
+        double[] cesiumRtc = cesiumRtc(json);
+        if (cesiumRtc != null) {
+            transform = Matrix4.multiply(transform, Matrix4.translation(cesiumRtc[0], cesiumRtc[1], cesiumRtc[2]));
+        }
+        transform = Matrix4.multiply(transform, Y_UP_TO_Z_UP);
+
+        GltfModel model = new GltfModelReader().readWithoutReferences(
+                new ByteArrayInputStream(content, glbOffset, content.length - glbOffset));
+        Mesh mesh = new Mesh();
+        List<SceneModel> scenes = model.getSceneModels();
+        if (scenes.isEmpty()) {
+            for (NodeModel node : model.getNodeModels()) {
+                if (node.getParent() == null) {
+                    addNode(node, transform, mesh);
+                }
+            }
+        } else {
+            for (NodeModel node : scenes.get(0).getNodeModels()) {
+                addNode(node, transform, mesh);
+            }
+        }
+        return mesh;
+    }
+
+    private void addNode(NodeModel node, double[] parentTransform, Mesh mesh) {
+        double[] transform = Matrix4.multiply(parentTransform, localTransform(node));
+        for (MeshModel meshModel : node.getMeshModels()) {
+            for (MeshPrimitiveModel primitive : meshModel.getMeshPrimitiveModels()) {
+                if (primitive.getMode() == GL_TRIANGLES) {
+                    addPrimitive(primitive, transform, mesh);
+                }
+            }
+        }
+        for (NodeModel child : node.getChildren()) {
+            addNode(child, transform, mesh);
+        }
+    }
+
+    private static void addPrimitive(MeshPrimitiveModel primitive, double[] transform, Mesh mesh) {
+        AccessorModel positions = primitive.getAttributes().get("POSITION");
+        if (positions == null) return;
+        AccessorData data = positions.getAccessorData();
+        int count = data.getNumElements();
+        int base = mesh.vertexCount;
+        double[] xyz = new double[3];
+        for (int i = 0; i < count; i++) {
+            for (int c = 0; c < 3; c++) {
+                xyz[c] = component(data, i, c);
+            }
+            Matrix4.transformPoint(transform, xyz, 0);
+            mesh.addVertex(xyz);
+        }
+
+        AccessorModel indices = primitive.getIndices();
+        if (indices == null) {
+            for (int i = 0; i + 2 < count; i += 3) {
+                mesh.addIndex(base + i);
+                mesh.addIndex(base + i + 1);
+                mesh.addIndex(base + i + 2);
+            }
+            return;
+        }
+        AccessorData indexData = indices.getAccessorData();
+        int indexCount = indexData.getNumElements() / 3 * 3;
+        for (int i = 0; i < indexCount; i++) {
+            mesh.addIndex(base + index(indexData, i));
+        }
+    }
+
+    private static double component(AccessorData data, int element, int component) {
+        if (data instanceof AccessorFloatData) {
+            return ((AccessorFloatData) data).get(element, component);
+        }
+        // KHR_mesh_quantization: integer positions, scaled by the node transform
+        if (data instanceof AccessorShortData) {
+            return ((AccessorShortData) data).getInt(element, component);
+        }
+        if (data instanceof AccessorByteData) {
+            return ((AccessorByteData) data).getInt(element, component);
+        }
+        throw new IllegalArgumentException("Unsupported POSITION component type");
+    }
+
+    private static int index(AccessorData data, int i) {
+        if (data instanceof AccessorIntData) {
+            return ((AccessorIntData) data).get(i);
+        }
+        if (data instanceof AccessorShortData) {
+            return ((AccessorShortData) data).getInt(i);
+        }
+        if (data instanceof AccessorByteData) {
+            return ((AccessorByteData) data).getInt(i);
+        }
+        throw new IllegalArgumentException("Unsupported index component type");
+    }
+
+    /**
+     * The node's own transform. jgltf keeps node properties in float, so an ECEF translation on a node
+     * loses up to half a meter; that offset is shared by every vertex of the node and does not distort shapes.
+     */
+    private static double[] localTransform(NodeModel node) {
+        float[] local = node.computeLocalTransform(null);
+        double[] m = new double[16];
+        for (int i = 0; i < 16; i++) {
+            m[i] = local[i];
+        }
+        return m;
+    }
+
+    private JsonObject glbJson(ByteBuffer buffer, int offset) throws IOException {
+        int chunkLength = buffer.getInt(offset + 12);
+        int chunkType = buffer.getInt(offset + 16);
+        if (chunkType != GLB_JSON_CHUNK || offset + 20 + chunkLength > buffer.capacity()) {
+            throw new IOException("Malformed glb JSON chunk");
+        }
+        return gson.fromJson(new String(buffer.array(), offset + 20, chunkLength, UTF_8), JsonObject.class);
+    }
+
+    /**
+     * Draco and meshopt compressed buffers are opaque to jgltf, so such tiles are rejected up front; callers fall
+     * back to the tile's bounding volume.
+     */
+    private static void checkSupported(JsonObject json) throws UnsupportedContentException {
+        if (!json.has("extensionsRequired")) return;
+        for (JsonElement extension : json.getAsJsonArray("extensionsRequired")) {
+            String name = extension.getAsString();
+            if (name.equals("KHR_draco_mesh_compression") || name.startsWith("EXT_meshopt_compression")) {
+                throw new UnsupportedContentException("Compressed meshes (" + name + ") are not supported");
+            }
+        }
+    }
+
+    private static double[] cesiumRtc(JsonObject json) {
+        if (!json.has("extensions")) return null;
+        JsonObject extensions = json.getAsJsonObject("extensions");
+        if (!extensions.has("CESIUM_RTC")) return null;
+        return vec3(extensions.getAsJsonObject("CESIUM_RTC").getAsJsonArray("center"));
+    }
+
+    private double[] rtcCenter(ByteBuffer buffer, int offset, int jsonLength, int binaryLength) {
+        if (jsonLength == 0) return null;
+        JsonObject featureTable = gson.fromJson(new String(buffer.array(), offset, jsonLength, UTF_8), JsonObject.class);
+        if (featureTable == null || !featureTable.has("RTC_CENTER")) return null;
+        JsonElement rtc = featureTable.get("RTC_CENTER");
+        if (rtc.isJsonArray()) {
+            return vec3(rtc.getAsJsonArray());
+        }
+        // Binary form: three floats in the feature table body
+        int byteOffset = rtc.getAsJsonObject().get("byteOffset").getAsInt();
+        int at = offset + jsonLength + byteOffset;
+        if (byteOffset + 12 > binaryLength) return null;
+        return new double[]{buffer.getFloat(at), buffer.getFloat(at + 4), buffer.getFloat(at + 8)};
+    }
+
+    private static double[] vec3(JsonArray array) {
+        return new double[]{array.get(0).getAsDouble(), array.get(1).getAsDouble(), array.get(2).getAsDouble()};
+    }
+}
@@ -0,0 +1,169 @@
+package com.atak.plugins.mlsnapshots.services;
+
+import com.atak.coremap.log.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * On-disk cache for fetched 3D Tiles resources.
+ * <p>
+ * Entries are keyed by URL with the {@code key} and {@code session} query parameters removed, so they
+ * survive API key changes and session expiry. Writes go to a temporary file that is renamed into place,
+ * so concurrent readers never see a partial entry.
+ * <p>
+ * The cache is bounded: once its entries exceed the size limit, the least recently used ones are deleted
+ * until it is back under three quarters of it. A hit marks the entry used by touching its modification time.
+ */
+public class TilesetCache {
+
+    private static final String TAG = "TilesetCache";
+    private static final long DEFAULT_MAX_BYTES = 512L * 1024 * 1024;
+
+    private final File dir;
+    private final long maxBytes;
+    // Total size of the entries; guarded by this
+    private long size;
+
+    public TilesetCache(File dir) {
+        this(dir, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxBytes how large the entries may grow together before the least recently used are evicted
+     */
+    public TilesetCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.e(TAG, "Failed to create tileset cache directory " + dir);
+        }
+        for (File entry : entries()) {
+            size += entry.length();
+        }
+    }
+
+    /**
+     * @return the cached bytes, or null on a miss
+     */
+    public byte[] get(URL url) {
+        File file = fileFor(url);
+        if (!file.exists()) return null;
+        try (InputStream in = new FileInputStream(file)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[16 * 1024];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            file.setLastModified(System.currentTimeMillis());
+            return out.toByteArray();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read cache entry " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    public void put(URL url, byte[] data) {
+        File file = fileFor(url);
+        File partial = new File(dir, file.getName() + "." + Thread.currentThread().getId() + ".tmp");
+        try (OutputStream out = new FileOutputStream(partial)) {
+            out.write(data);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write cache entry " + file + ": " + e.getMessage());
+            partial.delete();
+            return;
+        }
+        long replaced = file.length();
+        if (!partial.renameTo(file)) {
+            partial.delete();
+            return;
+        }
+        boolean full;
+        synchronized (this) {
+            size += data.length - replaced;
+            full = size > maxBytes;
+        }
+        if (full) evict();
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache is under three quarters of its limit, so that
+     * a full cache is not listed again on every write.
+     */
+    private synchronized void evict() {
+        File[] entries = entries();
+        final long[] used = new long[entries.length];
+        Integer[] order = new Integer[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            // Read once: sorting on a modification time that changes meanwhile would break the comparator
+            used[i] = entries[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(used[a], used[b]));
+        long target = maxBytes / 4 * 3;
+        int evicted = 0;
+        for (int i = 0; i < order.length && size > target; i++) {
+            File entry = entries[order[i]];
+            long length = entry.length();
+            if (entry.delete()) {
+                size -= length;
+                evicted++;
+            }
+        }
+        Log.d(TAG, "Evicted " + evicted + " tileset cache entries, " + size / (1024 * 1024) + " MB left");
+    }
+
+    private File[] entries() {
+        File[] entries = dir.listFiles((d, name) -> !name.endsWith(".tmp"));
+        return entries != null ? entries : new File[0];
+    }
+
+    /**
+     * @return the URL without the {@code key} and {@code session} parameters
+     */
+    public static String cacheKey(URL url) {
+        StringBuilder key = new StringBuilder();
+        key.append(url.getProtocol()).append("://").append(url.getHost()).append(url.getPath());
+        String query = url.getQuery();
+        if (query != null) {
+            char separator = '?';
+            for (String param : query.split("&")) {
+                if (param.isEmpty() || param.startsWith("key=") || param.startsWith("session=")) continue;
+                key.append(separator).append(param);
+                separator = '&';
+            }
+        }
+        return key.toString();
+    }
+
+    private File fileFor(URL url) {
+        String key = cacheKey(url);
+        String suffix = url.getPath().toLowerCase(Locale.US).endsWith(".json") ? ".json" : ".bin";
+        return new File(dir, sha1(key) + suffix);
+    }
+
+    private static String sha1(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(value.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(String.format(Locale.US, "%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            // SHA-1 and UTF-8 are always available
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,399 @@
+package com.atak.plugins.mlsnapshots.services;
+
+import com.atak.coremap.log.Log;
+import com.atak.plugins.mlsnapshots.PluginExecutor;
+import com.atak.plugins.mlsnapshots.helpers.Ecef;
+import com.atak.plugins.mlsnapshots.helpers.Matrix4;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Polygon;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Breadth-first walk over a 3D Tiles tileset graph, including external child tilesets.
+ * <p>
+ * Tileset documents are fetched on the NETWORK lane with at most {@link #MAX_IN_FLIGHT} requests
+ * outstanding; the frontier of documents still to fetch is a FIFO, so the graph is expanded level by
+ * level. Inside a document, nodes whose bounding volume misses the AOI are pruned with their subtree,
+ * and refinement stops at the first content tile whose geometric error is at or below the target.
+ * Those tiles are handed to the {@link Visitor}.
+ * <p>
+ * Every document except the root is served from the {@link TilesetCache} when present. The root is
+ * always fetched, since it issues the session that the content URLs need; the session is then applied
+ * to every URL the traversal produces, including ones read from cached documents.
+ */
+public class TilesetTraversal {
+
+    private static final String TAG = "TilesetTraversal";
+
+    private static final int MAX_IN_FLIGHT = 8;
+
+    public interface Visitor {
+        /**
+         * Called for each selected content tile, possibly from several threads at once.
+         */
+        void onTile(TileNode tile);
+    }
+
+    public interface Listener {
+        void onProgress(int fetched, int cacheHits, int pending, int selected);
+
+        void onComplete(boolean success, String error);
+    }
+
+    /**
+     * A tile in a tileset document. The footprint is computed once, when the node is first visited, and
+     * reused for pruning and by the visitor.
+     */
+    public static final class TileNode {
+        public final JsonObject json;
+        public final URL contentUrl;
+        public final double geometricError;
+        public final Polygon footprint;
+        /** Accumulated tile transform, column-major, or null for none */
+        public final double[] transform;
+
+        TileNode(JsonObject json, URL contentUrl, double geometricError, Polygon footprint, double[] transform) {
+            this.json = json;
+            this.contentUrl = contentUrl;
+            this.geometricError = geometricError;
+            this.footprint = footprint;
+            this.transform = transform;
+        }
+    }
+
+    private final String apiKey;
+    private final Geometry aoi;
+    private final double targetGeometricError;
+    private final TilesetCache cache;
+    private final Visitor visitor;
+    private final Listener listener;
+    private final Gson gson = new Gson();
+    private final GeometryFactory geometryFactory = new GeometryFactory();
+
+    private final Deque<Pending> frontier = new ArrayDeque<>();
+    private final Set<String> seen = new HashSet<>();
+    private String rootUrl;
+    private int inFlight;
+    private int fetched;
+    private int cacheHits;
+    private boolean finished;
+    private String error;
+    private final AtomicInteger selected = new AtomicInteger();
+    private volatile String session;
+
+    public TilesetTraversal(String apiKey, Geometry aoi, double targetGeometricError, TilesetCache cache,
+                            Visitor visitor, Listener listener) {
+        this.apiKey = apiKey;
+        this.aoi = aoi;
+        this.targetGeometricError = targetGeometricError;
+        this.cache = cache;
+        this.visitor = visitor;
+        this.listener = listener;
+    }
+
+    public void start(URL rootUrl) {
+        URL url = withAuth(rootUrl);
+        synchronized (this) {
+            this.rootUrl = url.toString();
+        }
+        enqueue(url, null);
+    }
+
+    private void enqueue(URL url, double[] transform) {
+        synchronized (this) {
+            if (finished || !seen.add(TilesetCache.cacheKey(url))) return;
+            frontier.add(new Pending(url, transform));
+        }
+        pump();
+    }
+
+    /**
+     * Starts fetches while there is room, and completes the traversal once nothing is left.
+     */
+    private void pump() {
+        boolean complete = false;
+        String failure;
+        synchronized (this) {
+            while (!finished && inFlight < MAX_IN_FLIGHT && !frontier.isEmpty()) {
+                final Pending pending = frontier.poll();
+                inFlight++;
+                try {
+                    PluginExecutor.getInstance().submit("3dtiles-fetch", PluginExecutor.JobType.NETWORK, context -> {
+                        try {
+                            context.throwIfCancelled();
+                            JsonObject tileset = load(pending.url);
+                            if (tileset != null) {
+                                walk(tileset, pending.url, pending.transform);
+                            }
+                        } finally {
+                            synchronized (TilesetTraversal.this) {
+                                inFlight--;
+                            }
+                            reportProgress();
+                            pump();
+                        }
+                        return null;
+                    });
+                } catch (RejectedExecutionException e) {
+                    inFlight--;
+                    error = "Could not queue fetch: " + e.getMessage();
+                    frontier.clear();
+                }
+            }
+            if (!finished && inFlight == 0 && frontier.isEmpty()) {
+                finished = true;
+                complete = true;
+            }
+            failure = error;
+        }
+        if (complete) {
+            listener.onComplete(failure == null, failure);
+        }
+    }
+
+    private void reportProgress() {
+        int fetchedNow, hitsNow, pendingNow;
+        synchronized (this) {
+            fetchedNow = fetched;
+            hitsNow = cacheHits;
+            pendingNow = inFlight + frontier.size();
+        }
+        listener.onProgress(fetchedNow, hitsNow, pendingNow, selected.get());
+    }
+
+    private JsonObject load(URL url) {
+        boolean isRoot;
+        synchronized (this) {
+            isRoot = url.toString().equals(rootUrl);
+        }
+        byte[] data = isRoot ? null : cache.get(url);
+        boolean hit = data != null;
+        if (data == null) {
+            try {
+                data = fetch(url);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to fetch " + TilesetCache.cacheKey(url) + ": " + e.getMessage());
+                if (isRoot) {
+                    synchronized (this) {
+                        error = "Failed to fetch root tileset: " + e.getMessage();
+                    }
+                }
+                return null;
+            }
+            cache.put(url, data);
+        }
+        synchronized (this) {
+            fetched++;
+            if (hit) cacheHits++;
+        }
+        try {
+            return gson.fromJson(new InputStreamReader(new ByteArrayInputStream(data), "UTF-8"), JsonObject.class);
+        } catch (Exception e) {
+            Log.w(TAG, "Invalid tileset JSON from " + TilesetCache.cacheKey(url) + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    static byte[] fetch(URL url) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setConnectTimeout(15000);
+        conn.setReadTimeout(30000);
+        try {
+            if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                throw new IOException("HTTP " + conn.getResponseCode());
+            }
+            try (InputStream in = conn.getInputStream()) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[16 * 1024];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, n);
+                }
+                return out.toByteArray();
+            }
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * Walks the nodes of one tileset document, queueing external tilesets and selecting content tiles.
+     *
+     * @param parentTransform the transform of the tile that links to this document, or null
+     */
+    private void walk(JsonObject tileset, URL base, double[] parentTransform) {
+        JsonObject rootNode = tileset.getAsJsonObject("root");
+        if (rootNode == null) return;
+
+        // Footprint buffers, reused for every node of the document
+        double[] box = new double[12];
+        double[] scratch = new double[24];
+        double[] hull = new double[18];
+
+        Deque<Frame> stack = new ArrayDeque<>();
+        stack.push(new Frame(rootNode, parentTransform));
+        while (!stack.isEmpty()) {
+            Frame frame = stack.pop();
+            JsonObject node = frame.node;
+            double[] transform = frame.parentTransform;
+            if (node.has("transform")) {
+                JsonArray values = node.getAsJsonArray("transform");
+                double[] local = new double[16];
+                for (int i = 0; i < 16; i++) {
+                    local[i] = values.get(i).getAsDouble();
+                }
+                transform = transform != null ? Matrix4.multiply(transform, local) : local;
+            }
+            Polygon footprint = footprint(node, transform, box, scratch, hull);
+            // Nodes without a usable bounding volume cannot be pruned
+            if (footprint != null && !aoi.intersects(footprint)) continue;
+
+            double geometricError = node.has("geometricError") ? node.get("geometricError").getAsDouble() : 0;
+            JsonArray children = node.has("children") ? node.getAsJsonArray("children") : null;
+            boolean hasChildren = children != null && children.size() > 0;
+
+            String uri = contentUri(node);
+            if (uri != null) {
+                URL contentUrl;
+                try {
+                    contentUrl = withAuth(new URL(base, uri));
+                } catch (IOException e) {
+                    Log.w(TAG, "Bad content URI " + uri);
+                    continue;
+                }
+                if (contentUrl.getPath().toLowerCase(Locale.US).endsWith(".json")) {
+                    enqueue(contentUrl, transform);
+                } else if (!hasChildren || geometricError <= targetGeometricError) {
+                    selected.incrementAndGet();
+                    visitor.onTile(new TileNode(node, contentUrl, geometricError, footprint, transform));
+                    continue;
+                }
+            }
+            if (hasChildren) {
+                for (JsonElement child : children) {
+                    stack.push(new Frame(child.getAsJsonObject(), transform));
+                }
+            }
+        }
+    }
+
+    private static String contentUri(JsonObject node) {
+        if (!node.has("content")) return null;
+        JsonObject content = node.getAsJsonObject("content");
+        // "url" is the pre-1.0 spelling
+        if (content.has("uri")) return content.get("uri").getAsString();
+        if (content.has("url")) return content.get("url").getAsString();
+        return null;
+    }
+
+    /**
+     * Replaces the key and session parameters with the current ones. The first session seen, which comes
+     * with the root tileset's children, is kept for the whole traversal.
+     */
+    private URL withAuth(URL url) {
+        StringBuilder query = new StringBuilder();
+        String q = url.getQuery();
+        if (q != null) {
+            for (String param : q.split("&")) {
+                if (param.startsWith("session=")) {
+                    if (session == null) session = param.substring("session=".length());
+                    continue;
+                }
+                if (param.isEmpty() || param.startsWith("key=")) continue;
+                query.append(query.length() == 0 ? "" : "&").append(param);
+            }
+        }
+        query.append(query.length() == 0 ? "" : "&").append("key=").append(apiKey);
+        if (session != null) {
+            query.append("&session=").append(session);
+        }
+        try {
+            return new URL(url.getProtocol(), url.getHost(), url.getPort(), url.getPath() + "?" + query);
+        } catch (IOException e) {
+            return url;
+        }
+    }
+
+    /**
+     * Regions are geographic and ignore the tile transform; boxes are in the transformed frame.
+     */
+    private Polygon footprint(JsonObject node, double[] transform, double[] box, double[] scratch, double[] hull) {
+        if (!node.has("boundingVolume")) return null;
+        JsonObject volume = node.getAsJsonObject("boundingVolume");
+        try {
+            if (volume.has("region")) {
+                JsonArray region = volume.getAsJsonArray("region");
+                double west = Math.toDegrees(region.get(0).getAsDouble());
+                double south = Math.toDegrees(region.get(1).getAsDouble());
+                double east = Math.toDegrees(region.get(2).getAsDouble());
+                double north = Math.toDegrees(region.get(3).getAsDouble());
+                return geometryFactory.createPolygon(new Coordinate[]{
+                        new Coordinate(west, south), new Coordinate(east, south), new Coordinate(east, north),
+                        new Coordinate(west, north), new Coordinate(west, south)});
+            }
+            if (!volume.has("box")) return null;
+            JsonArray values = volume.getAsJsonArray("box");
+            for (int i = 0; i < 12; i++) {
+                box[i] = values.get(i).getAsDouble();
+            }
+            if (transform != null) {
+                Matrix4.transformPoint(transform, box, 0);
+                for (int axis = 3; axis < 12; axis += 3) {
+                    Matrix4.transformVector(transform, box, axis);
+                }
+            }
+            int n = Ecef.boxFootprint(box, 0, scratch, hull);
+            // A box seen edge-on from above collapses to a line
+            if (n < 4) return null;
+            Coordinate[] ring = new Coordinate[n];
+            for (int i = 0; i < n; i++) {
+                ring[i] = new Coordinate(hull[i * 2], hull[i * 2 + 1]);
+            }
+            return geometryFactory.createPolygon(ring);
+        } catch (Exception e) {
+            Log.w(TAG, "Could not compute footprint: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /** A tileset document waiting to be fetched. */
+    private static final class Pending {
+        final URL url;
+        final double[] transform;
+
+        Pending(URL url, double[] transform) {
+            this.url = url;
+            this.transform = transform;
+        }
+    }
+
+    private static final class Frame {
+        final JsonObject node;
+        final double[] parentTransform;
+
+        Frame(JsonObject node, double[] parentTransform) {
+            this.node = node;
+            this.parentTransform = parentTransform;
+        }
+    }
+}
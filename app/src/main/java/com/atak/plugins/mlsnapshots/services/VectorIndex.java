@@ -0,0 +1,636 @@
+package com.atak.plugins.mlsnapshots.services;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Approximate nearest neighbour search over unit vectors, using a hierarchical navigable small world graph
+ * (Malkov and Yashunin). Similarity is the dot product, i.e. cosine similarity for unit vectors.
+ * <p>
+ * Vectors and the bottom layer of the graph, which together are nearly all of the index, are kept in direct
+ * buffers outside the Java heap. Each vector is identified by a caller-chosen {@code long} key. Removed vectors
+ * stay in the graph so it remains connected, but are never returned; {@link #compact()} rebuilds without them.
+ * <p>
+ * All methods are synchronized: searches take well under a millisecond on a few hundred thousand vectors, so
+ * there is little to gain from letting them overlap.
+ */
+public class VectorIndex {
+
+    private static final int MAGIC = 0x56494458; // "VIDX"
+    private static final int VERSION = 1;
+    private static final int MAX_LEVEL = 16;
+    private static final int INITIAL_CAPACITY = 1024;
+    // Node data and upper links are written and read through a buffer of this size
+    private static final int CHUNK_BYTES = 64 * 1024;
+
+    public static final class Hit {
+        public final long key;
+        /** Dot product with the query, 1 for an identical direction */
+        public final float similarity;
+
+        Hit(long key, float similarity) {
+            this.key = key;
+            this.similarity = similarity;
+        }
+    }
+
+    private final int dimensions;
+    // Links per node on the upper layers, and on the bottom layer where they matter most
+    private final int m;
+    private final int m0;
+    private final int efConstruction;
+    private final double levelFactor;
+    private final Random random = new Random(42);
+
+    private int capacity;
+    private int size;
+    private int removed;
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+
+    // Views of vectorBytes and linkBytes, which save and load hand to the file channel directly
+    private ByteBuffer vectorBytes;
+    private FloatBuffer vectors;
+    // Per node: neighbour count, then up to m0 neighbours
+    private ByteBuffer linkBytes;
+    private IntBuffer bottomLinks;
+    // Per node with level > 0: for each level from 1, neighbour count then up to m neighbours
+    private int[][] upperLinks;
+    private long[] keys;
+    private byte[] levels;
+    private final BitSet deleted = new BitSet();
+    private final Map<Long, Integer> nodes = new HashMap<>();
+
+    // Search scratch space
+    private int[] visited = new int[0];
+    private int visitStamp;
+    private final float[] scratch;
+
+    /**
+     * @param m              links per node; 16 suits embeddings of a few hundred dimensions
+     * @param efConstruction candidates considered when linking a new node; higher builds a better graph, slower
+     */
+    public VectorIndex(int dimensions, int m, int efConstruction) {
+        this.dimensions = dimensions;
+        this.m = m;
+        this.m0 = 2 * m;
+        this.efConstruction = efConstruction;
+        this.levelFactor = 1 / Math.log(m);
+        this.scratch = new float[dimensions];
+        allocate(INITIAL_CAPACITY);
+    }
+
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    /**
+     * @return the number of vectors that can be returned by a search
+     */
+    public synchronized int size() {
+        return size - removed;
+    }
+
+    public synchronized boolean contains(long key) {
+        return nodes.containsKey(key);
+    }
+
+    /**
+     * @return the keys of every vector that can be returned by a search
+     */
+    public synchronized long[] keys() {
+        long[] result = new long[size - removed];
+        int n = 0;
+        for (int node = 0; node < size; node++) {
+            if (!deleted.get(node)) result[n++] = keys[node];
+        }
+        return result;
+    }
+
+    /**
+     * Adds a vector, replacing any vector already stored under the same key. The vector is scaled to unit
+     * length.
+     */
+    public synchronized void add(long key, float[] vector) {
+        if (vector.length != dimensions) {
+            throw new IllegalArgumentException("Expected " + dimensions + " dimensions, got " + vector.length);
+        }
+        remove(key);
+        if (size == capacity) {
+            grow(capacity * 2);
+        }
+        int node = size++;
+        float[] unit = normalize(vector);
+        vectors.position(node * dimensions);
+        vectors.put(unit);
+        keys[node] = key;
+        nodes.put(key, node);
+        int level = Math.min(MAX_LEVEL, (int) (-Math.log(1 - random.nextDouble()) * levelFactor));
+        levels[node] = (byte) level;
+        bottomLinks.put(node * (m0 + 1), 0);
+        if (level > 0) {
+            upperLinks[node] = new int[level * (m + 1)];
+        }
+        if (entryPoint < 0) {
+            entryPoint = node;
+            maxLevel = level;
+            return;
+        }
+
+        int current = entryPoint;
+        for (int l = maxLevel; l > level; l--) {
+            current = greedy(unit, current, l);
+        }
+        for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+            Candidates candidates = searchLayer(unit, current, efConstruction, l);
+            int[] selected = selectNeighbours(candidates, l == 0 ? m0 : m);
+            setLinks(node, l, selected, selected.length);
+            for (int neighbour : selected) {
+                connect(neighbour, node, l);
+            }
+            current = candidates.nearest();
+        }
+        if (level > maxLevel) {
+            entryPoint = node;
+            maxLevel = level;
+        }
+    }
+
+    /**
+     * Stops returning the vector stored under {@code key}, if there is one.
+     */
+    public synchronized void remove(long key) {
+        Integer node = nodes.remove(key);
+        if (node != null) {
+            deleted.set(node);
+            removed++;
+        }
+    }
+
+    /**
+     * @return the share of stored vectors that have been removed but still take up space in the graph
+     */
+    public synchronized double removedFraction() {
+        return size == 0 ? 0 : (double) removed / size;
+    }
+
+    /**
+     * @param ef candidates kept while searching, at least {@code k}; higher is more accurate and slower
+     * @return up to {@code k} vectors most similar to {@code query}, most similar first
+     */
+    public synchronized List<Hit> search(float[] query, int k, int ef) {
+        List<Hit> hits = new ArrayList<>(k);
+        if (entryPoint < 0 || size == removed) return hits;
+        float[] unit = normalize(query);
+        int current = entryPoint;
+        for (int l = maxLevel; l > 0; l--) {
+            current = greedy(unit, current, l);
+        }
+        // Removed vectors occupy candidate slots, so widen the search to still find k live ones
+        int width = Math.max(ef, k) + (int) Math.min(size, (long) Math.max(ef, k) * removed / Math.max(1, size - removed));
+        Candidates candidates = searchLayer(unit, current, width, 0);
+        for (int node : candidates.sortedNodes()) {
+            if (deleted.get(node)) continue;
+            hits.add(new Hit(keys[node], 1 - distance(unit, node)));
+            if (hits.size() == k) break;
+        }
+        return hits;
+    }
+
+    /**
+     * @return a new index holding only the vectors that have not been removed
+     */
+    public synchronized VectorIndex compact() {
+        VectorIndex result = new VectorIndex(dimensions, m, efConstruction);
+        result.grow(Math.max(INITIAL_CAPACITY, size - removed));
+        float[] vector = new float[dimensions];
+        for (int node = 0; node < size; node++) {
+            if (deleted.get(node)) continue;
+            vectors.position(node * dimensions);
+            vectors.get(vector);
+            result.add(keys[node], vector);
+        }
+        return result;
+    }
+
+    /**
+     * Writes the index to {@code file}, replacing it only once the new copy is complete.
+     */
+    public synchronized void save(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp); FileChannel channel = out.getChannel()) {
+            ByteBuffer header = ByteBuffer.allocate(40).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(dimensions).putInt(m).putInt(efConstruction)
+                    .putInt(size).putInt(removed).putInt(entryPoint).putInt(maxLevel).putInt(0);
+            header.flip();
+            writeFully(channel, header);
+
+            // Per-node data goes through one small buffer rather than a copy of the whole index
+            ByteBuffer chunk = ByteBuffer.allocate(CHUNK_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            for (int node = 0; node < size; node++) {
+                if (chunk.remaining() < 10) flush(channel, chunk);
+                chunk.putLong(keys[node]);
+                chunk.put(levels[node]);
+                chunk.put((byte) (deleted.get(node) ? 1 : 0));
+            }
+            flush(channel, chunk);
+
+            writeFully(channel, region(vectorBytes, size * dimensions * 4));
+            writeFully(channel, region(linkBytes, size * (m0 + 1) * 4));
+
+            for (int node = 0; node < size; node++) {
+                int[] links = upperLinks[node];
+                if (links == null) continue;
+                for (int link : links) {
+                    if (chunk.remaining() < 4) flush(channel, chunk);
+                    chunk.putInt(link);
+                }
+            }
+            flush(channel, chunk);
+            out.getFD().sync();
+        }
+        if (!temp.renameTo(file)) {
+            // Windows-style filesystems will not rename over an existing file
+            if (!file.delete() || !temp.renameTo(file)) {
+                throw new IOException("Could not replace " + file);
+            }
+        }
+    }
+
+    /**
+     * Reads an index written by {@link #save(File)}.
+     */
+    public static VectorIndex load(File file) throws IOException {
+        try (FileInputStream in = new FileInputStream(file); FileChannel channel = in.getChannel()) {
+            ByteBuffer header = readFully(channel, 40);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException(file + " is not a vector index");
+            }
+            VectorIndex index = new VectorIndex(header.getInt(), header.getInt(), header.getInt());
+            int size = header.getInt();
+            index.grow(Math.max(INITIAL_CAPACITY, size));
+            index.size = size;
+            index.removed = header.getInt();
+            index.entryPoint = header.getInt();
+            index.maxLevel = header.getInt();
+
+            ByteBuffer chunk = ByteBuffer.allocate(CHUNK_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            chunk.flip();
+            for (int node = 0; node < size; node++) {
+                ByteBuffer nodeData = fill(channel, chunk, 10);
+                index.keys[node] = nodeData.getLong();
+                index.levels[node] = nodeData.get();
+                if (nodeData.get() != 0) {
+                    index.deleted.set(node);
+                } else {
+                    index.nodes.put(index.keys[node], node);
+                }
+            }
+
+            // The vectors and bottom links are read straight into their direct buffers; what the chunk buffer
+            // read ahead of them is copied first
+            readInto(channel, chunk, region(index.vectorBytes, size * index.dimensions * 4));
+            readInto(channel, chunk, region(index.linkBytes, size * (index.m0 + 1) * 4));
+
+            for (int node = 0; node < size; node++) {
+                int level = index.levels[node];
+                if (level == 0) continue;
+                int[] links = new int[level * (index.m + 1)];
+                for (int i = 0; i < links.length; i++) {
+                    links[i] = fill(channel, chunk, 4).getInt();
+                }
+                index.upperLinks[node] = links;
+            }
+            return index;
+        }
+    }
+
+    private void allocate(int newCapacity) {
+        long vectorSize = (long) newCapacity * dimensions * 4;
+        long linkSize = (long) newCapacity * (m0 + 1) * 4;
+        if (vectorSize > Integer.MAX_VALUE || linkSize > Integer.MAX_VALUE) {
+            throw new IllegalStateException("A vector index of " + newCapacity + " nodes would exceed 2 GiB");
+        }
+        capacity = newCapacity;
+        vectorBytes = ByteBuffer.allocateDirect((int) vectorSize).order(ByteOrder.LITTLE_ENDIAN);
+        vectors = vectorBytes.asFloatBuffer();
+        linkBytes = ByteBuffer.allocateDirect((int) linkSize).order(ByteOrder.LITTLE_ENDIAN);
+        bottomLinks = linkBytes.asIntBuffer();
+        upperLinks = new int[newCapacity][];
+        keys = new long[newCapacity];
+        levels = new byte[newCapacity];
+    }
+
+    private void grow(int newCapacity) {
+        if (newCapacity <= capacity) return;
+        FloatBuffer oldVectors = vectors;
+        IntBuffer oldLinks = bottomLinks;
+        int[][] oldUpper = upperLinks;
+        long[] oldKeys = keys;
+        byte[] oldLevels = levels;
+        allocate(newCapacity);
+        oldVectors.clear().limit(size * dimensions);
+        vectors.put(oldVectors);
+        oldLinks.clear().limit(size * (m0 + 1));
+        bottomLinks.put(oldLinks);
+        System.arraycopy(oldUpper, 0, upperLinks, 0, size);
+        System.arraycopy(oldKeys, 0, keys, 0, size);
+        System.arraycopy(oldLevels, 0, levels, 0, size);
+    }
+
+    private float[] normalize(float[] vector) {
+        double length = 0;
+        for (float v : vector) length += v * v;
+        float scale = length > 0 ? (float) (1 / Math.sqrt(length)) : 0;
+        float[] unit = new float[vector.length];
+        for (int i = 0; i < vector.length; i++) unit[i] = vector[i] * scale;
+        return unit;
+    }
+
+    private float distance(float[] query, int node) {
+        int base = node * dimensions;
+        // Four independent sums keep the multiply-adds from waiting on each other
+        float a = 0, b = 0, c = 0, d = 0;
+        int i = 0;
+        for (; i + 3 < dimensions; i += 4) {
+            a += query[i] * vectors.get(base + i);
+            b += query[i + 1] * vectors.get(base + i + 1);
+            c += query[i + 2] * vectors.get(base + i + 2);
+            d += query[i + 3] * vectors.get(base + i + 3);
+        }
+        for (; i < dimensions; i++) {
+            a += query[i] * vectors.get(base + i);
+        }
+        return 1 - (a + b + c + d);
+    }
+
+    private int linkCount(int node, int level) {
+        return level == 0 ? bottomLinks.get(node * (m0 + 1)) : upperLinks[node][(level - 1) * (m + 1)];
+    }
+
+    private int link(int node, int level, int i) {
+        return level == 0 ? bottomLinks.get(node * (m0 + 1) + 1 + i) : upperLinks[node][(level - 1) * (m + 1) + 1 + i];
+    }
+
+    private void setLinks(int node, int level, int[] links, int count) {
+        if (level == 0) {
+            int base = node * (m0 + 1);
+            bottomLinks.put(base, count);
+            for (int i = 0; i < count; i++) bottomLinks.put(base + 1 + i, links[i]);
+        } else {
+            int[] upper = upperLinks[node];
+            int base = (level - 1) * (m + 1);
+            upper[base] = count;
+            System.arraycopy(links, 0, upper, base + 1, count);
+        }
+    }
+
+    /**
+     * Links {@code neighbour} back to {@code node}, re-selecting its neighbours when it already has the maximum.
+     */
+    private void connect(int neighbour, int node, int level) {
+        int max = level == 0 ? m0 : m;
+        int count = linkCount(neighbour, level);
+        if (count < max) {
+            int[] links = new int[count + 1];
+            for (int i = 0; i < count; i++) links[i] = link(neighbour, level, i);
+            links[count] = node;
+            setLinks(neighbour, level, links, count + 1);
+            return;
+        }
+        Candidates candidates = new Candidates(count + 1);
+        vectors.position(neighbour * dimensions);
+        float[] origin = new float[dimensions];
+        vectors.get(origin);
+        for (int i = 0; i < count; i++) {
+            int other = link(neighbour, level, i);
+            candidates.add(other, distance(origin, other));
+        }
+        candidates.add(node, distance(origin, node));
+        int[] selected = selectNeighbours(candidates, max);
+        setLinks(neighbour, level, selected, selected.length);
+    }
+
+    /**
+     * Keeps a candidate only if it is closer to the new node than to every neighbour already kept, so the links
+     * spread out in different directions instead of clustering (the paper's heuristic).
+     */
+    private int[] selectNeighbours(Candidates candidates, int max) {
+        int[] selected = new int[Math.min(max, candidates.size())];
+        int count = 0;
+        for (int i = candidates.end - 1; i >= candidates.first && count < selected.length; i--) {
+            int candidate = candidates.nodes[i];
+            vectors.position(candidate * dimensions);
+            vectors.get(scratch);
+            boolean keep = true;
+            for (int j = 0; j < count && keep; j++) {
+                keep = distance(scratch, selected[j]) >= candidates.distances[i];
+            }
+            if (keep) selected[count++] = candidate;
+        }
+        return Arrays.copyOf(selected, count);
+    }
+
+    private int greedy(float[] query, int start, int level) {
+        int current = start;
+        float best = distance(query, current);
+        boolean improved = true;
+        while (improved) {
+            improved = false;
+            int from = current;
+            int count = linkCount(from, level);
+            for (int i = 0; i < count; i++) {
+                int neighbour = link(from, level, i);
+                float d = distance(query, neighbour);
+                if (d < best) {
+                    best = d;
+                    current = neighbour;
+                    improved = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    private Candidates searchLayer(float[] query, int start, int ef, int level) {
+        if (visited.length < size) {
+            visited = new int[capacity];
+            visitStamp = 0;
+        }
+        if (++visitStamp == Integer.MAX_VALUE) {
+            Arrays.fill(visited, 0);
+            visitStamp = 1;
+        }
+        Candidates results = new Candidates(ef + 1);
+        Candidates frontier = new Candidates(ef + 2);
+        float d = distance(query, start);
+        visited[start] = visitStamp;
+        results.add(start, d);
+        frontier.add(start, d);
+        while (frontier.size() > 0) {
+            int nearest = frontier.popNearest();
+            if (results.size() >= ef && frontier.poppedDistance > results.farthestDistance()) break;
+            int count = linkCount(nearest, level);
+            for (int i = 0; i < count; i++) {
+                int neighbour = link(nearest, level, i);
+                if (visited[neighbour] == visitStamp) continue;
+                visited[neighbour] = visitStamp;
+                float nd = distance(query, neighbour);
+                if (results.size() < ef || nd < results.farthestDistance()) {
+                    frontier.add(neighbour, nd);
+                    results.add(neighbour, nd);
+                    if (results.size() > ef) {
+                        results.removeFarthest();
+                        // Anything farther than every result would end the search when popped anyway
+                        if (frontier.size() > ef) frontier.removeFarthest();
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * @return the first {@code bytes} of {@code buffer}, sharing its memory
+     */
+    private static ByteBuffer region(ByteBuffer buffer, int bytes) {
+        ByteBuffer region = buffer.duplicate();
+        region.clear().limit(bytes);
+        return region;
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer chunk) throws IOException {
+        chunk.flip();
+        writeFully(channel, chunk);
+        chunk.clear();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, int bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) throw new IOException("Vector index is truncated");
+        }
+    }
+
+    /**
+     * Makes at least {@code bytes} unread bytes available in {@code chunk}, a buffer in read mode.
+     */
+    private static ByteBuffer fill(FileChannel channel, ByteBuffer chunk, int bytes) throws IOException {
+        if (chunk.remaining() < bytes) {
+            chunk.compact();
+            while (chunk.position() < bytes) {
+                if (channel.read(chunk) < 0) throw new IOException("Vector index is truncated");
+            }
+            chunk.flip();
+        }
+        return chunk;
+    }
+
+    /**
+     * Fills {@code target} with what {@code chunk} has read ahead, then straight from the channel.
+     */
+    private static void readInto(FileChannel channel, ByteBuffer chunk, ByteBuffer target) throws IOException {
+        if (chunk.hasRemaining()) {
+            ByteBuffer ahead = chunk.duplicate();
+            ahead.limit(ahead.position() + Math.min(ahead.remaining(), target.remaining()));
+            chunk.position(ahead.limit());
+            target.put(ahead);
+        }
+        readFully(channel, target);
+    }
+
+    /**
+     * Nodes with their distance to a query, sorted farthest first. Live entries are {@code [first, end)}, so both
+     * the farthest and the nearest are removed in constant time; the lists are bounded by ef, a few hundred at
+     * most, where sorted insertion is as cheap as a pair of heaps.
+     */
+    private static final class Candidates {
+        int[] nodes;
+        float[] distances;
+        int first;
+        int end;
+        float poppedDistance;
+
+        Candidates(int capacity) {
+            nodes = new int[capacity];
+            distances = new float[capacity];
+        }
+
+        int size() {
+            return end - first;
+        }
+
+        void add(int node, float distance) {
+            if (end == nodes.length) {
+                int size = size();
+                if (first > 0) {
+                    System.arraycopy(nodes, first, nodes, 0, size);
+                    System.arraycopy(distances, first, distances, 0, size);
+                } else {
+                    nodes = Arrays.copyOf(nodes, size * 2);
+                    distances = Arrays.copyOf(distances, size * 2);
+                }
+                first = 0;
+                end = size;
+            }
+            int i = end++;
+            while (i > first && distances[i - 1] < distance) {
+                nodes[i] = nodes[i - 1];
+                distances[i] = distances[i - 1];
+                i--;
+            }
+            nodes[i] = node;
+            distances[i] = distance;
+        }
+
+        float farthestDistance() {
+            return distances[first];
+        }
+
+        void removeFarthest() {
+            first++;
+        }
+
+        int popNearest() {
+            end--;
+            poppedDistance = distances[end];
+            return nodes[end];
+        }
+
+        int nearest() {
+            return nodes[end - 1];
+        }
+
+        int[] sortedNodes() {
+            int[] sorted = new int[size()];
+            for (int i = 0; i < sorted.length; i++) sorted[i] = nodes[end - 1 - i];
+            return sorted;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package com.atak.plugins.mlsnapshots.services;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Locale;
+
+/**
+ * Minimal RFC 6455 websocket client. It performs the opening handshake, answers pings, reassembles fragmented
+ * messages and returns each text or binary message as a string. Extensions and subprotocols are not negotiated.
+ */
+class WebSocketClient implements StreamIngestService.Source {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    // Silence after which the connection is checked with a ping
+    private static final int IDLE_TIMEOUT_MS = 30000;
+    private static final int MAX_MESSAGE = 16 * 1024 * 1024;
+
+    private static final char[] BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private static final int OP_CONTINUATION = 0x0;
+    private static final int OP_TEXT = 0x1;
+    private static final int OP_BINARY = 0x2;
+    private static final int OP_CLOSE = 0x8;
+    private static final int OP_PING = 0x9;
+    private static final int OP_PONG = 0xA;
+
+    private final URI uri;
+    private final SecureRandom random = new SecureRandom();
+    private volatile Socket socket;
+    private DataInputStream in;
+    private OutputStream out;
+    private boolean pingSent;
+
+    /**
+     * @param uri a {@code ws://} or {@code wss://} URL
+     */
+    WebSocketClient(URI uri) {
+        String scheme = uri.getScheme() != null ? uri.getScheme().toLowerCase(Locale.US) : "";
+        if (!scheme.equals("ws") && !scheme.equals("wss")) {
+            throw new IllegalArgumentException("Not a websocket URL: " + uri);
+        }
+        if (uri.getHost() == null) {
+            throw new IllegalArgumentException("No host in " + uri);
+        }
+        this.uri = uri;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        boolean tls = uri.getScheme().equalsIgnoreCase("wss");
+        int port = uri.getPort() > 0 ? uri.getPort() : tls ? 443 : 80;
+        Socket opened = StreamIngestService.openSocket(uri.getHost(), port, tls);
+        socket = opened;
+        opened.setSoTimeout(StreamIngestService.CONNECT_TIMEOUT_MS);
+        in = new DataInputStream(new BufferedInputStream(opened.getInputStream()));
+        out = opened.getOutputStream();
+        pingSent = false;
+
+        byte[] nonce = new byte[16];
+        random.nextBytes(nonce);
+        String key = base64(nonce);
+        String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+        if (uri.getRawQuery() != null) path += "?" + uri.getRawQuery();
+        String request = "GET " + path + " HTTP/1.1\r\n"
+                + "Host: " + uri.getHost() + (uri.getPort() > 0 ? ":" + uri.getPort() : "") + "\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Key: " + key + "\r\n"
+                + "Sec-WebSocket-Version: 13\r\n\r\n";
+        out.write(request.getBytes(UTF_8));
+        out.flush();
+
+        String status = readLine();
+        if (!status.startsWith("HTTP/1.1 101")) {
+            throw new IOException("Websocket upgrade refused by " + uri.getHost() + ": " + status);
+        }
+        String accept = null;
+        for (String header = readLine(); !header.isEmpty(); header = readLine()) {
+            int colon = header.indexOf(':');
+            if (colon > 0 && header.substring(0, colon).trim().equalsIgnoreCase("Sec-WebSocket-Accept")) {
+                accept = header.substring(colon + 1).trim();
+            }
+        }
+        if (!expectedAccept(key).equals(accept)) {
+            throw new IOException("Invalid Sec-WebSocket-Accept from " + uri.getHost());
+        }
+        opened.setSoTimeout(IDLE_TIMEOUT_MS);
+    }
+
+    @Override
+    public StreamIngestService.Message read() throws IOException {
+        ByteArrayOutputStream message = null;
+        while (true) {
+            int first;
+            try {
+                first = in.read();
+            } catch (SocketTimeoutException e) {
+                if (pingSent) throw new IOException("No reply from " + uri.getHost() + " to ping");
+                send(OP_PING, new byte[0]);
+                pingSent = true;
+                continue;
+            }
+            if (first == -1) return null;
+            pingSent = false;
+            int second = in.readUnsignedByte();
+            boolean fin = (first & 0x80) != 0;
+            int opcode = first & 0x0F;
+            if ((second & 0x80) != 0) throw new IOException("Server frames must not be masked");
+            long length = second & 0x7F;
+            if (length == 126) {
+                length = in.readUnsignedShort();
+            } else if (length == 127) {
+                length = in.readLong();
+            }
+            if (length < 0 || length > MAX_MESSAGE) {
+                throw new IOException("Frame of " + length + " bytes is too large");
+            }
+            byte[] payload = new byte[(int) length];
+            in.readFully(payload);
+
+            switch (opcode) {
+                case OP_CLOSE:
+                    // Echo the status code back, as the closing handshake requires
+                    send(OP_CLOSE, payload.length >= 2 ? new byte[]{payload[0], payload[1]} : new byte[0]);
+                    return null;
+                case OP_PING:
+                    send(OP_PONG, payload);
+                    break;
+                case OP_PONG:
+                    break;
+                case OP_TEXT:
+                case OP_BINARY:
+                    message = new ByteArrayOutputStream(payload.length);
+                    // fall through
+                case OP_CONTINUATION:
+                    if (message == null) throw new IOException("Continuation frame without a message");
+                    if (message.size() + payload.length > MAX_MESSAGE) {
+                        throw new IOException("Message is larger than " + MAX_MESSAGE + " bytes");
+                    }
+                    message.write(payload);
+                    if (fin) {
+                        return new StreamIngestService.Message(null, new String(message.toByteArray(), UTF_8));
+                    }
+                    break;
+                default:
+                    throw new IOException("Unknown websocket opcode " + opcode);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        Socket opened = socket;
+        socket = null;
+        if (opened != null) opened.close();
+    }
+
+    /**
+     * Writes one masked frame, as every client frame must be.
+     */
+    private void send(int opcode, byte[] payload) throws IOException {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(payload.length + 14);
+        frame.write(0x80 | opcode);
+        if (payload.length < 126) {
+            frame.write(0x80 | payload.length);
+        } else {
+            frame.write(0x80 | 126);
+            frame.write(payload.length >>> 8);
+            frame.write(payload.length);
+        }
+        byte[] mask = new byte[4];
+        random.nextBytes(mask);
+        frame.write(mask);
+        for (int i = 0; i < payload.length; i++) {
+            frame.write(payload[i] ^ mask[i & 3]);
+        }
+        out.write(frame.toByteArray());
+        out.flush();
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            int c = in.read();
+            if (c == -1) throw new EOFException("Connection to " + uri.getHost() + " closed");
+            if (c == '\n') break;
+            if (c != '\r') line.append((char) c);
+        }
+        return line.toString();
+    }
+
+    private static String expectedAccept(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest((key + ACCEPT_GUID).getBytes(UTF_8));
+            return base64(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Standard Base64 with padding. Written out rather than using android.util.Base64, which is only a stub in
+     * JVM unit tests, and java.util.Base64, which needs API 26.
+     */
+    static String base64(byte[] bytes) {
+        StringBuilder result = new StringBuilder((bytes.length + 2) / 3 * 4);
+        for (int i = 0; i < bytes.length; i += 3) {
+            int n = (bytes[i] & 0xFF) << 16;
+            if (i + 1 < bytes.length) n |= (bytes[i + 1] & 0xFF) << 8;
+            if (i + 2 < bytes.length) n |= bytes[i + 2] & 0xFF;
+            result.append(BASE64[n >>> 18]).append(BASE64[(n >>> 12) & 0x3F]);
+            result.append(i + 1 < bytes.length ? BASE64[(n >>> 6) & 0x3F] : '=');
+            result.append(i + 2 < bytes.length ? BASE64[n & 0x3F] : '=');
+        }
+        return result.toString();
+    }
+}
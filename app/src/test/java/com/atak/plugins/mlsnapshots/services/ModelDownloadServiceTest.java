@@ -0,0 +1,325 @@
+package com.atak.plugins.mlsnapshots.services;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ModelDownloadServiceTest {
+
+    private static final int SEGMENT_SIZE = 8 * 1024;
+    private static final int FILE_SIZE = 8 * SEGMENT_SIZE + 123;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ModelServer server;
+    private File destination;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new ModelServer(content(1));
+        destination = new File(folder.getRoot(), "model.bin");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void downloadsInSegmentsAndVerifiesChecksum() throws Exception {
+        Result result = download(server.url(), sha256(server.content));
+
+        assertNull(result.error);
+        assertArrayEquals(server.content, read(destination));
+        assertTrue("ranges were requested", server.rangeRequests.get() > 1);
+        assertFalse(new File(destination.getPath() + ".part").exists());
+        assertFalse(new File(destination.getPath() + ".part.json").exists());
+    }
+
+    @Test
+    public void fallsBackToWholeFileWhenRangesAreIgnored() throws Exception {
+        server.ranges = false;
+
+        Result result = download(server.url(), sha256(server.content));
+
+        assertNull(result.error);
+        assertArrayEquals(server.content, read(destination));
+    }
+
+    @Test
+    public void rejectsChecksumMismatch() throws Exception {
+        Result result = download(server.url(), sha256(content(2)));
+
+        assertNotNull(result.error);
+        assertTrue(result.error, result.error.contains("Checksum mismatch"));
+        assertFalse(destination.exists());
+    }
+
+    @Test
+    public void fetchesPublishedChecksum() throws Exception {
+        server.checksum = sha256(server.content) + "  model.bin\n";
+        Result result = downloadVerified();
+        assertNull(result.error);
+        assertArrayEquals(server.content, read(destination));
+
+        destination.delete();
+        server.checksum = sha256(content(2)) + "  model.bin\n";
+        result = downloadVerified();
+        assertNotNull(result.error);
+        assertFalse(destination.exists());
+    }
+
+    @Test
+    public void failsWithoutPublishedChecksum() throws Exception {
+        Result result = downloadVerified();
+
+        assertNotNull(result.error);
+        assertTrue(result.error, result.error.contains("No checksum"));
+        assertEquals("bytes of the model fetched", 0, server.bytesServed.get());
+    }
+
+    @Test
+    public void resumesAfterCancel() throws Exception {
+        server.chunkDelayMs = 20;
+        Result first = new Result();
+        ModelDownloadService.Download download = new ModelDownloadService(SEGMENT_SIZE, 2)
+                .downloadModel(server.url(), destination, sha256(server.content), first);
+        waitForBytes(3 * SEGMENT_SIZE);
+        download.cancel();
+        await(first);
+        assertTrue(new File(destination.getPath() + ".part.json").exists());
+
+        server.chunkDelayMs = 0;
+        server.bytesServed.set(0);
+        Result second = download(server.url(), sha256(server.content));
+
+        assertNull(second.error);
+        assertArrayEquals(server.content, read(destination));
+        assertTrue("resumed download fetched " + server.bytesServed.get() + " bytes",
+                server.bytesServed.get() <= FILE_SIZE - 2 * SEGMENT_SIZE);
+    }
+
+    @Test
+    public void restartsWhenFileChangesBeforeResume() throws Exception {
+        server.chunkDelayMs = 20;
+        Result first = new Result();
+        ModelDownloadService.Download download = new ModelDownloadService(SEGMENT_SIZE, 2)
+                .downloadModel(server.url(), destination, null, first);
+        waitForBytes(3 * SEGMENT_SIZE);
+        download.cancel();
+        await(first);
+
+        server.chunkDelayMs = 0;
+        server.replace(content(2), "\"v2\"");
+        Result second = download(server.url(), sha256(server.content));
+
+        assertNull(second.error);
+        assertArrayEquals(server.content, read(destination));
+    }
+
+    @Test
+    public void failsWhenFileChangesDuringDownload() throws Exception {
+        // The probe sees v1, every segment request after it gets v2 and a 200 for the stale If-Range
+        server.replaceAfterProbe = content(2);
+
+        Result result = download(server.url(), null);
+
+        assertNotNull(result.error);
+        assertTrue(result.error, result.error.contains("changed on the server"));
+        assertFalse(destination.exists());
+        assertFalse("the stale segment map is dropped", new File(destination.getPath() + ".part.json").exists());
+    }
+
+    private Result download(String url, String sha256) throws InterruptedException {
+        Result result = new Result();
+        new ModelDownloadService(SEGMENT_SIZE, 3).downloadModel(url, destination, sha256, result);
+        return await(result);
+    }
+
+    private Result downloadVerified() throws InterruptedException {
+        Result result = new Result();
+        new ModelDownloadService(SEGMENT_SIZE, 3).downloadVerified(server.url(), server.url() + ".sha256",
+                destination, result);
+        return await(result);
+    }
+
+    private void waitForBytes(long bytes) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (server.bytesServed.get() < bytes) {
+            if (System.currentTimeMillis() > deadline) fail("download did not progress");
+            Thread.sleep(10);
+        }
+    }
+
+    private static Result await(Result result) throws InterruptedException {
+        if (!result.done.await(30, TimeUnit.SECONDS)) fail("download did not finish");
+        return result;
+    }
+
+    private static byte[] content(long seed) {
+        byte[] content = new byte[FILE_SIZE];
+        new Random(seed).nextBytes(content);
+        return content;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        try (InputStream in = new FileInputStream(file)) {
+            int offset = 0;
+            while (offset < data.length) {
+                offset += in.read(data, offset, data.length - offset);
+            }
+        }
+        return data;
+    }
+
+    private static String sha256(byte[] data) throws Exception {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-256").digest(data)) {
+            hex.append(String.format("%02x", b & 0xFF));
+        }
+        return hex.toString();
+    }
+
+    private static final class Result implements ModelDownloadService.DownloadListener {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile String error;
+
+        @Override
+        public void onProgress(int progress) {
+        }
+
+        @Override
+        public void onComplete(File file) {
+            done.countDown();
+        }
+
+        @Override
+        public void onError(String error) {
+            this.error = error;
+            done.countDown();
+        }
+    }
+
+    /** Serves one file with ETag, Range and If-Range handling, and its checksum file if one is set. */
+    private static final class ModelServer {
+        final HttpServer http;
+        final AtomicLong bytesServed = new AtomicLong();
+        final AtomicLong rangeRequests = new AtomicLong();
+        volatile byte[] content;
+        volatile String etag = "\"v1\"";
+        volatile boolean ranges = true;
+        volatile int chunkDelayMs;
+        volatile String checksum;
+        volatile byte[] replaceAfterProbe;
+
+        ModelServer(byte[] content) throws IOException {
+            this.content = content;
+            http = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            http.setExecutor(Executors.newCachedThreadPool());
+            http.createContext("/", this::handle);
+            http.start();
+        }
+
+        String url() {
+            return "http://127.0.0.1:" + http.getAddress().getPort() + "/model.bin";
+        }
+
+        synchronized void replace(byte[] content, String etag) {
+            this.content = content;
+            this.etag = etag;
+        }
+
+        void stop() {
+            http.stop(0);
+        }
+
+        private void handle(HttpExchange exchange) throws IOException {
+            try {
+                if (exchange.getRequestURI().getPath().endsWith(".sha256")) {
+                    if (checksum == null) {
+                        exchange.sendResponseHeaders(404, -1);
+                        return;
+                    }
+                    byte[] body = checksum.getBytes("US-ASCII");
+                    exchange.sendResponseHeaders(200, body.length);
+                    exchange.getResponseBody().write(body);
+                    return;
+                }
+                byte[] body;
+                String tag;
+                synchronized (this) {
+                    body = content;
+                    tag = etag;
+                }
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+                exchange.getResponseHeaders().set("ETag", tag);
+                if ("bytes=0-0".equals(range) && replaceAfterProbe != null) {
+                    replace(replaceAfterProbe, "\"v2\"");
+                    replaceAfterProbe = null;
+                }
+                if (ranges && range != null && (ifRange == null || ifRange.equals(tag))) {
+                    rangeRequests.incrementAndGet();
+                    String[] bounds = range.substring("bytes=".length()).split("-");
+                    int first = Integer.parseInt(bounds[0]);
+                    int last = Math.min(Integer.parseInt(bounds[1]), body.length - 1);
+                    exchange.getResponseHeaders().set("Content-Range", "bytes " + first + "-" + last + "/" + body.length);
+                    exchange.sendResponseHeaders(206, last - first + 1);
+                    send(exchange, body, first, last + 1);
+                } else {
+                    exchange.sendResponseHeaders(200, body.length);
+                    send(exchange, body, 0, body.length);
+                }
+            } catch (IOException e) {
+                // The client disconnected
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private void send(HttpExchange exchange, byte[] body, int from, int to) throws IOException {
+            OutputStream out = exchange.getResponseBody();
+            for (int offset = from; offset < to; offset += 1024) {
+                int n = Math.min(1024, to - offset);
+                out.write(body, offset, n);
+                out.flush();
+                bytesServed.addAndGet(n);
+                if (chunkDelayMs > 0) {
+                    try {
+                        Thread.sleep(chunkDelayMs);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException(e);
+                    }
+                }
+            }
+        }
+    }
+}
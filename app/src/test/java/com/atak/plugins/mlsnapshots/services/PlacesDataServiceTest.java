@@ -0,0 +1,144 @@
+package com.atak.plugins.mlsnapshots.services;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class PlacesDataServiceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private DuckDBService duckDBService;
+    private Connection conn;
+    private File release;
+    private File cacheDir;
+    private PlacesDataService service;
+
+    @Before
+    public void setUp() throws Exception {
+        duckDBService = new DuckDBService(new File(folder.getRoot(), "places.duckdb").getPath());
+        conn = duckDBService.newConnection();
+        assumeTrue("spatial extension not available", hasSpatial());
+
+        // Laid out like the Overture release, so only the source path differs from S3
+        release = new File(folder.getRoot(), "release");
+        File partition = new File(release, "theme=places/type=place");
+        assertTrue(partition.mkdirs());
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("COPY (SELECT id, {'primary': name} AS names, {'primary': category} AS categories, "
+                    + "0.9 AS confidence, ST_AsWKB(ST_Point(lon, lat)) AS geometry, "
+                    + "{'xmin': lon, 'xmax': lon, 'ymin': lat, 'ymax': lat} AS bbox "
+                    + "FROM (VALUES ('london-1', 'Cafe', 'cafe', -0.12, 51.50), "
+                    + "('london-2', 'Museum', 'museum', -0.085, 51.51), "
+                    + "('paris-1', 'Bakery', 'bakery', 2.35, 48.85)) t(id, name, category, lon, lat)) "
+                    + "TO '" + new File(partition, "part-0.parquet").getPath() + "' (FORMAT PARQUET)");
+        }
+        cacheDir = folder.newFolder("cache");
+        service = new PlacesDataService(duckDBService, cacheDir, partition.getPath() + "/*");
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        conn.close();
+        duckDBService.close();
+    }
+
+    @Test
+    public void loadsPlacesInsideArea() throws Exception {
+        assertEquals(0, service.loadOverturePlaces(conn, -0.15, 51.48, -0.08, 51.53));
+
+        assertEquals("2", query("SELECT count(*) FROM overture_places"));
+        assertEquals("Cafe", query("SELECT name FROM overture_places WHERE id = 'london-1'"));
+        assertEquals("Overture", query("SELECT DISTINCT source FROM overture_places"));
+        assertEquals(PlacesDataService.coveringQuadKeys(-0.15, 51.48, -0.08, 51.53, PlacesDataService.CACHE_ZOOM).size(),
+                cachedFiles(".parquet").size());
+        assertEquals(0, cachedFiles(".tmp").size());
+    }
+
+    @Test
+    public void servesCachedTilesWithoutSource() throws Exception {
+        service.loadOverturePlaces(conn, -0.15, 51.48, -0.08, 51.53);
+        deleteRelease();
+
+        assertEquals(0, service.loadOverturePlaces(conn, -0.15, 51.48, -0.08, 51.53));
+        assertEquals("2", query("SELECT count(*) FROM overture_places"));
+    }
+
+    @Test
+    public void reportsTilesThatCouldNotBeFetched() throws Exception {
+        service.loadOverturePlaces(conn, 2.30, 48.80, 2.40, 48.90);
+        assertEquals("1", query("SELECT count(*) FROM overture_places"));
+        deleteRelease();
+
+        int tiles = PlacesDataService.coveringQuadKeys(-0.15, 51.48, -0.08, 51.53, PlacesDataService.CACHE_ZOOM).size();
+        assertEquals(tiles, service.loadOverturePlaces(conn, -0.15, 51.48, -0.08, 51.53));
+        // The places of the previous area must not be served in place of the ones that are missing
+        assertEquals("0", query("SELECT count(*) FROM overture_places"));
+        assertEquals(0, cachedFiles(".tmp").size());
+    }
+
+    @Test
+    public void loadsCachedPartOfArea() throws Exception {
+        service.loadOverturePlaces(conn, -0.125, 51.495, -0.115, 51.505);
+        int cached = cachedFiles(".parquet").size();
+        deleteRelease();
+
+        int tiles = PlacesDataService.coveringQuadKeys(-0.15, 51.48, -0.08, 51.53, PlacesDataService.CACHE_ZOOM).size();
+        assertEquals(tiles - cached, service.loadOverturePlaces(conn, -0.15, 51.48, -0.08, 51.53));
+        assertEquals("london-1", query("SELECT string_agg(id) FROM overture_places"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAreasOverTileCap() throws Exception {
+        service.loadOverturePlaces(conn, -1, 50, 1, 52);
+    }
+
+    private boolean hasSpatial() {
+        try {
+            query("SELECT ST_AsText(ST_Point(1, 2))");
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private List<File> cachedFiles(String suffix) {
+        List<File> result = new ArrayList<>();
+        for (File dir : cacheDir.listFiles()) {
+            for (File file : dir.listFiles()) {
+                if (file.getName().endsWith(suffix)) result.add(file);
+            }
+        }
+        return result;
+    }
+
+    private void deleteRelease() {
+        File partition = new File(release, "theme=places/type=place");
+        for (File file : partition.listFiles()) {
+            assertTrue(file.delete());
+        }
+    }
+
+    private String query(String sql) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(sql)) {
+            rs.next();
+            return rs.getString(1);
+        }
+    }
+}
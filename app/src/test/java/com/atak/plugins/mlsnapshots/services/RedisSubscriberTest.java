@@ -0,0 +1,213 @@
+package com.atak.plugins.mlsnapshots.services;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RedisSubscriberTest {
+
+    private FakeRedis redis;
+    private RedisSubscriber subscriber;
+
+    @Before
+    public void setUp() throws IOException {
+        redis = new FakeRedis();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (subscriber != null) subscriber.close();
+        redis.close();
+    }
+
+    @Test
+    public void subscribesAndReturnsMessages() throws Exception {
+        subscriber = new RedisSubscriber(redis.url(""), "positions");
+        subscriber.connect();
+        assertEquals(Arrays.asList("SUBSCRIBE", "positions"), redis.nextCommand());
+
+        String payload = "{\"id\":\"t1\",\"lat\":51.5,\"lon\":-0.12,\"name\":\"Z\u00fcrich\"}";
+        redis.send(array(bulk("message"), bulk("positions"), bulk(payload)));
+
+        StreamIngestService.Message message = subscriber.read();
+        assertEquals("positions", message.channel);
+        assertEquals(payload, message.text);
+    }
+
+    @Test
+    public void subscribesToPattern() throws Exception {
+        subscriber = new RedisSubscriber(redis.url(""), "vehicles:*");
+        subscriber.connect();
+        assertEquals(Arrays.asList("PSUBSCRIBE", "vehicles:*"), redis.nextCommand());
+
+        redis.send(array(bulk("pmessage"), bulk("vehicles:*"), bulk("vehicles:42"), bulk("{}")));
+
+        StreamIngestService.Message message = subscriber.read();
+        assertEquals("vehicles:42", message.channel);
+        assertEquals("{}", message.text);
+    }
+
+    @Test
+    public void authenticatesBeforeSubscribing() throws Exception {
+        subscriber = new RedisSubscriber(redis.url("alice:secret@"), "positions");
+        subscriber.connect();
+
+        assertEquals(Arrays.asList("AUTH", "alice", "secret"), redis.nextCommand());
+        assertEquals(Arrays.asList("SUBSCRIBE", "positions"), redis.nextCommand());
+    }
+
+    @Test
+    public void reportsAuthenticationError() throws Exception {
+        redis.authReply = "-WRONGPASS invalid username-password pair\r\n";
+        subscriber = new RedisSubscriber(redis.url(":wrong@"), "positions");
+        try {
+            subscriber.connect();
+            fail("connected with a rejected password");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("WRONGPASS"));
+        }
+    }
+
+    @Test
+    public void returnsNullWhenServerCloses() throws Exception {
+        subscriber = new RedisSubscriber(redis.url(""), "positions");
+        subscriber.connect();
+        redis.nextCommand();
+
+        redis.disconnect();
+
+        assertNull(subscriber.read());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOtherSchemes() {
+        new RedisSubscriber("http://localhost:6379", "positions");
+    }
+
+    private static String bulk(String value) throws IOException {
+        return "$" + value.getBytes("UTF-8").length + "\r\n" + value + "\r\n";
+    }
+
+    private static String array(String... items) {
+        StringBuilder result = new StringBuilder("*" + items.length + "\r\n");
+        for (String item : items) {
+            result.append(item);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Accepts one connection, records the commands it sends and answers AUTH, SUBSCRIBE, PSUBSCRIBE and PING the
+     * way Redis does.
+     */
+    private static final class FakeRedis {
+        final ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        final BlockingQueue<List<String>> commands = new LinkedBlockingQueue<>();
+        final CountDownLatch accepted = new CountDownLatch(1);
+        volatile String authReply = "+OK\r\n";
+        volatile Socket client;
+
+        FakeRedis() throws IOException {
+            Thread thread = new Thread(this::serve, "fake-redis");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        String url(String userInfo) {
+            return "redis://" + userInfo + "127.0.0.1:" + server.getLocalPort();
+        }
+
+        List<String> nextCommand() throws InterruptedException {
+            List<String> command = commands.poll(5, TimeUnit.SECONDS);
+            if (command == null) fail("no command received");
+            return command;
+        }
+
+        void send(String raw) throws Exception {
+            if (!accepted.await(5, TimeUnit.SECONDS)) fail("no connection");
+            synchronized (this) {
+                OutputStream out = client.getOutputStream();
+                out.write(raw.getBytes("UTF-8"));
+                out.flush();
+            }
+        }
+
+        void disconnect() throws IOException {
+            client.close();
+        }
+
+        void close() throws IOException {
+            server.close();
+            if (client != null) client.close();
+        }
+
+        private void serve() {
+            try {
+                client = server.accept();
+                accepted.countDown();
+                DataInputStream in = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+                while (true) {
+                    List<String> command = readCommand(in);
+                    if (command == null) return;
+                    commands.add(command);
+                    String name = command.get(0);
+                    if (name.equals("AUTH")) {
+                        send(authReply);
+                    } else if (name.equals("SUBSCRIBE") || name.equals("PSUBSCRIBE")) {
+                        send(array(bulk(name.toLowerCase(Locale.US)), bulk(command.get(1)), ":1\r\n"));
+                    } else if (name.equals("PING")) {
+                        send(array(bulk("pong"), bulk("")));
+                    }
+                }
+            } catch (Exception e) {
+                // Closed by the test
+            }
+        }
+
+        private static List<String> readCommand(DataInputStream in) throws IOException {
+            String header = readLine(in);
+            if (header == null) return null;
+            int count = Integer.parseInt(header.substring(1));
+            List<String> args = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                byte[] arg = new byte[Integer.parseInt(readLine(in).substring(1))];
+                in.readFully(arg);
+                readLine(in);
+                args.add(new String(arg, "UTF-8"));
+            }
+            return args;
+        }
+
+        private static String readLine(DataInputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != '\r') {
+                if (c == -1) return null;
+                line.append((char) c);
+            }
+            in.read();
+            return line.toString();
+        }
+    }
+}
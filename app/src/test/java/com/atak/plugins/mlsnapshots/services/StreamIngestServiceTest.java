@@ -0,0 +1,209 @@
+package com.atak.plugins.mlsnapshots.services;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StreamIngestServiceTest {
+
+    private static final String TABLE = "stream_test";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private DuckDBService duckDBService;
+    private StreamIngestService service;
+    private QueueSource source;
+
+    @Before
+    public void setUp() throws SQLException {
+        duckDBService = new DuckDBService(new File(folder.getRoot(), "streams.duckdb").getPath());
+        service = new StreamIngestService(duckDBService);
+        source = new QueueSource();
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        service.close();
+        duckDBService.close();
+    }
+
+    @Test
+    public void appendsDecodedMessages() throws Exception {
+        source.push("vehicles", "{\"type\":\"Feature\",\"properties\":{\"id\":\"bus-7\"},"
+                + "\"geometry\":{\"type\":\"Point\",\"coordinates\":[-0.12,51.5]}}");
+        source.push("vehicles", "{\"attributes\":{\"uid\":\"truck-2\"},\"geometry\":{\"x\":2.35,\"y\":48.85}}");
+        source.push("vehicles", "{\"track_id\":\"boat-1\",\"latitude\":40.7,\"lng\":-74.0}");
+        source.push("vehicles", "not json");
+
+        service.subscribe(TABLE, source, null);
+        awaitRows(4);
+
+        try (Statement stmt = duckDBService.getConnection().createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT channel, entity_id, lon, lat, payload FROM " + TABLE
+                     + " ORDER BY received_ms, rowid")) {
+            rs.next();
+            assertEquals("vehicles", rs.getString(1));
+            assertEquals("bus-7", rs.getString(2));
+            assertEquals(-0.12, rs.getDouble(3), 1e-9);
+            assertEquals(51.5, rs.getDouble(4), 1e-9);
+            rs.next();
+            assertEquals("truck-2", rs.getString(2));
+            assertEquals(2.35, rs.getDouble(3), 1e-9);
+            assertEquals(48.85, rs.getDouble(4), 1e-9);
+            rs.next();
+            assertEquals("boat-1", rs.getString(2));
+            assertEquals(-74.0, rs.getDouble(3), 1e-9);
+            assertEquals(40.7, rs.getDouble(4), 1e-9);
+            rs.next();
+            // Without an entity of its own, a message is attributed to its channel
+            assertEquals("vehicles", rs.getString(2));
+            rs.getDouble(3);
+            assertTrue(rs.wasNull());
+            assertEquals("not json", rs.getString(5));
+        }
+    }
+
+    @Test
+    public void usesConfiguredIdField() throws Exception {
+        source.push("c", "{\"id\":\"ignored\",\"callsign\":\"ALPHA\",\"lat\":1,\"lon\":2}");
+
+        service.subscribe(TABLE, source, "callsign");
+        awaitRows(1);
+
+        assertEquals("ALPHA", query("SELECT entity_id FROM " + TABLE));
+    }
+
+    @Test
+    public void dropsOldestRowsBeyondCap() throws Exception {
+        service.setMaxRows(5);
+        for (int i = 0; i < 20; i++) {
+            source.push("c", "{\"id\":\"" + i + "\"}");
+            // Rows are ordered by arrival time, which must differ for the cap to pick the oldest
+            Thread.sleep(2);
+        }
+
+        service.subscribe(TABLE, source, null);
+        awaitWritten(20);
+        awaitRows(5);
+
+        assertEquals("15", query("SELECT min(CAST(entity_id AS INTEGER)) FROM " + TABLE));
+        assertEquals("19", query("SELECT max(CAST(entity_id AS INTEGER)) FROM " + TABLE));
+    }
+
+    @Test
+    public void dropsRowsOlderThanRetention() throws Exception {
+        service.setRetention(500, TimeUnit.MILLISECONDS);
+        source.push("c", "{\"id\":\"stale\"}");
+        Thread.sleep(1000);
+
+        service.subscribe(TABLE, source, null);
+        awaitWritten(1);
+        awaitRows(0);
+
+        source.push("c", "{\"id\":\"fresh\"}");
+        awaitWritten(2);
+        awaitRows(1);
+        assertEquals("fresh", query("SELECT entity_id FROM " + TABLE));
+    }
+
+    @Test
+    public void stopsReadingOnUnsubscribe() throws Exception {
+        service.subscribe(TABLE, source, null);
+        source.push("c", "{\"id\":\"a\"}");
+        awaitRows(1);
+
+        service.unsubscribe(TABLE);
+        source.push("c", "{\"id\":\"b\"}");
+        Thread.sleep(600);
+
+        assertEquals("1", query("SELECT count(*) FROM " + TABLE));
+        assertNull(stats());
+    }
+
+    private StreamIngestService.Stats stats() {
+        for (StreamIngestService.Stats stats : service.getStats()) {
+            if (stats.table.equals(TABLE)) return stats;
+        }
+        return null;
+    }
+
+    private void awaitWritten(long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            StreamIngestService.Stats stats = stats();
+            if (stats != null && stats.written >= count) return;
+            if (System.currentTimeMillis() > deadline) fail("messages were not written");
+            Thread.sleep(20);
+        }
+    }
+
+    /**
+     * Waits for the table to hold exactly {@code count} rows; trimming runs on later flushes than appending.
+     */
+    private void awaitRows(long count) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        String rows = null;
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                rows = query("SELECT count(*) FROM " + TABLE);
+                if (rows.equals(Long.toString(count))) return;
+            } catch (SQLException e) {
+                // Not created yet
+            }
+            Thread.sleep(20);
+        }
+        fail("expected " + count + " rows, found " + rows);
+    }
+
+    private String query(String sql) throws SQLException {
+        try (Statement stmt = duckDBService.getConnection().createStatement();
+             ResultSet rs = stmt.executeQuery(sql)) {
+            rs.next();
+            return rs.getString(1);
+        }
+    }
+
+    /** Hands out the messages pushed by the test, as a subscription's server would. */
+    private static final class QueueSource implements StreamIngestService.Source {
+        final BlockingQueue<StreamIngestService.Message> messages = new LinkedBlockingQueue<>();
+
+        void push(String channel, String text) {
+            messages.add(new StreamIngestService.Message(channel, text));
+        }
+
+        @Override
+        public void connect() {
+        }
+
+        @Override
+        public StreamIngestService.Message read() throws IOException {
+            try {
+                return messages.take();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
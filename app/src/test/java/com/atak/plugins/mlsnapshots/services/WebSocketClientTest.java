@@ -0,0 +1,265 @@
+package com.atak.plugins.mlsnapshots.services;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WebSocketClientTest {
+
+    private static final int OP_CONTINUATION = 0x0;
+    private static final int OP_TEXT = 0x1;
+    private static final int OP_CLOSE = 0x8;
+    private static final int OP_PING = 0x9;
+    private static final int OP_PONG = 0xA;
+
+    private FakeServer server;
+    private WebSocketClient client;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new FakeServer();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (client != null) client.close();
+        server.close();
+    }
+
+    @Test
+    public void upgradesAndReadsTextMessages() throws Exception {
+        connect("/positions?format=json");
+        assertTrue(server.requestLine, server.requestLine.startsWith("GET /positions?format=json HTTP/1.1"));
+
+        server.sendFrame(true, OP_TEXT, "{\"id\":1}".getBytes("UTF-8"));
+        StreamIngestService.Message message = client.read();
+
+        assertNull(message.channel);
+        assertEquals("{\"id\":1}", message.text);
+    }
+
+    @Test
+    public void readsExtendedLengthFrames() throws Exception {
+        connect("/");
+        char[] text = new char[70000];
+        Arrays.fill(text, 'x');
+        server.sendFrame(true, OP_TEXT, new String(text, 0, 300).getBytes("UTF-8"));
+        server.sendFrame(true, OP_TEXT, new String(text).getBytes("UTF-8"));
+
+        assertEquals(300, client.read().text.length());
+        assertEquals(70000, client.read().text.length());
+    }
+
+    @Test
+    public void reassemblesFragmentedMessages() throws Exception {
+        connect("/");
+        server.sendFrame(false, OP_TEXT, "{\"id\":".getBytes("UTF-8"));
+        // Control frames may arrive between fragments
+        server.sendFrame(true, OP_PING, new byte[0]);
+        server.sendFrame(true, OP_CONTINUATION, "42}".getBytes("UTF-8"));
+
+        assertEquals("{\"id\":42}", client.read().text);
+    }
+
+    @Test
+    public void answersPingWithMaskedPong() throws Exception {
+        connect("/");
+        server.sendFrame(true, OP_PING, "hello".getBytes("UTF-8"));
+        server.sendFrame(true, OP_TEXT, "after".getBytes("UTF-8"));
+
+        assertEquals("after", client.read().text);
+        Frame pong = server.nextFrame();
+        assertEquals(OP_PONG, pong.opcode);
+        assertTrue("client frames are masked", pong.masked);
+        assertArrayEquals("hello".getBytes("UTF-8"), pong.payload);
+    }
+
+    @Test
+    public void echoesCloseAndEndsStream() throws Exception {
+        connect("/");
+        server.sendFrame(true, OP_CLOSE, new byte[] {0x03, (byte) 0xE8});
+
+        assertNull(client.read());
+        Frame close = server.nextFrame();
+        assertEquals(OP_CLOSE, close.opcode);
+        assertArrayEquals(new byte[] {0x03, (byte) 0xE8}, close.payload);
+    }
+
+    @Test
+    public void rejectsWrongAcceptKey() throws Exception {
+        server.acceptOverride = "bm90IHRoZSByaWdodCBrZXk=";
+        client = new WebSocketClient(URI.create(server.url("/")));
+        try {
+            client.connect();
+            fail("accepted a handshake with the wrong key");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Sec-WebSocket-Accept"));
+        }
+    }
+
+    @Test
+    public void encodesBase64LikeTheJdk() {
+        Random random = new Random(7);
+        for (int length = 0; length < 40; length++) {
+            byte[] bytes = new byte[length];
+            random.nextBytes(bytes);
+            assertEquals(Base64.getEncoder().encodeToString(bytes), WebSocketClient.base64(bytes));
+        }
+    }
+
+    private void connect(String path) throws IOException {
+        client = new WebSocketClient(URI.create(server.url(path)));
+        client.connect();
+    }
+
+    private static final class Frame {
+        final int opcode;
+        final boolean masked;
+        final byte[] payload;
+
+        Frame(int opcode, boolean masked, byte[] payload) {
+            this.opcode = opcode;
+            this.masked = masked;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * Accepts one websocket connection, completes the opening handshake and records the frames the client sends.
+     */
+    private static final class FakeServer {
+        final ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        final BlockingQueue<Frame> frames = new LinkedBlockingQueue<>();
+        final CountDownLatch upgraded = new CountDownLatch(1);
+        volatile String acceptOverride;
+        volatile String requestLine;
+        volatile Socket client;
+
+        FakeServer() throws IOException {
+            Thread thread = new Thread(this::serve, "fake-websocket");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        String url(String path) {
+            return "ws://127.0.0.1:" + server.getLocalPort() + path;
+        }
+
+        void sendFrame(boolean fin, int opcode, byte[] payload) throws Exception {
+            if (!upgraded.await(5, TimeUnit.SECONDS)) fail("no connection");
+            ByteArrayOutputStream frame = new ByteArrayOutputStream();
+            frame.write((fin ? 0x80 : 0) | opcode);
+            if (payload.length < 126) {
+                frame.write(payload.length);
+            } else if (payload.length < 65536) {
+                frame.write(126);
+                frame.write(payload.length >>> 8);
+                frame.write(payload.length);
+            } else {
+                frame.write(127);
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    frame.write((int) ((long) payload.length >>> shift));
+                }
+            }
+            frame.write(payload);
+            synchronized (this) {
+                OutputStream out = client.getOutputStream();
+                out.write(frame.toByteArray());
+                out.flush();
+            }
+        }
+
+        Frame nextFrame() throws InterruptedException {
+            Frame frame = frames.poll(5, TimeUnit.SECONDS);
+            if (frame == null) fail("no frame received");
+            return frame;
+        }
+
+        void close() throws IOException {
+            server.close();
+            if (client != null) client.close();
+        }
+
+        private void serve() {
+            try {
+                client = server.accept();
+                DataInputStream in = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+                requestLine = readLine(in);
+                String key = null;
+                for (String header = readLine(in); !header.isEmpty(); header = readLine(in)) {
+                    if (header.toLowerCase(Locale.US).startsWith("sec-websocket-key:")) {
+                        key = header.substring(header.indexOf(':') + 1).trim();
+                    }
+                }
+                String accept = acceptOverride != null ? acceptOverride : Base64.getEncoder().encodeToString(
+                        MessageDigest.getInstance("SHA-1").digest(
+                                (key + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11").getBytes("UTF-8")));
+                OutputStream out = client.getOutputStream();
+                out.write(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                        + "Sec-WebSocket-Accept: " + accept + "\r\n\r\n").getBytes("UTF-8"));
+                out.flush();
+                upgraded.countDown();
+                while (true) {
+                    frames.add(readFrame(in));
+                }
+            } catch (Exception e) {
+                // Closed by the test
+            }
+        }
+
+        private static Frame readFrame(DataInputStream in) throws IOException {
+            int first = in.readUnsignedByte();
+            int second = in.readUnsignedByte();
+            boolean masked = (second & 0x80) != 0;
+            int length = second & 0x7F;
+            if (length == 126) {
+                length = in.readUnsignedShort();
+            } else if (length == 127) {
+                length = (int) in.readLong();
+            }
+            byte[] mask = new byte[4];
+            if (masked) in.readFully(mask);
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            for (int i = 0; masked && i < length; i++) {
+                payload[i] ^= mask[i & 3];
+            }
+            return new Frame(first & 0x0F, masked, payload);
+        }
+
+        private static String readLine(DataInputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != '\n') {
+                if (c == -1) throw new IOException("closed");
+                if (c != '\r') line.append((char) c);
+            }
+            return line.toString();
+        }
+    }
+}